@@ -12,6 +12,8 @@ import optimization.LBFGSLinearRegression;
 import optimization.OWLQNLinearRegression;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
+import regression.MLR;
+import regression.MLR.Regularizer;
 import regression.SVR;
 import sampler.HTM;
 import sampler.supervised.regression.SLDA;
@@ -147,6 +149,9 @@ public class RegressionBenchmark<D extends ResponseTextDataset> extends Abstract
                 case "svr":
                     runSVR(fold);
                     break;
+                case "mlr":
+                    runMLR(fold);
+                    break;
                 case "mlr-owlqn":
                     runMLR_OWLQN(fold);
                     break;
@@ -400,6 +405,39 @@ public class RegressionBenchmark<D extends ResponseTextDataset> extends Abstract
         }
     }
 
+    private void runMLR(Fold<?, ?> fold) throws Exception {
+        String foldFolder = fold.getFoldFolderPath();
+        Regularizer reg = Regularizer.valueOf(CLIUtils.getStringArgument(cmd, "regularizer", "L2"));
+        double param = CLIUtils.getDoubleArgument(cmd, "param", 1.0);
+        double l1Ratio = CLIUtils.getDoubleArgument(cmd, "l1-ratio", 0.5);
+        int V = trainData.getWordVocab().size();
+
+        MLR<ResponseTextDataset> mlr = new MLR<ResponseTextDataset>(
+                new File(foldFolder, modelFolder).getAbsolutePath(), reg, param, l1Ratio);
+        File mlrFolder = new File(mlr.getRegressorFolder());
+        IOUtils.createFolder(mlrFolder);
+
+        if (isTraining()) { // train
+            File trResultFolder = new File(mlrFolder, TRAIN_PREFIX + RESULT_FOLDER);
+            IOUtils.createFolder(trResultFolder);
+
+            mlr.train(trainData.getWords(), trainData.getResponses(), V);
+
+            double[] trPredictions = mlr.test(trainData.getWords(), V);
+            evaluatePhase(trainData, TRAIN_PREFIX, Fold.TrainingExt,
+                    trResultFolder, trPredictions);
+        }
+
+        if (isTesting()) { // test
+            File teResultFolder = new File(mlrFolder, TEST_PREFIX + RESULT_FOLDER);
+            IOUtils.createFolder(teResultFolder);
+
+            double[] tePredictions = mlr.test(testData.getWords(), V);
+            evaluatePhase(testData, TEST_PREFIX, Fold.TestExt,
+                    teResultFolder, tePredictions);
+        }
+    }
+
     private void runMLR_OWLQN(Fold fold) throws Exception {
         String foldFolder = fold.getFoldFolderPath();
         double l1 = CLIUtils.getDoubleArgument(cmd, "l1", 0.0);
@@ -581,6 +619,9 @@ public class RegressionBenchmark<D extends ResponseTextDataset> extends Abstract
         // mlr
         addOption("l1", "L1");
         addOption("l2", "L2");
+        addOption("regularizer", "MLR regularizer (L1, L2, ELASTIC_NET)");
+        addOption("param", "MLR regularization parameter");
+        addOption("l1-ratio", "Proportion of the L1 penalty of elastic net");
 
         // slda
         addOption("K", "Number of topics");
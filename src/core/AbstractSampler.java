@@ -10,7 +10,14 @@ import java.io.UnsupportedEncodingException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import main.GlobalConstants;
@@ -21,6 +28,8 @@ import org.apache.commons.cli.Options;
 import sampler.unsupervised.LDA;
 import sampler.unsupervised.RecursiveLDA;
 import sampling.likelihood.CascadeDirMult.PathAssumption;
+import sampling.util.FoldIn;
+import sampling.util.RandomStreams;
 import util.IOUtils;
 import util.MiscUtils;
 import util.RankingItem;
@@ -32,7 +41,7 @@ import util.RankingItem;
 public abstract class AbstractSampler implements Serializable {
 
     private static final long serialVersionUID = GlobalConstants.SerialVersionUID;
-    public static final int MAX_NUM_PARALLEL_THREADS = 5;
+    public static final int MAX_NUM_PARALLEL_THREADS = 5; // states loaded at a time
     public static final String IterPredictionFolder = "iter-predictions";
     public static final String IterAssignmentFolder = "iter-assignments";
     public static final String TopWordFile = AbstractExperiment.TopWordFile;
@@ -69,10 +78,23 @@ public abstract class AbstractSampler implements Serializable {
 
         GIBBS, MH
     }
+
+    /**
+     * How the topic assignment of each token is sampled. STANDARD computes
+     * the full conditional over all topics; SPARSE uses the bucketed
+     * decomposition of Yao, Mimno and McCallum (KDD 2009), which is exact but
+     * only visits the topics that are non-zero in the document or the word;
+     * ALIAS uses Metropolis-Hastings with alias-table proposals (LightLDA),
+     * which costs amortized O(1) per token.
+     */
+    public static enum SamplingMode {
+
+        STANDARD, SPARSE, ALIAS
+    }
     protected static final long RAND_SEED = 1123581321;
     protected static final double MAX_LOG = Math.log(Double.MAX_VALUE);
     protected static final NumberFormat formatter = new DecimalFormat("###.###");
-    protected static Random rand = new Random(RAND_SEED);
+    protected static Random rand = RandomStreams.newSharedRandom(RAND_SEED);
     protected static long startTime;
     // sampling configurations
     protected int BURN_IN = 5;          // burn-in
@@ -88,9 +110,19 @@ public abstract class AbstractSampler implements Serializable {
     protected String name;
     protected String basename;
     protected ArrayList<Double> hyperparams; // should have used a HashMap instead of ArrayList
+    protected Hyperparameters hyperparameters; // primitive storage, null if only hyperparams is used
     protected boolean paramOptimized = false;
     protected String prefix = "";// to store description of predefined configurations (e.g., initialization)
     protected InitialState initState;
+    protected SamplingMode samplingMode = SamplingMode.STANDARD;
+    protected int numThreads = 1; // number of threads used to sample assignments
+    protected boolean sharedCounts = false; // whether threads share lock-free counts
+    protected boolean directRegression = false; // whether to solve Gaussian regression updates in closed form
+    protected FoldIn.Mode foldInMode = null; // test-time inference with fixed topics, null to sample
+    protected int reportQueueSize = 0; // max number of pending background reports
+    private transient ExecutorService reportWriter;
+    private transient Semaphore reportPermits;
+    private transient volatile Throwable reportError;
     protected double stepSize = 0.1;
     protected int numSliceSamples = 10;
     protected ArrayList<Double> logLikelihoods;
@@ -205,6 +237,112 @@ public abstract class AbstractSampler implements Serializable {
         REP_INTERVAL = repInt;
     }
 
+    public SamplingMode getSamplingMode() {
+        return this.samplingMode;
+    }
+
+    public void setSamplingMode(SamplingMode mode) {
+        this.samplingMode = mode;
+    }
+
+    public int getNumThreads() {
+        return this.numThreads;
+    }
+
+    /**
+     * Set the number of threads used to sample the assignments. With more
+     * than one thread, samplers that support it run approximate distributed
+     * sweeps (see {@link sampling.util.ParallelSweep}).
+     *
+     * @param numThreads Number of threads
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new RuntimeException("Invalid number of threads " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    public int getReportQueueSize() {
+        return this.reportQueueSize;
+    }
+
+    /**
+     * Set the maximum number of reported states that can be waiting to be
+     * written by the background writer. If this is 0, or if the sampler does
+     * not support snapshots, states are written synchronously.
+     *
+     * @param size Maximum number of pending reports
+     */
+    public void setReportQueueSize(int size) {
+        if (size < 0) {
+            throw new RuntimeException("Invalid report queue size " + size);
+        }
+        this.reportQueueSize = size;
+    }
+
+    public boolean isSharedCounts() {
+        return this.sharedCounts;
+    }
+
+    /**
+     * Set whether parallel sweeps update a single set of lock-free topic-word
+     * counts (see {@link sampling.likelihood.ConcurrentDirMult}) instead of
+     * per-thread copies that are merged at the end of each sweep.
+     *
+     * @param sharedCounts Whether to share the counts
+     */
+    public void setSharedCounts(boolean sharedCounts) {
+        this.sharedCounts = sharedCounts;
+    }
+
+    public boolean isDirectRegression() {
+        return this.directRegression;
+    }
+
+    /**
+     * Set whether updates of regression parameters with a Gaussian response
+     * and a Gaussian prior are solved in closed form (see
+     * {@link optimization.RidgeNormalEquations}) instead of by L-BFGS. Other
+     * regression updates always use L-BFGS.
+     *
+     * @param directRegression Whether to solve in closed form
+     */
+    public void setDirectRegression(boolean directRegression) {
+        this.directRegression = directRegression;
+    }
+
+    public FoldIn.Mode getFoldInMode() {
+        return this.foldInMode;
+    }
+
+    /**
+     * Set the mode of the fold-in engine (see {@link FoldIn}) used at test
+     * time by samplers that support it. If this is null, test documents are
+     * sampled together with the model as usual.
+     *
+     * @param mode The fold-in mode
+     */
+    public void setFoldInMode(FoldIn.Mode mode) {
+        this.foldInMode = mode;
+    }
+
+    /**
+     * Create a fold-in engine with the test configurations of this sampler,
+     * in Gibbs mode if no fold-in mode has been set.
+     *
+     * @param topics The fixed topics
+     * @param alpha The symmetric prior of the topic proportions
+     */
+    protected FoldIn createFoldIn(double[][] topics, double alpha) {
+        double[] alphas = new double[topics.length];
+        Arrays.fill(alphas, alpha);
+        FoldIn foldIn = new FoldIn(topics, alphas);
+        foldIn.setMode(foldInMode == null ? FoldIn.Mode.GIBBS : foldInMode);
+        foldIn.setIterations(testBurnIn, testMaxIter, testSampleLag);
+        return foldIn;
+    }
+
     protected String getIteratedStateFile() {
         return "iter-" + iter + ".zip";
     }
@@ -361,10 +499,7 @@ public abstract class AbstractSampler implements Serializable {
             if (iter % LAG == 0 && iter > BURN_IN) {
                 if (paramOptimized) { // slice sampling
                     sliceSample();
-                    ArrayList<Double> sparams = new ArrayList<Double>();
-                    for (double param : this.hyperparams) {
-                        sparams.add(param);
-                    }
+                    ArrayList<Double> sparams = cloneHyperparameters();
                     this.sampledParams.add(sparams);
 
                     if (verbose) {
@@ -381,16 +516,15 @@ public abstract class AbstractSampler implements Serializable {
 
             // store model
             if (report && iter > BURN_IN && iter % LAG == 0) {
-                outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
-                outputTopicTopWords(new File(reportFolderPath,
-                        "iter-" + iter + "-" + TopWordFile), 15);
+                outputReport(new File(reportFolderPath, "iter-" + iter + ".zip"),
+                        new File(reportFolderPath, "iter-" + iter + "-" + TopWordFile), 15);
             }
         }
 
         if (report) { // output the final model
-            outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
-            outputTopicTopWords(new File(reportFolderPath,
-                    "iter-" + iter + "-" + TopWordFile), 15);
+            outputReport(new File(reportFolderPath, "iter-" + iter + ".zip"),
+                    new File(reportFolderPath, "iter-" + iter + "-" + TopWordFile), 15);
+            waitForReports();
         }
 
         float ellapsedSeconds = (System.currentTimeMillis() - startTime) / (1000);
@@ -521,6 +655,87 @@ public abstract class AbstractSampler implements Serializable {
         this.inputState(file.getAbsolutePath());
     }
 
+    /**
+     * Return a copy of the current state that can be written while the
+     * sampler keeps iterating, or null if snapshots are not supported.
+     */
+    protected AbstractSampler getReportSnapshot() {
+        return null;
+    }
+
+    /**
+     * Output the current state and the learned topics. If background
+     * reporting is enabled, a snapshot of the state is queued to be written
+     * by a writer thread. When the queue is full, this blocks until a pending
+     * report has been written.
+     *
+     * @param stateFile The state file
+     * @param topWordFile The file of top words of each topic
+     * @param numTopWords Number of top words
+     */
+    protected void outputReport(File stateFile, final File topWordFile,
+            final int numTopWords) {
+        checkReportError();
+        final AbstractSampler snapshot = reportQueueSize > 0 ? getReportSnapshot() : null;
+        if (snapshot == null) {
+            outputState(stateFile);
+            outputTopicTopWords(topWordFile, numTopWords);
+            return;
+        }
+        if (reportWriter == null) {
+            reportPermits = new Semaphore(reportQueueSize);
+            reportWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "report-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        final String filepath = stateFile.getAbsolutePath();
+        reportPermits.acquireUninterruptibly();
+        reportWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.outputState(filepath);
+                    snapshot.outputTopicTopWords(topWordFile, numTopWords);
+                } catch (Throwable t) {
+                    reportError = t;
+                } finally {
+                    reportPermits.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait until all reports queued by {@link #outputReport} have been
+     * written.
+     */
+    protected void waitForReports() {
+        if (reportWriter != null) {
+            reportWriter.shutdown();
+            try {
+                reportWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while writing reports");
+            }
+            reportWriter = null;
+        }
+        checkReportError();
+    }
+
+    private void checkReportError() {
+        if (reportError != null) {
+            Throwable t = reportError;
+            reportError = null;
+            throw new RuntimeException("Exception while writing report", t);
+        }
+    }
+
     protected void outputZipFile(
             String filepath,
             String modelStr,
@@ -745,26 +960,52 @@ public abstract class AbstractSampler implements Serializable {
         }
     }
 
-    protected ArrayList<Double> cloneHyperparameters() {
-        ArrayList<Double> newParams = new ArrayList<Double>();
-        for (Double hyperparam : this.hyperparams) {
-            newParams.add(hyperparam);
+    /**
+     * Use a primitive hyperparameter storage. The list hyperparams is kept as
+     * a copy of its values for code that reads the list.
+     *
+     * @param hyperparameters The hyperparameters
+     */
+    protected void setHyperparameters(Hyperparameters hyperparameters) {
+        this.hyperparameters = hyperparameters;
+        this.hyperparams = hyperparameters.toList();
+    }
+
+    /**
+     * Update the values of the primitive hyperparameter storage, and its copy
+     * in hyperparams.
+     *
+     * @param newParams The new values, ordered by handle
+     */
+    protected void setHyperparameterValues(List<Double> newParams) {
+        this.hyperparameters.setValues(newParams);
+        this.hyperparams = hyperparameters.toList();
+    }
+
+    /**
+     * Return the current hyperparameter values, or null if the sampler has no
+     * hyperparameters.
+     */
+    protected ArrayList<Double> getHyperparameterList() {
+        if (hyperparameters != null) {
+            return hyperparameters.toList();
         }
-        return newParams;
+        return hyperparams;
+    }
+
+    protected ArrayList<Double> cloneHyperparameters() {
+        return new ArrayList<Double>(getHyperparameterList());
     }
 
     protected void updateHyperparameters() {
         if (verbose) {
             logln("*** *** Optimizing hyperparameters by slice sampling ...");
-            logln("*** *** cur param:" + MiscUtils.listToString(hyperparams));
+            logln("*** *** cur param:" + MiscUtils.listToString(getHyperparameterList()));
             logln("*** *** new llh = " + this.getLogLikelihood());
         }
 
         sliceSample();
-        ArrayList<Double> sparams = new ArrayList<Double>();
-        for (double param : this.hyperparams) {
-            sparams.add(param);
-        }
+        ArrayList<Double> sparams = cloneHyperparameters();
         this.sampledParams.add(sparams);
 
         if (verbose) {
@@ -777,16 +1018,16 @@ public abstract class AbstractSampler implements Serializable {
      * Slice sampling for hyper-parameter optimization.
      */
     protected void sliceSample() {
-        if (hyperparams == null) { // no hyperparameter to optimize
+        ArrayList<Double> tempParams = getHyperparameterList();
+        if (tempParams == null) { // no hyperparameter to optimize
             return;
         }
-        int dim = hyperparams.size();
+        int dim = tempParams.size();
         double[] lefts = new double[dim];
         double[] rights = new double[dim];
-        ArrayList<Double> tempParams = hyperparams;
 
         if (debug) {
-            logln("ori params: " + MiscUtils.listToString(hyperparams));
+            logln("ori params: " + MiscUtils.listToString(tempParams));
         }
 
         for (int s = 0; s < numSliceSamples; s++) {
@@ -843,8 +1084,9 @@ public abstract class AbstractSampler implements Serializable {
         updateHyperparameters(tempParams);
 
         if (debug) {
-            logln("sampled params: " + MiscUtils.listToString(hyperparams)
-                    + "; final llh = " + getLogLikelihood(hyperparams));
+            ArrayList<Double> params = getHyperparameterList();
+            logln("sampled params: " + MiscUtils.listToString(params)
+                    + "; final llh = " + getLogLikelihood(params));
         }
     }
 
@@ -861,28 +1103,15 @@ public abstract class AbstractSampler implements Serializable {
     }
 
     /**
-     * Run multiple threads in parallel.
+     * Run multiple threads in parallel on the shared {@link TaskExecutor}, at
+     * most MAX_NUM_PARALLEL_THREADS at a time. The threads are not started
+     * themselves; their run methods are executed as tasks.
      *
      * @param threads
      * @throws java.lang.Exception
      */
     public static void runThreads(ArrayList<Thread> threads) throws Exception {
-        int c = 0;
-        for (int ii = 0; ii < threads.size() / MAX_NUM_PARALLEL_THREADS; ii++) {
-            for (int jj = 0; jj < MAX_NUM_PARALLEL_THREADS; jj++) {
-                threads.get(ii * MAX_NUM_PARALLEL_THREADS + jj).start();
-            }
-            for (int jj = 0; jj < MAX_NUM_PARALLEL_THREADS; jj++) {
-                threads.get(ii * MAX_NUM_PARALLEL_THREADS + jj).join();
-                c++;
-            }
-        }
-        for (int jj = c; jj < threads.size(); jj++) {
-            threads.get(jj).start();
-        }
-        for (int jj = c; jj < threads.size(); jj++) {
-            threads.get(jj).join();
-        }
+        TaskExecutor.run(threads, false, MAX_NUM_PARALLEL_THREADS);
     }
 
     public static PathAssumption getPathAssumption(String path) {
@@ -923,4 +1152,43 @@ public abstract class AbstractSampler implements Serializable {
         }
         return initState;
     }
+
+    public static SamplingMode getSamplingMode(String mode) {
+        SamplingMode samplingMode;
+        switch (mode) {
+            case "standard":
+                samplingMode = SamplingMode.STANDARD;
+                break;
+            case "sparse":
+                samplingMode = SamplingMode.SPARSE;
+                break;
+            case "alias":
+                samplingMode = SamplingMode.ALIAS;
+                break;
+            default:
+                throw new RuntimeException("Sampling mode " + mode + " not supported");
+        }
+        return samplingMode;
+    }
+
+    public static FoldIn.Mode getFoldInMode(String mode) {
+        FoldIn.Mode foldInMode;
+        switch (mode) {
+            case "none":
+                foldInMode = null;
+                break;
+            case "gibbs":
+                foldInMode = FoldIn.Mode.GIBBS;
+                break;
+            case "icm":
+                foldInMode = FoldIn.Mode.ICM;
+                break;
+            case "variational":
+                foldInMode = FoldIn.Mode.VARIATIONAL;
+                break;
+            default:
+                throw new RuntimeException("Fold-in mode " + mode + " not supported");
+        }
+        return foldInMode;
+    }
 }
@@ -0,0 +1,205 @@
+package core;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import main.GlobalConstants;
+
+/**
+ * The tokens of a set of documents and a latent assignment (e.g., a topic) for
+ * each token, stored contiguously instead of as one array per document.
+ *
+ * Tokens are indexed by their position in the corpus. The tokens of document
+ * d are at positions getDocStart(d), ..., getDocEnd(d) - 1 of one int array,
+ * and their assignments at the same positions of a parallel array, so a sweep
+ * through the documents reads both arrays sequentially. Assignments are
+ * stored as shorts when all values fit, which halves their memory.
+ *
+ * @author vietan
+ */
+public class FlatCorpus implements Serializable {
+
+    private static final long serialVersionUID = GlobalConstants.SerialVersionUID;
+    private final int[] docOffsets; // [D + 1]
+    private final int[] tokens; // [N]
+    private int[] assignments; // [N], if the values do not fit in shorts
+    private short[] shortAssignments; // [N], if the values fit in shorts
+
+    /**
+     * Create a corpus from all documents.
+     *
+     * @param docWords The documents
+     */
+    public FlatCorpus(int[][] docWords) {
+        this(docWords, null);
+    }
+
+    /**
+     * Create a corpus from a set of selected documents.
+     *
+     * @param docWords All documents
+     * @param docIndices Indices of selected documents. If this is null, all
+     * documents are considered.
+     */
+    public FlatCorpus(int[][] docWords, ArrayList<Integer> docIndices) {
+        int D = docIndices == null ? docWords.length : docIndices.size();
+        this.docOffsets = new int[D + 1];
+        for (int d = 0; d < D; d++) {
+            int dd = docIndices == null ? d : docIndices.get(d);
+            docOffsets[d + 1] = docOffsets[d] + docWords[dd].length;
+        }
+        this.tokens = new int[docOffsets[D]];
+        for (int d = 0; d < D; d++) {
+            int dd = docIndices == null ? d : docIndices.get(d);
+            System.arraycopy(docWords[dd], 0, tokens, docOffsets[d], docWords[dd].length);
+        }
+    }
+
+    private FlatCorpus(FlatCorpus corpus) {
+        this.docOffsets = corpus.docOffsets;
+        this.tokens = corpus.tokens;
+    }
+
+    public int getNumDocs() {
+        return docOffsets.length - 1;
+    }
+
+    public int getNumTokens() {
+        return tokens.length;
+    }
+
+    /**
+     * Return the position of the first token of a document.
+     */
+    public int getDocStart(int d) {
+        return docOffsets[d];
+    }
+
+    /**
+     * Return the position after the last token of a document.
+     */
+    public int getDocEnd(int d) {
+        return docOffsets[d + 1];
+    }
+
+    public int getDocLength(int d) {
+        return docOffsets[d + 1] - docOffsets[d];
+    }
+
+    public int getWord(int ii) {
+        return tokens[ii];
+    }
+
+    /**
+     * Return a copy of the tokens of a document.
+     */
+    public int[] getDocWords(int d) {
+        int[] docWords = new int[getDocLength(d)];
+        System.arraycopy(tokens, docOffsets[d], docWords, 0, docWords.length);
+        return docWords;
+    }
+
+    /**
+     * Return a copy of the tokens of all documents.
+     */
+    public int[][] getWords() {
+        int[][] words = new int[getNumDocs()][];
+        for (int d = 0; d < words.length; d++) {
+            words[d] = getDocWords(d);
+        }
+        return words;
+    }
+
+    /**
+     * Allocate the assignments of all tokens, all set to 0.
+     *
+     * @param maxValue The maximum value that will be assigned. Assignments are
+     * stored as shorts if this fits.
+     */
+    public void initializeAssignments(int maxValue) {
+        if (maxValue <= Short.MAX_VALUE) {
+            this.shortAssignments = new short[tokens.length];
+            this.assignments = null;
+        } else {
+            this.assignments = new int[tokens.length];
+            this.shortAssignments = null;
+        }
+    }
+
+    public boolean hasAssignments() {
+        return this.shortAssignments != null || this.assignments != null;
+    }
+
+    public int getZ(int ii) {
+        if (shortAssignments != null) {
+            return shortAssignments[ii];
+        }
+        return assignments[ii];
+    }
+
+    public void setZ(int ii, int z) {
+        if (shortAssignments != null) {
+            shortAssignments[ii] = (short) z;
+        } else {
+            assignments[ii] = z;
+        }
+    }
+
+    /**
+     * Set the assignments of all tokens of a document to the same value.
+     */
+    public void fillDocZs(int d, int z) {
+        for (int ii = docOffsets[d]; ii < docOffsets[d + 1]; ii++) {
+            setZ(ii, z);
+        }
+    }
+
+    /**
+     * Return a copy of the assignments of a document.
+     */
+    public int[] getDocZs(int d) {
+        int[] docZs = new int[getDocLength(d)];
+        for (int nn = 0; nn < docZs.length; nn++) {
+            docZs[nn] = getZ(docOffsets[d] + nn);
+        }
+        return docZs;
+    }
+
+    /**
+     * Set the assignments of a document.
+     */
+    public void setDocZs(int d, int[] docZs) {
+        if (docZs.length != getDocLength(d)) {
+            throw new RuntimeException("Document length mismatched. "
+                    + docZs.length + " vs. " + getDocLength(d));
+        }
+        for (int nn = 0; nn < docZs.length; nn++) {
+            setZ(docOffsets[d] + nn, docZs[nn]);
+        }
+    }
+
+    /**
+     * Return a copy of the assignments of all documents.
+     */
+    public int[][] getZs() {
+        int[][] zs = new int[getNumDocs()][];
+        for (int d = 0; d < zs.length; d++) {
+            zs[d] = getDocZs(d);
+        }
+        return zs;
+    }
+
+    /**
+     * Return a corpus that shares the tokens of this corpus and has a copy of
+     * its assignments.
+     */
+    public FlatCorpus copyAssignments() {
+        FlatCorpus copy = new FlatCorpus(this);
+        if (shortAssignments != null) {
+            copy.shortAssignments = shortAssignments.clone();
+        }
+        if (assignments != null) {
+            copy.assignments = assignments.clone();
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,195 @@
+package core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import main.GlobalConstants;
+
+/**
+ * Hyperparameters of a sampler, stored as primitive doubles in named slots.
+ * Each slot is identified by the int handle returned when it is added, which
+ * samplers keep in static final constants, so reading a value in an inner
+ * loop is a plain array access.
+ *
+ * A product term (e.g., alpha * K or beta * V) is cached and recomputed
+ * whenever the value of its hyperparameter changes. The cached products are
+ * not serialized but recomputed when the hyperparameters are read.
+ *
+ * @author vietan
+ */
+public class Hyperparameters implements Serializable {
+
+    private static final long serialVersionUID = GlobalConstants.SerialVersionUID;
+    private String[] names;
+    private double[] values;
+    private int size;
+    // product terms
+    private int[] sources;
+    private double[] factors;
+    private transient double[] products;
+    private int numProducts;
+
+    public Hyperparameters() {
+        this.names = new String[4];
+        this.values = new double[4];
+        this.sources = new int[4];
+        this.factors = new double[4];
+        this.products = new double[4];
+    }
+
+    /**
+     * Add a hyperparameter.
+     *
+     * @param name The name of the hyperparameter
+     * @param value The initial value
+     * @return The handle of the hyperparameter, which is the number of
+     * hyperparameters added before it
+     */
+    public int add(String name, double value) {
+        if (getHandle(name) >= 0) {
+            throw new RuntimeException("Hyperparameter " + name + " exists");
+        }
+        if (size == values.length) {
+            names = Arrays.copyOf(names, 2 * size);
+            values = Arrays.copyOf(values, 2 * size);
+        }
+        names[size] = name;
+        values[size] = value;
+        return size++;
+    }
+
+    /**
+     * Add a cached product of a hyperparameter and a constant factor.
+     *
+     * @param handle The handle of the hyperparameter
+     * @param factor The constant factor
+     * @return The handle of the product
+     */
+    public int addProduct(int handle, double factor) {
+        checkHandle(handle);
+        if (numProducts == products.length) {
+            sources = Arrays.copyOf(sources, 2 * numProducts);
+            factors = Arrays.copyOf(factors, 2 * numProducts);
+            products = Arrays.copyOf(products, 2 * numProducts);
+        }
+        sources[numProducts] = handle;
+        factors[numProducts] = factor;
+        products[numProducts] = values[handle] * factor;
+        return numProducts++;
+    }
+
+    public double get(int handle) {
+        return values[handle];
+    }
+
+    /**
+     * Return a cached product.
+     *
+     * @param productHandle The handle returned by
+     * {@link #addProduct(int, double)}
+     */
+    public double getProduct(int productHandle) {
+        return products[productHandle];
+    }
+
+    public void set(int handle, double value) {
+        checkHandle(handle);
+        if (values[handle] == value) {
+            return;
+        }
+        values[handle] = value;
+        for (int pp = 0; pp < numProducts; pp++) {
+            if (sources[pp] == handle) {
+                products[pp] = value * factors[pp];
+            }
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public String getName(int handle) {
+        checkHandle(handle);
+        return names[handle];
+    }
+
+    /**
+     * Return the handle of a hyperparameter, or -1 if there is none with the
+     * given name.
+     *
+     * @param name The name of the hyperparameter
+     */
+    public int getHandle(String name) {
+        for (int hh = 0; hh < size; hh++) {
+            if (names[hh].equals(name)) {
+                return hh;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return a copy of the values, ordered by handle.
+     */
+    public double[] getValues() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Return the values as a list ordered by handle.
+     */
+    public ArrayList<Double> toList() {
+        ArrayList<Double> list = new ArrayList<Double>(size);
+        for (int hh = 0; hh < size; hh++) {
+            list.add(values[hh]);
+        }
+        return list;
+    }
+
+    /**
+     * Set all values.
+     *
+     * @param newValues The values ordered by handle
+     */
+    public void setValues(List<Double> newValues) {
+        if (newValues.size() != size) {
+            throw new RuntimeException("Number of hyperparameters mismatched. "
+                    + newValues.size() + " vs. " + size);
+        }
+        for (int hh = 0; hh < size; hh++) {
+            set(hh, newValues.get(hh));
+        }
+    }
+
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        products = new double[factors.length];
+        for (int pp = 0; pp < numProducts; pp++) {
+            products[pp] = values[sources[pp]] * factors[pp];
+        }
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= size) {
+            throw new RuntimeException("Hyperparameter handle " + handle
+                    + " out of bound. Number of hyperparameters: " + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        for (int hh = 0; hh < size; hh++) {
+            if (hh > 0) {
+                str.append(", ");
+            }
+            str.append(names[hh]).append(" = ").append(values[hh]);
+        }
+        return str.toString();
+    }
+}
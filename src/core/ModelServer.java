@@ -0,0 +1,452 @@
+package core;
+
+import data.CorpusProcessor;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.Options;
+import sampler.labeled.LabeledLDA;
+import sampler.labeled.baselines.TFIDFNN;
+import sampler.supervised.regression.SLDA;
+import sampler.unsupervised.LDA;
+import sampling.util.FoldIn;
+import util.CLIUtils;
+
+/**
+ * Keeps trained models in memory to score new documents without paying the
+ * cost of starting the JVM and loading the models for each batch.
+ *
+ * Each model is wrapped in a {@link Scorer} that only reads the loaded
+ * parameters, so documents can be scored from any number of threads. Raw
+ * texts are converted to word indices with the vocabulary of the models (see
+ * {@link CorpusProcessor#getNumericDocument(String)}).
+ *
+ * The server can also be run as a process that reads one request per line
+ * from the standard input or from connections to a local port, and writes
+ * one line of scores per request in the same order. Lines that are
+ * available together are scored as a batch in parallel. A request has the
+ * form [model TAB] document, where the model is the name of a loaded model
+ * (the first model if omitted) and the document is either a raw text or,
+ * with -numeric, space-separated word indices. The response is the
+ * tab-separated scores, or "ERROR" followed by a message. Raw texts are
+ * processed with the stopword (-s) and lemmatization (-l) options of
+ * TextDataset, which must be the ones the training data were formatted with.
+ *
+ * @author vietan
+ */
+public class ModelServer extends AbstractRunner {
+
+    /**
+     * Scoring of new documents with a trained model.
+     */
+    public static interface Scorer {
+
+        /**
+         * Score a document. This must not change the model so that it can be
+         * called from multiple threads.
+         *
+         * @param doc The word indices of the document
+         * @return The scores of the document (e.g., its topic proportions)
+         */
+        public double[] score(int[] doc);
+    }
+    public static final String ERROR = "ERROR";
+    private static final int MAX_BATCH_SIZE = 1000; // requests per batch
+    private final LinkedHashMap<String, Scorer> scorers;
+    private CorpusProcessor textProcessor;
+    private boolean numeric = false; // whether requests are word indices
+
+    public ModelServer() {
+        this.scorers = new LinkedHashMap<String, Scorer>();
+    }
+
+    public void setNumeric(boolean numeric) {
+        this.numeric = numeric;
+    }
+
+    /**
+     * Set the processor that converts raw texts to word indices. Its
+     * vocabulary must be the one the models were trained with.
+     *
+     * @param processor The processor
+     */
+    public void setTextProcessor(CorpusProcessor processor) {
+        if (processor.getVocab() == null) {
+            throw new RuntimeException("The vocabulary of the text processor has not "
+                    + "been set");
+        }
+        this.textProcessor = processor;
+    }
+
+    public synchronized void addModel(String name, Scorer scorer) {
+        this.scorers.put(name, scorer);
+    }
+
+    public synchronized Set<String> getModelNames() {
+        return new LinkedHashSet<String>(this.scorers.keySet());
+    }
+
+    private synchronized Scorer getScorer(String name) {
+        if (name == null) {
+            if (scorers.isEmpty()) {
+                throw new RuntimeException("No model has been loaded");
+            }
+            return scorers.values().iterator().next();
+        }
+        Scorer scorer = scorers.get(name);
+        if (scorer == null) {
+            throw new RuntimeException("Model " + name + " not found");
+        }
+        return scorer;
+    }
+
+    /**
+     * Score a document with the first loaded model.
+     *
+     * @param doc The word indices of the document
+     */
+    public double[] score(int[] doc) {
+        return getScorer(null).score(doc);
+    }
+
+    /**
+     * Score a raw text with the first loaded model.
+     *
+     * @param text The raw text
+     */
+    public double[] score(String text) {
+        return score(null, text);
+    }
+
+    /**
+     * Score a document.
+     *
+     * @param model The name of the model (null for the first loaded model)
+     * @param doc The word indices of the document
+     */
+    public double[] score(String model, int[] doc) {
+        return getScorer(model).score(doc);
+    }
+
+    /**
+     * Score a raw text.
+     *
+     * @param model The name of the model (null for the first loaded model)
+     * @param text The raw text
+     */
+    public double[] score(String model, String text) {
+        return getScorer(model).score(getNumericDocument(text));
+    }
+
+    /**
+     * Score a set of documents in parallel.
+     *
+     * @param model The name of the model (null for the first loaded model)
+     * @param docs The word indices of the documents
+     */
+    public double[][] score(String model, final int[][] docs) {
+        final Scorer scorer = getScorer(model);
+        final double[][] scores = new double[docs.length][];
+        TaskExecutor.runIndexed(docs.length, new TaskExecutor.IndexedTask() {
+            @Override
+            public void run(int ii) {
+                scores[ii] = scorer.score(docs[ii]);
+            }
+        });
+        return scores;
+    }
+
+    private int[] getNumericDocument(String text) {
+        if (textProcessor == null) {
+            throw new RuntimeException("The text processor has not been set");
+        }
+        return textProcessor.getNumericDocument(text);
+    }
+
+    /**
+     * Answer the requests read from a reader until it is closed, one line of
+     * scores per line of request. The requests that are available without
+     * blocking are scored together as a batch.
+     *
+     * @param reader The requests
+     * @param writer The responses
+     */
+    public void serve(BufferedReader reader, Writer writer) throws IOException {
+        final String[] requests = new String[MAX_BATCH_SIZE];
+        final String[] responses = new String[MAX_BATCH_SIZE];
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int batchSize = 0;
+            requests[batchSize++] = line;
+            while (batchSize < MAX_BATCH_SIZE && reader.ready()
+                    && (line = reader.readLine()) != null) {
+                requests[batchSize++] = line;
+            }
+            TaskExecutor.runIndexed(batchSize, new TaskExecutor.IndexedTask() {
+                @Override
+                public void run(int ii) {
+                    responses[ii] = answer(requests[ii]);
+                }
+            });
+            for (int ii = 0; ii < batchSize; ii++) {
+                writer.write(responses[ii]);
+                writer.write("\n");
+            }
+            writer.flush();
+        }
+    }
+
+    /**
+     * Answer the requests of each connection to a port of the loopback
+     * address, each connection on its own thread, until the process is
+     * stopped.
+     *
+     * @param port The port
+     */
+    public void serve(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        if (verbose) {
+            System.out.println("Serving " + getModelNames() + " on port "
+                    + server.getLocalPort());
+        }
+        try {
+            while (true) {
+                final Socket socket = server.accept();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(new BufferedReader(new InputStreamReader(
+                                    socket.getInputStream(), "UTF-8")),
+                                    new BufferedWriter(new OutputStreamWriter(
+                                                    socket.getOutputStream(), "UTF-8")));
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Answer a single request.
+     *
+     * @param request The request line
+     * @return The response line
+     */
+    public String answer(String request) {
+        try {
+            String model = null;
+            String doc = request;
+            int tab = request.indexOf('\t');
+            if (tab >= 0) {
+                model = request.substring(0, tab);
+                doc = request.substring(tab + 1);
+            }
+            double[] scores;
+            if (numeric) {
+                scores = score(model, parseNumericDocument(doc));
+            } else {
+                scores = score(model, doc);
+            }
+            StringBuilder str = new StringBuilder();
+            for (int ii = 0; ii < scores.length; ii++) {
+                if (ii > 0) {
+                    str.append("\t");
+                }
+                str.append(scores[ii]);
+            }
+            return str.toString();
+        } catch (RuntimeException e) {
+            return ERROR + "\t" + e.getMessage();
+        }
+    }
+
+    private static int[] parseNumericDocument(String doc) {
+        doc = doc.trim();
+        if (doc.isEmpty()) {
+            return new int[0];
+        }
+        String[] sdoc = doc.split("\\s+");
+        int[] words = new int[sdoc.length];
+        for (int nn = 0; nn < words.length; nn++) {
+            try {
+                words[nn] = Integer.parseInt(sdoc[nn]);
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Invalid word index " + sdoc[nn]);
+            }
+        }
+        return words;
+    }
+
+    public static String getHelpString() {
+        return "java -cp 'dist/segan.jar:lib/*' " + ModelServer.class.getName() + " -help";
+    }
+
+    public static String getExampleCmd() {
+        return "java -cp \"dist/segan.jar:lib/*\" core.ModelServer "
+                + "--model lda "
+                + "--state-file demo/amazon-data/model/LDA_K-50/iter-500.zip "
+                + "--word-voc-file demo/amazon-data/format-unsupervised/amazon-data.wvoc "
+                + "--K 50 "
+                + "--fold-in gibbs "
+                + "--port 8080";
+    }
+
+    public static void main(String[] args) {
+        try {
+            parser = new BasicParser();
+            options = new Options();
+            addOption("model", "Model (lda, slda, llda or tfidf-nn)");
+            addOption("state-file", "Trained state (or predictor) file");
+            addOption("word-voc-file", "Word vocabulary file");
+            addOption("K", "Number of topics (lda, slda)");
+            addOption("L", "Number of labels (llda)");
+            addOption("alpha", "Alpha");
+            addOption("beta", "Beta");
+            addOption("rho", "Rho (slda)");
+            addOption("mu", "Mu (slda)");
+            addOption("sigma", "Sigma (slda)");
+            addOption("fold-in", "Fold-in mode (gibbs, icm or variational)");
+            addOption("test-burnIn", "Fold-in burn-in");
+            addOption("test-maxIter", "Fold-in maximum number of iterations");
+            addOption("test-sampleLag", "Fold-in sample lag");
+            addOption("num-threads", "Number of scoring threads");
+            addOption("port", "Serve on this local port instead of "
+                    + "the standard input and output");
+            options.addOption("bias", false, "Bias (slda)");
+            options.addOption("numeric", false, "Requests are word indices");
+
+            // text processing, which must match the formatting of the training data
+            options.addOption("s", false, "Whether stopwords are filtered");
+            options.addOption("l", false, "Whether lemmatization is performed");
+
+            options.addOption("v", false, "verbose");
+            options.addOption("help", false, "Help");
+            options.addOption("example", false, "Example command");
+
+            cmd = parser.parse(options, args);
+            if (cmd.hasOption("help")) {
+                CLIUtils.printHelp(getHelpString(), options);
+                return;
+            } else if (cmd.hasOption("example")) {
+                System.out.println(getExampleCmd());
+                return;
+            }
+            run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void run() throws Exception {
+        setVerbose(cmd.hasOption("v"));
+        if (cmd.hasOption("num-threads")) {
+            TaskExecutor.setNumThreads(CLIUtils.getIntegerArgument(cmd, "num-threads", 1));
+        }
+        String model = CLIUtils.getStringArgument(cmd, "model", "lda");
+        String stateFile = cmd.getOptionValue("state-file");
+        String wordVocFile = cmd.getOptionValue("word-voc-file");
+        if (stateFile == null || wordVocFile == null) {
+            throw new RuntimeException("Both the state file and the word vocabulary "
+                    + "file must be given");
+        }
+
+        // the cutoffs do not apply to an existing vocabulary
+        CorpusProcessor processor = new CorpusProcessor(1, 1, 5.0, Integer.MAX_VALUE,
+                1, Integer.MAX_VALUE, 1, Integer.MAX_VALUE, 1,
+                cmd.hasOption("s"), cmd.hasOption("l"));
+        processor.loadVocab(wordVocFile);
+        int V = processor.getVocab().size();
+
+        FoldIn.Mode foldInMode = AbstractSampler.getFoldInMode(
+                CLIUtils.getStringArgument(cmd, "fold-in", "gibbs"));
+        if (foldInMode == null) {
+            throw new RuntimeException("A fold-in mode is required to serve " + model);
+        }
+        int testBurnIn = CLIUtils.getIntegerArgument(cmd, "test-burnIn", 50);
+        int testMaxIter = CLIUtils.getIntegerArgument(cmd, "test-maxIter", 100);
+        int testSampleLag = CLIUtils.getIntegerArgument(cmd, "test-sampleLag", 5);
+        double alpha = CLIUtils.getDoubleArgument(cmd, "alpha", 0.1);
+        double beta = CLIUtils.getDoubleArgument(cmd, "beta", 0.1);
+
+        Scorer scorer;
+        switch (model) {
+            case "lda":
+                LDA lda = new LDA();
+                lda.setVerbose(verbose);
+                lda.configure(null, V, CLIUtils.getIntegerArgument(cmd, "K", 50),
+                        alpha, beta, AbstractSampler.InitialState.RANDOM, false,
+                        0, 0, 0, 0);
+                lda.setFoldInMode(foldInMode);
+                lda.setTestConfigurations(testBurnIn, testMaxIter, testSampleLag);
+                scorer = lda.createScorer(stateFile);
+                break;
+            case "slda":
+                SLDA slda = new SLDA();
+                slda.setVerbose(verbose);
+                slda.configure(null, V, CLIUtils.getIntegerArgument(cmd, "K", 50),
+                        alpha, beta,
+                        CLIUtils.getDoubleArgument(cmd, "rho", 1.0),
+                        CLIUtils.getDoubleArgument(cmd, "mu", 0.0),
+                        CLIUtils.getDoubleArgument(cmd, "sigma", 1.0),
+                        AbstractSampler.InitialState.RANDOM, false, cmd.hasOption("bias"),
+                        0, 0, 0, 0);
+                slda.setFoldInMode(foldInMode);
+                slda.setTestConfigurations(testBurnIn, testMaxIter, testSampleLag);
+                scorer = slda.createScorer(stateFile);
+                break;
+            case "llda":
+                LabeledLDA llda = new LabeledLDA();
+                llda.setVerbose(verbose);
+                llda.configure(null, V, CLIUtils.getIntegerArgument(cmd, "L", 50),
+                        alpha, beta, AbstractSampler.InitialState.RANDOM, false,
+                        0, 0, 0, 0);
+                llda.setFoldInMode(foldInMode);
+                llda.setTestConfigurations(testBurnIn, testMaxIter, testSampleLag);
+                scorer = llda.createScorer(stateFile);
+                break;
+            case "tfidf-nn":
+                TFIDFNN tfidf = new TFIDFNN(0);
+                tfidf.inputPredictor(new File(stateFile));
+                scorer = tfidf.createScorer();
+                break;
+            default:
+                throw new RuntimeException("Model " + model + " not supported");
+        }
+
+        ModelServer server = new ModelServer();
+        server.setNumeric(cmd.hasOption("numeric"));
+        server.setTextProcessor(processor);
+        server.addModel(model, scorer);
+        if (cmd.hasOption("port")) {
+            server.serve(CLIUtils.getIntegerArgument(cmd, "port", 0));
+        } else {
+            server.serve(new BufferedReader(new InputStreamReader(System.in, "UTF-8")),
+                    new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8")));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import sampling.util.RandomStreams;
+import util.SamplerUtils;
+
+/**
+ * A shared work-stealing pool for running independent tasks in parallel, such
+ * as sampling test documents using each of the models stored in a report
+ * folder.
+ *
+ * All tasks are submitted at once and each worker picks up the next task as
+ * soon as it finishes one, so a slow task only occupies its own worker. The
+ * pool has as many workers as available processors unless set otherwise.
+ *
+ * Each task given to {@link #run} or {@link #submit} runs with its own random
+ * number stream bound to its thread (see {@link RandomStreams}), derived from
+ * the seed of the executor, the number of batches submitted before and the
+ * index of the task. The streams thus depend only on the sequence of calls to
+ * run and submit, not on the number of threads, and no number is drawn from
+ * the shared generators. Tasks that only use the shared random number
+ * generators are therefore reproducible.
+ *
+ * The tasks of {@link #runIndexed} get no stream and do not count as a batch,
+ * since they run inline on a single thread. They are meant for deterministic
+ * numeric kernels and must not draw from the shared generators.
+ *
+ * @author vietan
+ */
+public class TaskExecutor {
+
+    private static int numThreads = Runtime.getRuntime().availableProcessors();
+    private static ForkJoinPool pool;
+    private static long seed = SamplerUtils.RAND_SEED;
+    private static long numBatches;
+
+    public static synchronized int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Set the number of worker threads. The current pool, if any, finishes
+     * the tasks already submitted to it and is replaced.
+     *
+     * @param n Number of worker threads
+     */
+    public static synchronized void setNumThreads(int n) {
+        if (n < 1) {
+            throw new RuntimeException("Invalid number of threads " + n);
+        }
+        if (n != numThreads && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        numThreads = n;
+    }
+
+    /**
+     * Set the seed from which the random number streams of the tasks are
+     * derived, and restart the count of batches.
+     *
+     * @param s The seed
+     */
+    public static synchronized void setSeed(long s) {
+        seed = s;
+        numBatches = 0;
+    }
+
+    private static synchronized long nextBatchSeed() {
+        return RandomStreams.getStreamSeed(seed, numBatches++);
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(numThreads);
+        }
+        return pool;
+    }
+
+    /**
+     * Processing of the item at an index, e.g., a document.
+     */
+    public static interface IndexedTask {
+
+        public void run(int ii);
+    }
+
+    /**
+     * Run a task on indices 0, ..., size - 1, split into contiguous chunks on
+     * the shared pool, and wait until all of them finish. The indices are
+     * processed on the calling thread if the pool has a single thread or if
+     * the calling thread already runs on a pool.
+     *
+     * @param size Number of indices
+     * @param task The processing of each index
+     */
+    public static void runIndexed(int size, final IndexedTask task) {
+        int n = getNumThreads();
+        if (n == 1 || size < 2 || ForkJoinTask.inForkJoinPool()) {
+            for (int ii = 0; ii < size; ii++) {
+                task.run(ii);
+            }
+            return;
+        }
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        int chunkSize = (size + 4 * n - 1) / (4 * n);
+        for (int start = 0; start < size; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(size, start + chunkSize);
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (int ii = chunkStart; ii < chunkEnd; ii++) {
+                        task.run(ii);
+                    }
+                }
+            });
+        }
+        execute(tasks, false, tasks.size(), false);
+    }
+
+    /**
+     * Submit tasks to the shared pool without waiting for them.
+     *
+     * @param tasks The tasks
+     * @return The futures of the tasks, in the same order
+     */
+    public static ArrayList<Future<?>> submit(List<? extends Runnable> tasks) {
+        ForkJoinPool p = getPool();
+        long batchSeed = nextBatchSeed();
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int ii = 0; ii < tasks.size(); ii++) {
+            futures.add(p.submit(RandomStreams.withStream(tasks.get(ii),
+                    RandomStreams.newStream(batchSeed, ii))));
+        }
+        return futures;
+    }
+
+    /**
+     * Cancel tasks that have not finished yet. Tasks that have not started
+     * will not run.
+     *
+     * @param futures The futures of the tasks
+     */
+    public static void cancel(List<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Run tasks on the shared pool and wait until all of them finish. If a
+     * task fails, the remaining tasks are cancelled and the failure is
+     * rethrown.
+     *
+     * @param tasks The tasks
+     * @param verbose Whether to report progress as tasks complete
+     */
+    public static void run(List<? extends Runnable> tasks, boolean verbose) {
+        run(tasks, verbose, tasks.size());
+    }
+
+    /**
+     * Run tasks on the shared pool, at most a given number at a time, and wait
+     * until all of them finish. A task is submitted as soon as a running one
+     * completes. This bounds the memory used by tasks that each hold a large
+     * state, such as the test runners that each load a model. If a task
+     * fails, the remaining tasks are cancelled and the failure is rethrown.
+     *
+     * @param tasks The tasks
+     * @param verbose Whether to report progress as tasks complete
+     * @param maxNumRunning Maximum number of tasks submitted at a time
+     */
+    public static void run(List<? extends Runnable> tasks, boolean verbose,
+            int maxNumRunning) {
+        execute(tasks, verbose, maxNumRunning, true);
+    }
+
+    private static void execute(List<? extends Runnable> tasks, boolean verbose,
+            int maxNumRunning, boolean withStreams) {
+        if (maxNumRunning < 1) {
+            throw new RuntimeException("Invalid number of running tasks " + maxNumRunning);
+        }
+        CompletionService<Object> service = new ExecutorCompletionService<Object>(getPool());
+        long batchSeed = withStreams ? nextBatchSeed() : 0;
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        while (futures.size() < Math.min(maxNumRunning, tasks.size())) {
+            futures.add(submit(service, tasks, futures.size(), withStreams, batchSeed));
+        }
+        try {
+            for (int ii = 0; ii < tasks.size(); ii++) {
+                service.take().get();
+                if (futures.size() < tasks.size()) {
+                    futures.add(submit(service, tasks, futures.size(), withStreams, batchSeed));
+                }
+                if (verbose) {
+                    AbstractRunner.logln("Completed " + (ii + 1) + " / "
+                            + tasks.size() + " tasks");
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while running tasks");
+        } catch (ExecutionException e) {
+            cancel(futures);
+            throw new RuntimeException("Exception in task", e.getCause());
+        }
+    }
+
+    private static Future<?> submit(CompletionService<Object> service,
+            List<? extends Runnable> tasks, int ii, boolean withStreams, long batchSeed) {
+        Runnable task = tasks.get(ii);
+        if (withStreams) {
+            task = RandomStreams.withStream(task, RandomStreams.newStream(batchSeed, ii));
+        }
+        return service.submit(task, null);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Random;
+import sampling.util.RandomStreams;
 
 /**
  *
@@ -11,7 +12,7 @@ import java.util.Random;
  */
 public class CrossValidation<I, T extends Instance<I>> {
 
-    public static Random rand = new Random(1123581321);
+    public static Random rand = RandomStreams.newSharedRandom(1123581321);
     private final String folder;
     private final String name;
     private ArrayList<T> instanceList;
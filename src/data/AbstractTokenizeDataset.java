@@ -23,6 +23,7 @@ public abstract class AbstractTokenizeDataset extends AbstractDataset {
     public static final String docIdExt = ".docid";
     public static final String docTextExt = ".text";
     public static final String docInfoExt = ".docinfo";
+    public static final String outOfVocabExt = ".oov";
     protected String folder; // main folder of the dataset
     protected Set<String> stopwords;
     protected Tokenizer tokenizer;
@@ -0,0 +1,389 @@
+package data;
+
+import gnu.trove.list.array.TLongArrayList;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import util.BinaryCheckpoint;
+
+/**
+ * Formatted documents, and optionally their sentences, stored in a binary
+ * checkpoint file in compressed sparse row layout: all tokens of all
+ * documents in one array and the offset of each document in a second array.
+ * Sentences are stored the same way, with an additional array of the offset
+ * of the first sentence of each document.
+ *
+ * Loading maps the arrays into memory without parsing or copying them, and
+ * documents are only copied into int arrays when they are requested.
+ *
+ * Documents can be appended to an existing file without rewriting it (see
+ * Writer.append). The appended documents are stored as a new segment with
+ * the same layout after the existing ones, followed by a small index section
+ * that marks the file as segmented, and documents are looked up in their
+ * segment.
+ *
+ * @author vietan
+ */
+public class BinaryCorpus {
+
+    public static final String FileExt = ".bdat";
+    private static final int TOKENS = 0;
+    private static final int DOC_OFFSETS = 1;
+    private static final int SENT_TOKENS = 2;
+    private static final int SENT_OFFSETS = 3;
+    private static final int DOC_SENT_OFFSETS = 4;
+    private static final int SEGMENT_INDEX = 0x53454753; // first value of the index section
+    private static final int MAX_NUM_ELEMENTS = Integer.MAX_VALUE - 8; // max documents or sentences
+    private final Segment[] segments; // [S]
+    private final int[] segmentStarts; // [S + 1] index of the first document of each segment
+    private final long numTokens;
+
+    /**
+     * The arrays of one segment. Token arrays are mapped in chunks so that a
+     * segment can hold more than 2^31 bytes of tokens, and offsets are longs.
+     */
+    private static class Segment {
+
+        IntBuffer[] tokens;
+        LongBuffer[] docOffsets;
+        IntBuffer[] sentTokens;
+        LongBuffer[] sentOffsets;
+        LongBuffer[] docSentOffsets;
+
+        long getDocOffset(int dd) {
+            return BinaryCheckpoint.getLong(docOffsets, dd);
+        }
+
+        long getDocSentOffset(int dd) {
+            return BinaryCheckpoint.getLong(docSentOffsets, dd);
+        }
+    }
+
+    private BinaryCorpus(Segment[] segments, int[] segmentStarts, long numTokens) {
+        this.segments = segments;
+        this.segmentStarts = segmentStarts;
+        this.numTokens = numTokens;
+    }
+
+    /**
+     * Return the number of sections per segment of a corpus file. This is
+     * stored in the last section if documents have been appended to the file.
+     */
+    private static int getSectionsPerSegment(BinaryCheckpoint.Reader reader)
+            throws IOException {
+        int numSections = reader.getNumSections();
+        if (reader.getSectionLength(numSections - 1) == 2) {
+            IntBuffer index = reader.mapInts(numSections - 1);
+            if (index.get(0) == SEGMENT_INDEX) {
+                return index.get(1);
+            }
+        }
+        return numSections;
+    }
+
+    /**
+     * Return the total number of documents in the segments of a corpus file.
+     */
+    private static long getNumDocs(BinaryCheckpoint.Reader reader, int perSegment) {
+        long numDocs = 0;
+        for (int first = 0; first + perSegment <= reader.getNumSections(); first += perSegment) {
+            numDocs += reader.getSectionLength(first + DOC_OFFSETS) - 1;
+        }
+        return numDocs;
+    }
+
+    /**
+     * Load a corpus file.
+     *
+     * @param filepath The corpus file
+     */
+    public static BinaryCorpus load(String filepath) throws IOException {
+        BinaryCheckpoint.Reader reader = new BinaryCheckpoint.Reader(filepath);
+        try {
+            int perSegment = getSectionsPerSegment(reader);
+            int numSegments = reader.getNumSections() / perSegment;
+            boolean hasSents = perSegment > DOC_SENT_OFFSETS;
+            if (getNumDocs(reader, perSegment) > MAX_NUM_ELEMENTS) {
+                throw new RuntimeException("Too many documents in " + filepath + ". "
+                        + getNumDocs(reader, perSegment));
+            }
+            Segment[] segments = new Segment[numSegments];
+            int[] segmentStarts = new int[numSegments + 1];
+            long numTokens = 0;
+            for (int ss = 0; ss < numSegments; ss++) {
+                int first = ss * perSegment;
+                Segment segment = new Segment();
+                segment.tokens = reader.mapIntChunks(first + TOKENS);
+                segment.docOffsets = reader.mapLongChunks(first + DOC_OFFSETS);
+                if (hasSents) {
+                    segment.sentTokens = reader.mapIntChunks(first + SENT_TOKENS);
+                    segment.sentOffsets = reader.mapLongChunks(first + SENT_OFFSETS);
+                    segment.docSentOffsets = reader.mapLongChunks(first + DOC_SENT_OFFSETS);
+                }
+                segments[ss] = segment;
+                segmentStarts[ss + 1] = segmentStarts[ss]
+                        + (int) (reader.getSectionLength(first + DOC_OFFSETS) - 1);
+                numTokens += reader.getSectionLength(first + TOKENS);
+            }
+            return new BinaryCorpus(segments, segmentStarts, numTokens);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Return the segment that contains a document.
+     */
+    private int getSegment(int d) {
+        int lo = 0;
+        int hi = segments.length - 1;
+        while (lo < hi) { // last segment starting at or before d
+            int mid = (lo + hi + 1) >>> 1;
+            if (segmentStarts[mid] <= d) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    public int getNumDocs() {
+        return segmentStarts[segments.length];
+    }
+
+    public long getNumTokens() {
+        return numTokens;
+    }
+
+    public int getDocLength(int d) {
+        int ss = getSegment(d);
+        int dd = d - segmentStarts[ss];
+        return (int) (segments[ss].getDocOffset(dd + 1) - segments[ss].getDocOffset(dd));
+    }
+
+    public int getWord(int d, int n) {
+        int ss = getSegment(d);
+        return BinaryCheckpoint.getInt(segments[ss].tokens,
+                segments[ss].getDocOffset(d - segmentStarts[ss]) + n);
+    }
+
+    public boolean hasSentences() {
+        return this.segments.length > 0 && this.segments[0].sentTokens != null;
+    }
+
+    public int getNumSentences(int d) {
+        int ss = getSegment(d);
+        int dd = d - segmentStarts[ss];
+        return (int) (segments[ss].getDocSentOffset(dd + 1)
+                - segments[ss].getDocSentOffset(dd));
+    }
+
+    /**
+     * Return a copy of the tokens of a document.
+     *
+     * @param d The document index
+     */
+    public int[] getDocWords(int d) {
+        int ss = getSegment(d);
+        int dd = d - segmentStarts[ss];
+        Segment segment = segments[ss];
+        return copy(segment.tokens, segment.getDocOffset(dd), segment.getDocOffset(dd + 1));
+    }
+
+    /**
+     * Return a copy of the tokens of each sentence of a document.
+     *
+     * @param d The document index
+     */
+    public int[][] getDocSentWords(int d) {
+        int ss = getSegment(d);
+        int dd = d - segmentStarts[ss];
+        Segment segment = segments[ss];
+        long firstSent = segment.getDocSentOffset(dd);
+        int[][] sents = new int[(int) (segment.getDocSentOffset(dd + 1) - firstSent)][];
+        for (int s = 0; s < sents.length; s++) {
+            sents[s] = copy(segment.sentTokens,
+                    BinaryCheckpoint.getLong(segment.sentOffsets, firstSent + s),
+                    BinaryCheckpoint.getLong(segment.sentOffsets, firstSent + s + 1));
+        }
+        return sents;
+    }
+
+    public int[][] getDocWords(ArrayList<Integer> instances) {
+        int[][] revWords = new int[instances.size()][];
+        for (int i = 0; i < revWords.length; i++) {
+            revWords[i] = getDocWords(instances.get(i));
+        }
+        return revWords;
+    }
+
+    public int[][][] getDocSentWords(ArrayList<Integer> instances) {
+        int[][][] revSentWords = new int[instances.size()][][];
+        for (int i = 0; i < revSentWords.length; i++) {
+            revSentWords[i] = getDocSentWords(instances.get(i));
+        }
+        return revSentWords;
+    }
+
+    public int[][] getWords() {
+        int[][] words = new int[getNumDocs()][];
+        for (int d = 0; d < words.length; d++) {
+            words[d] = getDocWords(d);
+        }
+        return words;
+    }
+
+    public int[][][] getSentenceWords() {
+        int[][][] sentWords = new int[getNumDocs()][][];
+        for (int d = 0; d < sentWords.length; d++) {
+            sentWords[d] = getDocSentWords(d);
+        }
+        return sentWords;
+    }
+
+    private static int[] copy(IntBuffer[] chunks, long start, long end) {
+        int[] values = new int[(int) (end - start)];
+        BinaryCheckpoint.getInts(chunks, start, values);
+        return values;
+    }
+
+    /**
+     * Sequential writer of a corpus file. All documents are added first,
+     * followed by the sentences of all documents, if any.
+     */
+    public static class Writer implements Closeable {
+
+        private final BinaryCheckpoint.Writer writer;
+        private final TLongArrayList docOffsets;
+        private final TLongArrayList sentOffsets;
+        private final TLongArrayList docSentOffsets;
+        private final int appendedSections; // sections per segment, 0 for a new file
+        private final long numExistingDocs; // documents of the existing segments
+        private boolean addingSentences;
+
+        public Writer(String filepath) throws IOException {
+            this(new BinaryCheckpoint.Writer(filepath), 0, 0);
+        }
+
+        /**
+         * Open a writer that appends documents to an existing corpus file as
+         * a new segment. The documents must have sentences if and only if
+         * the existing documents do.
+         *
+         * @param filepath The corpus file
+         */
+        public static Writer append(String filepath) throws IOException {
+            BinaryCheckpoint.Reader reader = new BinaryCheckpoint.Reader(filepath);
+            int perSegment;
+            boolean segmented;
+            long numDocs;
+            try {
+                perSegment = getSectionsPerSegment(reader);
+                segmented = perSegment != reader.getNumSections();
+                numDocs = getNumDocs(reader, perSegment);
+            } finally {
+                reader.close();
+            }
+            BinaryCheckpoint.Writer writer = new BinaryCheckpoint.Writer(filepath, true);
+            if (segmented) {
+                writer.removeLastSection(); // replaced by a new index on close
+            }
+            return new Writer(writer, perSegment, numDocs);
+        }
+
+        private Writer(BinaryCheckpoint.Writer writer, int appendedSections,
+                long numExistingDocs) throws IOException {
+            this.writer = writer;
+            this.appendedSections = appendedSections;
+            this.numExistingDocs = numExistingDocs;
+            this.docOffsets = new TLongArrayList();
+            this.sentOffsets = new TLongArrayList();
+            this.docSentOffsets = new TLongArrayList();
+            this.docOffsets.add(0);
+            this.writer.startSection(BinaryCheckpoint.INT);
+        }
+
+        public void addDocument(int[] words) throws IOException {
+            if (addingSentences) {
+                throw new RuntimeException("Adding document after sentences");
+            }
+            checkSize(numExistingDocs + docOffsets.size(), "documents");
+            writer.writeInts(words);
+            docOffsets.add(docOffsets.get(docOffsets.size() - 1) + words.length);
+        }
+
+        public void addSentences(int[][] sents) throws IOException {
+            if (!addingSentences) {
+                startSentences();
+            }
+            checkSize(sentOffsets.size() - 1 + sents.length, "sentences");
+            for (int[] sent : sents) {
+                writer.writeInts(sent);
+                sentOffsets.add(sentOffsets.get(sentOffsets.size() - 1) + sent.length);
+            }
+            docSentOffsets.add(docSentOffsets.get(docSentOffsets.size() - 1) + sents.length);
+        }
+
+        private void startSentences() throws IOException {
+            writeOffsets(docOffsets);
+            writer.startSection(BinaryCheckpoint.INT);
+            sentOffsets.add(0);
+            docSentOffsets.add(0);
+            addingSentences = true;
+        }
+
+        /**
+         * Reject a document or sentence that would make the corpus too large
+         * to load. The file is restored to its content before writing.
+         */
+        private void checkSize(long size, String name) throws IOException {
+            if (size > MAX_NUM_ELEMENTS) {
+                writer.abort();
+                throw new RuntimeException("Too many " + name + ". " + size);
+            }
+        }
+
+        private void writeOffsets(TLongArrayList offsets) throws IOException {
+            writer.startSection(BinaryCheckpoint.LONG);
+            for (int ii = 0; ii < offsets.size(); ii++) {
+                writer.writeLong(offsets.get(ii));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (appendedSections > DOC_SENT_OFFSETS && !addingSentences
+                    && docOffsets.size() == 1) {
+                startSentences(); // no documents, empty sentence sections
+            }
+            if (appendedSections > 0
+                    && (appendedSections > DOC_SENT_OFFSETS) != addingSentences) {
+                writer.abort();
+                throw new RuntimeException("Sentences mismatched. Appending "
+                        + (addingSentences ? "" : "no ") + "sentences to a corpus with"
+                        + (addingSentences ? "out" : "") + " sentences");
+            }
+            if (addingSentences) {
+                if (docSentOffsets.size() != docOffsets.size()) {
+                    writer.abort();
+                    throw new RuntimeException("Number of documents mismatched. "
+                            + (docOffsets.size() - 1) + " documents vs. "
+                            + (docSentOffsets.size() - 1) + " sentence documents");
+                }
+                writeOffsets(sentOffsets);
+                writeOffsets(docSentOffsets);
+            } else {
+                writeOffsets(docOffsets);
+            }
+            if (appendedSections > 0) {
+                writer.startSection(BinaryCheckpoint.INT);
+                writer.writeInt(SEGMENT_INDEX);
+                writer.writeInt(appendedSections);
+            }
+            writer.close();
+        }
+    }
+}
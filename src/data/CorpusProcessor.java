@@ -1,18 +1,33 @@
 package data;
 
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import main.GlobalConstants;
 import opennlp.tools.sentdetect.SentenceDetector;
 import opennlp.tools.sentdetect.SentenceDetectorME;
@@ -58,20 +73,33 @@ public class CorpusProcessor {
     // tools
     protected Tokenizer tokenizer;
     protected SentenceDetector sentenceDetector;
+    private TokenizerModel tokenizerModel;
+    private SentenceModel sentenceModel;
+    private int numThreads = 1; // number of threads used to tokenize documents
+    private boolean trackOutOfVocab = false; // count tokens outside an existing vocab
     private StopwordRemoval stopwordRemoval;
     private Stemmer stemmer;
-    public HashMap<String, Integer> termFreq;
-    public HashMap<String, Integer> docFreq;
-    protected HashMap<String, Integer> leftFreq;
-    protected HashMap<String, Integer> rightFreq;
-    protected HashMap<String, Integer> bigramFreq;
-    protected int totalBigram;
+    private FreqCounts rawCounts; // raw unigram and bigram counts
+    // normalized forms of raw tokens, filled up to NORM_CACHE_SIZE entries
+    private final ConcurrentHashMap<String, String> normCache;
     // output data after processing
     private ArrayList<String> vocabulary;
     private int[][] numericDocs;
     private int[][][] numericSentences;
     private String[][] rawSentences;
-    private final Pattern p = Pattern.compile("\\p{Punct}");
+    // threads processing documents, kept for the lifetime of the processor
+    private ForkJoinPool pool;
+    // tokenization tools of each thread of the pool or converting single texts
+    private final ThreadLocal<Worker> textWorkers = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker(new TokenizerME(tokenizerModel),
+                    new SentenceDetectorME(sentenceModel), new Stemmer());
+        }
+    };
+    private VocabFilter vocabFilter; // for converting single texts
+    private static final int STREAM_BATCH_SIZE = 1000; // documents per thread in a batch
+    private static final int NORM_CACHE_SIZE = 1 << 18; // maximum number of cached tokens
 
     public CorpusProcessor(CorpusProcessor corp) {
         this(corp.unigramCountCutoff,
@@ -85,6 +113,7 @@ public class CorpusProcessor {
                 corp.docTypeCountCutoff,
                 corp.filterStopwords,
                 corp.lemmatization);
+        this.numThreads = corp.numThreads;
     }
 
     public CorpusProcessor(
@@ -147,13 +176,8 @@ public class CorpusProcessor {
         this.filterStopwords = filterStopwords;
         this.lemmatization = lemmatization;
 
-        this.termFreq = new HashMap<String, Integer>();
-        this.docFreq = new HashMap<String, Integer>();
-
-        this.leftFreq = new HashMap<String, Integer>();
-        this.rightFreq = new HashMap<String, Integer>();
-        this.bigramFreq = new HashMap<String, Integer>();
-        this.totalBigram = 0;
+        this.rawCounts = new FreqCounts();
+        this.normCache = new ConcurrentHashMap<String, String>();
 
         try {
             this.stemmer = new Stemmer();
@@ -165,12 +189,12 @@ public class CorpusProcessor {
 
             // initiate tokenizer
             InputStream tokenizeIn = new FileInputStream(GlobalConstants.TokenizerFilePath);
-            TokenizerModel tokenizeModel = new TokenizerModel(tokenizeIn);
-            this.tokenizer = new TokenizerME(tokenizeModel);
+            this.tokenizerModel = new TokenizerModel(tokenizeIn);
+            this.tokenizer = new TokenizerME(tokenizerModel);
             tokenizeIn.close();
 
             InputStream tokenizeSent = new FileInputStream(GlobalConstants.SentDetectorFilePath);
-            SentenceModel sentenceModel = new SentenceModel(tokenizeSent);
+            this.sentenceModel = new SentenceModel(tokenizeSent);
             this.sentenceDetector = new SentenceDetectorME(sentenceModel);
             tokenizeSent.close();
         } catch (IOException e) {
@@ -216,6 +240,34 @@ public class CorpusProcessor {
         this.verbose = v;
     }
 
+    /**
+     * Set the number of threads used to segment and tokenize documents. The
+     * output does not depend on the number of threads.
+     *
+     * @param numThreads Number of threads
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new RuntimeException("Invalid number of threads " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set whether to count the tokens that are dropped when processing with
+     * an existing vocabulary, so that they can be considered when the
+     * vocabulary is rebuilt later (see outputOutOfVocab).
+     *
+     * @param track Whether out-of-vocab tokens are counted
+     */
+    public void setOutOfVocabTracked(boolean track) {
+        this.trackOutOfVocab = track;
+    }
+
+    public boolean isOutOfVocabTracked() {
+        return this.trackOutOfVocab;
+    }
+
     public void setMaxVocabSize(int vocsize) {
         this.maxVocabSize = vocsize;
     }
@@ -269,15 +321,14 @@ public class CorpusProcessor {
             throw new RuntimeException("Sentence detector is not initialized.");
         }
         D = rawDocuments.length;
-        String[][] rawSents = new String[D][];
-        int step = MiscUtils.getRoundStepSize(D, 10);
-        for (int d = 0; d < D; d++) {
-            if (verbose && d % step == 0) {
-                System.out.println("--- Segmenting sentences " + d + " / " + D);
+        final String[] docs = rawDocuments;
+        final String[][] rawSents = new String[D][];
+        processDocuments("--- Segmenting sentences ", D, new DocumentProcessor() {
+            @Override
+            public void process(int d, Worker worker, FreqCounts counts) {
+                rawSents[d] = worker.sentenceDetector.sentDetect(docs[d]);
             }
-
-            rawSents[d] = sentenceDetector.sentDetect(rawDocuments[d]);
-        }
+        });
         return rawSents;
     }
 
@@ -286,29 +337,271 @@ public class CorpusProcessor {
      *
      * @param rawSentences
      */
-    private String[][][] normalizeTokens(String[][] rawSentences) {
+    private String[][][] normalizeTokens(final String[][] rawSentences) {
         if (verbose) {
             System.out.println("Normalizing tokens ...");
         }
 
-        String[][][] normTexts = new String[D][][];
-        int step = MiscUtils.getRoundStepSize(D, 10);
-        for (int d = 0; d < D; d++) {
-            if (verbose && d % step == 0) {
-                System.out.println("--- Normalizing tokens d = " + d + " / " + D);
+        final String[][][] normTexts = new String[D][][];
+        processDocuments("--- Normalizing tokens d = ", D, new DocumentProcessor() {
+            @Override
+            public void process(int d, Worker worker, FreqCounts counts) {
+                normTexts[d] = tokenize(rawSentences[d], worker, null);
             }
-            normTexts[d] = new String[rawSentences[d].length][];
-            for (int s = 0; s < rawSentences[d].length; s++) {
-                String[] sentTokens = tokenizer.tokenize(rawSentences[d][s].toLowerCase());
-                normTexts[d][s] = new String[sentTokens.length];
-                for (int t = 0; t < sentTokens.length; t++) {
-                    String normToken = normalize(sentTokens[t]);
-                    normTexts[d][s][t] = normToken;
+        });
+
+        return normTexts;
+    }
+
+    /**
+     * Tokenize and normalize the sentences of a document, and optionally
+     * count the raw unigrams and bigrams.
+     *
+     * @param sentences The raw sentences of the document
+     * @param worker The tokenization tools of the current thread
+     * @param counts The frequency counts to update (null to skip counting)
+     */
+    private String[][] tokenize(String[] sentences, Worker worker, FreqCounts counts) {
+        String[][] normText = new String[sentences.length][];
+        TIntHashSet uniqueDocTerms = counts == null ? null : new TIntHashSet();
+        for (int s = 0; s < sentences.length; s++) {
+            String[] sentTokens = worker.tokenizer.tokenize(sentences[s].toLowerCase());
+            normText[s] = new String[sentTokens.length];
+
+            int preTerm = -1; // index of the previous token, -1 if it was discarded
+            for (int t = 0; t < sentTokens.length; t++) {
+                String normToken = getNormalizedToken(sentTokens[t], worker);
+                normText[s][t] = normToken;
+
+                if (counts == null) {
+                    continue;
+                }
+                if (normToken.isEmpty()) {
+                    preTerm = -1;
+                    continue;
+                }
+                int term = counts.getTermIndex(normToken);
+                FreqCounts.increment(counts.termFreq, term);
+                uniqueDocTerms.add(term);
+                if (preTerm >= 0) {
+                    FreqCounts.increment(counts.leftFreq, preTerm);
+                    FreqCounts.increment(counts.rightFreq, term);
+                    counts.bigramFreq.adjustOrPutValue(FreqCounts.getBigramKey(preTerm, term), 1, 1);
+                    counts.totalBigram++;
                 }
+                preTerm = term;
             }
         }
 
-        return normTexts;
+        if (counts != null) {
+            for (TIntIterator it = uniqueDocTerms.iterator(); it.hasNext();) {
+                FreqCounts.increment(counts.docFreq, it.next());
+            }
+        }
+        return normText;
+    }
+
+    /**
+     * Merge the tokens of a sentence into the selected bigrams, and drop
+     * unigrams whose raw counts are below the cutoff.
+     *
+     * @param normSent The normalized tokens of the sentence
+     * @param bigrams The keys of the selected bigrams
+     */
+    private String[] mergeBigrams(String[] normSent, TLongHashSet bigrams) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < normSent.length; i++) {
+            String curToken = normSent[i];
+            if (curToken.isEmpty()) {
+                continue;
+            }
+            if (i + 1 < normSent.length && !normSent[i + 1].isEmpty()
+                    && bigrams.contains(rawCounts.getBigramKey(curToken, normSent[i + 1]))) {
+                tokens.add(getBigramString(curToken, normSent[i + 1]));
+                i++;
+                continue;
+            }
+            // if the bigram is not selected, add the current unigram and
+            // move on to the next unigram
+            if (rawCounts.getTermFreq(curToken) >= this.unigramCountCutoff) {
+                tokens.add(curToken);
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Keep only the unigrams and bigrams of a sentence that are in a given
+     * vocabulary, preferring bigrams.
+     *
+     * @param normSent The normalized tokens of the sentence
+     * @param voc The vocabulary
+     * @param vocBigrams The right tokens of the bigrams in the vocabulary,
+     * indexed by their left tokens
+     */
+    private String[] filterByVocab(String[] normSent, Set<String> voc,
+            HashMap<String, Set<String>> vocBigrams) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < normSent.length; i++) {
+            String curToken = normSent[i];
+            if (curToken.isEmpty()) {
+                continue;
+            }
+            if (i + 1 < normSent.length && !normSent[i + 1].isEmpty()) {
+                Set<String> rights = vocBigrams.get(curToken);
+                if (rights != null && rights.contains(normSent[i + 1])) {
+                    tokens.add(getBigramString(curToken, normSent[i + 1]));
+                    i++;
+                    continue;
+                }
+            }
+            if (voc.contains(curToken)) {
+                tokens.add(curToken);
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Filter each sentence of a document by a vocabulary, and optionally count
+     * the tokens that are not in the vocabulary.
+     *
+     * @param normText The normalized tokens of each sentence, replaced by the
+     * filtered tokens
+     * @param voc The vocabulary
+     * @param vocBigrams The right tokens of the bigrams in the vocabulary,
+     * indexed by their left tokens
+     * @param oovCounts The out-of-vocab counts to update (null to skip
+     * counting)
+     */
+    private void filterByVocab(String[][] normText, Set<String> voc,
+            HashMap<String, Set<String>> vocBigrams, FreqCounts oovCounts) {
+        if (oovCounts != null) {
+            countOutOfVocab(normText, voc, oovCounts);
+        }
+        for (int s = 0; s < normText.length; s++) {
+            normText[s] = filterByVocab(normText[s], voc, vocBigrams);
+        }
+    }
+
+    /**
+     * Count the term and document frequencies of the non-empty tokens of a
+     * document that are not in a vocabulary.
+     */
+    private static void countOutOfVocab(String[][] normText, Set<String> voc,
+            FreqCounts counts) {
+        TIntHashSet uniqueDocTerms = new TIntHashSet();
+        for (String[] normSent : normText) {
+            for (String token : normSent) {
+                if (token.isEmpty() || voc.contains(token)) {
+                    continue;
+                }
+                int term = counts.getTermIndex(token);
+                FreqCounts.increment(counts.termFreq, term);
+                uniqueDocTerms.add(term);
+            }
+        }
+        for (TIntIterator it = uniqueDocTerms.iterator(); it.hasNext();) {
+            FreqCounts.increment(counts.docFreq, it.next());
+        }
+    }
+
+    /**
+     * Index the bigrams of a vocabulary by their left tokens, so that a pair
+     * of tokens can be looked up without building the bigram string.
+     *
+     * @param voc The vocabulary
+     */
+    private HashMap<String, Set<String>> getBigramsByLeft(ArrayList<String> voc) {
+        HashMap<String, Set<String>> vocBigrams = new HashMap<String, Set<String>>();
+        for (String term : voc) {
+            String[] bigramTokens = getTokensFromBigram(term);
+            if (bigramTokens.length != 2) {
+                continue;
+            }
+            Set<String> rights = vocBigrams.get(bigramTokens[0]);
+            if (rights == null) {
+                rights = new HashSet<String>();
+                vocBigrams.put(bigramTokens[0], rights);
+            }
+            rights.add(bigramTokens[1]);
+        }
+        return vocBigrams;
+    }
+
+    /**
+     * Convert the terms of each sentence of a document into their indices in
+     * the (sorted) vocabulary, skipping out-of-vocab terms.
+     *
+     * @param normText The terms of each sentence
+     */
+    private int[][] getNumericSentences(String[][] normText) {
+        int[][] numericSents = new int[normText.length][];
+        for (int s = 0; s < normText.length; s++) {
+            ArrayList<Integer> numericSent = new ArrayList<Integer>();
+            for (String term : normText[s]) {
+                int numericTerm = Collections.binarySearch(this.vocabulary, term);
+                if (numericTerm < 0) { // this term is out-of-vocab
+                    continue;
+                }
+                numericSent.add(numericTerm);
+            }
+            numericSents[s] = new int[numericSent.size()];
+            for (int i = 0; i < numericSent.size(); i++) {
+                numericSents[s][i] = numericSent.get(i);
+            }
+        }
+        return numericSents;
+    }
+
+    /**
+     * Convert a raw text into the vocabulary indices of its terms with the
+     * existing vocabulary, e.g., to score a new document with a trained
+     * model. Nothing is stored and each calling thread uses its own
+     * tokenization tools, so this can be called from multiple threads.
+     *
+     * @param text The raw text
+     */
+    public int[] getNumericDocument(String text) {
+        VocabFilter filter = getVocabFilter();
+        Worker worker = textWorkers.get();
+        String[][] normText = tokenize(worker.sentenceDetector.sentDetect(text), worker, null);
+        filterByVocab(normText, filter.vocSet, filter.vocBigrams, null);
+        return getNumericDocument(getNumericSentences(normText));
+    }
+
+    /**
+     * Return the lookup structures of the current vocabulary, which are
+     * rebuilt when the vocabulary is changed.
+     */
+    private synchronized VocabFilter getVocabFilter() {
+        if (vocabulary == null) {
+            throw new RuntimeException("Vocabulary has not been set");
+        }
+        if (vocabFilter == null || vocabFilter.voc != vocabulary) {
+            vocabFilter = new VocabFilter(vocabulary, new HashSet<String>(vocabulary),
+                    getBigramsByLeft(vocabulary));
+        }
+        return vocabFilter;
+    }
+
+    /**
+     * Concatenate the numeric sentences of a document.
+     *
+     * @param numericSents The numeric sentences
+     */
+    private static int[] getNumericDocument(int[][] numericSents) {
+        int length = 0;
+        for (int[] numericSent : numericSents) {
+            length += numericSent.length;
+        }
+        int[] numericDoc = new int[length];
+        int pos = 0;
+        for (int[] numericSent : numericSents) {
+            System.arraycopy(numericSent, 0, numericDoc, pos, numericSent.length);
+            pos += numericSent.length;
+        }
+        return numericDoc;
     }
 
     /**
@@ -328,6 +621,8 @@ public class CorpusProcessor {
         }
 
         // segment sentences if necessary
+        normCache.clear();
+        rawCounts = new FreqCounts();
         rawSentences = this.segmentSentences(this.rawTexts);
         D = rawSentences.length;
 
@@ -338,73 +633,23 @@ public class CorpusProcessor {
         if (verbose) {
             System.out.println("Building numeric representations ...");
         }
+        Set<String> vocSet = new HashSet<String>(voc);
+        HashMap<String, Set<String>> vocBigrams = getBigramsByLeft(voc);
         int step = MiscUtils.getRoundStepSize(D, 10);
         for (int d = 0; d < D; d++) {
             if (verbose && d % step == 0) {
                 System.out.println("--- Normalizing tokens d = " + d + " / " + D);
             }
-            for (int s = 0; s < normTexts[d].length; s++) {
-                ArrayList<String> tokens = new ArrayList<String>();
-                for (int i = 0; i < normTexts[d][s].length; i++) {
-                    String curToken = normTexts[d][s][i];
-                    if (curToken.isEmpty()) {
-                        continue;
-                    }
-
-                    // consider a bigram
-                    if (i + 1 < normTexts[d][s].length
-                            && !normTexts[d][s][i + 1].isEmpty()) {
-                        String bigram = getBigramString(normTexts[d][s][i],
-                                normTexts[d][s][i + 1]);
-
-                        // if the bigram is not in the vocab, add the current
-                        // unigram and move on
-                        if (!voc.contains(bigram)) {
-                            if (voc.contains(curToken)) {
-                                tokens.add(curToken);
-                            }
-                            continue;
-                        }
-
-                        // if the bigram is in the vocab, add the bigram
-                        tokens.add(bigram);
-                        i++;
-                    } else {
-                        if (voc.contains(curToken)) {
-                            tokens.add(curToken);
-                        }
-                    }
-                }
-                normTexts[d][s] = tokens.toArray(new String[tokens.size()]);
-            }
+            filterByVocab(normTexts[d], vocSet, vocBigrams,
+                    trackOutOfVocab ? rawCounts : null);
         }
 
         this.vocabulary = voc;
         this.numericDocs = new int[D][];
         this.numericSentences = new int[D][][];
         for (int d = 0; d < D; d++) { // for each document
-            ArrayList<Integer> numericDoc = new ArrayList<Integer>();
-            this.numericSentences[d] = new int[normTexts[d].length][];
-            for (int s = 0; s < normTexts[d].length; s++) { // for each sentence
-                ArrayList<Integer> numericSent = new ArrayList<Integer>();
-                for (String normText : normTexts[d][s]) {
-                    int numericTerm = Collections.binarySearch(this.vocabulary, normText);
-                    if (numericTerm < 0) { // this term is out-of-vocab
-                        continue;
-                    }
-                    numericDoc.add(numericTerm);
-                    numericSent.add(numericTerm);
-                }
-
-                this.numericSentences[d][s] = new int[numericSent.size()];
-                for (int i = 0; i < numericSent.size(); i++) {
-                    this.numericSentences[d][s][i] = numericSent.get(i);
-                }
-            }
-            this.numericDocs[d] = new int[numericDoc.size()];
-            for (int i = 0; i < numericDoc.size(); i++) {
-                this.numericDocs[d][i] = numericDoc.get(i);
-            }
+            this.numericSentences[d] = getNumericSentences(normTexts[d]);
+            this.numericDocs[d] = getNumericDocument(numericSentences[d]);
         }
     }
 
@@ -439,129 +684,117 @@ public class CorpusProcessor {
         // segment sentences if necessary
         rawSentences = rawSents;
         D = rawSentences.length;
-        String[][][] normTexts = new String[D][][];
-        int stepsize = MiscUtils.getRoundStepSize(D, 10);
-        for (int d = 0; d < D; d++) {
-            if (verbose && d % stepsize == 0) {
-                System.out.println("--- Tokenizing doc # " + d + " / " + D);
+        normCache.clear();
+        final String[][][] normTexts = new String[D][][];
+        processDocuments("--- Tokenizing doc # ", D, new DocumentProcessor() {
+            @Override
+            public void process(int d, Worker worker, FreqCounts counts) {
+                normTexts[d] = tokenize(rawSentences[d], worker, counts);
             }
+        });
 
-            Set<String> uniqueDocTokens = new HashSet<String>();
-            normTexts[d] = new String[rawSentences[d].length][];
-
-            for (int s = 0; s < rawSentences[d].length; s++) {
-                String[] sentTokens = tokenizer.tokenize(rawSentences[d][s].toLowerCase());
-                normTexts[d][s] = new String[sentTokens.length];
-
-                for (int t = 0; t < sentTokens.length; t++) {
-                    String normToken = normalize(sentTokens[t]);
-                    normTexts[d][s][t] = normToken;
+        // score bigrams
+        TLongHashSet bigrams = selectBigrams();
 
-                    if (!normToken.isEmpty()) {
-                        MiscUtils.incrementMap(termFreq, normToken);
-                        uniqueDocTokens.add(normToken);
+        // merge bigrams
+        if (verbose) {
+            System.out.println("Merging unigrams to create bigram ...");
+        }
+        HashMap<String, Integer> finalTermFreq = new HashMap<String, Integer>();
+        HashMap<String, Integer> finalDocFreq = new HashMap<String, Integer>();
 
-                        if (t - 1 >= 0 && !normTexts[d][s][t - 1].isEmpty()) {
-                            String preToken = normTexts[d][s][t - 1];
-                            MiscUtils.incrementMap(leftFreq, preToken);
-                            MiscUtils.incrementMap(rightFreq, normToken);
-                            MiscUtils.incrementMap(bigramFreq, getBigramString(preToken, normToken));
-                            totalBigram++;
-                        }
-                    }
-                }
+        for (String[][] normText : normTexts) {
+            for (int s = 0; s < normText.length; s++) {
+                normText[s] = mergeBigrams(normText[s], bigrams);
             }
+            countTerms(normText, finalTermFreq, finalDocFreq);
+        }
 
-            for (String uniToken : uniqueDocTokens) {
-                MiscUtils.incrementMap(docFreq, uniToken);
-            }
+        // finalize
+        selectVocab(finalTermFreq, finalDocFreq);
+
+        this.numericDocs = new int[D][];
+        this.numericSentences = new int[D][][];
+        for (int d = 0; d < this.numericDocs.length; d++) { // for each document
+            this.numericSentences[d] = getNumericSentences(normTexts[d]);
+            this.numericDocs[d] = getNumericDocument(numericSentences[d]);
         }
+    }
 
+    /**
+     * Select the bigrams whose raw counts and scores pass the cutoffs.
+     */
+    private TLongHashSet selectBigrams() {
         // debug
         if (verbose) {
-            System.out.println("--- # raw unique unigrams: " + termFreq.size()
-                    + ". " + docFreq.size());
-            System.out.println("--- # raw unique bigrams: " + bigramFreq.size());
-            System.out.println("--- # left: " + leftFreq.size()
-                    + ". # right: " + rightFreq.size()
-                    + ". total: " + totalBigram);
+            System.out.println("--- # raw unique unigrams: " + rawCounts.getNumTerms()
+                    + ". " + FreqCounts.countNonZeros(rawCounts.docFreq));
+            System.out.println("--- # raw unique bigrams: " + rawCounts.bigramFreq.size());
+            System.out.println("--- # left: " + FreqCounts.countNonZeros(rawCounts.leftFreq)
+                    + ". # right: " + FreqCounts.countNonZeros(rawCounts.rightFreq)
+                    + ". total: " + rawCounts.totalBigram);
         }
 
-        // score bigrams
         if (verbose) {
             System.out.println("Scoring bigram ...");
         }
-        Set<String> vocab = new HashSet<String>();
-        for (String bigram : bigramFreq.keySet()) {
-            if (bigramFreq.get(bigram) < this.bigramCountCutoff) {
+        TLongHashSet bigrams = new TLongHashSet();
+        for (TLongIntIterator it = rawCounts.bigramFreq.iterator(); it.hasNext();) {
+            it.advance();
+            if (it.value() < this.bigramCountCutoff) {
                 continue;
             }
 
-            double score = scoreBigram(getTokensFromBigram(bigram));
+            double score = scoreBigram(FreqCounts.getLeftTerm(it.key()),
+                    FreqCounts.getRightTerm(it.key()));
             if (score < this.bigramScoreCutoff) {
                 continue;
             }
 
-            vocab.add(bigram);
+            bigrams.add(it.key());
         }
 
         // debug
         if (verbose) {
-            System.out.println("--- # bigrams after being scored: " + vocab.size());
-        }
-
-        // merge bigrams
-        if (verbose) {
-            System.out.println("Merging unigrams to create bigram ...");
+            System.out.println("--- # bigrams after being scored: " + bigrams.size());
         }
-        HashMap<String, Integer> finalTermFreq = new HashMap<String, Integer>();
-        HashMap<String, Integer> finalDocFreq = new HashMap<String, Integer>();
+        return bigrams;
+    }
 
-        for (String[][] normText : normTexts) {
-            Set<String> docUniqueTerms = new HashSet<String>();
-            for (int s = 0; s < normText.length; s++) {
-                ArrayList<String> tokens = new ArrayList<String>();
-                for (int i = 0; i < normText[s].length; i++) {
-                    String curToken = normText[s][i];
-                    if (curToken.isEmpty()) {
-                        continue;
-                    }
-                    if (i + 1 < normText[s].length && !normText[s][i + 1].isEmpty()) {
-                        String bigram = getBigramString(normText[s][i], normText[s][i + 1]);
-                        if (!vocab.contains(bigram)) {
-                            // if the bigram is not in the vocab, add the current
-                            // unigram and move on to the next unigram
-                            if (termFreq.get(curToken) < this.unigramCountCutoff) {
-                                continue;
-                            }
-                            tokens.add(curToken);
-                            vocab.add(curToken);
-                            MiscUtils.incrementMap(finalTermFreq, curToken);
-                            continue;
-                        }
-                        tokens.add(bigram);
-                        MiscUtils.incrementMap(finalTermFreq, bigram);
-                        i++;
-                    } else {
-                        if (termFreq.get(curToken) < this.unigramCountCutoff) {
-                            continue;
-                        }
-                        tokens.add(curToken);
-                        vocab.add(curToken);
-                        MiscUtils.incrementMap(finalTermFreq, curToken);
-                    }
-                }
-                normText[s] = tokens.toArray(new String[tokens.size()]);
-                // union
-                docUniqueTerms.addAll(Arrays.asList(normText[s]));
-            }
-            // update document frequencies
-            for (String ut : docUniqueTerms) {
-                MiscUtils.incrementMap(finalDocFreq, ut);
+    /**
+     * Update the term and document frequencies of the merged terms with a
+     * document.
+     *
+     * @param normText The merged terms of each sentence of the document
+     * @param finalTermFreq Term frequencies
+     * @param finalDocFreq Document frequencies
+     */
+    private static void countTerms(String[][] normText,
+            HashMap<String, Integer> finalTermFreq,
+            HashMap<String, Integer> finalDocFreq) {
+        Set<String> docUniqueTerms = new HashSet<String>();
+        for (String[] sentTerms : normText) {
+            for (String term : sentTerms) {
+                MiscUtils.incrementMap(finalTermFreq, term);
             }
+            // union
+            docUniqueTerms.addAll(Arrays.asList(sentTerms));
+        }
+        // update document frequencies
+        for (String ut : docUniqueTerms) {
+            MiscUtils.incrementMap(finalDocFreq, ut);
         }
+    }
 
-        // finalize
+    /**
+     * Build the vocabulary from the frequencies of the merged terms of all D
+     * documents, keeping the terms with highest TF-IDF.
+     *
+     * @param finalTermFreq Term frequencies
+     * @param finalDocFreq Document frequencies
+     */
+    private void selectVocab(HashMap<String, Integer> finalTermFreq,
+            HashMap<String, Integer> finalDocFreq) {
         ArrayList<RankingItem<String>> rankVocab = new ArrayList<RankingItem<String>>();
         for (String term : finalTermFreq.keySet()) {
             int rawTf = finalTermFreq.get(term);
@@ -591,48 +824,547 @@ public class CorpusProcessor {
             this.vocabulary.add(rankVocab.get(i).getObject());
         }
         Collections.sort(this.vocabulary);
+    }
 
-        this.numericDocs = new int[D][];
-        this.numericSentences = new int[D][][];
-        for (int d = 0; d < this.numericDocs.length; d++) { // for each document
-            ArrayList<Integer> numericDoc = new ArrayList<Integer>();
-            this.numericSentences[d] = new int[normTexts[d].length][];
-            for (int s = 0; s < normTexts[d].length; s++) { // for each sentence
-                ArrayList<Integer> numericSent = new ArrayList<Integer>();
-                for (String normText : normTexts[d][s]) {
-                    int numericTerm = Collections.binarySearch(this.vocabulary, normText);
-                    if (numericTerm < 0) { // this term is out-of-vocab
-                        continue;
+    /**
+     * A corpus that is read one document at a time and can be read again from
+     * the first document.
+     */
+    public static interface DocumentStream {
+
+        /**
+         * Start reading from the first document.
+         */
+        public void open() throws IOException;
+
+        /**
+         * Move to the next document.
+         *
+         * @return False if there are no more documents
+         */
+        public boolean next() throws IOException;
+
+        public String getDocId();
+
+        public String getText();
+
+        public void close() throws IOException;
+    }
+
+    /**
+     * Receiver of the processed documents of a stream, in input order.
+     */
+    public static interface DocumentHandler {
+
+        /**
+         * @param docId The document id
+         * @param numericSents The vocabulary indices of the terms of each
+         * sentence
+         * @param rawSents The raw sentences
+         */
+        public void handle(String docId, int[][] numericSents, String[] rawSents)
+                throws IOException;
+    }
+
+    /**
+     * Processing of a batch of documents read from a stream.
+     */
+    private static interface BatchProcessor {
+
+        public void process(String[] docIds, String[] texts, int numDocs)
+                throws IOException;
+    }
+
+    /**
+     * Process a corpus without holding it in memory. If there is no existing
+     * vocabulary, the corpus is read twice: the first pass counts raw unigrams
+     * and bigrams to select bigrams, the second pass merges bigrams, counts
+     * the merged terms to build the vocabulary and writes the merged terms to
+     * a temporary file, which is then read back to output the numeric
+     * documents. With an existing vocabulary, the corpus is read once.
+     *
+     * Memory usage depends on the number of unique unigrams and bigrams and
+     * on the batch size, but not on the number of documents. The vocabulary
+     * and output are the same as those of process().
+     *
+     * @param stream The corpus
+     * @param handler Receiver of the processed documents
+     * @param tempFile Temporary file of merged terms, deleted at the end
+     */
+    public void processStream(DocumentStream stream, final DocumentHandler handler,
+            File tempFile) throws IOException {
+        if (vocabulary != null) {
+            if (verbose) {
+                System.out.println("Using exisitng vocabulary ...");
+            }
+            normCache.clear();
+            rawCounts = new FreqCounts();
+            final Set<String> vocSet = new HashSet<String>(vocabulary);
+            final HashMap<String, Set<String>> vocBigrams = getBigramsByLeft(vocabulary);
+            D = streamDocuments(stream, "--- Filtering d = ", new BatchProcessor() {
+                @Override
+                public void process(String[] docIds, final String[] texts, int numDocs)
+                        throws IOException {
+                    final String[][] rawSents = new String[numDocs][];
+                    final int[][][] numericSents = new int[numDocs][][];
+                    processDocuments(null, numDocs, new DocumentProcessor() {
+                        @Override
+                        public void process(int d, Worker worker, FreqCounts counts) {
+                            rawSents[d] = worker.sentenceDetector.sentDetect(texts[d]);
+                            String[][] normText = tokenize(rawSents[d], worker, null);
+                            filterByVocab(normText, vocSet, vocBigrams,
+                                    trackOutOfVocab ? counts : null);
+                            numericSents[d] = getNumericSentences(normText);
+                        }
+                    });
+                    for (int d = 0; d < numDocs; d++) {
+                        handler.handle(docIds[d], numericSents[d], rawSents[d]);
                     }
-                    numericDoc.add(numericTerm);
-                    numericSent.add(numericTerm);
                 }
+            });
+            return;
+        }
+
+        // pass 1: count raw unigrams and bigrams
+        if (verbose) {
+            System.out.println("Tokenizing and counting ...");
+        }
+        normCache.clear();
+        int numDocs = streamDocuments(stream, "--- Tokenizing d = ", new BatchProcessor() {
+            @Override
+            public void process(String[] docIds, final String[] texts, int numDocs) {
+                processDocuments(null, numDocs, new DocumentProcessor() {
+                    @Override
+                    public void process(int d, Worker worker, FreqCounts counts) {
+                        tokenize(worker.sentenceDetector.sentDetect(texts[d]), worker, counts);
+                    }
+                });
+            }
+        });
+        D = numDocs;
+        final TLongHashSet bigrams = selectBigrams();
+
+        // pass 2: merge bigrams and count the merged terms
+        if (verbose) {
+            System.out.println("Merging unigrams to create bigram ...");
+        }
+        final HashMap<String, Integer> finalTermFreq = new HashMap<String, Integer>();
+        final HashMap<String, Integer> finalDocFreq = new HashMap<String, Integer>();
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)));
+            int numMergedDocs;
+            try {
+                numMergedDocs = streamDocuments(stream, "--- Merging d = ", new BatchProcessor() {
+                    @Override
+                    public void process(String[] docIds, final String[] texts, int numDocs)
+                            throws IOException {
+                        final String[][] rawSents = new String[numDocs][];
+                        final String[][][] normTexts = new String[numDocs][][];
+                        processDocuments(null, numDocs, new DocumentProcessor() {
+                            @Override
+                            public void process(int d, Worker worker, FreqCounts counts) {
+                                rawSents[d] = worker.sentenceDetector.sentDetect(texts[d]);
+                                normTexts[d] = tokenize(rawSents[d], worker, null);
+                                for (int s = 0; s < normTexts[d].length; s++) {
+                                    normTexts[d][s] = mergeBigrams(normTexts[d][s], bigrams);
+                                }
+                            }
+                        });
+                        for (int d = 0; d < numDocs; d++) {
+                            countTerms(normTexts[d], finalTermFreq, finalDocFreq);
+                            writeMergedDocument(out, docIds[d], normTexts[d], rawSents[d]);
+                        }
+                    }
+                });
+            } finally {
+                out.close();
+            }
+            if (numMergedDocs != numDocs) {
+                throw new RuntimeException("Number of documents changed between passes. "
+                        + numDocs + " vs. " + numMergedDocs);
+            }
 
-                this.numericSentences[d][s] = new int[numericSent.size()];
-                for (int i = 0; i < numericSent.size(); i++) {
-                    this.numericSentences[d][s][i] = numericSent.get(i);
+            selectVocab(finalTermFreq, finalDocFreq);
+
+            // output numeric documents
+            if (verbose) {
+                System.out.println("Building numeric representations ...");
+            }
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(tempFile)));
+            try {
+                for (int d = 0; d < numDocs; d++) {
+                    String docId = readString(in);
+                    String[] rawSents = new String[in.readInt()];
+                    String[][] normText = new String[rawSents.length][];
+                    for (int s = 0; s < rawSents.length; s++) {
+                        rawSents[s] = readString(in);
+                        normText[s] = new String[in.readInt()];
+                        for (int t = 0; t < normText[s].length; t++) {
+                            normText[s][t] = readString(in);
+                        }
+                    }
+                    handler.handle(docId, getNumericSentences(normText), rawSents);
                 }
+            } finally {
+                in.close();
             }
-            this.numericDocs[d] = new int[numericDoc.size()];
-            for (int i = 0; i < numericDoc.size(); i++) {
-                this.numericDocs[d][i] = numericDoc.get(i);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Read all documents of a stream in batches.
+     *
+     * @param stream The corpus
+     * @param message Prefix of progress messages
+     * @param processor The processing of each batch
+     * @return The number of documents
+     */
+    private int streamDocuments(DocumentStream stream, String message,
+            BatchProcessor processor) throws IOException {
+        int batchSize = STREAM_BATCH_SIZE * numThreads;
+        String[] docIds = new String[batchSize];
+        String[] texts = new String[batchSize];
+        int numDocs = 0;
+        int numBatches = 0;
+        stream.open();
+        try {
+            boolean hasNext = true;
+            while (hasNext) {
+                int batchDocs = 0;
+                while (batchDocs < batchSize && (hasNext = stream.next())) {
+                    docIds[batchDocs] = stream.getDocId();
+                    texts[batchDocs] = stream.getText();
+                    batchDocs++;
+                }
+                if (batchDocs > 0) {
+                    processor.process(docIds, texts, batchDocs);
+                    numDocs += batchDocs;
+                    numBatches++;
+                    if (verbose && (numBatches % 10 == 0 || !hasNext)) {
+                        System.out.println(message + numDocs);
+                    }
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        return numDocs;
+    }
+
+    private static void writeMergedDocument(DataOutputStream out, String docId,
+            String[][] normText, String[] rawSents) throws IOException {
+        writeString(out, docId);
+        out.writeInt(rawSents.length);
+        for (int s = 0; s < rawSents.length; s++) {
+            writeString(out, rawSents[s]);
+            out.writeInt(normText[s].length);
+            for (String term : normText[s]) {
+                writeString(out, term);
             }
         }
     }
 
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The vocabulary and the sets used to filter terms by it.
+     */
+    private static class VocabFilter {
+
+        final ArrayList<String> voc;
+        final Set<String> vocSet;
+        final HashMap<String, Set<String>> vocBigrams;
+
+        VocabFilter(ArrayList<String> voc, Set<String> vocSet,
+                HashMap<String, Set<String>> vocBigrams) {
+            this.voc = voc;
+            this.vocSet = vocSet;
+            this.vocBigrams = vocBigrams;
+        }
+    }
+
+    /**
+     * Tokenization tools of a thread. The OpenNLP tools and the stemmer keep
+     * internal state and cannot be shared across threads.
+     */
+    private static class Worker {
+
+        final Tokenizer tokenizer;
+        final SentenceDetector sentenceDetector;
+        final Stemmer stemmer;
+
+        Worker(Tokenizer tokenizer, SentenceDetector sentenceDetector, Stemmer stemmer) {
+            this.tokenizer = tokenizer;
+            this.sentenceDetector = sentenceDetector;
+            this.stemmer = stemmer;
+        }
+    }
+
+    /**
+     * Raw frequency counts collected by a thread. Each normalized term gets an
+     * index the first time it is counted, unigram counts are stored by term
+     * index and a bigram is keyed by the indices of its two terms packed into
+     * a long, so counting a token does not create any string or boxed count.
+     */
+    private static class FreqCounts {
+
+        final HashMap<String, Integer> termIndices;
+        final ArrayList<String> terms;
+        final TIntArrayList termFreq;
+        final TIntArrayList docFreq;
+        final TIntArrayList leftFreq;
+        final TIntArrayList rightFreq;
+        final TLongIntHashMap bigramFreq;
+        int totalBigram;
+
+        FreqCounts() {
+            this.termIndices = new HashMap<String, Integer>();
+            this.terms = new ArrayList<String>();
+            this.termFreq = new TIntArrayList();
+            this.docFreq = new TIntArrayList();
+            this.leftFreq = new TIntArrayList();
+            this.rightFreq = new TIntArrayList();
+            this.bigramFreq = new TLongIntHashMap();
+        }
+
+        int getNumTerms() {
+            return this.terms.size();
+        }
+
+        /**
+         * Return the index of a term, adding the term if it is new.
+         */
+        int getTermIndex(String term) {
+            Integer index = termIndices.get(term);
+            if (index == null) {
+                index = terms.size();
+                termIndices.put(term, index);
+                terms.add(term);
+                termFreq.add(0);
+                docFreq.add(0);
+                leftFreq.add(0);
+                rightFreq.add(0);
+            }
+            return index;
+        }
+
+        int getTermFreq(String term) {
+            Integer index = termIndices.get(term);
+            return index == null ? 0 : termFreq.getQuick(index);
+        }
+
+        /**
+         * Return the key of a bigram, or -1 if either term has not been
+         * counted.
+         */
+        long getBigramKey(String left, String right) {
+            Integer leftIndex = termIndices.get(left);
+            Integer rightIndex = termIndices.get(right);
+            if (leftIndex == null || rightIndex == null) {
+                return -1;
+            }
+            return getBigramKey(leftIndex, rightIndex);
+        }
+
+        static long getBigramKey(int left, int right) {
+            return ((long) left << 32) | right;
+        }
+
+        static int getLeftTerm(long bigramKey) {
+            return (int) (bigramKey >>> 32);
+        }
+
+        static int getRightTerm(long bigramKey) {
+            return (int) bigramKey;
+        }
+
+        static void increment(TIntArrayList counts, int index) {
+            counts.setQuick(index, counts.getQuick(index) + 1);
+        }
+
+        static int countNonZeros(TIntArrayList counts) {
+            int num = 0;
+            for (int ii = 0; ii < counts.size(); ii++) {
+                if (counts.getQuick(ii) > 0) {
+                    num++;
+                }
+            }
+            return num;
+        }
+
+        /**
+         * Add the counts of another thread, whose term indices are mapped to
+         * the indices of this one.
+         */
+        void add(FreqCounts other) {
+            int[] indices = new int[other.getNumTerms()];
+            for (int ii = 0; ii < indices.length; ii++) {
+                int index = getTermIndex(other.terms.get(ii));
+                indices[ii] = index;
+                termFreq.setQuick(index, termFreq.getQuick(index) + other.termFreq.getQuick(ii));
+                docFreq.setQuick(index, docFreq.getQuick(index) + other.docFreq.getQuick(ii));
+                leftFreq.setQuick(index, leftFreq.getQuick(index) + other.leftFreq.getQuick(ii));
+                rightFreq.setQuick(index, rightFreq.getQuick(index) + other.rightFreq.getQuick(ii));
+            }
+            for (TLongIntIterator it = other.bigramFreq.iterator(); it.hasNext();) {
+                it.advance();
+                long key = getBigramKey(indices[getLeftTerm(it.key())],
+                        indices[getRightTerm(it.key())]);
+                bigramFreq.adjustOrPutValue(key, it.value(), it.value());
+            }
+            totalBigram += other.totalBigram;
+        }
+    }
+
+    /**
+     * Processing of a single document.
+     */
+    private static interface DocumentProcessor {
+
+        /**
+         * @param d The document index
+         * @param worker The tokenization tools of the current thread
+         * @param counts The frequency counts of the current thread
+         */
+        public void process(int d, Worker worker, FreqCounts counts);
+    }
+
+    /**
+     * Return the pool of document processing threads. The pool and the
+     * tokenization tools of its threads are reused by all calls, e.g., by all
+     * batches when streaming, and only recreated when the number of threads
+     * changes.
+     */
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null || pool.getParallelism() != numThreads) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            pool = new ForkJoinPool(numThreads);
+        }
+        return pool;
+    }
+
+    /**
+     * Process documents 0, ..., numDocs - 1. With multiple threads, documents
+     * are split into chunks on the pool of the processor, each thread uses its
+     * own tokenization tools and frequency counts, and the frequency counts of
+     * all threads are added to the global counts at the end.
+     *
+     * @param message Prefix of progress messages (null for no progress)
+     * @param numDocs Number of documents
+     * @param processor The per-document processing
+     */
+    private void processDocuments(String message, int numDocs,
+            final DocumentProcessor processor) {
+        int step = MiscUtils.getRoundStepSize(numDocs, 10);
+        if (numThreads == 1) {
+            Worker worker = new Worker(tokenizer, sentenceDetector, stemmer);
+            for (int d = 0; d < numDocs; d++) {
+                if (verbose && message != null && d % step == 0) {
+                    System.out.println(message + d + " / " + numDocs);
+                }
+                processor.process(d, worker, rawCounts);
+            }
+            return;
+        }
+
+        final ArrayList<FreqCounts> threadCounts = new ArrayList<FreqCounts>();
+        final ThreadLocal<FreqCounts> counts = new ThreadLocal<FreqCounts>() {
+            @Override
+            protected FreqCounts initialValue() {
+                FreqCounts c = new FreqCounts();
+                synchronized (threadCounts) {
+                    threadCounts.add(c);
+                }
+                return c;
+            }
+        };
+
+        int chunkSize = Math.max(1, Math.min(step, numDocs / (4 * numThreads)));
+        ForkJoinPool threadPool = getPool();
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int start = 0; start < numDocs; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(numDocs, start + chunkSize);
+            futures.add(threadPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Worker worker = textWorkers.get();
+                    FreqCounts c = counts.get();
+                    for (int d = chunkStart; d < chunkEnd; d++) {
+                        processor.process(d, worker, c);
+                    }
+                }
+            }));
+        }
+        try {
+            for (int ii = 0; ii < futures.size(); ii++) {
+                futures.get(ii).get();
+                int start = ii * chunkSize;
+                if (verbose && message != null && start % step == 0) {
+                    System.out.println(message + start + " / " + numDocs);
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            e.printStackTrace();
+            throw new RuntimeException("Exception while processing documents");
+        }
+
+        for (FreqCounts c : threadCounts) {
+            rawCounts.add(c);
+        }
+    }
+
     protected double scoreBigram(String[] bigramTokens) {
-        String left = bigramTokens[0];
-        String right = bigramTokens[1];
-        if (excludeFromBigrams.contains(left) || excludeFromBigrams.contains(right)) {
+        if (excludeFromBigrams.contains(bigramTokens[0])
+                || excludeFromBigrams.contains(bigramTokens[1])) {
+            return 0.0;
+        }
+        long key = rawCounts.getBigramKey(bigramTokens[0], bigramTokens[1]);
+        if (!rawCounts.bigramFreq.containsKey(key)) {
+            throw new RuntimeException("Bigram not found. " + bigramTokens[0]
+                    + " " + bigramTokens[1]);
+        }
+        return scoreBigram(FreqCounts.getLeftTerm(key), FreqCounts.getRightTerm(key));
+    }
+
+    private double scoreBigram(int left, int right) {
+        if (excludeFromBigrams.contains(rawCounts.terms.get(left))
+                || excludeFromBigrams.contains(rawCounts.terms.get(right))) {
             return 0.0;
         }
+        return this.chiSquareTest.chiSquare(getContingencyTable(left, right));
+    }
+
+    /**
+     * Return the 2 x 2 table of the counts of bigrams whose left and right
+     * terms are or are not the given terms.
+     */
+    private long[][] getContingencyTable(int left, int right) {
         long[][] counts = new long[2][2];
-        counts[0][0] = this.bigramFreq.get(getBigramString(left, right));
-        counts[1][0] = this.leftFreq.get(left) - counts[0][0];
-        counts[0][1] = this.rightFreq.get(right) - counts[0][0];
-        counts[1][1] = this.totalBigram - counts[0][0] - counts[0][1] - counts[1][0];
-        double chisquareValue = this.chiSquareTest.chiSquare(counts);
-        return chisquareValue;
+        counts[0][0] = rawCounts.bigramFreq.get(FreqCounts.getBigramKey(left, right));
+        counts[1][0] = rawCounts.leftFreq.getQuick(left) - counts[0][0];
+        counts[0][1] = rawCounts.rightFreq.getQuick(right) - counts[0][0];
+        counts[1][1] = rawCounts.totalBigram - counts[0][0] - counts[0][1] - counts[1][0];
+        return counts;
     }
 
     public void outputDetailedBigrams(String filepath) throws Exception {
@@ -641,18 +1373,16 @@ public class CorpusProcessor {
         }
         BufferedWriter writer = IOUtils.getBufferedWriter(filepath);
         writer.write("bigram-score-cutoff:\t" + this.bigramCountCutoff + "\n");
-        for (String bigram : bigramFreq.keySet()) {
-            String[] bigramTokens = getTokensFromBigram(bigram);
-            String left = bigramTokens[0];
-            String right = bigramTokens[1];
+        for (TLongIntIterator it = rawCounts.bigramFreq.iterator(); it.hasNext();) {
+            it.advance();
+            String left = rawCounts.terms.get(FreqCounts.getLeftTerm(it.key()));
+            String right = rawCounts.terms.get(FreqCounts.getRightTerm(it.key()));
+            String bigram = getBigramString(left, right);
             if (excludeFromBigrams.contains(left) || excludeFromBigrams.contains(right)) {
                 continue;
             }
-            long[][] counts = new long[2][2];
-            counts[0][0] = this.bigramFreq.get(getBigramString(left, right));
-            counts[1][0] = this.leftFreq.get(left) - counts[0][0];
-            counts[0][1] = this.rightFreq.get(right) - counts[0][0];
-            counts[1][1] = this.totalBigram - counts[0][0] - counts[0][1] - counts[1][0];
+            long[][] counts = getContingencyTable(FreqCounts.getLeftTerm(it.key()),
+                    FreqCounts.getRightTerm(it.key()));
             double chisquareValue = this.chiSquareTest.chiSquare(counts);
             double pValue = this.chiSquareTest.chiSquareTest(counts);
 
@@ -673,6 +1403,53 @@ public class CorpusProcessor {
         writer.close();
     }
 
+    /**
+     * Output the terms that were dropped when processing with an existing
+     * vocabulary, with their term and document frequencies, sorted by term
+     * frequency. Counts in an existing file are added to, so that the counts
+     * accumulate over the successive batches of documents processed with the
+     * same vocabulary.
+     *
+     * @param filepath Output file, each line has the format
+     * <term>\t<term_freq>\t<doc_freq>
+     */
+    public void outputOutOfVocab(String filepath) throws Exception {
+        if (verbose) {
+            System.out.println("--- Outputing out-of-vocab terms to " + filepath);
+        }
+        FreqCounts oovCounts = new FreqCounts();
+        if (new File(filepath).exists()) {
+            BufferedReader reader = IOUtils.getBufferedReader(filepath);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] sline = line.split("\t");
+                int term = oovCounts.getTermIndex(sline[0]);
+                oovCounts.termFreq.setQuick(term, Integer.parseInt(sline[1]));
+                oovCounts.docFreq.setQuick(term, Integer.parseInt(sline[2]));
+            }
+            reader.close();
+        }
+        oovCounts.add(rawCounts);
+
+        ArrayList<RankingItem<Integer>> rankItems = new ArrayList<RankingItem<Integer>>();
+        for (int ii = 0; ii < oovCounts.getNumTerms(); ii++) {
+            if (oovCounts.termFreq.getQuick(ii) > 0) {
+                rankItems.add(new RankingItem<Integer>(ii, oovCounts.termFreq.getQuick(ii)));
+            }
+        }
+        Collections.sort(rankItems);
+
+        BufferedWriter writer = IOUtils.getBufferedWriter(filepath);
+        for (RankingItem<Integer> item : rankItems) {
+            int term = item.getObject();
+            writer.write(oovCounts.terms.get(term)
+                    + "\t" + oovCounts.termFreq.getQuick(term)
+                    + "\t" + oovCounts.docFreq.getQuick(term)
+                    + "\n");
+        }
+        writer.close();
+    }
+
     public void outputDetailedVocab(String filepath) throws Exception {
         if (verbose) {
             System.out.println("--- Outputing detailed vocab to " + filepath);
@@ -749,31 +1526,59 @@ public class CorpusProcessor {
      * @return The normalize token
      */
     public String normalize(String token) {
-        StringBuilder normToken = new StringBuilder();
-        token = token.toLowerCase();
-        for (int i = 0; i < token.length(); i++) {
-            Matcher m = p.matcher(token.substring(i, i + 1));
-            if (!m.matches()) {
-                normToken.append(token.substring(i, i + 1));
+        return normalize(token, stemmer);
+    }
+
+    /**
+     * Normalize a token, reusing the normalized form of a previous occurrence
+     * of the same raw token if it has been cached.
+     *
+     * @param token The raw token
+     * @param worker The tokenization tools of the current thread
+     */
+    private String getNormalizedToken(String token, Worker worker) {
+        String normToken = normCache.get(token);
+        if (normToken == null) {
+            normToken = normalize(token, worker.stemmer);
+            if (normCache.size() < NORM_CACHE_SIZE) {
+                normCache.put(token, normToken);
             }
         }
-        String reduced = normToken.toString();
-        if (lemmatization) {
-            reduced = this.stemmer.stem(reduced);
-        }
+        return normToken;
+    }
 
-        if (reduced.length() < minWordLength
-                || token.matches("[^A-Za-z]+")
-                || Character.isDigit(token.charAt(0))) {
+    /**
+     * A token is kept only if all of its characters are letters or digits, it
+     * has at least one ASCII letter and it does not start with a digit. Since
+     * punctuation is never kept, the characters are checked in place instead
+     * of building a copy of the token without punctuation.
+     */
+    private String normalize(String token, Stemmer tokenStemmer) {
+        token = token.toLowerCase();
+        if (token.isEmpty() || Character.isDigit(token.charAt(0))) {
             return "";
         }
-
+        boolean hasLetter = false;
         for (int i = 0; i < token.length(); i++) {
-            if (!Character.isLetterOrDigit(token.charAt(i))) {
+            char c = token.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
                 return "";
             }
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                hasLetter = true;
+            }
+        }
+        if (!hasLetter) {
+            return "";
         }
 
+        String reduced = token;
+        if (lemmatization) {
+            reduced = tokenStemmer.stem(reduced);
+        }
+        if (reduced.length() < minWordLength) {
+            return "";
+        }
         if (filterStopwords && stopwordRemoval.isStopword(reduced)) {
             return "";
         }
@@ -112,7 +112,7 @@ public class LabelTextDataset extends TextDataset {
      * @param labVoc The given set of labels
      */
     public void filterLabels(ArrayList<String> labVoc) {
-        int D = words.length;
+        int D = getNumDocs();
         this.labelVocab = labVoc;
 
         int[][] filterLabels = new int[D][];
@@ -141,7 +141,7 @@ public class LabelTextDataset extends TextDataset {
      * @param minLabelFreq Minimum frequency
      */
     public void filterLabelsByFrequency(int minLabelFreq) {
-        int D = words.length;
+        int D = getNumDocs();
         int L = labelVocab.size();
         int[] labelFreqs = new int[L];
         for (int dd = 0; dd < D; dd++) {
@@ -468,6 +468,7 @@ public class LabelTextDataset extends TextDataset {
             attributes.add(new Attribute("label_" + label, attVals));
         }
 
+        int[][] words = getWords();
         Instances data = new Instances(name, attributes, 0);
         for (int dd = 0; dd < docIds.length; dd++) {
             double[] vals = new double[wordVocab.size() + labelVocab.size()];
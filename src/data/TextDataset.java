@@ -6,7 +6,9 @@ import core.crossvalidation.Instance;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -39,6 +41,8 @@ public class TextDataset extends AbstractTokenizeDataset {
     protected double[] tfidfs;
     protected double[] idfs;
     protected boolean sent = false; // output/input sentences
+    protected boolean binary = false; // output binary formatted data
+    protected BinaryCorpus corpus; // binary formatted data, if loaded
 
     public TextDataset(String name) {
         super(name);
@@ -73,12 +77,31 @@ public class TextDataset extends AbstractTokenizeDataset {
         this.sent = sent;
     }
 
+    /**
+     * Set whether the formatted data are also output in binary format, which
+     * is loaded instead of the text format when present.
+     *
+     * @param binary Whether binary formatted data are output
+     */
+    public void setBinaryFormat(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Return the binary formatted data if they have been loaded, or null
+     * otherwise.
+     */
+    public BinaryCorpus getCorpus() {
+        return this.corpus;
+    }
+
     /**
      * Compute the TF-IDF score of each item in the vocabulary.
      */
     public void computeTFIDFs() {
+        int[][] words = getWords();
         int V = this.wordVocab.size();
-        int D = this.words.length;
+        int D = words.length;
         SparseCount tfs = new SparseCount();
         SparseCount dfs = new SparseCount();
         for (int d = 0; d < D; d++) {
@@ -124,7 +147,7 @@ public class TextDataset extends AbstractTokenizeDataset {
     }
 
     public void prepareTopicCoherence(int numTopWords) {
-        this.topicCoherence = new MimnoTopicCoherence(words, wordVocab.size(), numTopWords);
+        this.topicCoherence = new MimnoTopicCoherence(getWords(), wordVocab.size(), numTopWords);
         this.topicCoherence.prepare();
     }
 
@@ -133,6 +156,9 @@ public class TextDataset extends AbstractTokenizeDataset {
     }
 
     public int[][][] getSentenceWords() {
+        if (sentWords == null && corpus != null && corpus.hasSentences()) {
+            sentWords = corpus.getSentenceWords();
+        }
         return this.sentWords;
     }
 
@@ -141,6 +167,9 @@ public class TextDataset extends AbstractTokenizeDataset {
     }
 
     public int[][][] getDocSentWords(ArrayList<Integer> instances) {
+        if (sentWords == null && corpus != null) {
+            return corpus.getDocSentWords(instances);
+        }
         int[][][] revSentWords = new int[instances.size()][][];
         for (int i = 0; i < revSentWords.length; i++) {
             int idx = instances.get(i);
@@ -150,6 +179,9 @@ public class TextDataset extends AbstractTokenizeDataset {
     }
 
     public int[][] getDocWords(ArrayList<Integer> instances) {
+        if (words == null && corpus != null) {
+            return corpus.getDocWords(instances);
+        }
         int[][] revWords = new int[instances.size()][];
         for (int i = 0; i < revWords.length; i++) {
             int idx = instances.get(i);
@@ -289,6 +321,242 @@ public class TextDataset extends AbstractTokenizeDataset {
         if (sent) {
             outputSentTextData(outputFolder);
         }
+        outputBinaryData(outputFolder);
+    }
+
+    /**
+     * Format text data without loading it into memory. The documents are read
+     * from the input file or folder (in the same format as
+     * loadTextDataFromFile and loadTextDataFromFolder) by the corpus
+     * processor in two passes, and the formatted documents are written as
+     * they are processed. The output is the same as that of format.
+     *
+     * @param textPath The input data file or folder
+     * @param outputFolder The directory of the folder that processed data will
+     * be stored
+     * @throws java.lang.Exception
+     */
+    public void formatStream(String textPath, String outputFolder) throws Exception {
+        if (verbose) {
+            logln("--- Processing data from " + textPath + " ...");
+        }
+        IOUtils.createFolder(outputFolder);
+
+        outputStreamData(textPath, outputFolder, false);
+        outputWordVocab(outputFolder);
+        outputBinaryData(outputFolder);
+    }
+
+    /**
+     * Format new documents and append them to the formatted data in an output
+     * folder, without reprocessing the documents that have been formatted.
+     * The new documents are processed in a single pass using the existing
+     * word vocabulary, which is not changed, so the cost only depends on the
+     * number of new documents.
+     *
+     * If the binary formatted data exist, the new documents are appended to
+     * them as a new segment. If the corpus processor tracks out-of-vocab
+     * terms, their counts are added to the out-of-vocab file, which can be
+     * used to decide when the vocabulary should be rebuilt.
+     *
+     * @param textPath The input data file or folder of the new documents
+     * @param outputFolder The folder of the existing formatted data
+     * @throws java.lang.Exception
+     */
+    public void formatAppend(String textPath, String outputFolder) throws Exception {
+        File wordVocFile = new File(outputFolder, formatFilename + wordVocabExt);
+        File dataFile = new File(outputFolder, formatFilename + numDocDataExt);
+        File sentFile = new File(outputFolder, formatFilename + numSentDataExt);
+        File binaryFile = new File(outputFolder, formatFilename + BinaryCorpus.FileExt);
+        if (!wordVocFile.exists() || !dataFile.exists() || (sent && !sentFile.exists())) {
+            throw new RuntimeException("Formatted data to append to are not found in "
+                    + outputFolder);
+        }
+        if (binary && binaryFile.exists()
+                && BinaryCorpus.load(binaryFile.getAbsolutePath()).hasSentences() != sent) {
+            throw new RuntimeException("Sentences mismatched with the binary formatted data "
+                    + binaryFile);
+        }
+        if (verbose) {
+            logln("--- Appending data from " + textPath + " ...");
+        }
+        corpProc.loadVocab(wordVocFile.getAbsolutePath());
+        this.wordVocab = corpProc.getVocab();
+
+        // positions of the new documents in the formatted data
+        long dataStart = dataFile.length();
+        long sentStart = sent ? sentFile.length() : 0;
+        outputStreamData(textPath, outputFolder, true);
+
+        if (binary && binaryFile.exists()) {
+            if (verbose) {
+                logln("--- Appending binary data ... " + binaryFile);
+            }
+            BinaryCorpus.Writer writer = BinaryCorpus.Writer.append(binaryFile.getAbsolutePath());
+            try {
+                convertToBinaryData(writer, outputFolder, dataStart, sentStart);
+            } finally {
+                writer.close();
+            }
+        } else {
+            outputBinaryData(outputFolder);
+        }
+
+        if (corpProc.isOutOfVocabTracked()) {
+            corpProc.outputOutOfVocab(new File(outputFolder,
+                    formatFilename + outOfVocabExt).getAbsolutePath());
+        }
+    }
+
+    /**
+     * Process the documents of an input file or folder with the corpus
+     * processor and write the formatted documents as they are processed.
+     *
+     * @param textPath The input data file or folder
+     * @param outputFolder Output folder
+     * @param append Whether to append to the existing formatted data
+     */
+    private void outputStreamData(String textPath, String outputFolder, boolean append)
+            throws Exception {
+        File dataFile = new File(outputFolder, formatFilename + numDocDataExt);
+        File infoFile = new File(outputFolder, formatFilename + docInfoExt);
+        File sentFile = new File(outputFolder, formatFilename + numSentDataExt);
+        File rawSentFile = new File(sentFile + ".raw");
+        final BufferedWriter dataWriter = append ? IOUtils.getBufferedWriterAppend(dataFile)
+                : IOUtils.getBufferedWriter(dataFile);
+        final BufferedWriter infoWriter = append ? IOUtils.getBufferedWriterAppend(infoFile)
+                : IOUtils.getBufferedWriter(infoFile);
+        BufferedWriter sentWriter = null;
+        BufferedWriter rawSentWriter = null;
+        if (sent) {
+            sentWriter = append ? IOUtils.getBufferedWriterAppend(sentFile)
+                    : IOUtils.getBufferedWriter(sentFile);
+            rawSentWriter = append ? IOUtils.getBufferedWriterAppend(rawSentFile)
+                    : IOUtils.getBufferedWriter(rawSentFile);
+        }
+        final BufferedWriter finalSentWriter = sentWriter;
+        final BufferedWriter finalRawSentWriter = rawSentWriter;
+        try {
+            corpProc.processStream(new TextStream(new File(textPath)),
+                    new CorpusProcessor.DocumentHandler() {
+                        private int d = 0;
+
+                        @Override
+                        public void handle(String docId, int[][] numericSents,
+                                String[] rawSents) throws IOException {
+                            ArrayList<Integer> numericDocList = new ArrayList<Integer>();
+                            for (int[] numericSent : numericSents) {
+                                for (int w : numericSent) {
+                                    numericDocList.add(w);
+                                }
+                            }
+                            int[] numericDoc = new int[numericDocList.size()];
+                            for (int i = 0; i < numericDoc.length; i++) {
+                                numericDoc[i] = numericDocList.get(i);
+                            }
+                            if (outputNumericDocument(dataWriter, numericDoc)) {
+                                infoWriter.write(docId + "\n");
+                                if (sent) {
+                                    outputNumericSentences(finalSentWriter,
+                                            finalRawSentWriter, numericSents, rawSents);
+                                }
+                                processedDocIndices.add(d);
+                            }
+                            d++;
+                        }
+                    },
+                    new File(outputFolder, formatFilename + ".tmp"));
+        } finally {
+            dataWriter.close();
+            infoWriter.close();
+            if (sent) {
+                sentWriter.close();
+                rawSentWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Documents read one at a time from a file where each line has the format
+     * <doc_Id>\t<text>\n, or from a folder where each file, named
+     * <doc_Id>.txt, contains the text of a document.
+     */
+    protected static class TextStream implements CorpusProcessor.DocumentStream {
+
+        private final File path;
+        private BufferedReader reader;
+        private String[] filenames;
+        private int fileIndex;
+        private String docId;
+        private String text;
+
+        public TextStream(File path) {
+            if (!path.isFile() && !path.isDirectory()) {
+                throw new RuntimeException(path + " is neither a file nor a folder");
+            }
+            this.path = path;
+        }
+
+        @Override
+        public void open() throws IOException {
+            if (path.isFile()) {
+                reader = IOUtils.getBufferedReader(path.getAbsolutePath());
+            } else {
+                filenames = path.list();
+                fileIndex = 0;
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (filenames == null) {
+                String line = reader.readLine();
+                if (line == null) {
+                    return false;
+                }
+                docId = line.substring(0, line.indexOf("\t"));
+                text = line.substring(line.indexOf("\t") + 1);
+                return true;
+            }
+
+            if (fileIndex == filenames.length) {
+                return false;
+            }
+            // use filename as document id, remove extension .txt if necessary
+            String filename = filenames[fileIndex++];
+            docId = filename;
+            if (filename.endsWith(".txt")) {
+                docId = filename.substring(0, filename.length() - 4);
+            }
+            BufferedReader fileReader = IOUtils.getBufferedReader(new File(path, filename));
+            StringBuilder docText = new StringBuilder();
+            String line;
+            while ((line = fileReader.readLine()) != null) {
+                docText.append(line).append("\n");
+            }
+            fileReader.close();
+            text = docText.toString();
+            return true;
+        }
+
+        @Override
+        public String getDocId() {
+            return docId;
+        }
+
+        @Override
+        public String getText() {
+            return text;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+            filenames = null;
+        }
     }
 
     /**
@@ -322,32 +590,45 @@ public class TextDataset extends AbstractTokenizeDataset {
         int[][] numDocs = corpProc.getNumerics();
         BufferedWriter dataWriter = IOUtils.getBufferedWriter(outputFile);
         for (int d = 0; d < numDocs.length; d++) {
-            HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
-            for (int j = 0; j < numDocs[d].length; j++) {
-                Integer count = typeCounts.get(numDocs[d][j]);
-                if (count == null) {
-                    typeCounts.put(numDocs[d][j], 1);
-                } else {
-                    typeCounts.put(numDocs[d][j], count + 1);
-                }
+            if (outputNumericDocument(dataWriter, numDocs[d])) {
+                // save the doc id
+                this.processedDocIndices.add(d);
             }
+        }
+        dataWriter.close();
+    }
 
-            // skip short documents
-            if (typeCounts.size() < corpProc.docTypeCountCutoff) {
-                continue;
+    /**
+     * Output a numeric document unless it is too short.
+     *
+     * @param dataWriter Writer of the main numeric data
+     * @param numDoc The numeric document
+     * @return Whether the document was output
+     */
+    protected boolean outputNumericDocument(BufferedWriter dataWriter, int[] numDoc)
+            throws IOException {
+        HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
+        for (int j = 0; j < numDoc.length; j++) {
+            Integer count = typeCounts.get(numDoc[j]);
+            if (count == null) {
+                typeCounts.put(numDoc[j], 1);
+            } else {
+                typeCounts.put(numDoc[j], count + 1);
             }
+        }
 
-            // write main data
-            dataWriter.write(Integer.toString(typeCounts.size()));
-            for (int type : typeCounts.keySet()) {
-                dataWriter.write(" " + type + ":" + typeCounts.get(type));
-            }
-            dataWriter.write("\n");
+        // skip short documents
+        if (typeCounts.size() < corpProc.docTypeCountCutoff) {
+            return false;
+        }
 
-            // save the doc id
-            this.processedDocIndices.add(d);
+        // write main data
+        dataWriter.write(Integer.toString(typeCounts.size()));
+        for (int type : typeCounts.keySet()) {
+            dataWriter.write(" " + type + ":" + typeCounts.get(type));
         }
-        dataWriter.close();
+        dataWriter.write("\n");
+        return true;
     }
 
     /**
@@ -367,43 +648,123 @@ public class TextDataset extends AbstractTokenizeDataset {
         BufferedWriter rawSentWriter = IOUtils.getBufferedWriter(outputFile + ".raw");
         BufferedWriter sentWriter = IOUtils.getBufferedWriter(outputFile);
         for (int d : this.processedDocIndices) {
-            StringBuilder docStr = new StringBuilder();
-            ArrayList<String> docRawSents = new ArrayList<String>();
-
-            for (int s = 0; s < numSents[d].length; s++) {
-                HashMap<Integer, Integer> sentTypeCounts = new HashMap<Integer, Integer>();
-                for (int w = 0; w < numSents[d][s].length; w++) {
-                    Integer count = sentTypeCounts.get(numSents[d][s][w]);
-                    if (count == null) {
-                        sentTypeCounts.put(numSents[d][s][w], 1);
-                    } else {
-                        sentTypeCounts.put(numSents[d][s][w], count + 1);
-                    }
-                }
+            outputNumericSentences(sentWriter, rawSentWriter, numSents[d], rawSents[d]);
+        }
+        sentWriter.close();
+        rawSentWriter.close();
+    }
 
-                if (sentTypeCounts.size() > 0) {
-                    // store numeric sentence
-                    StringBuilder str = new StringBuilder();
-                    for (int type : sentTypeCounts.keySet()) {
-                        str.append(type).append(":").append(sentTypeCounts.get(type)).append(" ");
-                    }
-                    docStr.append(str.toString().trim()).append("\t");
+    /**
+     * Output the non-empty numeric sentences of a document and the
+     * corresponding raw sentences.
+     *
+     * @param sentWriter Writer of the numeric sentences
+     * @param rawSentWriter Writer of the raw sentences
+     * @param numSents The numeric sentences of the document
+     * @param rawSents The raw sentences of the document
+     */
+    protected void outputNumericSentences(BufferedWriter sentWriter,
+            BufferedWriter rawSentWriter, int[][] numSents, String[] rawSents)
+            throws IOException {
+        StringBuilder docStr = new StringBuilder();
+        ArrayList<String> docRawSents = new ArrayList<String>();
+
+        for (int s = 0; s < numSents.length; s++) {
+            HashMap<Integer, Integer> sentTypeCounts = new HashMap<Integer, Integer>();
+            for (int w = 0; w < numSents[s].length; w++) {
+                Integer count = sentTypeCounts.get(numSents[s][w]);
+                if (count == null) {
+                    sentTypeCounts.put(numSents[s][w], 1);
+                } else {
+                    sentTypeCounts.put(numSents[s][w], count + 1);
+                }
+            }
 
-                    // store raw sentence
-                    docRawSents.add(rawSents[d][s]);
+            if (sentTypeCounts.size() > 0) {
+                // store numeric sentence
+                StringBuilder str = new StringBuilder();
+                for (int type : sentTypeCounts.keySet()) {
+                    str.append(type).append(":").append(sentTypeCounts.get(type)).append(" ");
                 }
+                docStr.append(str.toString().trim()).append("\t");
+
+                // store raw sentence
+                docRawSents.add(rawSents[s]);
             }
-            // write numeric sentence
-            sentWriter.write(docStr.toString().trim() + "\n");
+        }
+        // write numeric sentence
+        sentWriter.write(docStr.toString().trim() + "\n");
 
-            // write raw sentence
-            rawSentWriter.write(docRawSents.size() + "\n");
-            for (String docRawSent : docRawSents) {
-                rawSentWriter.write(docRawSent.trim().replaceAll("\n", " ") + "\n");
+        // write raw sentence
+        rawSentWriter.write(docRawSents.size() + "\n");
+        for (String docRawSent : docRawSents) {
+            rawSentWriter.write(docRawSent.trim().replaceAll("\n", " ") + "\n");
+        }
+    }
+
+    /**
+     * Output the binary formatted data, converted from the formatted data in
+     * text format one document at a time. If binary output is off, remove
+     * any existing binary formatted data so that they are not loaded instead
+     * of the new text formatted data.
+     *
+     * @param outputFolder Output folder
+     * @throws java.lang.Exception
+     */
+    protected void outputBinaryData(String outputFolder) throws Exception {
+        File outputFile = new File(outputFolder, formatFilename + BinaryCorpus.FileExt);
+        if (!binary) {
+            if (outputFile.exists()) {
+                outputFile.delete();
             }
+            return;
+        }
+        if (verbose) {
+            logln("--- Outputing binary data ... " + outputFile);
+        }
+
+        BinaryCorpus.Writer writer = new BinaryCorpus.Writer(outputFile.getAbsolutePath());
+        try {
+            convertToBinaryData(writer, outputFolder, 0, 0);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Convert the formatted data in text format, from given byte positions of
+     * the document and sentence files, to binary format.
+     *
+     * @param writer Writer of the binary formatted data
+     * @param outputFolder Output folder
+     * @param dataStart Position of the first document to convert
+     * @param sentStart Position of the sentences of the first document to
+     * convert
+     */
+    private void convertToBinaryData(BinaryCorpus.Writer writer, String outputFolder,
+            long dataStart, long sentStart) throws Exception {
+        String line;
+        BufferedReader reader = getBufferedReader(
+                new File(outputFolder, formatFilename + numDocDataExt), dataStart);
+        while ((line = reader.readLine()) != null) {
+            writer.addDocument(getGibbsString(line));
+        }
+        reader.close();
+
+        if (sent) {
+            reader = getBufferedReader(
+                    new File(outputFolder, formatFilename + numSentDataExt), sentStart);
+            while ((line = reader.readLine()) != null) {
+                writer.addSentences(getSentenceGibbsStrings(line));
+            }
+            reader.close();
         }
-        sentWriter.close();
-        rawSentWriter.close();
+    }
+
+    private static BufferedReader getBufferedReader(File file, long start) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        in.getChannel().position(start);
+        return new BufferedReader(new InputStreamReader(in, "UTF-8"));
     }
 
     protected void outputDocumentInfo(String outputFolder) throws Exception {
@@ -424,9 +785,23 @@ public class TextDataset extends AbstractTokenizeDataset {
     }
 
     public int[][] getWords() {
+        if (words == null && corpus != null) {
+            words = corpus.getWords();
+        }
         return this.words;
     }
 
+    /**
+     * Number of documents, without materializing the word arrays of a binary
+     * corpus.
+     */
+    public int getNumDocs() {
+        if (words == null && corpus != null) {
+            return corpus.getNumDocs();
+        }
+        return this.words.length;
+    }
+
     public void loadFormattedData(File fFolder) {
         this.loadFormattedData(fFolder.getAbsolutePath());
     }
@@ -435,8 +810,12 @@ public class TextDataset extends AbstractTokenizeDataset {
         if (verbose) {
             logln("--- Loading formatted data from " + fFolder);
         }
+        File docWordFile = new File(fFolder, formatFilename + BinaryCorpus.FileExt);
+        if (!docWordFile.exists()) {
+            docWordFile = new File(fFolder, formatFilename + numDocDataExt);
+        }
         loadFormattedData(new File(fFolder, formatFilename + wordVocabExt),
-                new File(fFolder, formatFilename + numDocDataExt),
+                docWordFile,
                 new File(fFolder, formatFilename + docInfoExt),
                 new File(fFolder, formatFilename + numSentDataExt));
     }
@@ -445,7 +824,8 @@ public class TextDataset extends AbstractTokenizeDataset {
      * Load formatted data.
      *
      * @param wordVocabFile File contains the word vocabulary
-     * @param docWordFile File contains document tokens
+     * @param docWordFile File contains document tokens, in text or binary
+     * format. Sentences are loaded from the binary file, if any.
      * @param docInfoFile File contains document info
      * @param sentFile (Optional) File contains sentences
      */
@@ -465,13 +845,20 @@ public class TextDataset extends AbstractTokenizeDataset {
 
         try {
             inputWordVocab(wordVocabFile);
-            inputTextData(docWordFile);
+            if (docWordFile.getName().endsWith(BinaryCorpus.FileExt)) {
+                inputBinaryData(docWordFile);
+                if (sentFile != null && corpus.hasSentences()) {
+                    inputRawSentenceData(new File(sentFile + ".raw"), corpus.getNumDocs());
+                }
+            } else {
+                inputTextData(docWordFile);
+                if (sentFile != null && sentFile.exists()) {
+                    inputSentenceTextData(sentFile);
+                }
+            }
             if (docInfoFile != null) {
                 inputDocumentInfo(docInfoFile);
             }
-            if (sentFile != null && sentFile.exists()) {
-                inputSentenceTextData(sentFile);
-            }
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while loading formatted data");
@@ -502,6 +889,7 @@ public class TextDataset extends AbstractTokenizeDataset {
         }
 
         words = inputFormattedTextData(file);
+        corpus = null;
 
         if (verbose) {
             logln("--- --- # docs: " + words.length);
@@ -513,6 +901,28 @@ public class TextDataset extends AbstractTokenizeDataset {
         }
     }
 
+    /**
+     * Load binary formatted data. Documents are only copied into words and
+     * sentWords when getWords and getSentenceWords are called.
+     *
+     * @param file Binary data file
+     * @throws java.lang.Exception
+     */
+    protected void inputBinaryData(File file) throws Exception {
+        if (verbose) {
+            logln("--- Reading binary data from " + file);
+        }
+
+        corpus = BinaryCorpus.load(file.getAbsolutePath());
+        words = null;
+        sentWords = null;
+
+        if (verbose) {
+            logln("--- --- # docs: " + corpus.getNumDocs());
+            logln("--- --- # tokens: " + corpus.getNumTokens());
+        }
+    }
+
     protected int[][] inputFormattedTextData(File file) throws Exception {
         if (verbose) {
             logln("--- Reading text data from " + file);
@@ -601,33 +1011,8 @@ public class TextDataset extends AbstractTokenizeDataset {
         BufferedReader numSentReader = IOUtils.getBufferedReader(file);
         ArrayList<int[][]> sentWordList = new ArrayList<int[][]>();
         String line;
-        String[] sline;
         while ((line = numSentReader.readLine()) != null) {
-            sline = line.split("\t");
-            int numSents = sline.length;
-            int[][] sents = new int[numSents][];
-            for (int s = 0; s < numSents; s++) {
-                String[] sSent = sline[s].split(" ");
-                int numTokens = 0;
-                HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
-
-                for (String sSentWord : sSent) {
-                    int type = Integer.parseInt(sSentWord.split(":")[0]);
-                    int count = Integer.parseInt(sSentWord.split(":")[1]);
-                    numTokens += count;
-                    typeCounts.put(type, count);
-                }
-
-                int[] tokens = new int[numTokens];
-                int idx = 0;
-                for (int type : typeCounts.keySet()) {
-                    for (int ii = 0; ii < typeCounts.get(type); ii++) {
-                        tokens[idx++] = type;
-                    }
-                }
-                sents[s] = tokens;
-            }
-            sentWordList.add(sents);
+            sentWordList.add(getSentenceGibbsStrings(line));
         }
         numSentReader.close();
 
@@ -650,13 +1035,58 @@ public class TextDataset extends AbstractTokenizeDataset {
             logln("--- --- # tokens: " + numTokens);
         }
 
-        File rawSentFile = new File(file + ".raw");
+        inputRawSentenceData(new File(file + ".raw"), sentWords.length);
+    }
+
+    /**
+     * Convert a line of formatted sentences of a document into the
+     * Gibbs-formatted string of each sentence.
+     *
+     * @param line Tab-separated LDA-C-formatted sentences
+     * @return Gibbs-formatted strings
+     */
+    protected int[][] getSentenceGibbsStrings(String line) {
+        String[] sline = line.split("\t");
+        int numSents = sline.length;
+        int[][] sents = new int[numSents][];
+        for (int s = 0; s < numSents; s++) {
+            String[] sSent = sline[s].split(" ");
+            int numTokens = 0;
+            HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
+
+            for (String sSentWord : sSent) {
+                int type = Integer.parseInt(sSentWord.split(":")[0]);
+                int count = Integer.parseInt(sSentWord.split(":")[1]);
+                numTokens += count;
+                typeCounts.put(type, count);
+            }
+
+            int[] tokens = new int[numTokens];
+            int idx = 0;
+            for (int type : typeCounts.keySet()) {
+                for (int ii = 0; ii < typeCounts.get(type); ii++) {
+                    tokens[idx++] = type;
+                }
+            }
+            sents[s] = tokens;
+        }
+        return sents;
+    }
+
+    /**
+     * Load the raw sentences of each document, if the file exists.
+     *
+     * @param rawSentFile Raw sentence file
+     * @param numDocs Number of documents
+     */
+    protected void inputRawSentenceData(File rawSentFile, int numDocs) {
+        String line;
         if (rawSentFile.exists()) {
             if (verbose) {
                 logln("--- Reading sentence raw text data from " + rawSentFile);
             }
             try {
-                sentRawWords = new String[sentWords.length][];
+                sentRawWords = new String[numDocs][];
                 int count = 0;
                 BufferedReader rawSentReader = IOUtils.getBufferedReader(rawSentFile);
                 while ((line = rawSentReader.readLine()) != null) {
@@ -693,6 +1123,8 @@ public class TextDataset extends AbstractTokenizeDataset {
      * @param minSentTokenCount Number of tokens that a sentence must have
      */
     public void filterShortSentences(int minSentTokenCount) {
+        int[][] words = getWords();
+        int[][][] sentWords = getSentenceWords();
         if (words == null) {
             throw new RuntimeException("Empty documents");
         }
@@ -884,8 +1316,17 @@ public class TextDataset extends AbstractTokenizeDataset {
         addOption("max-df", "Document frequency maximum cutoff");
         addOption("min-doc-length", "Document minimum length");
         options.addOption("sent", false, "Whether sentences are outputed");
+        options.addOption("stream", false, "Whether text data are formatted in "
+                + "two passes without being loaded into memory");
+        options.addOption("binary", false, "Whether formatted data are also "
+                + "output in binary format");
+        options.addOption("append", false, "Whether text data are appended to "
+                + "the existing formatted data using their word vocab");
+        options.addOption("oov", false, "Whether out-of-vocab terms of the "
+                + "appended text data are counted");
         options.addOption("s", false, "Whether stopwords are filtered");
         options.addOption("l", false, "Whether lemmatization is performed");
+        addOption("num-threads", "Number of threads used to tokenize documents");
     }
 
     public static CorpusProcessor createCorpusProcessor() {
@@ -914,6 +1355,8 @@ public class TextDataset extends AbstractTokenizeDataset {
                 docTypeCountCutoff,
                 stopwordFilter,
                 lemmatization);
+        corpProc.setNumThreads(CLIUtils.getIntegerArgument(cmd, "num-threads", 1));
+        corpProc.setOutOfVocabTracked(cmd.hasOption("oov"));
         // If the word vocab file is given, use it. This is usually for the case
         // where training data have been processed and now test data are processed
         // using the word vocab from the training data.
@@ -974,6 +1417,18 @@ public class TextDataset extends AbstractTokenizeDataset {
         CorpusProcessor corpProc = createCorpusProcessor();
         TextDataset dataset = new TextDataset(datasetName, datasetFolder, corpProc);
         dataset.setFormatFilename(formatFile);
+        dataset.setHasSentences(cmd.hasOption("sent"));
+        dataset.setBinaryFormat(cmd.hasOption("binary"));
+        if (cmd.hasOption("append")) {
+            dataset.formatAppend(textInputData,
+                    new File(dataset.getDatasetFolderPath(), formatFolder).getAbsolutePath());
+            return;
+        }
+        if (cmd.hasOption("stream")) {
+            dataset.formatStream(textInputData,
+                    new File(dataset.getDatasetFolderPath(), formatFolder).getAbsolutePath());
+            return;
+        }
 
         // load text data
         File textPath = new File(textInputData);
@@ -984,7 +1439,6 @@ public class TextDataset extends AbstractTokenizeDataset {
         } else {
             throw new RuntimeException(textInputData + " is neither a file nor a folder");
         }
-        dataset.setHasSentences(cmd.hasOption("sent"));
         dataset.format(new File(dataset.getDatasetFolderPath(), formatFolder));
     }
 }
@@ -0,0 +1,172 @@
+package optimization;
+
+import core.TaskExecutor;
+
+/**
+ * L2-norm multiple linear regression solved by the conjugate gradient method
+ * with a diagonal (Jacobi) preconditioner. The objective is
+ *
+ * ||y - Xw||^2 + lambda * ||w||^2,
+ *
+ * whose minimizer solves (X'X + lambda I) w = X'y. The matrix X'X is never
+ * formed: each iteration multiplies by X in parallel over the instances and by
+ * X' in parallel over the features, so that the memory is linear in the number
+ * of non-zero entries of X. The last solution is the warm start of the next
+ * call of {@link #solve(double)}.
+ *
+ * @author vietan
+ */
+public class ConjugateGradientRidge {
+
+    private final DesignMatrix rows; // [N]x[K]
+    private final DesignMatrix columns; // [K]x[N]
+    private final int N; // number of instances
+    private final int K; // number of features
+    private final double[] colNorms; // [K]: squared norm of each column
+    private final double[] xty; // [K]: X'y
+    private final double[] weights; // [K]
+    private final double[] rowProducts; // [N]: buffer of Xp
+    private double tolerance = 1E-8;
+    private int maxIter = 1000;
+
+    /**
+     * @param designMatrix The design matrix
+     * @param values The responses
+     */
+    public ConjugateGradientRidge(DesignMatrix designMatrix, final double[] values) {
+        if (designMatrix.getNumRows() != values.length) {
+            throw new RuntimeException("Dimensions mismatched. "
+                    + designMatrix.getNumRows() + " instances vs. "
+                    + values.length + " responses");
+        }
+        this.N = values.length;
+        this.K = designMatrix.getNumCols();
+        this.rows = designMatrix;
+        this.columns = designMatrix.transpose();
+        this.colNorms = new double[K];
+        this.xty = new double[K];
+        TaskExecutor.runIndexed(K, new TaskExecutor.IndexedTask() {
+            @Override
+            public void run(int kk) {
+                double norm = 0.0;
+                for (int ii = 0; ii < columns.getRowSize(kk); ii++) {
+                    double val = columns.getRowValue(kk, ii);
+                    norm += val * val;
+                }
+                colNorms[kk] = norm;
+                xty[kk] = columns.dotprod(kk, values);
+            }
+        });
+        this.weights = new double[K];
+        this.rowProducts = new double[N];
+    }
+
+    /**
+     * Set the tolerance of the norm of the residual relative to the norm of
+     * X'y.
+     *
+     * @param tolerance The tolerance
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public void setMaxIterations(int maxIter) {
+        this.maxIter = maxIter;
+    }
+
+    /**
+     * Return a copy of the current weights.
+     */
+    public double[] getWeights() {
+        return this.weights.clone();
+    }
+
+    /**
+     * Set the weights from which the next solve starts.
+     *
+     * @param initWeights The initial weights
+     */
+    public void setWeights(double[] initWeights) {
+        if (initWeights.length != K) {
+            throw new RuntimeException("Dimensions mismatched. " + K
+                    + " features vs. " + initWeights.length + " weights");
+        }
+        System.arraycopy(initWeights, 0, weights, 0, K);
+    }
+
+    /**
+     * Minimize the objective, starting from the current weights.
+     *
+     * @param lambda The strength of the penalty, which must be positive
+     * @return The weights
+     */
+    public double[] solve(double lambda) {
+        if (lambda <= 0) {
+            throw new RuntimeException("Invalid penalty. lambda = " + lambda);
+        }
+        double[] residuals = new double[K];
+        double[] directions = new double[K];
+        double[] products = new double[K];
+        double[] precond = new double[K];
+
+        multiply(weights, lambda, products);
+        double bNorm = 0.0;
+        double rz = 0.0;
+        for (int kk = 0; kk < K; kk++) {
+            bNorm += xty[kk] * xty[kk];
+            residuals[kk] = xty[kk] - products[kk];
+            precond[kk] = residuals[kk] / (colNorms[kk] + lambda);
+            directions[kk] = precond[kk];
+            rz += residuals[kk] * precond[kk];
+        }
+        double threshold = tolerance * tolerance * bNorm;
+
+        for (int iter = 0; iter < maxIter; iter++) {
+            double rNorm = 0.0;
+            for (int kk = 0; kk < K; kk++) {
+                rNorm += residuals[kk] * residuals[kk];
+            }
+            if (rNorm <= threshold) {
+                break;
+            }
+            multiply(directions, lambda, products);
+            double pAp = 0.0;
+            for (int kk = 0; kk < K; kk++) {
+                pAp += directions[kk] * products[kk];
+            }
+            double step = rz / pAp;
+            double newRz = 0.0;
+            for (int kk = 0; kk < K; kk++) {
+                weights[kk] += step * directions[kk];
+                residuals[kk] -= step * products[kk];
+                precond[kk] = residuals[kk] / (colNorms[kk] + lambda);
+                newRz += residuals[kk] * precond[kk];
+            }
+            double beta = newRz / rz;
+            for (int kk = 0; kk < K; kk++) {
+                directions[kk] = precond[kk] + beta * directions[kk];
+            }
+            rz = newRz;
+        }
+        return getWeights();
+    }
+
+    /**
+     * Compute (X'X + lambda I) p.
+     */
+    private void multiply(final double[] p, final double lambda, final double[] result) {
+        TaskExecutor.runIndexed(N, new TaskExecutor.IndexedTask() {
+            @Override
+            public void run(int n) {
+                rowProducts[n] = rows.dotprod(n, p);
+            }
+        });
+        TaskExecutor.runIndexed(K, new TaskExecutor.IndexedTask() {
+            @Override
+            public void run(int kk) {
+                result[kk] = columns.dotprod(kk, rowProducts) + lambda * p[kk];
+            }
+        });
+    }
+}
@@ -0,0 +1,271 @@
+package optimization;
+
+import core.TaskExecutor;
+import java.util.Arrays;
+
+/**
+ * Elastic-net multiple linear regression solved by cyclic coordinate descent
+ * (Friedman et al., JSS 2010). The objective is
+ *
+ * 0.5 * ||y - Xw||^2 + lambda * (l1Ratio * ||w||_1 + 0.5 * (1 - l1Ratio) *
+ * ||w||^2),
+ *
+ * which is the lasso when l1Ratio is 1.
+ *
+ * The residuals are kept up to date so that each coordinate update only
+ * touches the non-zero entries of its column. Coordinate descent cycles over
+ * the active set of features until convergence, then the gradients of all
+ * features are checked in parallel, and the ones violating the optimality
+ * conditions join the active set. The weights of the last solution are used
+ * as the warm start of the next call of {@link #solve(double, double)}, so
+ * solving along a decreasing sequence of lambdas is cheap.
+ *
+ * @author vietan
+ */
+public class CoordinateDescentElasticNet {
+
+    private final DesignMatrix columns; // [K]x[N]: transpose of the design matrix
+    private final double[] values; // [N]
+    private final int N; // number of instances
+    private final int K; // number of features
+    private final double[] colNorms; // [K]: squared norm of each column
+    private final double nullDeviance;
+    private final double[] weights; // [K]
+    private final double[] residuals; // [N]
+    private final double[] gradients; // [K]
+    private final boolean[] active; // [K]
+    private int[] activeList;
+    private int numActives;
+    private double tolerance = 1E-7;
+    private int maxIter = 1000;
+
+    /**
+     * @param designMatrix The design matrix
+     * @param values The responses
+     */
+    public CoordinateDescentElasticNet(DesignMatrix designMatrix, double[] values) {
+        if (designMatrix.getNumRows() != values.length) {
+            throw new RuntimeException("Dimensions mismatched. "
+                    + designMatrix.getNumRows() + " instances vs. "
+                    + values.length + " responses");
+        }
+        this.N = values.length;
+        this.K = designMatrix.getNumCols();
+        this.values = values;
+        this.columns = designMatrix.transpose();
+        this.colNorms = new double[K];
+        TaskExecutor.runIndexed(K, new TaskExecutor.IndexedTask() {
+            @Override
+            public void run(int kk) {
+                double norm = 0.0;
+                for (int ii = 0; ii < columns.getRowSize(kk); ii++) {
+                    double val = columns.getRowValue(kk, ii);
+                    norm += val * val;
+                }
+                colNorms[kk] = norm;
+            }
+        });
+        double dev = 0.0;
+        for (int n = 0; n < N; n++) {
+            dev += values[n] * values[n];
+        }
+        this.nullDeviance = dev;
+        this.weights = new double[K];
+        this.residuals = values.clone();
+        this.gradients = new double[K];
+        this.active = new boolean[K];
+        this.activeList = new int[16];
+    }
+
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public void setMaxIterations(int maxIter) {
+        this.maxIter = maxIter;
+    }
+
+    public int getNumFeatures() {
+        return this.K;
+    }
+
+    /**
+     * Return a copy of the current weights.
+     */
+    public double[] getWeights() {
+        return this.weights.clone();
+    }
+
+    /**
+     * Set the weights from which the next solve starts.
+     *
+     * @param initWeights The initial weights
+     */
+    public void setWeights(double[] initWeights) {
+        if (initWeights.length != K) {
+            throw new RuntimeException("Dimensions mismatched. " + K
+                    + " features vs. " + initWeights.length + " weights");
+        }
+        System.arraycopy(initWeights, 0, weights, 0, K);
+        System.arraycopy(values, 0, residuals, 0, N);
+        for (int kk = 0; kk < K; kk++) {
+            if (weights[kk] != 0) {
+                columns.addScaledRow(kk, -weights[kk], residuals);
+            }
+        }
+    }
+
+    public double getL1Norm() {
+        double norm = 0.0;
+        for (int kk = 0; kk < K; kk++) {
+            norm += Math.abs(weights[kk]);
+        }
+        return norm;
+    }
+
+    /**
+     * Return the smallest lambda at which all weights are zero.
+     *
+     * @param l1Ratio The proportion of the L1 penalty
+     */
+    public double getMaxLambda(double l1Ratio) {
+        double max = 0.0;
+        for (int kk = 0; kk < K; kk++) {
+            max = Math.max(max, Math.abs(columns.dotprod(kk, values)));
+        }
+        return max / Math.max(l1Ratio, 1E-3);
+    }
+
+    /**
+     * Minimize the objective, starting from the current weights.
+     *
+     * @param lambda The strength of the penalty
+     * @param l1Ratio The proportion of the L1 penalty, in (0, 1]
+     * @return The weights
+     */
+    public double[] solve(double lambda, double l1Ratio) {
+        if (lambda < 0 || l1Ratio < 0 || l1Ratio > 1) {
+            throw new RuntimeException("Invalid penalty. lambda = " + lambda
+                    + ". l1Ratio = " + l1Ratio);
+        }
+        double l1 = lambda * l1Ratio;
+        double l2 = lambda * (1 - l1Ratio);
+        for (int kk = 0; kk < K; kk++) {
+            if (weights[kk] != 0 && !active[kk]) {
+                activate(kk);
+            }
+        }
+
+        for (int iter = 0; iter < maxIter; iter++) {
+            // check the optimality of the inactive features in parallel
+            TaskExecutor.runIndexed(K, new TaskExecutor.IndexedTask() {
+                @Override
+                public void run(int kk) {
+                    if (!active[kk]) {
+                        gradients[kk] = columns.dotprod(kk, residuals);
+                    }
+                }
+            });
+            int numAdded = 0;
+            for (int kk = 0; kk < K; kk++) {
+                if (!active[kk] && colNorms[kk] > 0 && Math.abs(gradients[kk]) > l1) {
+                    activate(kk);
+                    numAdded++;
+                }
+            }
+            if (iter > 0 && numAdded == 0) {
+                break;
+            }
+
+            // coordinate descent over the active set
+            for (int ii = 0; ii < maxIter; ii++) {
+                double maxChange = 0.0;
+                for (int aa = 0; aa < numActives; aa++) {
+                    maxChange = Math.max(maxChange, update(activeList[aa], l1, l2));
+                }
+                if (maxChange <= tolerance * nullDeviance) {
+                    break;
+                }
+            }
+        }
+        return getWeights();
+    }
+
+    /**
+     * Minimize the squared error subject to ||w||_1 <= t. Since the weights
+     * of the lasso grow as lambda decreases, the lasso is solved along a
+     * decreasing sequence of lambdas with warm starts until the bound is
+     * reached, and the lambda at the bound is then found by bisection.
+     *
+     * @param t The bound on the L1 norm of the weights
+     * @return The weights
+     */
+    public double[] solveL1Bound(double t) {
+        double upper = getMaxLambda(1.0); // L1 norm is zero
+        if (upper == 0 || t <= 0) {
+            setWeights(new double[K]);
+            return getWeights();
+        }
+        double lower = upper;
+        double minLambda = upper * 1E-4;
+        setWeights(new double[K]);
+        double[] feasible = getWeights();
+        while (lower > minLambda) {
+            lower *= 0.8;
+            solve(lower, 1.0);
+            if (getL1Norm() > t) {
+                break;
+            }
+            upper = lower;
+            feasible = getWeights();
+        }
+        if (getL1Norm() <= t) {
+            return feasible;
+        }
+        for (int ii = 0; ii < 20; ii++) {
+            double mid = Math.sqrt(lower * upper);
+            solve(mid, 1.0);
+            if (getL1Norm() > t) {
+                lower = mid;
+            } else {
+                upper = mid;
+                feasible = getWeights();
+            }
+        }
+        setWeights(feasible);
+        return feasible;
+    }
+
+    /**
+     * Update the weight of a feature.
+     *
+     * @return The squared change of the weight, scaled by the squared norm of
+     * its column
+     */
+    private double update(int kk, double l1, double l2) {
+        double norm = colNorms[kk];
+        double oldWeight = weights[kk];
+        double grad = columns.dotprod(kk, residuals) + norm * oldWeight;
+        double newWeight = 0.0;
+        if (grad > l1) {
+            newWeight = (grad - l1) / (norm + l2);
+        } else if (grad < -l1) {
+            newWeight = (grad + l1) / (norm + l2);
+        }
+        if (newWeight == oldWeight) {
+            return 0.0;
+        }
+        weights[kk] = newWeight;
+        double diff = newWeight - oldWeight;
+        columns.addScaledRow(kk, -diff, residuals);
+        return norm * diff * diff;
+    }
+
+    private void activate(int kk) {
+        if (numActives == activeList.length) {
+            activeList = Arrays.copyOf(activeList, 2 * numActives);
+        }
+        activeList[numActives++] = kk;
+        active[kk] = true;
+    }
+}
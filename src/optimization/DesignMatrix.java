@@ -0,0 +1,209 @@
+package optimization;
+
+import java.util.Arrays;
+import util.SparseVector;
+
+/**
+ * Sparse design matrix stored in compressed rows. Each row keeps the column
+ * indices and values of its non-zero entries in its own primitive arrays, so
+ * that the row of an instance can be replaced when the instance changes
+ * without rebuilding the other rows.
+ *
+ * @author vietan
+ */
+public class DesignMatrix {
+
+    private static final int INIT_ROW_CAPACITY = 4;
+    private final int numRows;
+    private final int numCols;
+    private final int[][] rowIndices; // [N][]: column indices of each row
+    private final double[][] rowValues; // [N][]: values of each row
+    private final int[] rowSizes; // [N]: number of entries of each row
+
+    public DesignMatrix(int numRows, int numCols) {
+        this.numRows = numRows;
+        this.numCols = numCols;
+        this.rowIndices = new int[numRows][INIT_ROW_CAPACITY];
+        this.rowValues = new double[numRows][INIT_ROW_CAPACITY];
+        this.rowSizes = new int[numRows];
+    }
+
+    private DesignMatrix(int[][] rowIndices, double[][] rowValues,
+            int[] rowSizes, int numCols) {
+        this.numRows = rowSizes.length;
+        this.numCols = numCols;
+        this.rowIndices = rowIndices;
+        this.rowValues = rowValues;
+        this.rowSizes = rowSizes;
+    }
+
+    /**
+     * Copy a design matrix stored as sparse vectors.
+     *
+     * @param rows The rows
+     * @param numCols The number of columns
+     */
+    public DesignMatrix(SparseVector[] rows, int numCols) {
+        this(rows.length, numCols);
+        for (int nn = 0; nn < numRows; nn++) {
+            setRow(nn, rows[nn]);
+        }
+    }
+
+    public int getNumRows() {
+        return this.numRows;
+    }
+
+    public int getNumCols() {
+        return this.numCols;
+    }
+
+    /**
+     * Return the number of entries of a row.
+     *
+     * @param nn The row index
+     */
+    public int getRowSize(int nn) {
+        return this.rowSizes[nn];
+    }
+
+    /**
+     * Return the column index of an entry of a row.
+     *
+     * @param nn The row index
+     * @param ii The position of the entry in the row
+     */
+    public int getRowIndex(int nn, int ii) {
+        return this.rowIndices[nn][ii];
+    }
+
+    /**
+     * Return the value of an entry of a row.
+     *
+     * @param nn The row index
+     * @param ii The position of the entry in the row
+     */
+    public double getRowValue(int nn, int ii) {
+        return this.rowValues[nn][ii];
+    }
+
+    public double get(int nn, int col) {
+        int ii = find(nn, col);
+        return ii < 0 ? 0.0 : rowValues[nn][ii];
+    }
+
+    /**
+     * Add an entry to a row. The column must not already be in the row.
+     *
+     * @param nn The row index
+     * @param col The column index
+     * @param val The value
+     */
+    public void add(int nn, int col, double val) {
+        if (col < 0 || col >= numCols) {
+            throw new RuntimeException("Column " + col + " out of bound. "
+                    + "Number of columns: " + numCols);
+        }
+        int size = rowSizes[nn];
+        if (size == rowIndices[nn].length) {
+            int capacity = Math.max(INIT_ROW_CAPACITY, 2 * size);
+            rowIndices[nn] = Arrays.copyOf(rowIndices[nn], capacity);
+            rowValues[nn] = Arrays.copyOf(rowValues[nn], capacity);
+        }
+        rowIndices[nn][size] = col;
+        rowValues[nn][size] = val;
+        rowSizes[nn] = size + 1;
+    }
+
+    /**
+     * Remove all entries of a row.
+     *
+     * @param nn The row index
+     */
+    public void clearRow(int nn) {
+        this.rowSizes[nn] = 0;
+    }
+
+    /**
+     * Replace a row with the entries of a sparse vector.
+     *
+     * @param nn The row index
+     * @param row The new row
+     */
+    public void setRow(int nn, SparseVector row) {
+        clearRow(nn);
+        for (int col : row.getIndices()) {
+            add(nn, col, row.get(col));
+        }
+    }
+
+    /**
+     * Return the dot product of a row and a dense vector.
+     *
+     * @param nn The row index
+     * @param w The dense vector
+     */
+    public double dotprod(int nn, double[] w) {
+        int[] indices = rowIndices[nn];
+        double[] values = rowValues[nn];
+        double dotprod = 0.0;
+        for (int ii = 0; ii < rowSizes[nn]; ii++) {
+            dotprod += w[indices[ii]] * values[ii];
+        }
+        return dotprod;
+    }
+
+    /**
+     * Add a scaled row to a dense vector.
+     *
+     * @param nn The row index
+     * @param scale The scale
+     * @param target The dense vector
+     */
+    public void addScaledRow(int nn, double scale, double[] target) {
+        int[] indices = rowIndices[nn];
+        double[] values = rowValues[nn];
+        for (int ii = 0; ii < rowSizes[nn]; ii++) {
+            target[indices[ii]] += scale * values[ii];
+        }
+    }
+
+    /**
+     * Return the transpose of this matrix, whose rows are the columns of this
+     * matrix. The entries of each column are ordered by row index.
+     */
+    public DesignMatrix transpose() {
+        int[] colSizes = new int[numCols];
+        for (int nn = 0; nn < numRows; nn++) {
+            for (int ii = 0; ii < rowSizes[nn]; ii++) {
+                colSizes[rowIndices[nn][ii]]++;
+            }
+        }
+        int[][] colIndices = new int[numCols][];
+        double[][] colValues = new double[numCols][];
+        for (int cc = 0; cc < numCols; cc++) {
+            colIndices[cc] = new int[colSizes[cc]];
+            colValues[cc] = new double[colSizes[cc]];
+        }
+        int[] counts = new int[numCols];
+        for (int nn = 0; nn < numRows; nn++) {
+            for (int ii = 0; ii < rowSizes[nn]; ii++) {
+                int cc = rowIndices[nn][ii];
+                colIndices[cc][counts[cc]] = nn;
+                colValues[cc][counts[cc]] = rowValues[nn][ii];
+                counts[cc]++;
+            }
+        }
+        return new DesignMatrix(colIndices, colValues, colSizes, numRows);
+    }
+
+    private int find(int nn, int col) {
+        int[] indices = rowIndices[nn];
+        for (int ii = 0; ii < rowSizes[nn]; ii++) {
+            if (indices[ii] == col) {
+                return ii;
+            }
+        }
+        return -1;
+    }
+}
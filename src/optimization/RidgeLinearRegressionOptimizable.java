@@ -1,26 +1,43 @@
 package optimization;
 
 import cc.mallet.optimize.Optimizable;
+import core.TaskExecutor;
 import java.util.ArrayList;
+import java.util.Arrays;
 import util.SparseVector;
 
 /**
  * Solving L2-norm multiple linear regression using L-BFGS.
  *
+ * The value and the gradient are computed together in one pass over the
+ * instances, which runs in parallel over fixed blocks of instances, and are
+ * cached until the parameters change. The predictions of the last pass are
+ * kept so that callers do not need another pass.
+ *
  * @author vietan
  */
 public class RidgeLinearRegressionOptimizable implements Optimizable.ByGradientValue {
 
+    private static final int BLOCK_SIZE = 256; // min number of instances per block
+    private static final int MAX_NUM_BLOCKS = 64;
     // inputs
     private final double[] values;              // [N]-dim vector
     private final double[] params;              // [K]-dim vector
-    private final SparseVector[] designMatrix;  // [N]x[K] sparse matrix
+    private final DesignMatrix designMatrix;    // [N]x[K] sparse matrix
     private final int N; // number of instances
     private final int K; // number of features
     private final double[] rhoSquares;
     private final double mu;
     private final double sigmaSquare;
     private final double[] sigmaSquares;
+    // cache
+    private final double[] predictions; // [N]
+    private final double[] gradient; // [K]
+    private final double[] blockLlhs; // [B]
+    private final double[][] blockGradients; // [B][K]
+    private final int blockSize;
+    private double value;
+    private boolean evaluated = false;
 
     public RidgeLinearRegressionOptimizable(double[] values,
             double[] params,
@@ -28,41 +45,18 @@ public class RidgeLinearRegressionOptimizable implements Optimizable.ByGradientV
             double rho,
             double mu,
             double sigma) {
-        this.values = values;
-        this.params = params;
-        this.designMatrix = designMatrix;
-        this.N = this.designMatrix.length;
-        this.K = this.params.length;
-
-        double rhoSquare = rho * rho;
-        this.rhoSquares = new double[N];
-        for (int nn = 0; nn < N; nn++) {
-            this.rhoSquares[nn] = rhoSquare;
-        }
-        this.mu = mu;
-        this.sigmaSquare = sigma * sigma;
-        this.sigmaSquares = null;
+        this(values, params, new DesignMatrix(designMatrix, params.length),
+                rho, mu, sigma);
     }
-    
+
     public RidgeLinearRegressionOptimizable(double[] values,
             double[] params,
             SparseVector[] designMatrix,
             double[] rhos,
             double mu,
             double sigma) {
-        this.values = values;
-        this.params = params;
-        this.designMatrix = designMatrix;
-        this.N = this.designMatrix.length;
-        this.K = this.params.length;
-
-        this.rhoSquares = new double[N];
-        for(int nn=0; nn<N; nn++) {
-            this.rhoSquares[nn] = rhos[nn] * rhos[nn];
-        }
-        this.mu = mu;
-        this.sigmaSquare = sigma * sigma;
-        this.sigmaSquares = null;
+        this(values, params, new DesignMatrix(designMatrix, params.length),
+                getSquares(rhos), mu, sigma * sigma, null);
     }
 
     public RidgeLinearRegressionOptimizable(double[] values,
@@ -71,46 +65,18 @@ public class RidgeLinearRegressionOptimizable implements Optimizable.ByGradientV
             double[] rhos,
             double mu,
             double[] sigmas) {
-        this.values = values;
-        this.params = params;
-        this.designMatrix = designMatrix;
-        this.N = this.designMatrix.length;
-        this.K = this.params.length;
-
-        this.rhoSquares = new double[N];
-        for (int nn = 0; nn < N; nn++) {
-            this.rhoSquares[nn] = rhos[nn] * rhos[nn];
-        }
-        this.mu = mu;
-        this.sigmaSquare = -1; // dummy value
-        this.sigmaSquares = new double[sigmas.length];
-        for (int ii = 0; ii < this.sigmaSquares.length; ii++) {
-            this.sigmaSquares[ii] = sigmas[ii] * sigmas[ii];
-        }
+        this(values, params, new DesignMatrix(designMatrix, params.length),
+                getSquares(rhos), mu, -1, getSquares(sigmas));
     }
-    
+
     public RidgeLinearRegressionOptimizable(double[] values,
             double[] params,
             SparseVector[] designMatrix,
             double rho,
             double mu,
             double[] sigmas) {
-        this.values = values;
-        this.params = params;
-        this.designMatrix = designMatrix;
-        this.N = this.designMatrix.length;
-        this.K = this.params.length;
-
-        this.rhoSquares = new double[N];
-        for (int nn = 0; nn < N; nn++) {
-            this.rhoSquares[nn] = rho * rho;
-        }
-        this.mu = mu;
-        this.sigmaSquare = -1; // dummy value
-        this.sigmaSquares = new double[sigmas.length];
-        for (int ii = 0; ii < this.sigmaSquares.length; ii++) {
-            this.sigmaSquares[ii] = sigmas[ii] * sigmas[ii];
-        }
+        this(values, params, new DesignMatrix(designMatrix, params.length),
+                rho, mu, sigmas);
     }
 
     public RidgeLinearRegressionOptimizable(ArrayList<Double> values,
@@ -119,27 +85,77 @@ public class RidgeLinearRegressionOptimizable implements Optimizable.ByGradientV
             double rho,
             double mu,
             double[] sigmas) {
+        this(toArray(values), params,
+                new DesignMatrix(designMatrix.toArray(new SparseVector[designMatrix.size()]),
+                        params.length),
+                rho, mu, sigmas);
+    }
+
+    public RidgeLinearRegressionOptimizable(double[] values,
+            double[] params,
+            DesignMatrix designMatrix,
+            double rho,
+            double mu,
+            double sigma) {
+        this(values, params, designMatrix, getSquares(rho, designMatrix.getNumRows()),
+                mu, sigma * sigma, null);
+    }
+
+    public RidgeLinearRegressionOptimizable(double[] values,
+            double[] params,
+            DesignMatrix designMatrix,
+            double rho,
+            double mu,
+            double[] sigmas) {
+        this(values, params, designMatrix, getSquares(rho, designMatrix.getNumRows()),
+                mu, -1, getSquares(sigmas));
+    }
+
+    private RidgeLinearRegressionOptimizable(double[] values,
+            double[] params,
+            DesignMatrix designMatrix,
+            double[] rhoSquares,
+            double mu,
+            double sigmaSquare,
+            double[] sigmaSquares) {
+        this.values = values;
         this.params = params;
-        this.values = new double[values.size()];
-        this.designMatrix = new SparseVector[designMatrix.size()];
-        this.N = this.designMatrix.length;
+        this.designMatrix = designMatrix;
+        this.N = this.designMatrix.getNumRows();
         this.K = this.params.length;
+        this.rhoSquares = rhoSquares;
+        this.mu = mu;
+        this.sigmaSquare = sigmaSquare; // dummy value if sigmaSquares is used
+        this.sigmaSquares = sigmaSquares;
 
-        for (int n = 0; n < N; n++) {
-            this.values[n] = values.get(n);
-            this.designMatrix[n] = designMatrix.get(n);
-        }
+        this.predictions = new double[N];
+        this.gradient = new double[K];
+        int numBlocks = Math.max(1, Math.min(MAX_NUM_BLOCKS, N / BLOCK_SIZE));
+        this.blockSize = (N + numBlocks - 1) / numBlocks;
+        this.blockLlhs = new double[numBlocks];
+        this.blockGradients = new double[numBlocks][K];
+    }
+
+    private static double[] getSquares(double val, int size) {
+        double[] squares = new double[size];
+        Arrays.fill(squares, val * val);
+        return squares;
+    }
 
-        this.rhoSquares = new double[N];
-        for(int nn=0; nn<N; nn++) {
-            this.rhoSquares[nn] = rho * rho;
+    private static double[] getSquares(double[] vals) {
+        double[] squares = new double[vals.length];
+        for (int ii = 0; ii < vals.length; ii++) {
+            squares[ii] = vals[ii] * vals[ii];
         }
-        this.mu = mu;
-        this.sigmaSquare = -1; // dummy value
-        this.sigmaSquares = new double[sigmas.length];
-        for (int ii = 0; ii < this.sigmaSquares.length; ii++) {
-            this.sigmaSquares[ii] = sigmas[ii] * sigmas[ii];
+        return squares;
+    }
+
+    private static double[] toArray(ArrayList<Double> list) {
+        double[] array = new double[list.size()];
+        for (int ii = 0; ii < array.length; ii++) {
+            array[ii] = list.get(ii);
         }
+        return array;
     }
 
     public double getMu(int k) {
@@ -153,13 +169,61 @@ public class RidgeLinearRegressionOptimizable implements Optimizable.ByGradientV
         return this.sigmaSquares[k];
     }
 
+    /**
+     * Return the prediction of an instance with the current parameters.
+     *
+     * @param n The instance index
+     */
+    public double getPrediction(int n) {
+        evaluate();
+        return predictions[n];
+    }
+
     @Override
     public double getValue() {
+        evaluate();
+        return value;
+    }
+
+    @Override
+    public void getValueGradient(double[] buffer) {
+        evaluate();
+        System.arraycopy(gradient, 0, buffer, 0, K);
+    }
+
+    /**
+     * Compute the value, the gradient and the predictions with the current
+     * parameters if they have not been computed. The blocks are summed in a
+     * fixed order, so the results do not depend on the number of threads.
+     */
+    private void evaluate() {
+        if (evaluated) {
+            return;
+        }
+        TaskExecutor.runIndexed(blockLlhs.length, new TaskExecutor.IndexedTask() {
+            @Override
+            public void run(int bb) {
+                double[] blockGrad = blockGradients[bb];
+                Arrays.fill(blockGrad, 0.0);
+                double llh = 0.0;
+                int end = Math.min(N, (bb + 1) * blockSize);
+                for (int n = bb * blockSize; n < end; n++) {
+                    predictions[n] = designMatrix.dotprod(n, params);
+                    double diff = values[n] - predictions[n];
+                    llh += diff * diff / rhoSquares[n];
+                    designMatrix.addScaledRow(n, diff / (rhoSquares[n] * N), blockGrad);
+                }
+                blockLlhs[bb] = llh;
+            }
+        });
+
         double llh = 0.0;
-        for (int n = 0; n < N; n++) {
-            double dotprod = dotprod(n);
-            double diff = values[n] - dotprod;
-            llh += diff * diff / rhoSquares[n];
+        Arrays.fill(gradient, 0.0);
+        for (int bb = 0; bb < blockLlhs.length; bb++) {
+            llh += blockLlhs[bb];
+            for (int k = 0; k < K; k++) {
+                gradient[k] += blockGradients[bb][k];
+            }
         }
         llh /= (-2 * N);
 
@@ -167,39 +231,11 @@ public class RidgeLinearRegressionOptimizable implements Optimizable.ByGradientV
         for (int k = 0; k < K; k++) {
             double diff = params[k] - getMu(k);
             lprior += diff * diff / (-2 * getSigmaSquare(k));
+            gradient[k] -= diff / (N * getSigmaSquare(k));
         }
         lprior /= N;
-        return llh + lprior;
-    }
-
-    @Override
-    public void getValueGradient(double[] gradient) {
-        double[] llhGrad = new double[K];
-        for (int n = 0; n < N; n++) {
-            double dotprod = dotprod(n);
-            for (int k : this.designMatrix[n].getIndices()) {
-                double grad = (values[n] - dotprod) * designMatrix[n].get(k)
-                        / (rhoSquares[n] * N);
-                llhGrad[k] += grad;
-            }
-        }
-
-        double[] lpGrad = new double[K];
-        for (int k = 0; k < K; k++) {
-            lpGrad[k] -= (params[k] - getMu(k)) / (N * getSigmaSquare(k));
-        }
-
-        for (int k = 0; k < K; k++) {
-            gradient[k] = llhGrad[k] + lpGrad[k];
-        }
-    }
-
-    private double dotprod(int n) {
-        double dotprod = 0.0;
-        for (int k : designMatrix[n].getIndices()) {
-            dotprod += params[k] * designMatrix[n].get(k);
-        }
-        return dotprod;
+        value = llh + lprior;
+        evaluated = true;
     }
 
     @Override
@@ -221,11 +257,13 @@ public class RidgeLinearRegressionOptimizable implements Optimizable.ByGradientV
     @Override
     public void setParameter(int i, double r) {
         this.params[i] = r;
+        this.evaluated = false;
     }
 
     @Override
     public void setParameters(double[] newParameters) {
         assert (newParameters.length == params.length);
         System.arraycopy(newParameters, 0, params, 0, params.length);
+        this.evaluated = false;
     }
 }
@@ -1,53 +1,85 @@
 package optimization;
 
 import cc.mallet.optimize.Optimizable;
+import core.TaskExecutor;
+import java.util.Arrays;
 import util.SparseVector;
 
 /**
+ * Solving L2-norm logistic regression using L-BFGS. As in
+ * {@link RidgeLinearRegressionOptimizable}, the value and the gradient are
+ * computed together in one parallel pass and cached until the parameters
+ * change.
  *
  * @author vietan
  */
 public class RidgeLogisticRegressionOptimizable implements Optimizable.ByGradientValue {
 
+    private static final int BLOCK_SIZE = 256; // min number of instances per block
+    private static final int MAX_NUM_BLOCKS = 64;
     private final int[] labels;                 // [N]-dim vector
     private final double[] params;              // [K]-dim vector
-    private final SparseVector[] designMatrix;  // [N]x[K] sparse matrix
+    private final DesignMatrix designMatrix;    // [N]x[K] sparse matrix
     private final int N; // number of instances
     private final int K; // number of features
     private final double paramMean;
     private final double paramVar;
     private final double[] paramVars;
+    // cache
+    private final double[] gradient; // [K]
+    private final double[] blockLlhs; // [B]
+    private final double[][] blockGradients; // [B][K]
+    private final int blockSize;
+    private double value;
+    private boolean evaluated = false;
 
     public RidgeLogisticRegressionOptimizable(int[] labels,
             double[] params,
             SparseVector[] designMatrix,
             double mean,
             double var) {
-        this.labels = labels;
-        this.params = params;
-        this.designMatrix = designMatrix;
-        this.N = this.designMatrix.length;
-        this.K = this.params.length;
-
-        this.paramMean = mean;
-        this.paramVar = var;
-        this.paramVars = null;
+        this(labels, params, new DesignMatrix(designMatrix, params.length),
+                mean, var, null);
     }
-    
+
     public RidgeLogisticRegressionOptimizable(int[] labels,
             double[] params,
             SparseVector[] designMatrix,
             double mean,
             double[] vars) {
+        this(labels, params, new DesignMatrix(designMatrix, params.length),
+                mean, 0.0, vars);
+    }
+
+    public RidgeLogisticRegressionOptimizable(int[] labels,
+            double[] params,
+            DesignMatrix designMatrix,
+            double mean,
+            double[] vars) {
+        this(labels, params, designMatrix, mean, 0.0, vars);
+    }
+
+    private RidgeLogisticRegressionOptimizable(int[] labels,
+            double[] params,
+            DesignMatrix designMatrix,
+            double mean,
+            double var,
+            double[] vars) {
         this.labels = labels;
         this.params = params;
         this.designMatrix = designMatrix;
-        this.N = this.designMatrix.length;
+        this.N = this.designMatrix.getNumRows();
         this.K = this.params.length;
 
         this.paramMean = mean;
-        this.paramVar = 0.0;
+        this.paramVar = var;
         this.paramVars = vars;
+
+        this.gradient = new double[K];
+        int numBlocks = Math.max(1, Math.min(MAX_NUM_BLOCKS, N / BLOCK_SIZE));
+        this.blockSize = (N + numBlocks - 1) / numBlocks;
+        this.blockLlhs = new double[numBlocks];
+        this.blockGradients = new double[numBlocks][K];
     }
 
     public double getMean(int k) {
@@ -63,42 +95,61 @@ public class RidgeLogisticRegressionOptimizable implements Optimizable.ByGradien
 
     @Override
     public double getValue() {
-        double llh = 0.0;
-        for (int nn = 0; nn < N; nn++) {
-            double dotProb = designMatrix[nn].dotProduct(params);
-            llh += labels[nn] * dotProb - Math.log(Math.exp(dotProb) + 1);
-        }
-
-        double lprior = 0.0;
-        for (int kk = 0; kk < K; kk++) {
-            double diff = params[kk] - getMean(kk);
-            lprior -= 0.5 * diff * diff / getVariance(kk);
-        }
-        return (llh + lprior);
+        evaluate();
+        return value;
     }
 
     @Override
-    public void getValueGradient(double[] gradient) {
-        double[] llhGrad = new double[K];
-        for (int nn = 0; nn < N; nn++) {
-            double dotprod = designMatrix[nn].dotProduct(params);
-            double expDotprod = Math.exp(dotprod);
-            double pred = expDotprod / (expDotprod + 1);
+    public void getValueGradient(double[] buffer) {
+        evaluate();
+        System.arraycopy(gradient, 0, buffer, 0, K);
+    }
+
+    /**
+     * Compute the value and the gradient with the current parameters if they
+     * have not been computed.
+     */
+    private void evaluate() {
+        if (evaluated) {
+            return;
+        }
+        TaskExecutor.runIndexed(blockLlhs.length, new TaskExecutor.IndexedTask() {
+            @Override
+            public void run(int bb) {
+                double[] blockGrad = blockGradients[bb];
+                Arrays.fill(blockGrad, 0.0);
+                double llh = 0.0;
+                int end = Math.min(N, (bb + 1) * blockSize);
+                for (int nn = bb * blockSize; nn < end; nn++) {
+                    double dotprod = designMatrix.dotprod(nn, params);
+                    double expDotprod = Math.exp(dotprod);
+                    llh += labels[nn] * dotprod - Math.log(expDotprod + 1);
+                    double pred = expDotprod / (expDotprod + 1);
+                    designMatrix.addScaledRow(nn, labels[nn] - pred, blockGrad);
+                }
+                blockLlhs[bb] = llh;
+            }
+        });
+
+        double llh = 0.0;
+        Arrays.fill(gradient, 0.0);
+        for (int bb = 0; bb < blockLlhs.length; bb++) {
+            llh += blockLlhs[bb];
             for (int kk = 0; kk < K; kk++) {
-                llhGrad[kk] += (labels[nn] - pred) * designMatrix[nn].get(kk);
+                gradient[kk] += blockGradients[bb][kk];
             }
         }
 
-        double[] lpGrad = new double[K];
+        double lprior = 0.0;
         for (int kk = 0; kk < K; kk++) {
-            lpGrad[kk] -= (params[kk] - getMean(kk)) / (getVariance(kk));
-        }
-
-        for (int k = 0; k < K; k++) {
-            gradient[k] = (llhGrad[k] + lpGrad[k]);
+            double diff = params[kk] - getMean(kk);
+            lprior -= 0.5 * diff * diff / getVariance(kk);
+            gradient[kk] -= diff / getVariance(kk);
         }
+        value = llh + lprior;
+        evaluated = true;
     }
-    
+
     @Override
     public int getNumParameters() {
         return this.K;
@@ -118,11 +169,13 @@ public class RidgeLogisticRegressionOptimizable implements Optimizable.ByGradien
     @Override
     public void setParameter(int i, double r) {
         this.params[i] = r;
+        this.evaluated = false;
     }
 
     @Override
     public void setParameters(double[] newParameters) {
         assert (newParameters.length == params.length);
         System.arraycopy(newParameters, 0, params, 0, params.length);
+        this.evaluated = false;
     }
 }
@@ -0,0 +1,117 @@
+package optimization;
+
+import Jama.CholeskyDecomposition;
+import Jama.Matrix;
+
+/**
+ * Normal equations of L2-norm multiple linear regression, i.e., linear
+ * regression with a Gaussian prior on the parameters, solved in closed form
+ * with a Cholesky factorization. The solution maximizes the same objective as
+ * {@link RidgeLinearRegressionOptimizable}.
+ *
+ * The sums X'X and X'y are accumulated one instance at a time, so that a
+ * sampler can update them when the features of an instance change instead of
+ * recomputing them.
+ *
+ * @author vietan
+ */
+public class RidgeNormalEquations {
+
+    public static final int MAX_NUM_PARAMETERS = 500; // beyond this, use L-BFGS
+    private final int K; // number of features
+    private final double[][] xtx; // [K][K]: weighted X'X, upper triangle
+    private final double[] xty; // [K]: weighted X'y
+
+    public RidgeNormalEquations(int K) {
+        this.K = K;
+        this.xtx = new double[K][K];
+        this.xty = new double[K];
+    }
+
+    public int getNumParameters() {
+        return this.K;
+    }
+
+    /**
+     * Add an instance.
+     *
+     * @param designMatrix The design matrix
+     * @param nn The index of the instance in the design matrix
+     * @param value The response of the instance
+     * @param weight The weight of the instance, which is the inverse of its
+     * variance
+     */
+    public void addInstance(DesignMatrix designMatrix, int nn, double value,
+            double weight) {
+        int size = designMatrix.getRowSize(nn);
+        for (int ii = 0; ii < size; ii++) {
+            int ci = designMatrix.getRowIndex(nn, ii);
+            double wvi = weight * designMatrix.getRowValue(nn, ii);
+            xty[ci] += wvi * value;
+            for (int jj = 0; jj < size; jj++) {
+                int cj = designMatrix.getRowIndex(nn, jj);
+                if (ci <= cj) {
+                    xtx[ci][cj] += wvi * designMatrix.getRowValue(nn, jj);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove an instance that has been added with the same features.
+     *
+     * @param designMatrix The design matrix
+     * @param nn The index of the instance in the design matrix
+     * @param value The response of the instance
+     * @param weight The weight of the instance when it was added
+     */
+    public void removeInstance(DesignMatrix designMatrix, int nn, double value,
+            double weight) {
+        addInstance(designMatrix, nn, value, -weight);
+    }
+
+    /**
+     * Solve with the same prior for all parameters.
+     *
+     * @param mu The prior mean
+     * @param sigma The prior standard deviation
+     * @return The parameters, or null if the system is not positive definite
+     */
+    public double[] solve(double mu, double sigma) {
+        double[] sigmas = new double[K];
+        for (int kk = 0; kk < K; kk++) {
+            sigmas[kk] = sigma;
+        }
+        return solve(mu, sigmas);
+    }
+
+    /**
+     * Solve (X'X + diag(1 / sigma^2)) w = X'y + mu / sigma^2.
+     *
+     * @param mu The prior mean
+     * @param sigmas The prior standard deviation of each parameter
+     * @return The parameters, or null if the system is not positive definite
+     */
+    public double[] solve(double mu, double[] sigmas) {
+        if (sigmas.length != K) {
+            throw new RuntimeException("Dimensions mismatched. " + K
+                    + " parameters vs. " + sigmas.length + " priors");
+        }
+        Matrix a = new Matrix(K, K);
+        Matrix b = new Matrix(K, 1);
+        for (int kk = 0; kk < K; kk++) {
+            double precision = 1.0 / (sigmas[kk] * sigmas[kk]);
+            for (int jj = kk + 1; jj < K; jj++) {
+                a.set(kk, jj, xtx[kk][jj]);
+                a.set(jj, kk, xtx[kk][jj]);
+            }
+            a.set(kk, kk, xtx[kk][kk] + precision);
+            b.set(kk, 0, xty[kk] + mu * precision);
+        }
+        CholeskyDecomposition chol = a.chol();
+        if (!chol.isSPD()) {
+            return null;
+        }
+        return chol.solve(b).getColumnPackedCopy();
+    }
+}
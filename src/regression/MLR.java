@@ -6,9 +6,11 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import optimization.GurobiMLRL1Norm;
-import optimization.GurobiMLRL2Norm;
+import optimization.ConjugateGradientRidge;
+import optimization.CoordinateDescentElasticNet;
+import optimization.DesignMatrix;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import util.CLIUtils;
@@ -16,6 +18,19 @@ import util.IOUtils;
 import util.RankingItem;
 
 /**
+ * Multiple linear regression on the normalized word counts of documents. The
+ * design matrix is kept sparse and the weights are learned in-process:
+ * <ul>
+ * <li>L1: lasso by coordinate descent, where the parameter is the bound on the
+ * L1 norm of the weights.</li>
+ * <li>L2: ridge by conjugate gradient, where the parameter is the variance
+ * sigma of the weights, i.e., minimizing ||y - Xw||^2 + ||w||^2 / sigma.</li>
+ * <li>ELASTIC_NET: elastic net by coordinate descent, where the parameter is
+ * the strength lambda of the penalty lambda * (l1Ratio * ||w||_1 + 0.5 * (1 -
+ * l1Ratio) * ||w||^2) on 0.5 * ||y - Xw||^2.</li>
+ * </ul>
+ * Weights set before training, e.g., by {@link #setWeights(double[])}, are
+ * used as the warm start.
  *
  * @author vietan
  * @param <D> Any dataset where each document is associated with a response.
@@ -24,11 +39,12 @@ public class MLR<D extends ResponseTextDataset> extends AbstractRegressor implem
 
     public static enum Regularizer {
 
-        L1, L2
+        L1, L2, ELASTIC_NET
     }
     protected Regularizer regularizer;
     protected double[] weights;
     protected double param;
+    protected double l1Ratio = 0.5; // elastic net only
 
     public MLR(String folder, Regularizer reg, double t) {
         super(folder);
@@ -36,22 +52,55 @@ public class MLR<D extends ResponseTextDataset> extends AbstractRegressor implem
         this.param = t;
     }
 
+    public MLR(String folder, Regularizer reg, double t, double l1Ratio) {
+        this(folder, reg, t);
+        this.l1Ratio = l1Ratio;
+    }
+
     @Override
     public String getName() {
         if (name == null) {
             name = "MLR";
         }
-        return name + "-" + regularizer + "-" + param;
+        String str = name + "-" + regularizer + "-" + param;
+        if (regularizer == Regularizer.ELASTIC_NET) {
+            str += "-" + l1Ratio;
+        }
+        return str;
     }
 
     public void train(double[][] designMatrix, double[] responses) {
-        if (regularizer == Regularizer.L1) {
-            GurobiMLRL1Norm mlr = new GurobiMLRL1Norm(designMatrix, responses, param);
-            this.weights = mlr.solve();
+        int D = designMatrix.length;
+        DesignMatrix matrix = new DesignMatrix(D, D == 0 ? 0 : designMatrix[0].length);
+        for (int d = 0; d < D; d++) {
+            for (int v = 0; v < designMatrix[d].length; v++) {
+                if (designMatrix[d][v] != 0) {
+                    matrix.add(d, v, designMatrix[d][v]);
+                }
+            }
+        }
+        train(matrix, responses);
+    }
+
+    public void train(DesignMatrix designMatrix, double[] responses) {
+        int V = designMatrix.getNumCols();
+        boolean warm = weights != null && weights.length == V;
+        if (regularizer == Regularizer.L1 || regularizer == Regularizer.ELASTIC_NET) {
+            CoordinateDescentElasticNet mlr = new CoordinateDescentElasticNet(designMatrix, responses);
+            if (regularizer == Regularizer.L1) {
+                this.weights = mlr.solveL1Bound(param);
+            } else {
+                if (warm) {
+                    mlr.setWeights(weights);
+                }
+                this.weights = mlr.solve(param, l1Ratio);
+            }
         } else if (regularizer == Regularizer.L2) {
-            GurobiMLRL2Norm mlr = new GurobiMLRL2Norm(designMatrix, responses);
-            mlr.setSigma(param);
-            this.weights = mlr.solve();
+            ConjugateGradientRidge mlr = new ConjugateGradientRidge(designMatrix, responses);
+            if (warm) {
+                mlr.setWeights(weights);
+            }
+            this.weights = mlr.solve(1.0 / param);
         } else {
             throw new RuntimeException(regularizer + " regularization is not supported");
         }
@@ -60,17 +109,32 @@ public class MLR<D extends ResponseTextDataset> extends AbstractRegressor implem
     }
 
     public void train(int[][] trWords, double[] trResponses, int V) {
-        int D = trWords.length;
-        double[][] designMatrix = new double[D][V];
+        train(getDesignMatrix(trWords, V), trResponses);
+    }
+
+    /**
+     * Return the sparse design matrix of the normalized word counts of a set
+     * of documents.
+     *
+     * @param words The words of each document
+     * @param V The vocabulary size
+     */
+    public static DesignMatrix getDesignMatrix(int[][] words, int V) {
+        int D = words.length;
+        DesignMatrix designMatrix = new DesignMatrix(D, V);
         for (int d = 0; d < D; d++) {
-            for (int n = 0; n < trWords[d].length; n++) {
-                designMatrix[d][trWords[d][n]]++;
-            }
-            for (int v = 0; v < V; v++) {
-                designMatrix[d][v] /= trWords[d].length;
+            int[] sortedWords = Arrays.copyOf(words[d], words[d].length);
+            Arrays.sort(sortedWords);
+            int start = 0;
+            for (int n = 1; n <= sortedWords.length; n++) {
+                if (n == sortedWords.length || sortedWords[n] != sortedWords[start]) {
+                    designMatrix.add(d, sortedWords[start],
+                            (double) (n - start) / sortedWords.length);
+                    start = n;
+                }
             }
         }
-        train(designMatrix, trResponses);
+        return designMatrix;
     }
 
     @Override
@@ -98,20 +162,18 @@ public class MLR<D extends ResponseTextDataset> extends AbstractRegressor implem
         return predictions;
     }
 
-    public double[] test(int[][] teWords, int V) {
-        input(new File(getRegressorFolder(), MODEL_FILE));
-
-        int D = teWords.length;
-        double[][] designMatrix = new double[D][V];
+    public double[] test(DesignMatrix designMatrix) {
+        int D = designMatrix.getNumRows();
+        double[] predictions = new double[D];
         for (int d = 0; d < D; d++) {
-            for (int n = 0; n < teWords[d].length; n++) {
-                designMatrix[d][teWords[d][n]]++;
-            }
-            for (int v = 0; v < V; v++) {
-                designMatrix[d][v] /= teWords[d].length;
-            }
+            predictions[d] = designMatrix.dotprod(d, this.weights);
         }
-        return test(designMatrix);
+        return predictions;
+    }
+
+    public double[] test(int[][] teWords, int V) {
+        input(new File(getRegressorFolder(), MODEL_FILE));
+        return test(getDesignMatrix(teWords, V));
     }
 
     @Override
@@ -293,8 +355,9 @@ public class MLR<D extends ResponseTextDataset> extends AbstractRegressor implem
             addOption("fold", "The cross-validation fold to run");
             addOption("run-mode", "Running mode");
 
-            addOption("regularizer", "Regularizer (L1, L2)");
+            addOption("regularizer", "Regularizer (L1, L2, ELASTIC_NET)");
             addOption("param", "Parameter");
+            addOption("l1-ratio", "Proportion of the L1 penalty of elastic net");
 
             options.addOption("v", false, "verbose");
             options.addOption("d", false, "debug");
@@ -329,6 +392,7 @@ public class MLR<D extends ResponseTextDataset> extends AbstractRegressor implem
 
         String regularizer = cmd.getOptionValue("regularizer");
         double param = Double.parseDouble(cmd.getOptionValue("param"));
+        double l1Ratio = CLIUtils.getDoubleArgument(cmd, "l1-ratio", 0.5);
 
         if (verbose) {
             System.out.println("\nLoading formatted data ...");
@@ -350,6 +414,9 @@ public class MLR<D extends ResponseTextDataset> extends AbstractRegressor implem
             mlr = new MLR(outputFolder, Regularizer.L1, param);
         } else if (regularizer.equals("L2")) {
             mlr = new MLR(outputFolder, Regularizer.L2, param);
+        } else if (regularizer.equals("ELASTIC_NET")) {
+            mlr = new MLR<ResponseTextDataset>(outputFolder, Regularizer.ELASTIC_NET,
+                    param, l1Ratio);
         } else {
             throw new RuntimeException(regularizer + " regularization is not supported");
         }
@@ -365,6 +432,7 @@ public class MLR<D extends ResponseTextDataset> extends AbstractRegressor implem
 
         String regularizer = cmd.getOptionValue("regularizer");
         double param = Double.parseDouble(cmd.getOptionValue("param"));
+        double l1Ratio = CLIUtils.getDoubleArgument(cmd, "l1-ratio", 0.5);
         int foldIndex = -1;
         if (cmd.hasOption("fold")) {
             foldIndex = Integer.parseInt(cmd.getOptionValue("fold"));
@@ -402,6 +470,9 @@ public class MLR<D extends ResponseTextDataset> extends AbstractRegressor implem
                 mlr = new MLR(foldFolder.getAbsolutePath(), Regularizer.L1, param);
             } else if (regularizer.equals("L2")) {
                 mlr = new MLR(foldFolder.getAbsolutePath(), Regularizer.L2, param);
+            } else if (regularizer.equals("ELASTIC_NET")) {
+                mlr = new MLR<ResponseTextDataset>(foldFolder.getAbsolutePath(),
+                        Regularizer.ELASTIC_NET, param, l1Ratio);
             } else {
                 throw new RuntimeException(regularizer + " regularization is not supported");
             }
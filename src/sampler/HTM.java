@@ -24,8 +24,10 @@ import java.util.LinkedList;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import optimization.DesignMatrix;
 import optimization.RidgeLinearRegressionOptimizable;
 import optimization.RidgeLogisticRegressionOptimizable;
+import optimization.RidgeNormalEquations;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import sampling.likelihood.CascadeDirMult.PathAssumption;
@@ -1018,9 +1020,10 @@ public class HTM extends AbstractSampler {
     private void initializePresetAssignments() {
         if (Ks[0] > 0) {
             LDA lda = runLDA(words, Ks[0], V, priors);
+            int[][] ldaZs = lda.getZs();
             for (int dd = 0; dd < D; dd++) {
                 for (int nn = 0; nn < words[dd].length; nn++) {
-                    int kk = lda.getZs()[dd][nn];
+                    int kk = ldaZs[dd][nn];
                     Node node = sampleNode(dd, nn, root.getChild(kk), EXTEND, false);
                     z[dd][nn] = node;
                     addToken(dd, nn, z[dd][nn], ADD, ADD);
@@ -1741,23 +1744,20 @@ public class HTM extends AbstractSampler {
         ArrayList<Node> nodeList = getNodeList();
         int N = nodeList.size();
 
-        SparseVector[] designMatrix = new SparseVector[D];
-        for (int dd = 0; dd < D; dd++) {
-            designMatrix[dd] = new SparseVector(N + V);
-        }
+        DesignMatrix designMatrix = new DesignMatrix(D, N + V);
         // topic regression
         for (int kk = 0; kk < N; kk++) {
             Node node = nodeList.get(kk);
             for (int dd : node.subtreeDocCounts.getIndices()) {
                 int count = node.subtreeDocCounts.getCount(dd);
                 double val = (double) count / this.words[dd].length;
-                designMatrix[dd].change(kk, val);
+                designMatrix.add(dd, kk, val);
             }
         }
         // lexical regression
         for (int dd = 0; dd < D; dd++) {
             for (int vv : lexicalDesginMatrix[dd].getIndices()) {
-                designMatrix[dd].change(N + vv, lexicalDesginMatrix[dd].get(vv));
+                designMatrix.add(dd, N + vv, lexicalDesginMatrix[dd].get(vv));
             }
         }
 
@@ -1775,30 +1775,33 @@ public class HTM extends AbstractSampler {
 
         boolean converged = false;
         if (mode == Mode.SUPERVISED_CONTINUOUS) {
-            RidgeLinearRegressionOptimizable optimizable = new RidgeLinearRegressionOptimizable(
-                    responses, etaTauArray, designMatrix, rho, mu, sigmaArray);
-            LimitedMemoryBFGS optimizer = new LimitedMemoryBFGS(optimizable);
-
-            try {
-                converged = optimizer.optimize();
-            } catch (Exception ex) {
-                ex.printStackTrace();
+            double[] solution = solveRegression(designMatrix, sigmaArray);
+            if (solution != null) {
+                System.arraycopy(solution, 0, etaTauArray, 0, N + V);
+                converged = true;
+            } else {
+                RidgeLinearRegressionOptimizable optimizable = new RidgeLinearRegressionOptimizable(
+                        responses, etaTauArray, designMatrix, rho, mu, sigmaArray);
+                LimitedMemoryBFGS optimizer = new LimitedMemoryBFGS(optimizable);
+
+                try {
+                    converged = optimizer.optimize();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
             }
 
             // update regression parameters
             for (int kk = 0; kk < N; kk++) {
-                nodeList.get(kk).eta = optimizable.getParameter(kk);
+                nodeList.get(kk).eta = etaTauArray[kk];
             }
             for (int vv = 0; vv < V; vv++) {
-                tau[vv] = optimizable.getParameter(N + vv);
+                tau[vv] = etaTauArray[N + vv];
             }
 
             // update document means
             for (int dd = 0; dd < D; dd++) {
-                dotprods[dd] = 0.0;
-                for (int ii : designMatrix[dd].getIndices()) {
-                    dotprods[dd] += designMatrix[dd].get(ii) * optimizable.getParameter(ii);
-                }
+                dotprods[dd] = designMatrix.dotprod(dd, etaTauArray);
             }
         } else {
             throw new RuntimeException("Mode " + mode + " is not supported");
@@ -1815,6 +1818,26 @@ public class HTM extends AbstractSampler {
         return eTime;
     }
 
+    /**
+     * Solve the regression parameters of a continuous response in closed
+     * form, if set and if there are not too many parameters.
+     *
+     * @param designMatrix The design matrix
+     * @param sigmas The prior standard deviation of each parameter
+     * @return The parameters, or null if they should be optimized by L-BFGS
+     */
+    private double[] solveRegression(DesignMatrix designMatrix, double[] sigmas) {
+        if (!directRegression || sigmas.length > RidgeNormalEquations.MAX_NUM_PARAMETERS) {
+            return null;
+        }
+        RidgeNormalEquations equations = new RidgeNormalEquations(sigmas.length);
+        double weight = 1.0 / (rho * rho);
+        for (int dd = 0; dd < D; dd++) {
+            equations.addInstance(designMatrix, dd, responses[dd], weight);
+        }
+        return equations.solve(mu, sigmas);
+    }
+
     /**
      * Update regression parameters using L-BFGS.
      *
@@ -1831,17 +1854,13 @@ public class HTM extends AbstractSampler {
         int N = nodeList.size();
 
         // design matrix
-        SparseVector[] designMatrix = new SparseVector[D];
-        for (int dd = 0; dd < D; dd++) {
-            designMatrix[dd] = new SparseVector(N);
-        }
-
+        DesignMatrix designMatrix = new DesignMatrix(D, N);
         for (int kk = 0; kk < N; kk++) {
             Node node = nodeList.get(kk);
             for (int dd : node.subtreeDocCounts.getIndices()) {
                 int count = node.subtreeDocCounts.getCount(dd);
                 double val = (double) count / this.words[dd].length;
-                designMatrix[dd].change(kk, val);
+                designMatrix.add(dd, kk, val);
             }
         }
 
@@ -1870,19 +1889,25 @@ public class HTM extends AbstractSampler {
                 nodeList.get(kk).eta = optimizable.getParameter(kk);
             }
         } else if (mode == Mode.SUPERVISED_CONTINUOUS) {
-            RidgeLinearRegressionOptimizable optimizable = new RidgeLinearRegressionOptimizable(
-                    responses, etaArray, designMatrix, rho, mu, sigmaArray);
-            LimitedMemoryBFGS optimizer = new LimitedMemoryBFGS(optimizable);
-
-            try {
-                converged = optimizer.optimize();
-            } catch (Exception ex) {
-                ex.printStackTrace();
+            double[] solution = solveRegression(designMatrix, sigmaArray);
+            if (solution != null) {
+                System.arraycopy(solution, 0, etaArray, 0, N);
+                converged = true;
+            } else {
+                RidgeLinearRegressionOptimizable optimizable = new RidgeLinearRegressionOptimizable(
+                        responses, etaArray, designMatrix, rho, mu, sigmaArray);
+                LimitedMemoryBFGS optimizer = new LimitedMemoryBFGS(optimizable);
+
+                try {
+                    converged = optimizer.optimize();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
             }
 
             // update regression parameters
             for (int kk = 0; kk < N; kk++) {
-                nodeList.get(kk).eta = optimizable.getParameter(kk);
+                nodeList.get(kk).eta = etaArray[kk];
             }
         } else {
             throw new RuntimeException("Mode " + mode + " is not supported");
@@ -1890,10 +1915,7 @@ public class HTM extends AbstractSampler {
 
         // update document means
         for (int dd = 0; dd < D; dd++) {
-            dotprods[dd] = 0.0;
-            for (int kk : designMatrix[dd].getIndices()) {
-                dotprods[dd] += designMatrix[dd].get(kk) * nodeList.get(kk).eta;
-            }
+            dotprods[dd] = designMatrix.dotprod(dd, etaArray);
         }
 
         updatePathEtas();
@@ -2885,6 +2907,7 @@ public class HTM extends AbstractSampler {
         sampler.setDebug(cmd.hasOption("d"));
         sampler.setLog(true);
         sampler.setReport(true);
+        sampler.setDirectRegression(cmd.hasOption("direct-regression"));
 
         File samplerFolder;
         String modeStr = CLIUtils.getStringArgument(cmd, "mode", "unsupervised");
@@ -3077,6 +3100,8 @@ public class HTM extends AbstractSampler {
         // configurations
         addOption("init", "Initialization");
         addOption("path", "Path assumption");
+        options.addOption("direct-regression", false, "Solve the regression "
+                + "parameters in closed form instead of by L-BFGS");
 
         // sampling & runnning
         addSamplingOptions();
@@ -3167,7 +3192,6 @@ public class HTM extends AbstractSampler {
                 partPredFiles.add(iterOutputPredFile);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
             runThreads(threads);
 
             // average predictions
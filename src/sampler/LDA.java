@@ -1478,7 +1478,6 @@ public class LDA extends AbstractSampler {
                 threads.add(thread);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
             runThreads(threads);
 
             // summarize multiple perplexities
@@ -1530,7 +1529,6 @@ public class LDA extends AbstractSampler {
                 threads.add(thread);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
             runThreads(threads);
 
             // summarize multiple perplexities
@@ -1,6 +1,9 @@
 package sampler.labeled;
 
 import core.AbstractSampler;
+import core.FlatCorpus;
+import core.ModelServer;
+import core.TaskExecutor;
 import data.LabelTextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -8,9 +11,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Random;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
+import sampling.likelihood.ConcurrentDirMult;
 import sampling.likelihood.DirMult;
+import sampling.util.AliasMHSampler;
+import sampling.util.FoldIn;
+import sampling.util.ParallelSweep;
 import sampling.util.SparseCount;
 import util.CLIUtils;
 import util.IOUtils;
@@ -35,16 +43,16 @@ import util.evaluation.MimnoTopicCoherence;
     public static final int ALPHA = 0;
     public static final int BETA = 1;
     protected ArrayList<Integer> docIndices;
-    protected int[][] words; // [D] x [N_d]
+    protected FlatCorpus corpus; // [D] x [N_d] tokens and their label assignments
     protected int[][] labels; // [D] x [T_d] 
     protected int L;
     protected int V;
     protected int D;
     private DirMult[] docLabels;
     private DirMult[] labelWords;
-    private int[][] z;
     private ArrayList<String> labelVocab;
     private int numTokensChange;
+    private AliasMHSampler aliasSampler; // proposals for the alias sampling mode
 
     public LabeledLDA() {
         this.basename = "L-LDA";
@@ -59,7 +67,7 @@ import util.evaluation.MimnoTopicCoherence;
     }
 
     public int[][] getZ() {
-        return this.z;
+        return this.corpus.getZs();
     }
 
     public void configure(LabeledLDA sampler) {
@@ -74,6 +82,8 @@ import util.evaluation.MimnoTopicCoherence;
                 sampler.MAX_ITER,
                 sampler.LAG,
                 sampler.REP_INTERVAL);
+        this.setSamplingMode(sampler.samplingMode);
+        this.foldInMode = sampler.foldInMode;
     }
 
     public void configure(String folder,
@@ -140,6 +150,18 @@ import util.evaluation.MimnoTopicCoherence;
         return this.labelWords;
     }
 
+    /**
+     * Set the sampling mode, which is either STANDARD or ALIAS.
+     */
+    @Override
+    public void setSamplingMode(SamplingMode mode) {
+        if (mode == SamplingMode.SPARSE) {
+            throw new RuntimeException("Sampling mode " + mode
+                    + " is not supported by " + LabeledLDA.class.getName());
+        }
+        super.setSamplingMode(mode);
+    }
+
     @Override
     public String getCurrentState() {
         return this.getSamplerFolderPath();
@@ -161,19 +183,17 @@ import util.evaluation.MimnoTopicCoherence;
             }
         }
         this.D = this.docIndices.size();
-        this.words = new int[D][];
+        this.corpus = new FlatCorpus(words, this.docIndices);
         this.labels = new int[D][];
         for (int ii = 0; ii < D; ii++) {
             int dd = this.docIndices.get(ii);
-            this.words[ii] = words[dd];
             this.labels[ii] = labels[dd];
         }
 
-        this.numTokens = 0;
+        this.numTokens = corpus.getNumTokens();
         int numLabels = 0;
         for (int d = 0; d < D; d++) {
-            this.numTokens += words[d].length;
-            numLabels += labels[d].length;
+            numLabels += this.labels[d].length;
         }
 
         if (verbose) {
@@ -185,14 +205,10 @@ import util.evaluation.MimnoTopicCoherence;
     }
 
     public void test(int[][] ws) {
-        this.words = ws;
+        this.corpus = new FlatCorpus(ws);
         this.labels = null;
-        this.D = this.words.length;
-
-        this.numTokens = 0;
-        for (int d = 0; d < D; d++) {
-            this.numTokens += words[d].length;
-        }
+        this.D = corpus.getNumDocs();
+        this.numTokens = corpus.getNumTokens();
 
         if (verbose) {
             logln("--- # documents:\t" + D);
@@ -224,6 +240,7 @@ import util.evaluation.MimnoTopicCoherence;
             logln("--- Initializing model structure ...");
         }
 
+        aliasSampler = null;
         labelWords = new DirMult[L];
         for (int ll = 0; ll < L; ll++) {
             labelWords[ll] = new DirMult(V, hyperparams.get(BETA) * V, 1.0 / V);
@@ -240,10 +257,7 @@ import util.evaluation.MimnoTopicCoherence;
             docLabels[d] = new DirMult(L, hyperparams.get(ALPHA) * L, 1.0 / L);
         }
 
-        z = new int[D][];
-        for (int d = 0; d < D; d++) {
-            z[d] = new int[words[d].length];
-        }
+        corpus.initializeAssignments(L - 1);
     }
 
     private void initializeAssignments() {
@@ -252,15 +266,17 @@ import util.evaluation.MimnoTopicCoherence;
         }
 
         for (int d = 0; d < D; d++) {
-            for (int n = 0; n < words[d].length; n++) {
+            for (int ii = corpus.getDocStart(d); ii < corpus.getDocEnd(d); ii++) {
                 int[] dls = labels[d];
+                int ll;
                 if (dls.length > 0) {
-                    z[d][n] = dls[rand.nextInt(dls.length)];
+                    ll = dls[rand.nextInt(dls.length)];
                 } else {
-                    z[d][n] = rand.nextInt(L);
+                    ll = rand.nextInt(L);
                 }
-                docLabels[d].increment(z[d][n]);
-                labelWords[z[d][n]].increment(words[d][n]);
+                corpus.setZ(ii, ll);
+                docLabels[d].increment(ll);
+                labelWords[ll].increment(corpus.getWord(ii));
             }
         }
     }
@@ -349,49 +365,153 @@ import util.evaluation.MimnoTopicCoherence;
      * from the data (i.e., doc-label distributions)
      * @param addToData Whether the new assignment should be added to the data
      */
-    public void sampleZs(boolean removeFromModel, boolean addToModel,
+    public void sampleZs(final boolean removeFromModel, final boolean addToModel,
+            final boolean removeFromData, final boolean addToData) {
+        // the document proposal needs document counts that match z
+        if (samplingMode == SamplingMode.ALIAS && removeFromData && addToData) {
+            sampleZsAlias(removeFromModel, addToModel);
+            return;
+        }
+        if (numThreads > 1 && removeFromModel == addToModel) {
+            int[] docLengths = new int[D];
+            for (int d = 0; d < D; d++) {
+                docLengths[d] = corpus.getDocLength(d);
+            }
+            if (sharedCounts && !ConcurrentDirMult.isShared(labelWords)) {
+                labelWords = ConcurrentDirMult.share(labelWords);
+            }
+            numTokensChange += ParallelSweep.sweep(labelWords, docLengths,
+                    numThreads, rand.nextLong(), removeFromModel, new ParallelSweep.DocumentSampler() {
+                        @Override
+                        public int sampleDocument(int d, DirMult[] workerLabelWords,
+                                ParallelSweep.Worker worker) {
+                            return sampleZs(d, workerLabelWords, worker,
+                                    removeFromModel, addToModel,
+                                    removeFromData, addToData);
+                        }
+                    });
+            return;
+        }
+        for (int d = 0; d < D; d++) {
+            numTokensChange += sampleZs(d, labelWords, null,
+                    removeFromModel, addToModel, removeFromData, addToData);
+        }
+    }
+
+    /**
+     * Sample topic assignments for all tokens in a document.
+     *
+     * @param d The document index
+     * @param labelWordCounts The label-word counts to sample against
+     * @param worker The parallel worker to report label changes to, or null if
+     * sampling sequentially
+     * @param removeFromModel Whether the current assignment should be removed
+     * from the model
+     * @param addToModel Whether the new assignment should be added to the model
+     * @param removeFromData Whether the current assignment should be removed
+     * from the data
+     * @param addToData Whether the new assignment should be added to the data
+     * @return The number of tokens whose label changed
+     */
+    private int sampleZs(int d, DirMult[] labelWordCounts,
+            ParallelSweep.Worker worker,
+            boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
         double totalBeta = V * hyperparams.get(BETA);
-        for (int d = 0; d < D; d++) {
-            for (int n = 0; n < words[d].length; n++) {
-                if (removeFromModel) {
-                    labelWords[z[d][n]].decrement(words[d][n]);
+        Random r = worker == null ? SamplerUtils.rand : worker.getRandom();
+        int numChanged = 0;
+        for (int tt = corpus.getDocStart(d); tt < corpus.getDocEnd(d); tt++) {
+            int ww = corpus.getWord(tt);
+            int curZ = corpus.getZ(tt);
+            if (removeFromModel) {
+                labelWordCounts[curZ].decrement(ww);
+            }
+            if (removeFromData) {
+                docLabels[d].decrement(curZ);
+            }
+
+            int sampledZ;
+            if (labels != null && labels[d].length > 0) {
+                double[] probs = new double[labels[d].length];
+                for (int ii = 0; ii < labels[d].length; ii++) {
+                    int k = labels[d][ii];
+                    probs[ii] = (docLabels[d].getCount(k) + hyperparams.get(ALPHA))
+                            * (labelWordCounts[k].getCount(ww) + hyperparams.get(BETA))
+                            / (labelWordCounts[k].getCountSum() + totalBeta);
                 }
-                if (removeFromData) {
-                    docLabels[d].decrement(z[d][n]);
+                sampledZ = labels[d][SamplerUtils.scaleSample(probs, r)];
+            } else { // for documents without labels and for test documents
+                double[] probs = new double[L];
+                for (int ll = 0; ll < L; ll++) {
+                    probs[ll] = (docLabels[d].getCount(ll) + hyperparams.get(ALPHA))
+                            * (labelWordCounts[ll].getCount(ww) + hyperparams.get(BETA))
+                            / (labelWordCounts[ll].getCountSum() + totalBeta);
                 }
+                sampledZ = SamplerUtils.scaleSample(probs, r);
+            }
 
-                int sampledZ;
-                if (labels != null && labels[d].length > 0) {
-                    double[] probs = new double[labels[d].length];
-                    for (int ii = 0; ii < labels[d].length; ii++) {
-                        int k = labels[d][ii];
-                        probs[ii] = (docLabels[d].getCount(k) + hyperparams.get(ALPHA))
-                                * (labelWords[k].getCount(words[d][n]) + hyperparams.get(BETA))
-                                / (labelWords[k].getCountSum() + totalBeta);
-                    }
-                    sampledZ = labels[d][SamplerUtils.scaleSample(probs)];
-                } else { // for documents without labels and for test documents
-                    double[] probs = new double[L];
-                    for (int ll = 0; ll < L; ll++) {
-                        probs[ll] = (docLabels[d].getCount(ll) + hyperparams.get(ALPHA))
-                                * (labelWords[ll].getCount(words[d][n]) + hyperparams.get(BETA))
-                                / (labelWords[ll].getCountSum() + totalBeta);
-                    }
-                    sampledZ = SamplerUtils.scaleSample(probs);
+            if (sampledZ != curZ) {
+                numChanged++;
+                if (worker != null && removeFromModel) {
+                    worker.recordMove(ww, curZ, sampledZ);
+                }
+            }
+            corpus.setZ(tt, sampledZ);
+
+            if (addToModel) {
+                labelWordCounts[sampledZ].increment(ww);
+            }
+            if (addToData) {
+                docLabels[d].increment(sampledZ);
+            }
+        }
+        return numChanged;
+    }
+
+    /**
+     * Sample topic assignments for all tokens using Metropolis-Hastings with
+     * alias-table word proposals and document proposals, which costs
+     * amortized O(1) per token instead of O(number of candidate labels).
+     *
+     * @param removeFromModel Whether the current assignment should be removed
+     * from the model
+     * @param addToModel Whether the new assignment should be added to the model
+     */
+    private void sampleZsAlias(boolean removeFromModel, boolean addToModel) {
+        if (aliasSampler == null) {
+            aliasSampler = new AliasMHSampler(L, V,
+                    hyperparams.get(ALPHA), hyperparams.get(BETA),
+                    AliasMHSampler.DEFAULT_NUM_MH_STEPS);
+        } else {
+            aliasSampler.setPriors(hyperparams.get(ALPHA), hyperparams.get(BETA));
+        }
+        aliasSampler.nextSweep();
+        for (int d = 0; d < D; d++) {
+            int[] candidates = null; // documents without labels and test documents
+            if (labels != null && labels[d].length > 0) {
+                candidates = labels[d];
+            }
+            for (int ii = corpus.getDocStart(d); ii < corpus.getDocEnd(d); ii++) {
+                int ww = corpus.getWord(ii);
+                int curZ = corpus.getZ(ii);
+                if (removeFromModel) {
+                    labelWords[curZ].decrement(ww);
+                    aliasSampler.removeToken(ww, curZ);
                 }
+                docLabels[d].decrement(curZ);
 
-                if (sampledZ != z[d][n]) {
+                int sampledZ = aliasSampler.sample(curZ, ii, ww, corpus, d,
+                        candidates, docLabels[d], labelWords, rand);
+                if (sampledZ != curZ) {
                     numTokensChange++;
                 }
-                z[d][n] = sampledZ;
+                corpus.setZ(ii, sampledZ);
 
                 if (addToModel) {
-                    labelWords[z[d][n]].increment(words[d][n]);
-                }
-                if (addToData) {
-                    docLabels[d].increment(z[d][n]);
+                    labelWords[sampledZ].increment(ww);
+                    aliasSampler.addToken(ww, sampledZ);
                 }
+                docLabels[d].increment(sampledZ);
             }
         }
     }
@@ -554,8 +674,8 @@ import util.evaluation.MimnoTopicCoherence;
                     assignStrBuilder.append(d).append("\n");
                     assignStrBuilder.append(DirMult.output(docLabels[d])).append("\n");
 
-                    for (int n = 0; n < words[d].length; n++) {
-                        assignStrBuilder.append(z[d][n]).append("\t");
+                    for (int ii = corpus.getDocStart(d); ii < corpus.getDocEnd(d); ii++) {
+                        assignStrBuilder.append(corpus.getZ(ii)).append("\t");
                     }
                     assignStrBuilder.append("\n");
                 }
@@ -668,8 +788,8 @@ import util.evaluation.MimnoTopicCoherence;
                 docLabels[d] = DirMult.input(reader.readLine());
 
                 String[] sline = reader.readLine().split("\t");
-                for (int n = 0; n < words[d].length; n++) {
-                    z[d][n] = Integer.parseInt(sline[n]);
+                for (int n = 0; n < corpus.getDocLength(d); n++) {
+                    corpus.setZ(corpus.getDocStart(d) + n, Integer.parseInt(sline[n]));
                 }
             }
             reader.close();
@@ -942,13 +1062,13 @@ import util.evaluation.MimnoTopicCoherence;
                         logln("--- Predicting d = " + d + " / " + D);
                     }
                     SparseCount docTokenCount = new SparseCount();
-                    for (int n = 0; n < words[d].length; n++) {
-                        docTokenCount.increment(words[d][n]);
+                    for (int ii = corpus.getDocStart(d); ii < corpus.getDocEnd(d); ii++) {
+                        docTokenCount.increment(corpus.getWord(ii));
                     }
 
                     SparseVector doc = new SparseVector();
                     for (int v : docTokenCount.getIndices()) {
-                        double val = (double) docTokenCount.getCount(v) / words[d].length;
+                        double val = (double) docTokenCount.getCount(v) / corpus.getDocLength(d);
                         doc.set(v, val);
                     }
 
@@ -1043,20 +1163,31 @@ import util.evaluation.MimnoTopicCoherence;
         }
     }
 
-    public void sampleZ(int d, int i, int n,
+    /**
+     * Sample the label assignment of a token against the fixed label-word
+     * counts.
+     *
+     * @param d The document index
+     * @param ii The position of the token in the corpus
+     * @param removeFromData Whether the current assignment should be removed
+     * from the data
+     * @param addToData Whether the new assignment should be added to the data
+     */
+    public void sampleZ(int d, int ii,
             boolean removeFromData, boolean addToData) {
         double totalBeta = V * hyperparams.get(BETA);
+        int ww = corpus.getWord(ii);
         if (removeFromData) {
-            docLabels[d].decrement(z[d][i]);
+            docLabels[d].decrement(corpus.getZ(ii));
         }
 
         int sampledZ;
         if (labels != null && labels[d].length > 0) {
             double[] probs = new double[labels[d].length];
-            for (int ii = 0; ii < labels[d].length; ii++) {
-                int k = labels[d][ii];
-                probs[ii] = (docLabels[d].getCount(k) + hyperparams.get(ALPHA) * labels[d].length / L)
-                        * (labelWords[k].getCount(words[d][n]) + hyperparams.get(BETA))
+            for (int jj = 0; jj < labels[d].length; jj++) {
+                int k = labels[d][jj];
+                probs[jj] = (docLabels[d].getCount(k) + hyperparams.get(ALPHA) * labels[d].length / L)
+                        * (labelWords[k].getCount(ww) + hyperparams.get(BETA))
                         / (labelWords[k].getCountSum() + totalBeta);
             }
             sampledZ = labels[d][SamplerUtils.scaleSample(probs)];
@@ -1064,19 +1195,19 @@ import util.evaluation.MimnoTopicCoherence;
             double[] probs = new double[L];
             for (int ll = 0; ll < L; ll++) {
                 probs[ll] = (docLabels[d].getCount(ll) + hyperparams.get(ALPHA))
-                        * (labelWords[ll].getCount(words[d][n]) + hyperparams.get(BETA))
+                        * (labelWords[ll].getCount(ww) + hyperparams.get(BETA))
                         / (labelWords[ll].getCountSum() + totalBeta);
             }
             sampledZ = SamplerUtils.scaleSample(probs);
         }
 
-        if (sampledZ != z[d][i]) {
+        if (sampledZ != corpus.getZ(ii)) {
             numTokensChange++;
         }
-        z[d][i] = sampledZ;
+        corpus.setZ(ii, sampledZ);
 
         if (addToData) {
-            docLabels[d].increment(z[d][i]);
+            docLabels[d].increment(sampledZ);
         }
     }
 
@@ -1108,16 +1239,15 @@ import util.evaluation.MimnoTopicCoherence;
         // input model
         inputModel(stateFile);
 
-        words = newWords;
+        corpus = new FlatCorpus(newWords);
         labels = newLabels;
-        D = words.length;
+        D = corpus.getNumDocs();
 
-        numTokens = 0;
+        numTokens = corpus.getNumTokens();
         int numTrainTokens = 0;
         int numTestTokens = 0;
 
         for (int d = 0; d < D; d++) {
-            numTokens += words[d].length;
             numTrainTokens += trainIndices[d].size();
             numTestTokens += testIndices[d].size();
         }
@@ -1130,12 +1260,12 @@ import util.evaluation.MimnoTopicCoherence;
             logln("--- # test tokens = " + numTestTokens);
         }
 
+        // only the assignments of the training tokens are used
         docLabels = new DirMult[D];
-        z = new int[D][];
         for (int d = 0; d < D; d++) {
             docLabels[d] = new DirMult(L, hyperparams.get(ALPHA) * L, 1.0 / L);
-            z[d] = new int[trainIndices[d].size()];
         }
+        corpus.initializeAssignments(L - 1);
 
         ArrayList<Double> perplexities = new ArrayList<Double>();
         if (verbose) {
@@ -1149,12 +1279,11 @@ import util.evaluation.MimnoTopicCoherence;
             }
 
             for (int d = 0; d < D; d++) {
-                for (int ii = 0; ii < trainIndices[d].size(); ii++) {
-                    int n = trainIndices[d].get(ii);
+                for (int n : trainIndices[d]) {
                     if (iter == 0) {
-                        sampleZ(d, ii, n, !REMOVE, ADD);
+                        sampleZ(d, corpus.getDocStart(d) + n, !REMOVE, ADD);
                     } else {
-                        sampleZ(d, ii, n, REMOVE, ADD);
+                        sampleZ(d, corpus.getDocStart(d) + n, REMOVE, ADD);
                     }
                 }
             }
@@ -1180,13 +1309,14 @@ import util.evaluation.MimnoTopicCoherence;
             for (int d = 0; d < D; d++) {
                 double docLogProb = 0.0;
                 for (int n : testIndices[d]) {
+                    int ww = corpus.getWord(corpus.getDocStart(d) + n);
                     double val = 0.0;
                     if (labels[d].length > 0) {
                         for (int ii = 0; ii < labels[d].length; ii++) {
                             int k = labels[d][ii];
                             double theta = (docLabels[d].getCount(k) + hyperparams.get(ALPHA))
                                     / (docLabels[d].getCountSum() + hyperparams.get(ALPHA) * labels[d].length);
-                            double phi = (labelWords[k].getCount(words[d][n]) + hyperparams.get(BETA))
+                            double phi = (labelWords[k].getCount(ww) + hyperparams.get(BETA))
                                     / (labelWords[k].getCountSum() + totalBeta);
                             val += theta * phi;
                         }
@@ -1194,7 +1324,7 @@ import util.evaluation.MimnoTopicCoherence;
                         for (int k = 0; k < L; k++) {
                             double theta = (docLabels[d].getCount(k) + hyperparams.get(ALPHA))
                                     / (docLabels[d].getCountSum() + hyperparams.get(ALPHA) * L);
-                            double phi = (labelWords[k].getCount(words[d][n]) + hyperparams.get(BETA))
+                            double phi = (labelWords[k].getCount(ww) + hyperparams.get(BETA))
                                     / (labelWords[k].getCountSum() + totalBeta);
                             val += theta * phi;
                         }
@@ -1203,7 +1333,7 @@ import util.evaluation.MimnoTopicCoherence;
                 }
                 totalLogprob += docLogProb;
                 writer.write(d
-                        + "\t" + words[d].length
+                        + "\t" + corpus.getDocLength(d)
                         + "\t" + labels[d].length
                         + "\t" + testIndices[d].size()
                         + "\t" + docLogProb + "\n");
@@ -1235,6 +1365,12 @@ import util.evaluation.MimnoTopicCoherence;
         // test data
         test(newWords);
 
+        if (foldInMode != null) {
+            PredictionUtils.outputSingleModelClassifications(
+                    new File(outputResultFile), foldInNewDocuments());
+            return;
+        }
+
         // initialize structure
         initializeDataStructure();
 
@@ -1293,6 +1429,59 @@ import util.evaluation.MimnoTopicCoherence;
                 new File(outputResultFile), predictedScores);
     }
 
+    /**
+     * Predict the label distributions of the test documents using the fold-in
+     * engine with the label-word distributions of the loaded model fixed.
+     *
+     * @return The predicted scores of all labels for each document
+     */
+    private double[][] foldInNewDocuments() {
+        if (verbose) {
+            logln("--- Folding in " + D + " documents (" + foldInMode + ")");
+        }
+        double alpha = hyperparams.get(ALPHA);
+        FoldIn foldIn = createFoldIn(FoldIn.getDistributions(labelWords), alpha);
+        double[][] docLabelCounts = foldIn.infer(corpus.getWords());
+
+        double[][] predictedScores = new double[D][];
+        for (int dd = 0; dd < D; dd++) {
+            predictedScores[dd] = getLabelScores(docLabelCounts[dd],
+                    corpus.getDocLength(dd), alpha);
+        }
+        return predictedScores;
+    }
+
+    /**
+     * Compute the posterior label distribution of a document from its
+     * expected label counts.
+     */
+    private double[] getLabelScores(double[] docLabelCounts, int docLength, double alpha) {
+        double[] scores = new double[L];
+        double norm = docLength + alpha * L;
+        for (int ll = 0; ll < L; ll++) {
+            scores[ll] = (docLabelCounts[ll] + alpha) / norm;
+        }
+        return scores;
+    }
+
+    /**
+     * Load a trained model and return a scorer of new documents whose scores
+     * are their label distributions, inferred by the fold-in engine.
+     *
+     * @param stateFile File storing the trained model
+     */
+    public ModelServer.Scorer createScorer(String stateFile) {
+        inputModel(stateFile);
+        final double alpha = hyperparams.get(ALPHA);
+        final FoldIn foldIn = createFoldIn(FoldIn.getDistributions(labelWords), alpha);
+        return new ModelServer.Scorer() {
+            @Override
+            public double[] score(int[] doc) {
+                return getLabelScores(foldIn.infer(doc, null, 0), doc.length, alpha);
+            }
+        };
+    }
+
     public static void parallelPerplexity(int[][] newWords,
             int[][] newLabels,
             ArrayList<Integer>[] trainIndices,
@@ -1307,7 +1496,7 @@ import util.evaluation.MimnoTopicCoherence;
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPerplexityFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (String filename : filenames) {
                 if (!filename.endsWith("zip")) {
                     continue;
@@ -1320,12 +1509,10 @@ import util.evaluation.MimnoTopicCoherence;
                         newWords, newLabels, trainIndices, testIndices,
                         stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            TaskExecutor.run(tasks, sampler.verbose, MAX_NUM_PARALLEL_THREADS);
 
             // summarize multiple perplexities
             String[] ppxFiles = iterPerplexityFolder.list();
@@ -1352,7 +1539,7 @@ import util.evaluation.MimnoTopicCoherence;
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (String filename : filenames) {
                 if (!filename.contains("zip")) {
                     continue;
@@ -1364,12 +1551,10 @@ import util.evaluation.MimnoTopicCoherence;
                 LabeledLDATestRunner runner = new LabeledLDATestRunner(sampler,
                         newWords, stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            TaskExecutor.run(tasks, sampler.verbose, MAX_NUM_PARALLEL_THREADS);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -1403,6 +1588,12 @@ import util.evaluation.MimnoTopicCoherence;
             addOption("K", "Number of topics");
             addOption("numTopwords", "Number of top words per topic");
             addOption("min-label-freq", "Minimum label frequency");
+            addOption("sampling-mode", "Sampling mode (standard or alias)");
+            addOption("num-threads", "Number of threads for sampling and parallel testing");
+            addOption("fold-in", "Test-time inference with fixed label-word "
+                    + "distributions (none, gibbs, icm or variational)");
+            options.addOption("shared-counts", false, "Share lock-free "
+                    + "label-word counts across sampling threads");
 
             // model hyperparameters
             addOption("alpha", "Hyperparameter of the symmetric Dirichlet prior "
@@ -1467,6 +1658,8 @@ import util.evaluation.MimnoTopicCoherence;
         int K = data.getLabelVocab().size();
         boolean paramOpt = cmd.hasOption("paramOpt");
         InitialState initState = InitialState.RANDOM;
+        SamplingMode samplingMode = getSamplingMode(
+                CLIUtils.getStringArgument(cmd, "sampling-mode", "standard"));
 
         if (verbose) {
             System.out.println("\tRunning Labeled-LDA sampler ...");
@@ -1476,6 +1669,14 @@ import util.evaluation.MimnoTopicCoherence;
         sampler.setDebug(debug);
         sampler.setWordVocab(data.getWordVocab());
         sampler.setLabelVocab(data.getLabelVocab());
+        sampler.setSamplingMode(samplingMode);
+        sampler.setNumThreads(CLIUtils.getIntegerArgument(cmd, "num-threads", 1));
+        if (cmd.hasOption("num-threads")) {
+            TaskExecutor.setNumThreads(sampler.getNumThreads());
+        }
+        sampler.setSharedCounts(cmd.hasOption("shared-counts"));
+        sampler.setFoldInMode(getFoldInMode(
+                CLIUtils.getStringArgument(cmd, "fold-in", "none")));
 
         sampler.configure(outputFolder,
                 V, K, alpha, beta, initState, paramOpt,
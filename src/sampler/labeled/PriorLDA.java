@@ -1100,7 +1100,6 @@ public class PriorLDA extends AbstractSampler {
                 threads.add(thread);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
             runThreads(threads);
 
             // summarize multiple perplexities
@@ -1,10 +1,13 @@
 package sampler.labeled.baselines;
 
+import core.ModelServer;
+import core.TaskExecutor;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -32,6 +35,12 @@ public class TFIDFNN {
     protected SparseVector[] labelVectors; // L x V;
     protected int minWordTypeCount = 0;
     protected double[] labelL2Norms;
+    // inverted index of the label vectors: the labels whose vectors contain
+    // word v, and the corresponding values, are at positions
+    // postingStarts[v], ..., postingStarts[v + 1] - 1
+    protected int[] postingStarts; // [V + 1]
+    protected int[] postingLabels;
+    protected double[] postingWeights;
 
     public TFIDFNN(int minWordTypeCount) {
         this.minWordTypeCount = minWordTypeCount;
@@ -156,6 +165,7 @@ public class TFIDFNN {
         }
 
         computeLabelL2Norms();
+        buildPostings();
 
         // debug
         for (int dd = 0; dd < words.length; dd++) {
@@ -184,18 +194,54 @@ public class TFIDFNN {
         }
     }
 
-    public double[][] predict(int[][] newWords) {
-        double[][] predictions = new double[newWords.length][];
-        int stepSize = MiscUtils.getRoundStepSize(newWords.length, 10);
-        if (stepSize == 1) {
-            stepSize = 10;
+    /**
+     * Compile the label vectors into an inverted index from each word to the
+     * labels whose vectors contain it, so that scoring a document only visits
+     * the labels that share words with it. This is done once the model is
+     * learned or loaded, before any prediction, and the index is read-only
+     * afterwards so that documents can be scored in parallel.
+     */
+    protected void buildPostings() {
+        int[] starts = new int[V + 1];
+        for (int ll = 0; ll < L; ll++) {
+            for (int vv : labelVectors[ll].getIndices()) {
+                starts[vv + 1]++;
+            }
+        }
+        for (int vv = 0; vv < V; vv++) {
+            starts[vv + 1] += starts[vv];
         }
-        for (int dd = 0; dd < predictions.length; dd++) {
-            if (dd % stepSize == 0) {
-                System.out.println("--- Predicting doc = " + dd + " / " + newWords.length);
+        int[] labelList = new int[starts[V]];
+        double[] weightList = new double[starts[V]];
+        int[] positions = new int[V];
+        System.arraycopy(starts, 0, positions, 0, V);
+        for (int ll = 0; ll < L; ll++) { // labels are in increasing order in each list
+            for (int vv : labelVectors[ll].getIndices()) {
+                int pos = positions[vv]++;
+                labelList[pos] = ll;
+                weightList[pos] = labelVectors[ll].get(vv);
             }
-            predictions[dd] = this.predict(newWords[dd]);
         }
+        postingLabels = labelList;
+        postingWeights = weightList;
+        postingStarts = starts;
+    }
+
+    /**
+     * Predict the scores of a set of documents in parallel (see
+     * {@link #predict(int[])}).
+     *
+     * @param newWords The token vectors of the test documents
+     */
+    public double[][] predict(final int[][] newWords) {
+        System.out.println("--- Predicting " + newWords.length + " documents");
+        final double[][] predictions = new double[newWords.length][];
+        TaskExecutor.runIndexed(newWords.length, new TaskExecutor.IndexedTask() {
+            @Override
+            public void run(int dd) {
+                predictions[dd] = predict(newWords[dd]);
+            }
+        });
         return predictions;
     }
 
@@ -212,12 +258,31 @@ public class TFIDFNN {
         if (newWords.length == 0) {
             return scores;
         }
-        SparseVector docVector = getFeatureVector(newWords);
-        double newDocL2Norm = docVector.getL2Norm();
+        if (postingStarts == null) {
+            throw new RuntimeException("The model has not been learned or loaded");
+        }
+
+        // tf-idf of each word type, the same as getFeatureVector
+        int[] sortedWords = newWords.clone();
+        Arrays.sort(sortedWords);
+        double sumSquare = 0.0;
+        for (int start = 0; start < sortedWords.length;) {
+            int vv = sortedWords[start];
+            int end = start + 1;
+            while (end < sortedWords.length && sortedWords[end] == vv) {
+                end++;
+            }
+            double tfidf = Math.log(end - start + 1) * idfs[vv];
+            sumSquare += tfidf * tfidf;
+            for (int pp = postingStarts[vv]; pp < postingStarts[vv + 1]; pp++) {
+                scores[postingLabels[pp]] += postingWeights[pp] * tfidf;
+            }
+            start = end;
+        }
+        double newDocL2Norm = Math.sqrt(sumSquare);
         for (int l = 0; l < L; l++) {
             if (labelVectors[l].size() > 0) { // skip topics that didn't have enough training data for
-                scores[l] = labelVectors[l].dotProduct(docVector)
-                        / (labelL2Norms[l] * newDocL2Norm);
+                scores[l] /= labelL2Norms[l] * newDocL2Norm;
             }
         }
         return scores;
@@ -238,24 +303,92 @@ public class TFIDFNN {
 //        }
 //        return vec;
 //    }
+    /**
+     * Return a scorer of new documents whose scores are the same as those of
+     * predict(int[]). The learned model must not be changed while it is used.
+     */
+    public ModelServer.Scorer createScorer() {
+        return new ModelServer.Scorer() {
+            @Override
+            public double[] score(int[] doc) {
+                return predict(doc);
+            }
+        };
+    }
+
+    /**
+     * Predict the labels with the highest non-zero scores for a document.
+     *
+     * @param newWords The token vector of the test document
+     * @param topK Maximum number of labels
+     * @return The labels in decreasing order of score (ties in increasing
+     * order of label)
+     */
     public ArrayList<Integer> predictLabel(int[] newWords, int topK) {
-        double[] scores = predict(newWords);
-        ArrayList<RankingItem<Integer>> rank = new ArrayList<RankingItem<Integer>>();
-        for (int ii = 0; ii < scores.length; ii++) {
-            rank.add(new RankingItem<Integer>(ii, scores[ii]));
+        return getTopLabels(predict(newWords), topK);
+    }
+
+    /**
+     * Select the labels with the highest positive scores using a bounded
+     * min-heap, which costs O(L log topK) instead of sorting all labels.
+     *
+     * @param scores The score of each label
+     * @param topK Maximum number of labels
+     */
+    protected static ArrayList<Integer> getTopLabels(double[] scores, int topK) {
+        int[] heap = new int[Math.max(0, Math.min(topK, scores.length))]; // worst at the root
+        int size = 0;
+        for (int ll = 0; ll < scores.length && heap.length > 0; ll++) {
+            if (!(scores[ll] > 0.0)) {
+                continue;
+            }
+            if (size < heap.length) {
+                int pos = size++;
+                while (pos > 0 && isRankedHigher(scores, heap[(pos - 1) / 2], ll)) {
+                    heap[pos] = heap[(pos - 1) / 2];
+                    pos = (pos - 1) / 2;
+                }
+                heap[pos] = ll;
+            } else if (isRankedHigher(scores, ll, heap[0])) {
+                siftDown(scores, heap, size, ll);
+            }
+        }
+
+        // pop the worst label to the end of the array until the heap is empty
+        for (int last = size - 1; last > 0; last--) {
+            int worst = heap[0];
+            siftDown(scores, heap, last, heap[last]);
+            heap[last] = worst;
+        }
+        ArrayList<Integer> rankLabels = new ArrayList<Integer>(size);
+        for (int ii = 0; ii < size; ii++) {
+            rankLabels.add(heap[ii]);
         }
-        Collections.sort(rank);
-        ArrayList<Integer> rankLabels = new ArrayList<Integer>();
-        for (int ii = 0; ii < topK; ii++) {
-            RankingItem<Integer> item = rank.get(ii);
-            int label = item.getObject();
-            double score = item.getPrimaryValue();
-            if (score == 0.0) {
+        return rankLabels;
+    }
+
+    /**
+     * Place a label at the root of a heap of the given size and move it down
+     * to its position.
+     */
+    private static void siftDown(double[] scores, int[] heap, int size, int label) {
+        int pos = 0;
+        while (2 * pos + 1 < size) {
+            int child = 2 * pos + 1;
+            if (child + 1 < size && isRankedHigher(scores, heap[child], heap[child + 1])) {
+                child++;
+            }
+            if (!isRankedHigher(scores, label, heap[child])) {
                 break;
             }
-            rankLabels.add(label);
+            heap[pos] = heap[child];
+            pos = child;
         }
-        return rankLabels;
+        heap[pos] = label;
+    }
+
+    private static boolean isRankedHigher(double[] scores, int a, int b) {
+        return scores[a] > scores[b] || (scores[a] == scores[b] && a < b);
     }
 
     public void outputPredictorTextFile(File predFile) {
@@ -292,10 +425,8 @@ public class TFIDFNN {
             }
             reader.close();
 
-            labelL2Norms = new double[L];
-            for (int ll = 0; ll < L; ll++) {
-                labelL2Norms[ll] = labelVectors[ll].getL2Norm();
-            }
+            computeLabelL2Norms();
+            buildPostings();
         } catch (IOException | NumberFormatException e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while inputing model from "
@@ -370,10 +501,8 @@ public class TFIDFNN {
             }
             reader.close();
 
-            labelL2Norms = new double[L];
-            for (int ll = 0; ll < L; ll++) {
-                labelL2Norms[ll] = labelVectors[ll].getL2Norm();
-            }
+            computeLabelL2Norms();
+            buildPostings();
         } catch (IOException | RuntimeException e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while inputing predictor from "
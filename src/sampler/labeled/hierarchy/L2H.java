@@ -3,6 +3,7 @@ package sampler.labeled.hierarchy;
 import cc.mallet.types.Dirichlet;
 import cc.mallet.util.Randoms;
 import core.AbstractSampler;
+import core.TaskExecutor;
 import data.LabelTextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -1627,7 +1628,7 @@ public class L2H extends AbstractSampler {
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (String filename : filenames) {
                 if (!filename.contains("zip")) {
                     continue;
@@ -1642,10 +1643,9 @@ public class L2H extends AbstractSampler {
                         newWords, stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath(),
                         initPredictions, topK);
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
-            runThreads(threads); // run MAX_NUM_PARALLEL_THREADS threads at a time
+            TaskExecutor.run(tasks, sampler.verbose, MAX_NUM_PARALLEL_THREADS);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while sampling during parallel test.");
@@ -57,6 +57,7 @@ public class BinarySLDA extends AbstractSampler {
     protected DirMult[] topicWords;
     protected double[] lambdas; // label regression parameters
     private double[] docLabelDotProds;
+    private int[] topicBuffer; // [K]: non-zero topics of a document
     private Set<Integer> positives;
 
     public BinarySLDA() {
@@ -295,6 +296,7 @@ public class BinarySLDA extends AbstractSampler {
         }
 
         docLabelDotProds = new double[D];
+        topicBuffer = new int[K];
     }
 
     protected void initializeAssignments() {
@@ -551,7 +553,9 @@ public class BinarySLDA extends AbstractSampler {
         SparseVector[] designMatrix = new SparseVector[D];
         for (int ii = 0; ii < D; ii++) {
             designMatrix[ii] = new SparseVector(K);
-            for (int k : docTopics[ii].getSparseCounts().getIndices()) {
+            int numTopics = docTopics[ii].getNonZeroObservations(topicBuffer);
+            for (int jj = 0; jj < numTopics; jj++) {
+                int k = topicBuffer[jj];
                 double val = (double) docTopics[ii].getCount(k) / z[ii].length;
                 designMatrix[ii].change(k, val);
             }
@@ -42,6 +42,7 @@ public class SLDA extends AbstractSampler {
     protected DirMult[] docTopics;
     protected double[][] v;         // L x K
     protected double[][] scores;    // D x L
+    protected int[] topicBuffer;    // K: non-zero topics of a document
     // internal
     private int numLabels;
     // info
@@ -265,6 +266,7 @@ public class SLDA extends AbstractSampler {
         }
 
         scores = new double[D][L];
+        topicBuffer = new int[K];
     }
 
     protected void initializeAssignments() {
@@ -573,8 +575,10 @@ public class SLDA extends AbstractSampler {
         double[] docNorms = new double[D];
         for (int d = 0; d < D; d++) {
             double[] expDocDPs = new double[L];
+            int numTopics = docTopics[d].getNonZeroObservations(topicBuffer);
             for (int l = 0; l < L; l++) {
-                for (int k : docTopics[d].getSparseCounts().getIndices()) {
+                for (int ii = 0; ii < numTopics; ii++) {
+                    int k = topicBuffer[ii];
                     expDocDPs[l] += v[l][k] * docTopics[d].getCount(k) / words[d].length;
                 }
                 expDocDPs[l] = Math.exp(expDocDPs[l]);
@@ -717,8 +721,10 @@ public class SLDA extends AbstractSampler {
         for (int d = 0; d < D; d++) {
             double[] docDotProds = new double[L];
             double docTotal = 0.0;
+            int numTopics = docTopics[d].getNonZeroObservations(topicBuffer);
             for (int l = 0; l < L; l++) {
-                for (int k : docTopics[d].getSparseCounts().getIndices()) {
+                for (int ii = 0; ii < numTopics; ii++) {
+                    int k = topicBuffer[ii];
                     docDotProds[l] += v[l][k] * docTopics[d].getCount(k) / words[d].length;
                 }
                 docTotal = SamplerUtils.logAdd(docTotal, docDotProds[l]);
@@ -757,8 +763,10 @@ public class SLDA extends AbstractSampler {
         for (int d = 0; d < D; d++) {
             double[] docDotProds = new double[L];
             double docTotal = 0.0;
+            int numTopics = docTopics[d].getNonZeroObservations(topicBuffer);
             for (int l = 0; l < L; l++) {
-                for (int k : docTopics[d].getSparseCounts().getIndices()) {
+                for (int ii = 0; ii < numTopics; ii++) {
+                    int k = topicBuffer[ii];
                     docDotProds[l] += v[l][k] * docTopics[d].getCount(k) / words[d].length;
                 }
                 docTotal = SamplerUtils.logAdd(docTotal, docDotProds[l]);
@@ -1019,7 +1027,6 @@ public class SLDA extends AbstractSampler {
                 threads.add(thread);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
             runThreads(threads);
 
         } catch (Exception e) {
@@ -1052,8 +1059,10 @@ public class SLDA extends AbstractSampler {
             for (int d = 0; d < D; d++) {
                 double[] docDotProds = new double[L];
                 double docTotal = 0.0;
+                int numTopics = docTopics[d].getNonZeroObservations(topicBuffer);
                 for (int l = 0; l < L; l++) {
-                    for (int k : docTopics[d].getSparseCounts().getIndices()) {
+                    for (int ii = 0; ii < numTopics; ii++) {
+                        int k = topicBuffer[ii];
                         docDotProds[l] += getParameter(l, k) * docTopics[d].getCount(k) / words[d].length;
                     }
                     docTotal = SamplerUtils.logAdd(docTotal, docDotProds[l]);
@@ -1086,8 +1095,10 @@ public class SLDA extends AbstractSampler {
             double[] docNorms = new double[D];
             for (int d = 0; d < D; d++) {
                 double[] expDocDPs = new double[L];
+                int numTopics = docTopics[d].getNonZeroObservations(topicBuffer);
                 for (int l = 0; l < L; l++) {
-                    for (int k : docTopics[d].getSparseCounts().getIndices()) {
+                    for (int ii = 0; ii < numTopics; ii++) {
+                        int k = topicBuffer[ii];
                         expDocDPs[l] += getParameter(l, k) * docTopics[d].getCount(k) / words[d].length;
                     }
                     expDocDPs[l] = Math.exp(expDocDPs[l]);
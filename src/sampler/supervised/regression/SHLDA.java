@@ -3665,7 +3665,7 @@ public class SHLDA extends AbstractSampler
 //                threads.add(thread);
 //            }
 //
-//            // run MAX_NUM_PARALLEL_THREADS threads at a time
+//            // run on the shared task executor
 //            runThreads(threads);
 //
 //        } catch (Exception e) {
@@ -3,6 +3,9 @@ package sampler.supervised.regression;
 import cc.mallet.optimize.LimitedMemoryBFGS;
 import core.AbstractExperiment;
 import core.AbstractSampler;
+import core.FlatCorpus;
+import core.ModelServer;
+import core.TaskExecutor;
 import data.ResponseTextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -13,11 +16,17 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Random;
+import optimization.DesignMatrix;
 import optimization.RidgeLinearRegressionOptimizable;
+import optimization.RidgeNormalEquations;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import sampler.unsupervised.LDA;
+import sampling.likelihood.ConcurrentDirMult;
 import sampling.likelihood.DirMult;
+import sampling.util.FoldIn;
+import sampling.util.ParallelSweep;
 import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
@@ -25,7 +34,6 @@ import util.MismatchRuntimeException;
 import util.PredictionUtils;
 import util.RankingItem;
 import util.SamplerUtils;
-import util.SparseVector;
 import util.StatUtils;
 import util.evaluation.Measurement;
 import util.evaluation.RegressionEvaluation;
@@ -40,11 +48,13 @@ public class SLDA extends AbstractSampler {
 
     public static final int ALPHA = 0;
     public static final int BETA = 1;
+    // incremental updates of the normal equations between two rebuilds
+    private static final int NORMAL_EQUATIONS_REBUILD_LAG = 20;
     protected double rho;
     protected double mu;
     protected double sigma;
     // inputs
-    protected int[][] words; // original documents
+    protected FlatCorpus corpus; // selected documents and their topic assignments
     protected double[] responses; // [D]: responses of selected documents
     protected ArrayList<Integer> docIndices; // [D]: indices of selected documents
     protected int K;
@@ -52,13 +62,16 @@ public class SLDA extends AbstractSampler {
     // derive
     protected int D;
     // latent variables
-    protected int[][] z;
     protected DirMult[] docTopics;
     protected DirMult[] topicWords;
     protected double[] regParams;
     // optimization
     protected double[] docMeans;
-    protected SparseVector[] designMatrix;
+    protected DesignMatrix designMatrix; // reused across iterations
+    protected boolean[] docChanged; // [D]: whether the row of a document is outdated
+    protected int[] topicBuffer; // [K]: non-zero topics of a document
+    protected RidgeNormalEquations normalEquations; // null unless solving in closed form
+    protected int numIncrementalUpdates; // of the normal equations since they were rebuilt
     // internal
     protected double sqrtRho;
     protected boolean hasBias;
@@ -87,6 +100,8 @@ public class SLDA extends AbstractSampler {
                 sampler.MAX_ITER,
                 sampler.LAG,
                 sampler.REP_INTERVAL);
+        this.foldInMode = sampler.foldInMode;
+        this.directRegression = sampler.directRegression;
     }
 
     public void configure(
@@ -172,7 +187,7 @@ public class SLDA extends AbstractSampler {
     }
 
     public int[][] getZs() {
-        return this.z;
+        return this.corpus.getZs();
     }
 
     public double[][] getThetas() {
@@ -229,19 +244,17 @@ public class SLDA extends AbstractSampler {
             }
         }
         this.D = this.docIndices.size();
-        this.words = new int[D][];
+        this.corpus = new FlatCorpus(docWords, this.docIndices);
         this.responses = null;
         if (docResponses != null) { // null if test data
             this.responses = new double[D]; // responses of considered documents
         }
-        this.numTokens = 0;
+        this.numTokens = corpus.getNumTokens();
         for (int ii = 0; ii < D; ii++) {
             int dd = this.docIndices.get(ii);
             if (docResponses != null) {
                 this.responses[ii] = docResponses[dd];
             }
-            this.words[ii] = docWords[dd];
-            this.numTokens += this.words[ii].length;
         }
 
         if (verbose) {
@@ -286,6 +299,9 @@ public class SLDA extends AbstractSampler {
         setTestConfigurations(BURN_IN / 2, MAX_ITER / 2, LAG / 2);
         inputModel(stateFile.toString());
         setupData(docWords, docIndices, null);
+        if (foldInMode != null) {
+            return testFoldIn(predictionFile);
+        }
         initializeDataStructure();
         if (hasBias) {
             for (int dd = 0; dd < D; dd++) {
@@ -338,6 +354,70 @@ public class SLDA extends AbstractSampler {
         return predictions;
     }
 
+    /**
+     * Predict the responses of the test documents using the fold-in engine
+     * with the topics and regression parameters of the loaded model fixed.
+     *
+     * @param predictionFile File storing the predictions
+     * @return Prediction on all documents
+     */
+    private double[] testFoldIn(File predictionFile) {
+        FoldIn foldIn = createFoldIn(FoldIn.getDistributions(topicWords),
+                hyperparams.get(ALPHA));
+        double[][] docTopicCounts = foldIn.infer(corpus.getWords());
+
+        double[] predictions = new double[D];
+        for (int dd = 0; dd < D; dd++) {
+            predictions[dd] = predictResponse(regParams, docTopicCounts[dd],
+                    corpus.getDocLength(dd));
+        }
+
+        if (predictionFile != null) {
+            ArrayList<double[]> predResponsesList = new ArrayList<double[]>();
+            predResponsesList.add(predictions);
+            PredictionUtils.outputSingleModelRegressions(predictionFile, predResponsesList);
+        }
+        return predictions;
+    }
+
+    /**
+     * Predict the response of a document from its expected topic counts.
+     *
+     * @param params The regression parameters
+     * @param docTopicCounts The expected number of tokens assigned to each
+     * topic
+     * @param docLength The number of tokens
+     */
+    private double predictResponse(double[] params, double[] docTopicCounts,
+            int docLength) {
+        double prediction = hasBias ? params[K] : 0.0;
+        for (int kk = 0; docLength > 0 && kk < K; kk++) {
+            prediction += params[kk] * docTopicCounts[kk] / docLength;
+        }
+        return prediction;
+    }
+
+    /**
+     * Load a trained model and return a scorer of new documents whose only
+     * score is the predicted response, with the topics inferred by the
+     * fold-in engine.
+     *
+     * @param stateFile File storing the trained model
+     */
+    public ModelServer.Scorer createScorer(String stateFile) {
+        inputModel(stateFile);
+        final FoldIn foldIn = createFoldIn(FoldIn.getDistributions(topicWords),
+                hyperparams.get(ALPHA));
+        final double[] params = regParams.clone();
+        return new ModelServer.Scorer() {
+            @Override
+            public double[] score(int[] doc) {
+                double[] docTopicCounts = foldIn.infer(doc, null, 0);
+                return new double[]{predictResponse(params, docTopicCounts, doc.length)};
+            }
+        };
+    }
+
     @Override
     public void initialize() {
         if (verbose) {
@@ -398,10 +478,7 @@ public class SLDA extends AbstractSampler {
     }
 
     protected void initializeDataStructure() {
-        z = new int[D][];
-        for (int dd = 0; dd < D; dd++) {
-            z[dd] = new int[words[dd].length];
-        }
+        corpus.initializeAssignments(K - 1);
 
         docTopics = new DirMult[D];
         for (int ii = 0; ii < D; ii++) {
@@ -409,6 +486,11 @@ public class SLDA extends AbstractSampler {
         }
 
         docMeans = new double[D];
+        designMatrix = null;
+        normalEquations = null;
+        numIncrementalUpdates = 0;
+        docChanged = new boolean[D];
+        topicBuffer = new int[K];
     }
 
     protected void initializeAssignments() {
@@ -426,10 +508,11 @@ public class SLDA extends AbstractSampler {
 
     private void initializeRandomAssignments() {
         for (int dd = 0; dd < D; dd++) {
-            for (int nn = 0; nn < words[dd].length; nn++) {
-                z[dd][nn] = rand.nextInt(K);
-                docTopics[dd].increment(z[dd][nn]);
-                topicWords[z[dd][nn]].increment(words[dd][nn]);
+            for (int ii = corpus.getDocStart(dd); ii < corpus.getDocEnd(dd); ii++) {
+                int kk = rand.nextInt(K);
+                corpus.setZ(ii, kk);
+                docTopics[dd].increment(kk);
+                topicWords[kk].increment(corpus.getWord(ii));
             }
         }
     }
@@ -445,16 +528,16 @@ public class SLDA extends AbstractSampler {
         int lda_samplelag = 10;
         double lda_alpha = hyperparams.get(ALPHA);
         double lda_beta = hyperparams.get(BETA);
-        LDA lda = runLDA(words, K, V, null, null, lda_alpha, lda_beta,
+        LDA lda = runLDA(corpus.getWords(), K, V, null, null, lda_alpha, lda_beta,
                 lda_burnin, lda_maxiter, lda_samplelag);
         int[][] ldaZ = lda.getZs();
 
         // initialize assignments
         for (int dd = 0; dd < D; dd++) {
-            for (int n = 0; n < words[dd].length; n++) {
-                z[dd][n] = ldaZ[dd][n];
-                docTopics[dd].increment(z[dd][n]);
-                topicWords[z[dd][n]].increment(words[dd][n]);
+            corpus.setDocZs(dd, ldaZ[dd]);
+            for (int ii = corpus.getDocStart(dd); ii < corpus.getDocEnd(dd); ii++) {
+                docTopics[dd].increment(corpus.getZ(ii));
+                topicWords[corpus.getZ(ii)].increment(corpus.getWord(ii));
             }
         }
     }
@@ -556,49 +639,37 @@ public class SLDA extends AbstractSampler {
      * @param addToData
      * @param observe Whether the response variable of this document is observed
      */
-    protected long sampleZs(boolean removeFromModel, boolean addToModel,
-            boolean removeFromData, boolean addToData,
-            boolean observe) {
+    protected long sampleZs(final boolean removeFromModel, final boolean addToModel,
+            final boolean removeFromData, final boolean addToData,
+            final boolean observe) {
         if (isReporting) {
             logln("+++ Sampling Zs ...");
         }
         numTokensChanged = 0;
         long sTime = System.currentTimeMillis();
-        for (int dd = 0; dd < D; dd++) {
-            for (int nn = 0; nn < words[dd].length; nn++) {
-                if (removeFromModel) {
-                    topicWords[z[dd][nn]].decrement(words[dd][nn]);
-                }
-                if (removeFromData) {
-                    docTopics[dd].decrement(z[dd][nn]);
-                    docMeans[dd] -= regParams[z[dd][nn]] / words[dd].length;
-                }
-
-                double[] logprobs = new double[K];
-                for (int k = 0; k < K; k++) {
-                    logprobs[k] = Math.log(docTopics[dd].getCount(k) + hyperparams.get(ALPHA))
-                            + Math.log(topicWords[k].getProbability(words[dd][nn]));
-                    if (observe) {
-                        double mean = docMeans[dd] + regParams[k] / words[dd].length;
-                        logprobs[k] += StatUtils.logNormalProbability(responses[dd], mean, sqrtRho);
-                    }
-                }
-
-                int sampledZ = SamplerUtils.logMaxRescaleSample(logprobs);
-
-                if (z[dd][nn] != sampledZ) {
-                    numTokensChanged++; // for debugging
-                }
-                // update
-                z[dd][nn] = sampledZ;
-
-                if (addToModel) {
-                    topicWords[z[dd][nn]].increment(words[dd][nn]);
-                }
-                if (addToData) {
-                    docTopics[dd].increment(z[dd][nn]);
-                    docMeans[dd] += regParams[z[dd][nn]] / words[dd].length;
-                }
+        if (numThreads > 1 && removeFromModel == addToModel) {
+            int[] docLengths = new int[D];
+            for (int dd = 0; dd < D; dd++) {
+                docLengths[dd] = corpus.getDocLength(dd);
+            }
+            if (sharedCounts && !ConcurrentDirMult.isShared(topicWords)) {
+                topicWords = ConcurrentDirMult.share(topicWords);
+            }
+            numTokensChanged = ParallelSweep.sweep(topicWords, docLengths,
+                    numThreads, rand.nextLong(), removeFromModel, new ParallelSweep.DocumentSampler() {
+                        @Override
+                        public int sampleDocument(int dd, DirMult[] workerTopicWords,
+                                ParallelSweep.Worker worker) {
+                            return sampleZs(dd, workerTopicWords, worker,
+                                    removeFromModel, addToModel,
+                                    removeFromData, addToData, observe);
+                        }
+                    });
+        } else {
+            for (int dd = 0; dd < D; dd++) {
+                numTokensChanged += sampleZs(dd, topicWords, null,
+                        removeFromModel, addToModel,
+                        removeFromData, addToData, observe);
             }
         }
 
@@ -614,25 +685,165 @@ public class SLDA extends AbstractSampler {
     }
 
     /**
-     * Update regression parameters by optimizing using L-BFGS.
+     * Sample topic assignments for all tokens in a document.
+     *
+     * @param dd The document index
+     * @param topicWordCounts The topic-word counts to sample against
+     * @param worker The parallel worker to report topic changes to, or null if
+     * sampling sequentially
+     * @param removeFromModel
+     * @param addToModel
+     * @param removeFromData
+     * @param addToData
+     * @param observe Whether the response variable of this document is observed
+     * @return The number of tokens whose topic changed
+     */
+    protected int sampleZs(int dd, DirMult[] topicWordCounts,
+            ParallelSweep.Worker worker,
+            boolean removeFromModel, boolean addToModel,
+            boolean removeFromData, boolean addToData,
+            boolean observe) {
+        Random r = worker == null ? SamplerUtils.rand : worker.getRandom();
+        int numChanged = 0;
+        int docLength = corpus.getDocLength(dd);
+        for (int ii = corpus.getDocStart(dd); ii < corpus.getDocEnd(dd); ii++) {
+            int ww = corpus.getWord(ii);
+            int curZ = corpus.getZ(ii);
+            if (removeFromModel) {
+                topicWordCounts[curZ].decrement(ww);
+            }
+            if (removeFromData) {
+                docTopics[dd].decrement(curZ);
+                docMeans[dd] -= regParams[curZ] / docLength;
+            }
+
+            double[] logprobs = new double[K];
+            for (int k = 0; k < K; k++) {
+                logprobs[k] = Math.log(docTopics[dd].getCount(k) + hyperparams.get(ALPHA))
+                        + Math.log(topicWordCounts[k].getProbability(ww));
+                if (observe) {
+                    double mean = docMeans[dd] + regParams[k] / docLength;
+                    logprobs[k] += StatUtils.logNormalProbability(responses[dd], mean, sqrtRho);
+                }
+            }
+
+            int sampledZ = SamplerUtils.logMaxRescaleSample(logprobs, r);
+
+            if (curZ != sampledZ) {
+                numChanged++;
+                if (worker != null && removeFromModel) {
+                    worker.recordMove(ww, curZ, sampledZ);
+                }
+            }
+            // update
+            corpus.setZ(ii, sampledZ);
+
+            if (addToModel) {
+                topicWordCounts[sampledZ].increment(ww);
+            }
+            if (addToData) {
+                docTopics[dd].increment(sampledZ);
+                docMeans[dd] += regParams[sampledZ] / docLength;
+            }
+        }
+        if (numChanged > 0) {
+            docChanged[dd] = true;
+        }
+        return numChanged;
+    }
+
+    /**
+     * Update the rows of the design matrix of the documents whose topic
+     * counts have changed since the last update, or all rows if the matrix
+     * has not been created. When solving in closed form, which is only done
+     * with at most RidgeNormalEquations.MAX_NUM_PARAMETERS parameters, the
+     * normal equations are updated with the changed rows. They are rebuilt
+     * from all rows instead when more than half of the rows have changed, and
+     * every NORMAL_EQUATIONS_REBUILD_LAG updates so that the rounding errors
+     * of removing and adding rows do not accumulate.
+     */
+    private void updateDesignMatrix() {
+        int numCols = hasBias ? K + 1 : K;
+        boolean closedForm = directRegression
+                && numCols <= RidgeNormalEquations.MAX_NUM_PARAMETERS;
+        boolean all = designMatrix == null;
+        if (all) {
+            designMatrix = new DesignMatrix(D, numCols);
+        }
+        int numChanged = 0;
+        for (int dd = 0; dd < D; dd++) {
+            if (all || docChanged[dd]) {
+                numChanged++;
+            }
+        }
+        boolean rebuild = closedForm && (normalEquations == null || 2 * numChanged > D
+                || numIncrementalUpdates >= NORMAL_EQUATIONS_REBUILD_LAG);
+        boolean incremental = closedForm && !rebuild;
+        if (!closedForm) {
+            normalEquations = null;
+        }
+
+        double weight = 1.0 / (rho * rho);
+        for (int dd = 0; dd < D; dd++) {
+            if (!all && !docChanged[dd]) {
+                continue;
+            }
+            docChanged[dd] = false;
+            if (incremental) {
+                normalEquations.removeInstance(designMatrix, dd, responses[dd], weight);
+            }
+            designMatrix.clearRow(dd);
+            int numTopics = docTopics[dd].getNonZeroObservations(topicBuffer);
+            for (int ii = 0; ii < numTopics; ii++) {
+                int kk = topicBuffer[ii];
+                designMatrix.add(dd, kk,
+                        (double) docTopics[dd].getCount(kk) / corpus.getDocLength(dd));
+            }
+            if (hasBias) {
+                designMatrix.add(dd, K, 1.0);
+            }
+            if (incremental) {
+                normalEquations.addInstance(designMatrix, dd, responses[dd], weight);
+            }
+        }
+
+        if (rebuild) {
+            normalEquations = new RidgeNormalEquations(numCols);
+            for (int dd = 0; dd < D; dd++) {
+                normalEquations.addInstance(designMatrix, dd, responses[dd], weight);
+            }
+            numIncrementalUpdates = 0;
+        } else if (incremental) {
+            numIncrementalUpdates++;
+        }
+    }
+
+    /**
+     * Update regression parameters, in closed form if set, or by optimizing
+     * using L-BFGS.
      */
     private long updateTopicRegressionParameters() {
         if (isReporting) {
             logln("+++ Updating etas ...");
         }
         long sTime = System.currentTimeMillis();
-        designMatrix = new SparseVector[D];
-        for (int dd = 0; dd < D; dd++) {
-            if (hasBias) {
-                designMatrix[dd] = new SparseVector(K + 1);
-                designMatrix[dd].set(K, 1.0);
-            } else {
-                designMatrix[dd] = new SparseVector(K);
+        updateDesignMatrix();
+
+        double[] solution = normalEquations == null ? null : normalEquations.solve(mu, sigma);
+        if (solution != null) {
+            System.arraycopy(solution, 0, regParams, 0, regParams.length);
+            for (int dd = 0; dd < D; dd++) {
+                this.docMeans[dd] = designMatrix.dotprod(dd, regParams);
             }
-            for (int k : docTopics[dd].getSparseCounts().getIndices()) {
-                double val = (double) docTopics[dd].getCount(k) / z[dd].length;
-                designMatrix[dd].change(k, val);
+
+            long eTime = System.currentTimeMillis() - sTime;
+            if (isReporting) {
+                evaluateRegressPrediction(responses, docMeans);
+                logln("--- " + designMatrix.getNumRows() + " x " + regParams.length
+                        + ". Solved in closed form");
+                logln("--- --- time: " + eTime);
             }
+            return eTime;
         }
 
         RidgeLinearRegressionOptimizable optimizable = new RidgeLinearRegressionOptimizable(
@@ -652,17 +863,14 @@ public class SLDA extends AbstractSampler {
         }
 
         // update current predictions
-        this.docMeans = new double[D];
         for (int dd = 0; dd < D; dd++) {
-            for (int kk : designMatrix[dd].getIndices()) {
-                this.docMeans[dd] += designMatrix[dd].get(kk) * regParams[kk];
-            }
+            this.docMeans[dd] = optimizable.getPrediction(dd);
         }
 
         long eTime = System.currentTimeMillis() - sTime;
         if (isReporting) {
             evaluateRegressPrediction(responses, docMeans);
-            logln("--- " + designMatrix.length + " x " + optimizable.getNumParameters());
+            logln("--- " + designMatrix.getNumRows() + " x " + optimizable.getNumParameters());
             logln("--- converged? " + converged);
             logln("--- --- time: " + eTime);
         }
@@ -798,8 +1006,8 @@ public class SLDA extends AbstractSampler {
                 assignStr.append(dd).append("\n");
                 assignStr.append(DirMult.output(docTopics[dd])).append("\n");
 
-                for (int n = 0; n < z[dd].length; n++) {
-                    assignStr.append(z[dd][n]).append("\t");
+                for (int ii = corpus.getDocStart(dd); ii < corpus.getDocEnd(dd); ii++) {
+                    assignStr.append(corpus.getZ(ii)).append("\t");
                 }
                 assignStr.append("\n");
             }
@@ -879,8 +1087,8 @@ public class SLDA extends AbstractSampler {
                 docTopics[d] = DirMult.input(reader.readLine());
 
                 String[] sline = reader.readLine().split("\t");
-                for (int n = 0; n < z[d].length; n++) {
-                    z[d][n] = Integer.parseInt(sline[n]);
+                for (int n = 0; n < corpus.getDocLength(d); n++) {
+                    corpus.setZ(corpus.getDocStart(d) + n, Integer.parseInt(sline[n]));
                 }
             }
             reader.close();
@@ -963,7 +1171,7 @@ public class SLDA extends AbstractSampler {
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             ArrayList<File> partPredFiles = new ArrayList<>();
             for (String filename : filenames) { // all learned models
                 if (!filename.contains("zip")) {
@@ -976,13 +1184,11 @@ public class SLDA extends AbstractSampler {
                 SLDATestRunner runner = new SLDATestRunner(sampler,
                         newWords, newDocIndices, stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
                 partPredFiles.add(partialResultFile);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            TaskExecutor.run(tasks, sampler.verbose, MAX_NUM_PARALLEL_THREADS);
 
             // average predictions
             avgPredictions = PredictionUtils.computeMultipleAverage(partPredFiles);
@@ -1067,6 +1273,13 @@ public class SLDA extends AbstractSampler {
 
         // configurations
         addOption("init", "Initialization");
+        addOption("num-threads", "Number of threads for sampling and parallel testing");
+        addOption("fold-in", "Test-time inference with fixed topics "
+                + "(none, gibbs, icm or variational)");
+        options.addOption("shared-counts", false, "Share lock-free topic-word "
+                + "counts across sampling threads");
+        options.addOption("direct-regression", false, "Solve the regression "
+                + "parameters in closed form instead of by L-BFGS");
 
         options.addOption("v", false, "verbose");
         options.addOption("d", false, "debug");
@@ -1127,6 +1340,14 @@ public class SLDA extends AbstractSampler {
         sampler.setLog(true);
         sampler.setReport(true);
         sampler.setWordVocab(data.getWordVocab());
+        sampler.setNumThreads(CLIUtils.getIntegerArgument(cmd, "num-threads", 1));
+        if (cmd.hasOption("num-threads")) {
+            TaskExecutor.setNumThreads(sampler.getNumThreads());
+        }
+        sampler.setSharedCounts(cmd.hasOption("shared-counts"));
+        sampler.setDirectRegression(cmd.hasOption("direct-regression"));
+        sampler.setFoldInMode(getFoldInMode(
+                CLIUtils.getStringArgument(cmd, "fold-in", "none")));
 
         sampler.configure(outputFolder, V, K,
                 alpha, beta, rho, mu, sigma,
@@ -21,6 +21,7 @@ import java.util.LinkedList;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import optimization.DesignMatrix;
 import optimization.RidgeLinearRegressionOptimizable;
 import optimization.RidgeLogisticRegressionOptimizable;
 import org.apache.commons.cli.BasicParser;
@@ -35,7 +36,6 @@ import util.MismatchRuntimeException;
 import util.PredictionUtils;
 import util.RankingItem;
 import util.SamplerUtils;
-import util.SparseVector;
 import util.StatUtils;
 import util.evaluation.Measurement;
 import util.evaluation.RegressionEvaluation;
@@ -1140,22 +1140,18 @@ public class SNLDA extends AbstractSampler {
         int N = nodeList.size();
 
         // design matrix
-        SparseVector[] designMatrix = new SparseVector[D];
-        for (int aa = 0; aa < D; aa++) {
-            designMatrix[aa] = new SparseVector(N);
-        }
-
+        DesignMatrix designMatrix = new DesignMatrix(D, N);
         for (int kk = 0; kk < N; kk++) {
             Node node = nodeList.get(kk);
             if (node.isRoot()) {
                 for (int dd = 0; dd < D; dd++) {
-                    designMatrix[dd].set(kk, 1.0);
+                    designMatrix.add(dd, kk, 1.0);
                 }
             } else {
                 for (int dd : node.subtreeDocCounts.getIndices()) {
                     int count = node.subtreeDocCounts.getCount(dd);
                     double val = (double) count / this.words[dd].length;
-                    designMatrix[dd].change(kk, val);
+                    designMatrix.add(dd, kk, val);
                 }
             }
         }
@@ -1202,10 +1198,7 @@ public class SNLDA extends AbstractSampler {
 
         // update document means
         for (int dd = 0; dd < D; dd++) {
-            docMeans[dd] = 0.0;
-            for (int kk : designMatrix[dd].getIndices()) {
-                docMeans[dd] += designMatrix[dd].get(kk) * nodeList.get(kk).eta;
-            }
+            docMeans[dd] = designMatrix.dotprod(dd, etaArray);
         }
 
         // update path thetas
@@ -1214,7 +1207,7 @@ public class SNLDA extends AbstractSampler {
         long eTime = System.currentTimeMillis() - sTime;
         if (isReporting) {
             logln("--- converged? " + converged
-                    + ". " + designMatrix.length + " x " + nodeList.size());
+                    + ". " + designMatrix.getNumRows() + " x " + nodeList.size());
             logln("--- --- time: " + eTime);
             evaluatePerformances();
         }
@@ -2242,7 +2235,6 @@ public class SNLDA extends AbstractSampler {
                 partPredFiles.add(iterOutputPredFile);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
             runThreads(threads);
 
             // average predictions
@@ -1163,7 +1163,6 @@ public class SHDP extends AbstractSampler implements Regressor<ResponseTextDatas
                 threads.add(thread);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
             runThreads(threads);
 
         } catch (Exception e) {
@@ -1108,7 +1108,6 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
                 threads.add(thread);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
             runThreads(threads);
 
         } catch (Exception e) {
@@ -2,6 +2,7 @@ package sampler.unsupervised;
 
 import cc.mallet.types.Dirichlet;
 import core.AbstractSampler;
+import core.Hyperparameters;
 import data.TextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -9,10 +10,9 @@ import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import org.apache.commons.cli.BasicParser;
@@ -24,9 +24,18 @@ import util.IOUtils;
 import util.MiscUtils;
 import util.RankingItem;
 import util.SamplerUtils;
-import util.SparseVector;
 
 /**
+ * Hierarchical Dirichlet process topic model, sampled with the direct
+ * assignment sampler.
+ *
+ * The active topics are kept in a compact array, so sampling a token is a
+ * single pass over primitive buffers that are reused across tokens. The table
+ * counts of each document are kept between iterations together with their
+ * total per topic, and only the documents whose assignments changed are
+ * resampled before the global weights, with a full pass every
+ * TABLE_REFRESH_INTERVAL iterations. A topic created while sampling takes its
+ * weight from the stick of new topics instead of resampling all weights.
  *
  * @author vietan
  */
@@ -36,6 +45,8 @@ public class HDP extends AbstractSampler {
     public static final int ALPHA_GLOBAL = 0;
     public static final int ALPHA_LOCAL = 1;
     public static final int BETA = 2;
+    public static final int TABLE_REFRESH_INTERVAL = 10;
+    protected int betaSumHandle; // handle of beta * V
     // inputs
     protected int[][] words; // original documents
     protected ArrayList<Integer> docIndices; // [D]: indices of considered docs
@@ -44,12 +55,16 @@ public class HDP extends AbstractSampler {
     // derived
     protected int D; // number of documents
     // latent
-    private SparseVector globalWeights;
+    private double newTopicWeight; // global weight of new topics
     private SparseCount[] docTopics;
+    private SparseCount[] docTables; // [D]: number of tables of each topic
     private Topics topicWords;
     private int[][] z;
     // internal
     private double uniform;
+    private double[] cumProbs = new double[16]; // reused when sampling a token
+    private boolean[] docChanged; // [D]: whether the table counts are outdated
+    private boolean tablesStale; // whether all table counts are outdated
 
     public HDP() {
         this.basename = "HDP";
@@ -72,10 +87,12 @@ public class HDP extends AbstractSampler {
         this.V = V;
         this.uniform = 1.0 / V;
 
-        this.hyperparams = new ArrayList<Double>();
-        this.hyperparams.add(alpha_global);
-        this.hyperparams.add(alpha_local);
-        this.hyperparams.add(beta);
+        Hyperparameters params = new Hyperparameters();
+        params.add("alpha-global", alpha_global);
+        params.add("alpha-local", alpha_local);
+        params.add("beta", beta);
+        this.betaSumHandle = params.addProduct(BETA, V);
+        setHyperparameters(params);
 
         this.sampledParams = new ArrayList<ArrayList<Double>>();
         this.sampledParams.add(cloneHyperparameters());
@@ -94,9 +111,9 @@ public class HDP extends AbstractSampler {
         if (verbose) {
             logln("--- folder\t" + folder);
             logln("--- vocab size:\t" + V);
-            logln("--- alpha-global:\t" + MiscUtils.formatDouble(hyperparams.get(ALPHA_GLOBAL)));
-            logln("--- alpha-local:\t" + MiscUtils.formatDouble(hyperparams.get(ALPHA_LOCAL)));
-            logln("--- beta:\t" + MiscUtils.formatDouble(hyperparams.get(BETA)));
+            logln("--- alpha-global:\t" + MiscUtils.formatDouble(hyperparameters.get(ALPHA_GLOBAL)));
+            logln("--- alpha-local:\t" + MiscUtils.formatDouble(hyperparameters.get(ALPHA_LOCAL)));
+            logln("--- beta:\t" + MiscUtils.formatDouble(hyperparameters.get(BETA)));
             logln("--- burn-in:\t" + BURN_IN);
             logln("--- max iter:\t" + MAX_ITER);
             logln("--- sample lag:\t" + LAG);
@@ -121,9 +138,9 @@ public class HDP extends AbstractSampler {
                 .append("_B-").append(BURN_IN)
                 .append("_M-").append(MAX_ITER)
                 .append("_L-").append(LAG)
-                .append("_ag-").append(formatter.format(hyperparams.get(ALPHA_GLOBAL)))
-                .append("_al-").append(formatter.format(hyperparams.get(ALPHA_LOCAL)))
-                .append("_b-").append(formatter.format(hyperparams.get(BETA)));
+                .append("_ag-").append(formatter.format(hyperparameters.get(ALPHA_GLOBAL)))
+                .append("_al-").append(formatter.format(hyperparameters.get(ALPHA_LOCAL)))
+                .append("_b-").append(formatter.format(hyperparameters.get(BETA)));
         str.append("_opt-").append(this.paramOptimized);
         this.name = str.toString();
     }
@@ -184,19 +201,21 @@ public class HDP extends AbstractSampler {
 
     protected void initializeModelStructure() {
         this.topicWords = new Topics();
-
-        this.globalWeights = new SparseVector();
-        this.globalWeights.set(NEW_COMPONENT_INDEX, 1.0);
+        this.newTopicWeight = 1.0;
     }
 
     protected void initializeDataStructure() {
         z = new int[D][];
         docTopics = new SparseCount[D];
+        docTables = new SparseCount[D];
         for (int ii = 0; ii < D; ii++) {
             int dd = docIndices.get(ii);
             z[ii] = new int[words[dd].length];
             docTopics[ii] = new SparseCount();
+            docTables[ii] = new SparseCount();
         }
+        docChanged = new boolean[D];
+        tablesStale = true;
     }
 
     protected void initializeAssignments() {
@@ -271,7 +290,7 @@ public class HDP extends AbstractSampler {
         }
 
         for (int kk = 0; kk < K; kk++) {
-            DirMult topicWord = new DirMult(V, hyperparams.get(BETA) * V, uniform);
+            DirMult topicWord = new DirMult(V, hyperparameters.getProduct(betaSumHandle), uniform);
             topicWords.createNewComponent(kk, new Topic(iter, topicWord));
         }
 
@@ -284,12 +303,11 @@ public class HDP extends AbstractSampler {
         }
 
         // initialize tau
-        double mean = 1.0 / (K + hyperparams.get(ALPHA_GLOBAL));
+        double mean = 1.0 / (K + hyperparameters.get(ALPHA_GLOBAL));
         for (int kk = 0; kk < K; kk++) {
-            this.globalWeights.set(kk, mean);
+            topicWords.getComponent(kk).weight = mean;
         }
-        this.globalWeights.set(NEW_COMPONENT_INDEX,
-                hyperparams.get(ALPHA_GLOBAL) / (K + hyperparams.get(ALPHA_GLOBAL)));
+        this.newTopicWeight = hyperparameters.get(ALPHA_GLOBAL) / (K + hyperparameters.get(ALPHA_GLOBAL));
 
         sampleGlobalWeights();
     }
@@ -345,10 +363,7 @@ public class HDP extends AbstractSampler {
             if (iter % LAG == 0 && iter > BURN_IN) {
                 if (paramOptimized) { // slice sampling
                     sliceSample();
-                    ArrayList<Double> sparams = new ArrayList<Double>();
-                    for (double param : this.hyperparams) {
-                        sparams.add(param);
-                    }
+                    ArrayList<Double> sparams = cloneHyperparameters();
                     this.sampledParams.add(sparams);
 
                     if (verbose) {
@@ -393,114 +408,160 @@ public class HDP extends AbstractSampler {
 
     private void sampleZs(boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
-        double totalBeta = hyperparams.get(BETA) * V;
+        double alphaGlobal = hyperparameters.get(ALPHA_GLOBAL);
+        double alphaLocal = hyperparameters.get(ALPHA_LOCAL);
+        double beta = hyperparameters.get(BETA);
+        double totalBeta = hyperparameters.getProduct(betaSumHandle);
         for (int ii = 0; ii < D; ii++) {
             int dd = docIndices.get(ii);
+            SparseCount docTopicCounts = docTopics[ii];
             for (int nn = 0; nn < words[dd].length; nn++) {
+                int w = words[dd][nn];
                 int curZ = z[ii][nn];
                 if (removeFromData) {
-                    this.docTopics[ii].decrement(curZ);
+                    docTopicCounts.decrement(curZ);
                 }
 
                 if (removeFromModel) {
-                    this.topicWords.getComponent(curZ).phi.decrement(words[dd][nn]);
-                    if (this.topicWords.getComponent(curZ).phi.isEmpty()) {
+                    Topic topic = topicWords.getComponent(curZ);
+                    topic.phi.decrement(w);
+                    if (topic.phi.isEmpty()) { // return its weight to the stick
+                        newTopicWeight += topic.weight;
                         topicWords.removeComponent(curZ);
-                        globalWeights.remove(curZ);
                     }
                 }
 
-                ArrayList<Integer> indices = new ArrayList<Integer>();
-                ArrayList<Double> probs = new ArrayList<Double>();
-                for (int k : topicWords.getIndices()) {
-                    indices.add(k);
-                    double docTopicProb = docTopics[ii].getCount(k)
-                            + hyperparams.get(ALPHA_LOCAL) * globalWeights.get(k);
-                    double topicWordProb = topicWords.getComponent(k).getPhi(words[dd][nn]);
-                    probs.add(docTopicProb * topicWordProb);
+                int numActives = topicWords.getNumComponents();
+                if (cumProbs.length <= numActives) {
+                    cumProbs = new double[2 * (numActives + 1)];
                 }
-
+                double sum = 0.0;
+                for (int jj = 0; jj < numActives; jj++) {
+                    Topic topic = topicWords.getActive(jj);
+                    sum += (docTopicCounts.getCount(topic.index) + alphaLocal * topic.weight)
+                            * (topic.phi.getCount(w) + beta)
+                            / (topic.phi.getCountSum() + totalBeta);
+                    cumProbs[jj] = sum;
+                }
+                int numOptions = numActives;
                 if (addToModel) {
-                    indices.add(NEW_COMPONENT_INDEX);
-                    double docTopicProb = hyperparams.get(ALPHA_LOCAL)
-                            * globalWeights.get(NEW_COMPONENT_INDEX);
-                    double topicWordProb = uniform;
-                    probs.add(docTopicProb * topicWordProb);
+                    sum += alphaLocal * newTopicWeight * uniform;
+                    cumProbs[numOptions++] = sum;
                 }
 
-                int sampledIdx = SamplerUtils.scaleSample(probs);
-                int newZ = indices.get(sampledIdx);
+                int sampledIdx = sampleCumulative(cumProbs, numOptions);
+                int newZ;
+                if (sampledIdx == numActives) { // new topic
+                    newZ = topicWords.getNextIndex();
+                    Topic topic = new Topic(iter, new DirMult(V, totalBeta, uniform));
+                    // break the stick of new topics with a Beta(1, alpha_global) draw
+                    double b = 1.0 - Math.pow(SamplerUtils.rand.nextDouble(), 1.0 / alphaGlobal);
+                    topic.weight = b * newTopicWeight;
+                    newTopicWeight -= topic.weight;
+                    topicWords.createNewComponent(newZ, topic);
+                } else {
+                    newZ = topicWords.getActive(sampledIdx).index;
+                }
 
                 if (curZ != newZ) {
                     numTokensChanged++;
-                }
-
-                boolean newTopic = false;
-                if (newZ == NEW_COMPONENT_INDEX) {
-                    newZ = topicWords.getNextIndex();
-                    DirMult topicWord = new DirMult(V, totalBeta, uniform);
-                    topicWords.createNewComponent(newZ, new Topic(iter, topicWord));
-                    globalWeights.set(newZ, 0.0); // temporarily assigned
-                    newTopic = true;
+                    docChanged[ii] = true;
                 }
                 z[ii][nn] = newZ;
 
                 if (addToData) {
-                    this.docTopics[ii].increment(newZ);
+                    docTopicCounts.increment(newZ);
                 }
 
                 if (addToModel) {
-                    this.topicWords.getComponent(newZ).phi.increment(words[dd][nn]);
-                }
-
-                if (newTopic) { // if new topic is created, update SBP weights
-                    sampleGlobalWeights();
+                    topicWords.getComponent(newZ).phi.increment(w);
                 }
             }
         }
     }
 
     /**
-     * Sample global distribution over topics.
+     * Sample an index given cumulative unnormalized probabilities.
+     *
+     * @param cumProbs The cumulative probabilities
+     * @param size The number of options
      */
-    private void sampleGlobalWeights() {
-        if (globalWeights.size() != topicWords.getNumComponents() + 1) {
-            throw new RuntimeException("Mismatch: " + globalWeights.size()
-                    + " vs. " + topicWords.getNumComponents());
+    private static int sampleCumulative(double[] cumProbs, int size) {
+        double randValue = SamplerUtils.rand.nextDouble() * cumProbs[size - 1];
+        int lo = 0;
+        int hi = size - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (randValue < cumProbs[mid]) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
         }
+        return lo;
+    }
 
-        SparseCount counts = new SparseCount();
-        for (int k : topicWords.getIndices()) {
-            for (int ii = 0; ii < D; ii++) {
-                int count = docTopics[ii].getCount(k);
-                if (count > 1) {
-                    int c = SamplerUtils.randAntoniak(
-                            hyperparams.get(ALPHA_LOCAL) * globalWeights.get(k),
-                            count);
-                    counts.changeCount(k, c);
-                } else {
-                    counts.changeCount(k, count);
-                }
+    /**
+     * Sample global distribution over topics. The table counts are first
+     * resampled for the documents whose assignments have changed since they
+     * were last sampled, or for all documents every TABLE_REFRESH_INTERVAL
+     * iterations.
+     */
+    private void sampleGlobalWeights() {
+        boolean refreshAll = tablesStale || iter % TABLE_REFRESH_INTERVAL == 0;
+        double alphaLocal = hyperparameters.get(ALPHA_LOCAL);
+        for (int ii = 0; ii < D; ii++) {
+            if (refreshAll || docChanged[ii]) {
+                sampleTables(ii, alphaLocal);
+                docChanged[ii] = false;
             }
         }
-        double[] dirPrior = new double[topicWords.getNumComponents() + 1];
-        ArrayList<Integer> indices = new ArrayList<Integer>();
+        tablesStale = false;
+        topicWords.releaseRemoved(); // no table count refers to them anymore
 
-        int idx = 0;
-        for (int kk : topicWords.getIndices()) {
-            indices.add(kk);
-            dirPrior[idx++] = counts.getCount(kk);
+        int numActives = topicWords.getNumComponents();
+        double[] dirPrior = new double[numActives + 1];
+        for (int jj = 0; jj < numActives; jj++) {
+            dirPrior[jj] = topicWords.getActive(jj).numTables;
         }
-
-        indices.add(NEW_COMPONENT_INDEX);
-        dirPrior[idx] = hyperparams.get(ALPHA_GLOBAL);
+        dirPrior[numActives] = hyperparameters.get(ALPHA_GLOBAL);
 
         Dirichlet dir = new Dirichlet(dirPrior);
         double[] wts = dir.nextDistribution();
-        this.globalWeights = new SparseVector();
-        for (int ii = 0; ii < wts.length; ii++) {
-            this.globalWeights.set(indices.get(ii), wts[ii]);
+        for (int jj = 0; jj < numActives; jj++) {
+            topicWords.getActive(jj).weight = wts[jj];
         }
+        this.newTopicWeight = wts[numActives];
+    }
+
+    /**
+     * Sample the number of tables of each topic in a document and update the
+     * total number of tables of each topic.
+     *
+     * @param ii The document index
+     * @param alphaLocal The concentration parameter of the document
+     */
+    private void sampleTables(int ii, double alphaLocal) {
+        SparseCount tables = docTables[ii];
+        for (int sl = tables.nextSlot(-1); sl >= 0; sl = tables.nextSlot(sl)) {
+            Topic topic = topicWords.getComponent(tables.getSlotIndex(sl));
+            if (topic != null) {
+                topic.numTables -= tables.getSlotCount(sl);
+            }
+        }
+        tables = new SparseCount();
+        SparseCount counts = docTopics[ii];
+        for (int sl = counts.nextSlot(-1); sl >= 0; sl = counts.nextSlot(sl)) {
+            int k = counts.getSlotIndex(sl);
+            int count = counts.getSlotCount(sl);
+            Topic topic = topicWords.getComponent(k);
+            if (count > 1) {
+                count = SamplerUtils.randAntoniak(alphaLocal * topic.weight, count);
+            }
+            tables.setCount(k, count);
+            topic.numTables += count;
+        }
+        docTables[ii] = tables;
     }
 
     @Override
@@ -529,6 +590,19 @@ public class HDP extends AbstractSampler {
         for (int k : topicWords.getIndices()) {
             topicWords.getComponent(k).phi.validate(msg);
         }
+        if (!tablesStale) {
+            SparseCount topicTables = new SparseCount();
+            for (int ii = 0; ii < D; ii++) {
+                topicTables.add(docTables[ii]);
+            }
+            for (int k : topicWords.getIndices()) {
+                if (topicTables.getCount(k) != topicWords.getComponent(k).numTables) {
+                    throw new RuntimeException(msg + ". Num tables mismatch for topic " + k
+                            + ". " + topicTables.getCount(k)
+                            + " vs. " + topicWords.getComponent(k).numTables);
+                }
+            }
+        }
     }
 
     @Override
@@ -549,7 +623,7 @@ public class HDP extends AbstractSampler {
             for (int k : topicWords.getSortedIndices()) {
                 Topic topic = topicWords.getComponent(k);
                 modelStr.append(k).append("\n");
-                modelStr.append(globalWeights.get(k)).append("\n");
+                modelStr.append(topic.weight).append("\n");
                 modelStr.append(topic.born).append("\n");
                 modelStr.append(DirMult.output(topic.phi)).append("\n");
             }
@@ -598,7 +672,7 @@ public class HDP extends AbstractSampler {
         try {
             // initialize
             this.topicWords = new Topics();
-            this.globalWeights = new SparseVector();
+            this.newTopicWeight = 1.0;
 
             String filename = IOUtils.removeExtension(IOUtils.getFilename(zipFilepath));
             BufferedReader reader = IOUtils.getBufferedReader(zipFilepath, filename + ModelFileExt);
@@ -606,12 +680,15 @@ public class HDP extends AbstractSampler {
             while ((line = reader.readLine()) != null) {
                 int k = Integer.parseInt(line);
                 double weight = Double.parseDouble(reader.readLine());
-                this.globalWeights.set(k, weight);
+                this.newTopicWeight -= weight;
 
                 int born = Integer.parseInt(reader.readLine());
                 DirMult topicWord = DirMult.input(reader.readLine());
-                topicWords.createNewComponent(k, new Topic(born, topicWord));
+                Topic topic = new Topic(born, topicWord);
+                topic.weight = weight;
+                topicWords.createNewComponent(k, topic);
             }
+            this.newTopicWeight = Math.max(0.0, this.newTopicWeight);
             this.topicWords.fillInactives();
             reader.close();
         } catch (Exception e) {
@@ -693,6 +770,10 @@ public class HDP extends AbstractSampler {
 
         private final int born;
         private DirMult phi;
+        private int index;
+        private int position; // in the array of active topics
+        private double weight; // global weight
+        private int numTables; // total number of tables over all documents
 
         public Topic(int born, DirMult phi) {
             this.born = born;
@@ -700,53 +781,88 @@ public class HDP extends AbstractSampler {
         }
 
         public double getPhi(int w) {
-            return (phi.getCount(w) + hyperparams.get(BETA))
-                    / (phi.getCountSum() + hyperparams.get(BETA) * V);
+            return (phi.getCount(w) + hyperparameters.get(BETA))
+                    / (phi.getCountSum() + hyperparameters.getProduct(betaSumHandle));
         }
     }
 
+    /**
+     * The topics, indexed by their topic indices and by their positions in a
+     * compact array of active topics. The indices of removed topics are only
+     * reused after they are released, so that the table counts that still
+     * refer to them can be cleared first.
+     */
     class Topics {
 
-        private final HashMap<Integer, Topic> actives;
+        private Topic[] components; // indexed by topic index
+        private Topic[] actives; // compact
+        private int numActives;
+        private int numIndices; // one more than the largest index ever used
         private SortedSet<Integer> inactives;
+        private final ArrayList<Integer> removed;
 
         public Topics() {
-            this.actives = new HashMap<Integer, Topic>();
+            this.components = new Topic[16];
+            this.actives = new Topic[16];
             this.inactives = new TreeSet<Integer>();
+            this.removed = new ArrayList<Integer>();
         }
 
         public ArrayList<Integer> getSortedIndices() {
-            ArrayList<Integer> sortedIndices = new ArrayList<Integer>();
-            for (int ii : getIndices()) {
-                sortedIndices.add(ii);
-            }
+            ArrayList<Integer> sortedIndices = getIndices();
             Collections.sort(sortedIndices);
             return sortedIndices;
         }
 
         public int getNumComponents() {
-            return this.actives.size();
+            return this.numActives;
+        }
+
+        public ArrayList<Integer> getIndices() {
+            ArrayList<Integer> indices = new ArrayList<Integer>(numActives);
+            for (int jj = 0; jj < numActives; jj++) {
+                indices.add(actives[jj].index);
+            }
+            return indices;
         }
 
-        public Set<Integer> getIndices() {
-            return this.actives.keySet();
+        /**
+         * Return the active topic at a position of the compact array.
+         *
+         * @param jj The position
+         */
+        public Topic getActive(int jj) {
+            return this.actives[jj];
         }
 
         public boolean isEmpty() {
-            return actives.isEmpty();
+            return numActives == 0;
         }
 
         public boolean isActive(int idx) {
-            return this.actives.containsKey(idx);
+            return idx >= 0 && idx < components.length && components[idx] != null;
         }
 
         public Topic getComponent(int idx) {
-            return this.actives.get(idx);
+            return isActive(idx) ? components[idx] : null;
         }
 
         public void removeComponent(int idx) {
-            this.inactives.add(idx);
-            this.actives.remove(idx);
+            Topic c = components[idx];
+            Topic last = actives[--numActives];
+            actives[c.position] = last;
+            last.position = c.position;
+            actives[numActives] = null;
+            components[idx] = null;
+            this.removed.add(idx);
+        }
+
+        /**
+         * Make the indices of the removed topics available to new topics.
+         */
+        public void releaseRemoved() {
+            this.inactives.addAll(removed);
+            this.removed.clear();
         }
 
         public void createNewComponent(int idx, Topic c) {
@@ -756,18 +872,23 @@ public class HDP extends AbstractSampler {
             if (inactives.contains(idx)) {
                 inactives.remove(idx);
             }
-            this.actives.put(idx, c);
+            if (idx >= components.length) {
+                components = Arrays.copyOf(components, Math.max(2 * components.length, idx + 1));
+            }
+            if (numActives == actives.length) {
+                actives = Arrays.copyOf(actives, 2 * actives.length);
+            }
+            c.index = idx;
+            c.position = numActives;
+            components[idx] = c;
+            actives[numActives++] = c;
+            numIndices = Math.max(numIndices, idx + 1);
         }
 
         public void fillInactives() {
-            int maxTableIndex = -1;
-            for (int idx : actives.keySet()) {
-                if (idx > maxTableIndex) {
-                    maxTableIndex = idx;
-                }
-            }
             this.inactives = new TreeSet<Integer>();
-            for (int ii = 0; ii < maxTableIndex; ii++) {
+            this.removed.clear();
+            for (int ii = 0; ii < numIndices; ii++) {
                 if (!isActive(ii)) {
                     inactives.add(ii);
                 }
@@ -777,7 +898,7 @@ public class HDP extends AbstractSampler {
         public int getNextIndex() {
             int newIdx;
             if (this.inactives.isEmpty()) {
-                newIdx = this.actives.size();
+                newIdx = this.numIndices;
             } else {
                 newIdx = this.inactives.first();
             }
@@ -1,6 +1,9 @@
 package sampler.unsupervised;
 
 import core.AbstractSampler;
+import core.FlatCorpus;
+import core.Hyperparameters;
+import core.ModelServer;
 import data.TextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -9,10 +12,18 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Random;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
+import sampling.likelihood.ConcurrentDirMult;
 import sampling.likelihood.DirMult;
+import sampling.util.AliasMHSampler;
+import sampling.util.FoldIn;
+import sampling.util.ParallelSweep;
+import sampling.util.SparseCount;
+import util.BinaryCheckpoint;
 import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
@@ -28,8 +39,10 @@ public class LDA extends AbstractSampler {
     // hyperparameters
     public static final int ALPHA = 0;
     public static final int BETA = 1;
+    protected int alphaSumHandle; // handle of alpha * K
+    protected int betaSumHandle; // handle of beta * V
     // inputs
-    protected int[][] words; // original documents
+    protected FlatCorpus corpus; // selected documents and their topic assignments
     protected ArrayList<Integer> docIndices; // [D]: indices of considered docs
     protected int K;
     protected int V;
@@ -38,7 +51,10 @@ public class LDA extends AbstractSampler {
     // latent
     protected DirMult[] docTopics;
     protected DirMult[] topicWords;
-    protected int[][] z;
+    // proposals for the alias sampling mode
+    protected AliasMHSampler aliasSampler;
+    // whether report states are stored as binary checkpoints
+    protected boolean binaryState = false;
 
     public LDA() {
         this.basename = "LDA";
@@ -64,9 +80,12 @@ public class LDA extends AbstractSampler {
         this.K = K;
         this.V = V;
 
-        this.hyperparams = new ArrayList<Double>();
-        this.hyperparams.add(alpha);
-        this.hyperparams.add(beta);
+        Hyperparameters params = new Hyperparameters();
+        params.add("alpha", alpha);
+        params.add("beta", beta);
+        this.alphaSumHandle = params.addProduct(ALPHA, K);
+        this.betaSumHandle = params.addProduct(BETA, V);
+        setHyperparameters(params);
 
         this.sampledParams = new ArrayList<ArrayList<Double>>();
         this.sampledParams.add(cloneHyperparameters());
@@ -85,8 +104,8 @@ public class LDA extends AbstractSampler {
             logln("--- folder\t" + folder);
             logln("--- num topics:\t" + K);
             logln("--- vocab size:\t" + V);
-            logln("--- alpha:\t" + MiscUtils.formatDouble(hyperparams.get(ALPHA)));
-            logln("--- beta:\t" + MiscUtils.formatDouble(hyperparams.get(BETA)));
+            logln("--- alpha:\t" + MiscUtils.formatDouble(hyperparameters.get(ALPHA)));
+            logln("--- beta:\t" + MiscUtils.formatDouble(hyperparameters.get(BETA)));
             logln("--- burn-in:\t" + BURN_IN);
             logln("--- max iter:\t" + MAX_ITER);
             logln("--- sample lag:\t" + LAG);
@@ -102,18 +121,84 @@ public class LDA extends AbstractSampler {
                 + "_B-" + BURN_IN
                 + "_M-" + MAX_ITER
                 + "_L-" + LAG
-                + "_a-" + formatter.format(hyperparams.get(ALPHA))
-                + "_b-" + formatter.format(hyperparams.get(BETA))
+                + "_a-" + formatter.format(hyperparameters.get(ALPHA))
+                + "_b-" + formatter.format(hyperparameters.get(BETA))
                 + "_opt-" + this.paramOptimized;
     }
 
+    public boolean isBinaryState() {
+        return this.binaryState;
+    }
+
     /**
-     * Return the current topic assignments for all tokens.
+     * Set whether the states stored in the report folder are binary
+     * checkpoints ({@link BinaryCheckpoint}) instead of zipped text files.
+     *
+     * @param binaryState Whether to use binary checkpoints
+     */
+    public void setBinaryState(boolean binaryState) {
+        this.binaryState = binaryState;
+    }
+
+    /**
+     * Return the file storing the state at a given iteration in a folder.
+     */
+    protected File getStateFile(File folder, int iteration) {
+        return new File(folder, "iter-" + iteration
+                + (binaryState ? BinaryCheckpoint.FileExt : ".zip"));
+    }
+
+    /**
+     * Copy the counts and assignments into a new LDA object that only
+     * supports outputting the state and the topics. Subclasses that output
+     * additional state are written synchronously.
+     */
+    @Override
+    protected AbstractSampler getReportSnapshot() {
+        if (getClass() != LDA.class) {
+            return null;
+        }
+        LDA snapshot = new LDA(basename);
+        snapshot.K = K;
+        snapshot.V = V;
+        snapshot.D = D;
+        snapshot.wordVocab = wordVocab;
+        snapshot.topicWords = new DirMult[K];
+        for (int k = 0; k < K; k++) {
+            snapshot.topicWords[k] = topicWords[k].clone();
+        }
+        snapshot.docTopics = new DirMult[D];
+        for (int d = 0; d < D; d++) {
+            snapshot.docTopics[d] = docTopics[d].clone();
+        }
+        snapshot.corpus = corpus.copyAssignments();
+        return snapshot;
+    }
+
+    @Override
+    public File getFinalStateFile() {
+        return getStateFile(new File(getSamplerFolderPath(), ReportFolder), MAX_ITER);
+    }
+
+    @Override
+    public void inputFinalState() {
+        this.inputState(getFinalStateFile());
+    }
+
+    /**
+     * Return a copy of the current topic assignments for all tokens.
      *
      * @return Current topic assignments
      */
     public int[][] getZs() {
-        return this.z;
+        return this.corpus.getZs();
+    }
+
+    /**
+     * Return the training documents and their current topic assignments.
+     */
+    public FlatCorpus getCorpus() {
+        return this.corpus;
     }
 
     /**
@@ -150,6 +235,30 @@ public class LDA extends AbstractSampler {
         return phis;
     }
 
+    /**
+     * Load the topics of a stored state and return a scorer of new documents
+     * whose scores are their topic proportions, inferred by the fold-in
+     * engine.
+     *
+     * @param stateFile The state file
+     */
+    public ModelServer.Scorer createScorer(String stateFile) {
+        inputModel(stateFile);
+        final double alpha = hyperparameters.get(ALPHA);
+        final FoldIn foldIn = createFoldIn(getPhis(), alpha);
+        return new ModelServer.Scorer() {
+            @Override
+            public double[] score(int[] doc) {
+                double[] thetas = foldIn.infer(doc, null, 0);
+                double norm = doc.length + alpha * K;
+                for (int kk = 0; kk < K; kk++) {
+                    thetas[kk] = (thetas[kk] + alpha) / norm;
+                }
+                return thetas;
+            }
+        };
+    }
+
     /**
      * Set training data.
      *
@@ -165,17 +274,12 @@ public class LDA extends AbstractSampler {
                 this.docIndices.add(dd);
             }
         }
-        this.numTokens = 0;
         this.D = this.docIndices.size();
-        this.words = new int[D][];
-        for (int ii = 0; ii < D; ii++) {
-            int dd = this.docIndices.get(ii);
-            this.words[ii] = docWords[dd];
-            this.numTokens += this.words[ii].length;
-        }
+        this.corpus = new FlatCorpus(docWords, this.docIndices);
+        this.numTokens = corpus.getNumTokens();
 
         if (verbose) {
-            logln("--- # all docs:\t" + words.length);
+            logln("--- # all docs:\t" + docWords.length);
             logln("--- # selected docs:\t" + D);
             logln("--- # tokens:\t" + numTokens);
         }
@@ -214,6 +318,12 @@ public class LDA extends AbstractSampler {
             logln("Initializing with pre-defined topics ...");
         }
 
+        if (samplingMode == SamplingMode.SPARSE
+                && (docTopicPrior != null || topicWordPrior != null)) {
+            throw new RuntimeException("Sparse sampling does not support "
+                    + "pre-defined topics");
+        }
+
         initializeModelStructure(topicWordPrior);
 
         initializeDataStructure(docTopicPrior);
@@ -237,12 +347,13 @@ public class LDA extends AbstractSampler {
                     + ". # prior topics = " + topics.length);
         }
 
+        aliasSampler = null;
         topicWords = new DirMult[K];
         for (int k = 0; k < K; k++) {
             if (topics != null) {
-                topicWords[k] = new DirMult(V, hyperparams.get(BETA) * V, topics[k]);
+                topicWords[k] = new DirMult(V, hyperparameters.getProduct(betaSumHandle), topics[k]);
             } else {
-                topicWords[k] = new DirMult(V, hyperparams.get(BETA) * V, 1.0 / V);
+                topicWords[k] = new DirMult(V, hyperparameters.getProduct(betaSumHandle), 1.0 / V);
             }
         }
     }
@@ -261,16 +372,13 @@ public class LDA extends AbstractSampler {
         docTopics = new DirMult[D];
         for (int d = 0; d < D; d++) {
             if (docTopicPrior != null) {
-                docTopics[d] = new DirMult(K, hyperparams.get(ALPHA) * K, docTopicPrior[d]);
+                docTopics[d] = new DirMult(K, hyperparameters.getProduct(alphaSumHandle), docTopicPrior[d]);
             } else {
-                docTopics[d] = new DirMult(K, hyperparams.get(ALPHA) * K, 1.0 / K);
+                docTopics[d] = new DirMult(K, hyperparameters.getProduct(alphaSumHandle), 1.0 / K);
             }
         }
 
-        z = new int[D][];
-        for (int d = 0; d < D; d++) {
-            z[d] = new int[words[d].length];
-        }
+        corpus.initializeAssignments(K - 1);
     }
 
     protected void initializeAssignments() {
@@ -328,10 +436,7 @@ public class LDA extends AbstractSampler {
             // parameter optimization by slice sampling
             if (paramOptimized && iter % LAG == 0 && iter >= BURN_IN) {
                 sliceSample();
-                ArrayList<Double> sparams = new ArrayList<Double>();
-                for (double param : this.hyperparams) {
-                    sparams.add(param);
-                }
+                ArrayList<Double> sparams = cloneHyperparameters();
                 this.sampledParams.add(sparams);
 
                 if (verbose) {
@@ -356,16 +461,15 @@ public class LDA extends AbstractSampler {
 
             // store model
             if (report && iter > BURN_IN && iter % LAG == 0) {
-                outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
-                outputTopicTopWords(new File(reportFolderPath,
-                        "topwords-" + iter + ".txt"), 20);
+                outputReport(getStateFile(reportFolderPath, iter),
+                        new File(reportFolderPath, "topwords-" + iter + ".txt"), 20);
             }
         }
 
         if (report) { // output the final model
-            outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
-            outputTopicTopWords(new File(reportFolderPath,
-                    "topwords-" + iter + ".txt"), 20);
+            outputReport(getStateFile(reportFolderPath, iter),
+                    new File(reportFolderPath, "topwords-" + iter + ".txt"), 20);
+            waitForReports();
         }
 
         float ellapsedSeconds = (System.currentTimeMillis() - startTime) / (1000);
@@ -388,52 +492,340 @@ public class LDA extends AbstractSampler {
     protected long sampleZs(boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
         long sTime = System.currentTimeMillis();
+        if (samplingMode == SamplingMode.SPARSE) {
+            sampleZsSparse(removeFromModel, addToModel, removeFromData, addToData);
+            return System.currentTimeMillis() - sTime;
+        }
+        // the document proposal needs document counts that match z
+        if (samplingMode == SamplingMode.ALIAS && removeFromData && addToData) {
+            sampleZsAlias(removeFromModel, addToModel);
+            return System.currentTimeMillis() - sTime;
+        }
+        if (numThreads > 1 && samplingMode == SamplingMode.STANDARD
+                && removeFromModel == addToModel) {
+            sampleZsParallel(removeFromModel, addToModel, removeFromData, addToData);
+            return System.currentTimeMillis() - sTime;
+        }
         for (int dd = 0; dd < D; dd++) {
-            for (int nn = 0; nn < z[dd].length; nn++) {
-                sampleZ(dd, nn, removeFromModel, addToModel,
+            for (int ii = corpus.getDocStart(dd); ii < corpus.getDocEnd(dd); ii++) {
+                sampleZ(dd, ii, removeFromModel, addToModel,
                         removeFromData, addToData);
             }
         }
         return System.currentTimeMillis() - sTime;
     }
 
+    /**
+     * Sample the topic assignments for all tokens using the SparseLDA bucket
+     * decomposition (Yao, Mimno and McCallum, KDD 2009). The unnormalized
+     * conditional (n_dk + alpha)(n_kw + beta) / (n_k + beta V) is split into
+     * a smoothing-only bucket alpha beta / (n_k + beta V), a document-topic
+     * bucket n_dk beta / (n_k + beta V) and a topic-word bucket
+     * (n_dk + alpha) n_kw / (n_k + beta V). The first two masses are cached
+     * and updated as counts change, and the last one only visits the topics
+     * that the current word is assigned to. This requires symmetric priors.
+     */
+    private void sampleZsSparse(boolean removeFromModel, boolean addToModel,
+            boolean removeFromData, boolean addToData) {
+        double alpha = hyperparameters.get(ALPHA);
+        double beta = hyperparameters.get(BETA);
+        double betaSum = hyperparameters.getProduct(betaSumHandle);
+
+        // word-topic counts, inverted from the topic-word counts
+        SparseCount[] wordTopics = new SparseCount[V];
+        for (int v = 0; v < V; v++) {
+            wordTopics[v] = new SparseCount();
+        }
+        int[] buffer = new int[V];
+        for (int k = 0; k < K; k++) {
+            int num = topicWords[k].getNonZeroObservations(buffer);
+            for (int ii = 0; ii < num; ii++) {
+                wordTopics[buffer[ii]].setCount(k, topicWords[k].getCount(buffer[ii]));
+            }
+        }
+
+        // smoothing-only bucket and the document-independent coefficients
+        double[] denoms = new double[K];
+        double[] coefs = new double[K];
+        double smoothingMass = 0.0;
+        for (int k = 0; k < K; k++) {
+            denoms[k] = topicWords[k].getCountSum() + betaSum;
+            coefs[k] = alpha / denoms[k];
+            smoothingMass += alpha * beta / denoms[k];
+        }
+
+        int[] docTopicList = new int[K];
+        int[] docTopicPos = new int[K];
+        Arrays.fill(docTopicPos, -1);
+        double[] qs = new double[K];
+        for (int dd = 0; dd < D; dd++) {
+            // document-topic bucket and the document-specific coefficients
+            int numDocTopics = docTopics[dd].getNonZeroObservations(docTopicList);
+            double docMass = 0.0;
+            for (int ii = 0; ii < numDocTopics; ii++) {
+                int k = docTopicList[ii];
+                int count = docTopics[dd].getCount(k);
+                docTopicPos[k] = ii;
+                docMass += count * beta / denoms[k];
+                coefs[k] = (alpha + count) / denoms[k];
+            }
+
+            for (int tt = corpus.getDocStart(dd); tt < corpus.getDocEnd(dd); tt++) {
+                int ww = corpus.getWord(tt);
+                int kk = corpus.getZ(tt);
+
+                // remove the current assignment
+                if (removeFromData || removeFromModel) {
+                    smoothingMass -= alpha * beta / denoms[kk];
+                    docMass -= docTopics[dd].getCount(kk) * beta / denoms[kk];
+                    if (removeFromData) {
+                        docTopics[dd].decrement(kk);
+                        if (docTopics[dd].getCount(kk) == 0) {
+                            numDocTopics = removeDocTopic(kk, docTopicList,
+                                    docTopicPos, numDocTopics);
+                        }
+                    }
+                    if (removeFromModel) {
+                        topicWords[kk].decrement(ww);
+                        wordTopics[ww].decrement(kk);
+                        denoms[kk] = topicWords[kk].getCountSum() + betaSum;
+                    }
+                    smoothingMass += alpha * beta / denoms[kk];
+                    docMass += docTopics[dd].getCount(kk) * beta / denoms[kk];
+                    coefs[kk] = (alpha + docTopics[dd].getCount(kk)) / denoms[kk];
+                }
+
+                // topic-word bucket
+                SparseCount wordCounts = wordTopics[ww];
+                double wordMass = 0.0;
+                for (int sl = wordCounts.nextSlot(-1); sl >= 0; sl = wordCounts.nextSlot(sl)) {
+                    int k = wordCounts.getSlotIndex(sl);
+                    qs[k] = coefs[k] * wordCounts.getSlotCount(sl);
+                    wordMass += qs[k];
+                }
+
+                int sampledZ = -1;
+                double u = rand.nextDouble() * (smoothingMass + docMass + wordMass);
+                if (u < wordMass) {
+                    for (int sl = wordCounts.nextSlot(-1); sl >= 0; sl = wordCounts.nextSlot(sl)) {
+                        sampledZ = wordCounts.getSlotIndex(sl);
+                        u -= qs[sampledZ];
+                        if (u <= 0) {
+                            break;
+                        }
+                    }
+                } else if (u < wordMass + docMass) {
+                    u -= wordMass;
+                    for (int ii = 0; ii < numDocTopics; ii++) {
+                        sampledZ = docTopicList[ii];
+                        u -= docTopics[dd].getCount(sampledZ) * beta / denoms[sampledZ];
+                        if (u <= 0) {
+                            break;
+                        }
+                    }
+                } else {
+                    u -= wordMass + docMass;
+                    for (int k = 0; k < K; k++) {
+                        sampledZ = k;
+                        u -= alpha * beta / denoms[k];
+                        if (u <= 0) {
+                            break;
+                        }
+                    }
+                }
+
+                if (sampledZ != kk) {
+                    numTokensChanged++;
+                }
+                corpus.setZ(tt, sampledZ);
+                kk = sampledZ;
+
+                // add the new assignment
+                if (addToData || addToModel) {
+                    smoothingMass -= alpha * beta / denoms[kk];
+                    docMass -= docTopics[dd].getCount(kk) * beta / denoms[kk];
+                    if (addToData) {
+                        if (docTopics[dd].getCount(kk) == 0) {
+                            docTopicPos[kk] = numDocTopics;
+                            docTopicList[numDocTopics++] = kk;
+                        }
+                        docTopics[dd].increment(kk);
+                    }
+                    if (addToModel) {
+                        topicWords[kk].increment(ww);
+                        wordTopics[ww].increment(kk);
+                        denoms[kk] = topicWords[kk].getCountSum() + betaSum;
+                    }
+                    smoothingMass += alpha * beta / denoms[kk];
+                    docMass += docTopics[dd].getCount(kk) * beta / denoms[kk];
+                    coefs[kk] = (alpha + docTopics[dd].getCount(kk)) / denoms[kk];
+                }
+            }
+
+            // reset the document-specific coefficients
+            for (int ii = 0; ii < numDocTopics; ii++) {
+                int k = docTopicList[ii];
+                coefs[k] = alpha / denoms[k];
+                docTopicPos[k] = -1;
+            }
+        }
+    }
+
+    /**
+     * Sample the topic assignments for all tokens using Metropolis-Hastings
+     * with alias-table word proposals and document proposals.
+     */
+    private void sampleZsAlias(boolean removeFromModel, boolean addToModel) {
+        if (aliasSampler == null) {
+            aliasSampler = new AliasMHSampler(K, V,
+                    hyperparameters.get(ALPHA), hyperparameters.get(BETA),
+                    AliasMHSampler.DEFAULT_NUM_MH_STEPS);
+        } else {
+            aliasSampler.setPriors(hyperparameters.get(ALPHA), hyperparameters.get(BETA));
+        }
+        aliasSampler.resetAcceptanceRate();
+        aliasSampler.nextSweep();
+        for (int dd = 0; dd < D; dd++) {
+            for (int ii = corpus.getDocStart(dd); ii < corpus.getDocEnd(dd); ii++) {
+                int ww = corpus.getWord(ii);
+                int curZ = corpus.getZ(ii);
+                docTopics[dd].decrement(curZ);
+                if (removeFromModel) {
+                    topicWords[curZ].decrement(ww);
+                    aliasSampler.removeToken(ww, curZ);
+                }
+
+                int sampledZ = aliasSampler.sample(curZ, ii, ww, corpus, dd, null,
+                        docTopics[dd], topicWords, rand);
+                if (sampledZ != curZ) {
+                    numTokensChanged++;
+                }
+                corpus.setZ(ii, sampledZ);
+
+                docTopics[dd].increment(sampledZ);
+                if (addToModel) {
+                    topicWords[sampledZ].increment(ww);
+                    aliasSampler.addToken(ww, sampledZ);
+                }
+            }
+        }
+        if (isReporting) {
+            logln("--- --- MH acceptance rate: "
+                    + MiscUtils.formatDouble(aliasSampler.getAcceptanceRate()));
+        }
+    }
+
+    /**
+     * Remove a topic from the list of topics of the current document.
+     *
+     * @return The new number of topics in the list
+     */
+    private static int removeDocTopic(int k, int[] docTopicList, int[] docTopicPos,
+            int numDocTopics) {
+        int pos = docTopicPos[k];
+        int last = docTopicList[numDocTopics - 1];
+        docTopicList[pos] = last;
+        docTopicPos[last] = pos;
+        docTopicPos[k] = -1;
+        return numDocTopics - 1;
+    }
+
+    /**
+     * Sample the topic assignments for all tokens with documents split across
+     * {@link #numThreads} threads, each sampling against its own copy of the
+     * topic-word counts (AD-LDA), or all sampling against the same lock-free
+     * counts if {@link #sharedCounts} is set.
+     */
+    private void sampleZsParallel(final boolean removeFromModel, final boolean addToModel,
+            final boolean removeFromData, final boolean addToData) {
+        int[] docLengths = new int[D];
+        for (int dd = 0; dd < D; dd++) {
+            docLengths[dd] = corpus.getDocLength(dd);
+        }
+        if (sharedCounts && !ConcurrentDirMult.isShared(topicWords)) {
+            topicWords = ConcurrentDirMult.share(topicWords);
+        }
+        numTokensChanged += ParallelSweep.sweep(topicWords, docLengths, numThreads,
+                rand.nextLong(), removeFromModel, new ParallelSweep.DocumentSampler() {
+                    @Override
+                    public int sampleDocument(int dd, DirMult[] workerTopicWords,
+                            ParallelSweep.Worker worker) {
+                        int numChanged = 0;
+                        for (int ii = corpus.getDocStart(dd); ii < corpus.getDocEnd(dd); ii++) {
+                            int curZ = corpus.getZ(ii);
+                            sampleZ(dd, ii, workerTopicWords, worker.getRandom(),
+                                    removeFromModel, addToModel, removeFromData, addToData);
+                            if (corpus.getZ(ii) != curZ) {
+                                numChanged++;
+                                if (removeFromModel) {
+                                    worker.recordMove(corpus.getWord(ii), curZ,
+                                            corpus.getZ(ii));
+                                }
+                            }
+                        }
+                        return numChanged;
+                    }
+                });
+    }
+
     /**
      * Sample the topic assignment for each token
      *
      * @param dd The document index
-     * @param nn The token index
+     * @param ii The position of the token in the corpus
+     * @param removeFromModel
+     * @param addToModel
+     * @param removeFromData
+     * @param addToData
+     */
+    protected void sampleZ(int dd, int ii,
+            boolean removeFromModel, boolean addToModel,
+            boolean removeFromData, boolean addToData) {
+        int curZ = corpus.getZ(ii);
+        sampleZ(dd, ii, topicWords, SamplerUtils.rand, removeFromModel, addToModel,
+                removeFromData, addToData);
+        if (corpus.getZ(ii) != curZ) {
+            numTokensChanged++;
+        }
+    }
+
+    /**
+     * Sample the topic assignment for each token against a given set of
+     * topic-word counts.
+     *
+     * @param dd The document index
+     * @param ii The position of the token in the corpus
+     * @param topicWordCounts The topic-word counts
+     * @param r Random number generator
      * @param removeFromModel
      * @param addToModel
      * @param removeFromData
      * @param addToData
      */
-    protected void sampleZ(int dd, int nn,
+    protected void sampleZ(int dd, int ii, DirMult[] topicWordCounts, Random r,
             boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
+        int ww = corpus.getWord(ii);
         if (removeFromData) {
-            docTopics[dd].decrement(z[dd][nn]);
+            docTopics[dd].decrement(corpus.getZ(ii));
         }
         if (removeFromModel) {
-            topicWords[z[dd][nn]].decrement(words[dd][nn]);
+            topicWordCounts[corpus.getZ(ii)].decrement(ww);
         }
 
         double[] probs = new double[K];
         for (int k = 0; k < K; k++) {
-            probs[k] = (docTopics[dd].getCount(k)
-                    + hyperparams.get(ALPHA) * K * docTopics[dd].getCenterElement(k))
-                    * topicWords[k].getProbability(words[dd][nn]);
-        }
-        int sampledZ = SamplerUtils.scaleSample(probs);
-        if (sampledZ != z[dd][nn]) {
-            numTokensChanged++;
+            probs[k] = docTopics[dd].getSmoothedCount(k)
+                    * topicWordCounts[k].getProbability(ww);
         }
-        z[dd][nn] = sampledZ;
+        int sampledZ = SamplerUtils.scaleSample(probs, r);
+        corpus.setZ(ii, sampledZ);
 
         if (addToData) {
-            docTopics[dd].increment(z[dd][nn]);
+            docTopics[dd].increment(sampledZ);
         }
         if (addToModel) {
-            topicWords[z[dd][nn]].increment(words[dd][nn]);
+            topicWordCounts[sampledZ].increment(ww);
         }
     }
 
@@ -457,7 +849,7 @@ public class LDA extends AbstractSampler {
 
     @Override
     public double getLogLikelihood(ArrayList<Double> newParams) {
-        if (newParams.size() != this.hyperparams.size()) {
+        if (newParams.size() != this.hyperparameters.size()) {
             throw new RuntimeException("Number of hyperparameters mismatched");
         }
         double llh = 0;
@@ -474,12 +866,12 @@ public class LDA extends AbstractSampler {
 
     @Override
     public void updateHyperparameters(ArrayList<Double> newParams) {
-        this.hyperparams = newParams;
+        setHyperparameterValues(newParams);
         for (int d = 0; d < D; d++) {
-            this.docTopics[d].setConcentration(this.hyperparams.get(ALPHA) * K);
+            this.docTopics[d].setConcentration(hyperparameters.getProduct(alphaSumHandle));
         }
         for (int k = 0; k < K; k++) {
-            this.topicWords[k].setConcentration(this.hyperparams.get(BETA) * V);
+            this.topicWords[k].setConcentration(hyperparameters.getProduct(betaSumHandle));
         }
     }
 
@@ -540,11 +932,22 @@ public class LDA extends AbstractSampler {
         IOUtils.output2DArray(my_file, postTops);
     }
 
+    /**
+     * Output the current state. The state is stored as a binary checkpoint if
+     * the file has extension {@link BinaryCheckpoint#FileExt}, and as zipped
+     * text files otherwise.
+     *
+     * @param filepath The output file
+     */
     @Override
     public void outputState(String filepath) {
         if (verbose) {
             logln("--- Outputing current state to " + filepath);
         }
+        if (filepath.endsWith(BinaryCheckpoint.FileExt)) {
+            outputBinaryState(filepath);
+            return;
+        }
         try {
             StringBuilder modelStr = new StringBuilder();
             for (int k = 0; k < K; k++) {
@@ -556,8 +959,8 @@ public class LDA extends AbstractSampler {
             for (int d = 0; d < D; d++) {
                 assignStr.append(d).append("\n");
                 assignStr.append(DirMult.output(docTopics[d])).append("\n");
-                for (int n = 0; n < z[d].length; n++) {
-                    assignStr.append(z[d][n]).append("\t");
+                for (int ii = corpus.getDocStart(d); ii < corpus.getDocEnd(d); ii++) {
+                    assignStr.append(corpus.getZ(ii)).append("\t");
                 }
                 assignStr.append("\n");
             }
@@ -577,9 +980,13 @@ public class LDA extends AbstractSampler {
         }
 
         try {
-            inputModel(filepath);
+            if (filepath.endsWith(BinaryCheckpoint.FileExt)) {
+                inputBinaryState(filepath);
+            } else {
+                inputZipModel(filepath);
 
-            inputAssignments(filepath);
+                inputAssignments(filepath);
+            }
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while loading from " + filepath);
@@ -588,7 +995,31 @@ public class LDA extends AbstractSampler {
         validate("Done reading state from " + filepath);
     }
 
-    private void inputModel(String zipFilepath) {
+    /**
+     * Load only the topics of a stored state, in either format.
+     *
+     * @param filepath The state file
+     */
+    public void inputModel(String filepath) {
+        if (!filepath.endsWith(BinaryCheckpoint.FileExt)) {
+            inputZipModel(filepath);
+            return;
+        }
+        try {
+            BinaryCheckpoint.Reader reader = new BinaryCheckpoint.Reader(filepath);
+            try {
+                inputBinaryModel(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while inputing model from "
+                    + filepath);
+        }
+    }
+
+    private void inputZipModel(String zipFilepath) {
         if (verbose) {
             logln("--- --- Loading model from " + zipFilepath);
         }
@@ -635,8 +1066,8 @@ public class LDA extends AbstractSampler {
                 docTopics[d] = DirMult.input(reader.readLine());
 
                 String[] sline = reader.readLine().split("\t");
-                for (int n = 0; n < z[d].length; n++) {
-                    z[d][n] = Integer.parseInt(sline[n]);
+                for (int n = 0; n < corpus.getDocLength(d); n++) {
+                    corpus.setZ(corpus.getDocStart(d) + n, Integer.parseInt(sline[n]));
                 }
             }
             reader.close();
@@ -647,6 +1078,157 @@ public class LDA extends AbstractSampler {
         }
     }
 
+    /**
+     * Output the current state as a binary checkpoint. The topic-word counts
+     * are stored in compressed sparse row format and the assignments as one
+     * array. Document-topic counts are recomputed from the assignments when
+     * loading.
+     *
+     * @param filepath The output file
+     */
+    private void outputBinaryState(String filepath) {
+        try {
+            BinaryCheckpoint.Writer writer = new BinaryCheckpoint.Writer(filepath);
+            try {
+                writeBinaryState(writer);
+            } catch (Exception e) {
+                writer.abort();
+                throw e;
+            }
+            writer.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while outputing to " + filepath);
+        }
+    }
+
+    private void writeBinaryState(BinaryCheckpoint.Writer writer) throws IOException {
+        writer.startSection(BinaryCheckpoint.INT);
+        writer.writeInt(K);
+        writer.writeInt(V);
+        writePriors(writer, topicWords);
+
+        int[] buffer = new int[V];
+        writer.startSection(BinaryCheckpoint.INT); // row offsets
+        int offset = 0;
+        writer.writeInt(offset);
+        for (int k = 0; k < K; k++) {
+            offset += topicWords[k].getNonZeroObservations(buffer);
+            writer.writeInt(offset);
+        }
+        writer.startSection(BinaryCheckpoint.INT); // word indices
+        for (int k = 0; k < K; k++) {
+            int num = topicWords[k].getNonZeroObservations(buffer);
+            for (int ii = 0; ii < num; ii++) {
+                writer.writeInt(buffer[ii]);
+            }
+        }
+        writer.startSection(BinaryCheckpoint.INT); // counts
+        for (int k = 0; k < K; k++) {
+            int num = topicWords[k].getNonZeroObservations(buffer);
+            for (int ii = 0; ii < num; ii++) {
+                writer.writeInt(topicWords[k].getCount(buffer[ii]));
+            }
+        }
+
+        writer.startSection(BinaryCheckpoint.INT);
+        writer.writeInt(D);
+        writePriors(writer, docTopics);
+        writer.startSection(BinaryCheckpoint.INT); // document lengths
+        for (int d = 0; d < D; d++) {
+            writer.writeInt(corpus.getDocLength(d));
+        }
+        writer.startSection(BinaryCheckpoint.INT); // assignments
+        for (int ii = 0; ii < corpus.getNumTokens(); ii++) {
+            writer.writeInt(corpus.getZ(ii));
+        }
+    }
+
+    private void inputBinaryState(String filepath) throws Exception {
+        BinaryCheckpoint.Reader reader = new BinaryCheckpoint.Reader(filepath);
+        try {
+            inputBinaryModel(reader);
+
+            if (reader.readInt(6) != D) {
+                throw new RuntimeException("Indices mismatch when loading assignments");
+            }
+            this.initializeDataStructure(null);
+            readPriors(reader, 7, 8, docTopics);
+            int[] docLengths = new int[D];
+            reader.readInts(9, docLengths);
+            for (int d = 0; d < D; d++) {
+                if (docLengths[d] != corpus.getDocLength(d)) {
+                    throw new RuntimeException("Document lengths mismatch when loading assignments");
+                }
+                int[] docZs = new int[docLengths[d]];
+                reader.readInts(10, docZs);
+                corpus.setDocZs(d, docZs);
+                for (int n = 0; n < docZs.length; n++) {
+                    docTopics[d].increment(docZs[n]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void inputBinaryModel(BinaryCheckpoint.Reader reader) throws IOException {
+        if (reader.readInt(0) != K || reader.readInt(0) != V) {
+            throw new RuntimeException("Dimensions mismatch when loading model");
+        }
+        this.initializeModelStructure(null);
+        readPriors(reader, 1, 2, topicWords);
+        int[] offsets = new int[K + 1];
+        reader.readInts(3, offsets);
+        for (int k = 0; k < K; k++) {
+            int[] words = new int[offsets[k + 1] - offsets[k]];
+            int[] counts = new int[words.length];
+            reader.readInts(4, words);
+            reader.readInts(5, counts);
+            for (int ii = 0; ii < words.length; ii++) {
+                topicWords[k].changeCount(words[ii], counts[ii]);
+            }
+        }
+    }
+
+    /**
+     * Write the Dirichlet priors of a set of models as two sections: whether
+     * each prior is asymmetric, and the concentration and mean of each prior.
+     */
+    private static void writePriors(BinaryCheckpoint.Writer writer,
+            DirMult[] models) throws IOException {
+        writer.startSection(BinaryCheckpoint.INT);
+        for (DirMult model : models) {
+            writer.writeInt(model.isShortRepresented() ? 0 : 1);
+        }
+        writer.startSection(BinaryCheckpoint.DOUBLE);
+        for (DirMult model : models) {
+            writer.writeDouble(model.getConcentration());
+            if (model.isShortRepresented()) {
+                writer.writeDouble(model.getCenterElement(0));
+            } else {
+                writer.writeDoubles(model.getCenterVector());
+            }
+        }
+    }
+
+    private static void readPriors(BinaryCheckpoint.Reader reader,
+            int flagSection, int valueSection, DirMult[] models) throws IOException {
+        for (int ii = 0; ii < models.length; ii++) {
+            int dim = models[ii].getDimension();
+            boolean asymmetric = reader.readInt(flagSection) == 1;
+            double concentration = reader.readDouble(valueSection);
+            if (asymmetric) {
+                double[] center = new double[dim];
+                reader.readDoubles(valueSection, center);
+                models[ii] = new DirMult(dim, concentration, center);
+            } else {
+                models[ii] = new DirMult(dim, concentration,
+                        reader.readDouble(valueSection));
+            }
+        }
+    }
+
     public static String getHelpString() {
         return "java -cp 'dist/segan.jar' " + LDA.class.getName() + " -help";
     }
@@ -695,6 +1277,13 @@ public class LDA extends AbstractSampler {
 
         // configurations
         addOption("init", "Initialization");
+        addOption("sampling-mode", "Sampling mode (standard, sparse or alias)");
+        addOption("num-threads", "Number of sampling threads");
+        options.addOption("shared-counts", false, "Share lock-free topic-word "
+                + "counts across sampling threads");
+        options.addOption("binary-state", false, "Store states as binary checkpoints");
+        addOption("report-queue", "Maximum number of states waiting to be "
+                + "written in the background (0 to write synchronously)");
 
         options.addOption("v", false, "verbose");
         options.addOption("d", false, "debug");
@@ -723,6 +1312,9 @@ public class LDA extends AbstractSampler {
                 throw new RuntimeException("Initialization " + init + " not supported");
         }
 
+        SamplingMode samplingMode = getSamplingMode(
+                CLIUtils.getStringArgument(cmd, "sampling-mode", "standard"));
+
         // model parameters
         double alpha = CLIUtils.getDoubleArgument(cmd, "alpha", 0.1);
         double beta = CLIUtils.getDoubleArgument(cmd, "beta", 0.1);
@@ -750,6 +1342,11 @@ public class LDA extends AbstractSampler {
         sampler.setLog(true);
         sampler.setReport(true);
         sampler.setWordVocab(data.getWordVocab());
+        sampler.setSamplingMode(samplingMode);
+        sampler.setNumThreads(CLIUtils.getIntegerArgument(cmd, "num-threads", 1));
+        sampler.setSharedCounts(cmd.hasOption("shared-counts"));
+        sampler.setBinaryState(cmd.hasOption("binary-state"));
+        sampler.setReportQueueSize(CLIUtils.getIntegerArgument(cmd, "report-queue", 0));
 
         sampler.configure(outputFolder, V, K,
                 alpha, beta,
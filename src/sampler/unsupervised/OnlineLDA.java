@@ -0,0 +1,984 @@
+package sampler.unsupervised;
+
+import core.AbstractSampler;
+import core.TaskExecutor;
+import data.TextDataset;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.Options;
+import util.BinaryCheckpoint;
+import util.CLIUtils;
+import util.IOUtils;
+import util.MiscUtils;
+import util.StatUtils;
+
+/**
+ * Online variational Bayes for Latent Dirichlet Allocation (Hoffman, Blei and
+ * Bach, NIPS 2010).
+ *
+ * Documents are consumed in mini-batches, from a fixed set of documents or
+ * from an unbounded stream. For each mini-batch, the variational topic
+ * proportions of each document are fitted to the current topics, which only
+ * requires the topics of the words in the mini-batch, and the variational
+ * topic-word parameters lambda are moved towards the estimate from the
+ * mini-batch with learning rate (tau0 + t)^(-kappa) at update t, capped at 1.
+ * At rate 1 the old topics are forgotten and lambda is set to the estimate.
+ *
+ * The decay of lambda towards its prior beta applies to all words, so lambda
+ * is stored as scale * lambdaTilde + offset, where the scale and offset are
+ * shared by all entries. An update then only touches the entries of the words
+ * in the mini-batch, and its cost does not depend on the vocabulary size.
+ *
+ * @author vietan
+ */
+public class OnlineLDA extends AbstractSampler {
+
+    private static final long serialVersionUID = 1123581321L;
+    // hyperparameters
+    public static final int ALPHA = 0;
+    public static final int BETA = 1;
+    private static final double MIN_SCALE = 1E-30; // scale below which lambda is rescaled
+    // inputs
+    protected int[][] words; // documents used by iterate
+    protected ArrayList<Integer> docIndices;
+    protected int K;
+    protected int V;
+    // configurations
+    protected int batchSize;
+    protected double tau0;
+    protected double kappa;
+    protected int corpusSize; // (expected) number of documents in the stream
+    protected int numLocalIters = 100; // maximum iterations per document
+    protected double localTolerance = 0.001; // mean change of topic proportions
+    protected boolean binaryState = false;
+    // variational parameters
+    protected double[][] lambdaTilde; // [K][V]
+    protected double[] lambdaTildeSums; // [K]
+    protected double lambdaScale;
+    protected double lambdaOffset;
+    protected int numUpdates;
+    protected long numDocsSeen;
+    // log likelihood of the last mini-batch under the topics before the update
+    protected double batchLogLikelihood;
+    protected long batchNumTokens;
+    private int[] wordColumns; // [V]: column of each word in the mini-batch, -1 if absent
+
+    public OnlineLDA() {
+        this.basename = "OnlineLDA";
+    }
+
+    public OnlineLDA(String basename) {
+        this.basename = basename;
+    }
+
+    /**
+     * Configure the model.
+     *
+     * @param folder Output folder
+     * @param V Vocabulary size
+     * @param K Number of topics
+     * @param alpha Document-topic prior
+     * @param beta Topic-word prior
+     * @param corpusSize Number of documents in the corpus, or the expected
+     * number of documents in the stream. If this is not positive, it is set to
+     * the number of training documents.
+     * @param batchSize Number of documents per mini-batch
+     * @param tau0 Delay of the learning rate, which down-weights early
+     * updates. It must be non-negative.
+     * @param kappa Forgetting rate of the learning rate, in (0.5, 1]
+     * @param maxiter Number of passes over the training documents in iterate
+     */
+    public void configure(
+            String folder,
+            int V, int K,
+            double alpha,
+            double beta,
+            int corpusSize,
+            int batchSize,
+            double tau0,
+            double kappa,
+            int maxiter) {
+        if (verbose) {
+            logln("Configuring ...");
+        }
+        if (kappa <= 0.5 || kappa > 1) {
+            throw new RuntimeException("Invalid forgetting rate " + kappa
+                    + ". It must be in (0.5, 1]");
+        }
+        if (tau0 < 0) {
+            throw new RuntimeException("Invalid delay " + tau0
+                    + ". It must be non-negative");
+        }
+        this.folder = folder;
+
+        this.K = K;
+        this.V = V;
+
+        this.hyperparams = new ArrayList<Double>();
+        this.hyperparams.add(alpha);
+        this.hyperparams.add(beta);
+
+        this.sampledParams = new ArrayList<ArrayList<Double>>();
+        this.sampledParams.add(cloneHyperparameters());
+
+        this.corpusSize = corpusSize;
+        this.batchSize = batchSize;
+        this.tau0 = tau0;
+        this.kappa = kappa;
+
+        this.BURN_IN = 0;
+        this.MAX_ITER = maxiter;
+        this.LAG = 1;
+
+        this.initState = InitialState.RANDOM;
+        this.paramOptimized = false;
+        this.setName();
+
+        if (verbose && folder != null) {
+            logln("--- folder\t" + folder);
+            logln("--- num topics:\t" + K);
+            logln("--- vocab size:\t" + V);
+            logln("--- alpha:\t" + MiscUtils.formatDouble(hyperparams.get(ALPHA)));
+            logln("--- beta:\t" + MiscUtils.formatDouble(hyperparams.get(BETA)));
+            logln("--- corpus size:\t" + corpusSize);
+            logln("--- batch size:\t" + batchSize);
+            logln("--- tau0:\t" + MiscUtils.formatDouble(tau0));
+            logln("--- kappa:\t" + MiscUtils.formatDouble(kappa));
+            logln("--- max iter:\t" + MAX_ITER);
+        }
+    }
+
+    protected void setName() {
+        this.name = this.prefix
+                + "_" + this.basename
+                + "_K-" + K
+                + "_S-" + batchSize
+                + "_M-" + MAX_ITER
+                + "_t-" + formatter.format(tau0)
+                + "_k-" + formatter.format(kappa)
+                + "_a-" + formatter.format(hyperparams.get(ALPHA))
+                + "_b-" + formatter.format(hyperparams.get(BETA));
+    }
+
+    public void setNumLocalIterations(int numLocalIters) {
+        this.numLocalIters = numLocalIters;
+    }
+
+    public void setLocalTolerance(double localTolerance) {
+        this.localTolerance = localTolerance;
+    }
+
+    /**
+     * Set whether the states stored in the report folder are binary
+     * checkpoints ({@link BinaryCheckpoint}) instead of zipped text files.
+     *
+     * @param binaryState Whether to use binary checkpoints
+     */
+    public void setBinaryState(boolean binaryState) {
+        this.binaryState = binaryState;
+    }
+
+    public int getNumUpdates() {
+        return this.numUpdates;
+    }
+
+    public long getNumDocsSeen() {
+        return this.numDocsSeen;
+    }
+
+    /**
+     * Set training data, which are processed by iterate.
+     *
+     * @param docWords All documents
+     * @param docIndices Indices of selected documents. If this is null, all
+     * documents are considered.
+     */
+    public void train(int[][] docWords, ArrayList<Integer> docIndices) {
+        this.words = docWords;
+        this.docIndices = docIndices;
+        if (this.docIndices == null) { // add all documents
+            this.docIndices = new ArrayList<>();
+            for (int dd = 0; dd < docWords.length; dd++) {
+                this.docIndices.add(dd);
+            }
+        }
+        if (corpusSize <= 0) {
+            this.corpusSize = this.docIndices.size();
+        }
+
+        if (verbose) {
+            logln("--- # all docs:\t" + docWords.length);
+            logln("--- # selected docs:\t" + this.docIndices.size());
+        }
+    }
+
+    @Override
+    public void initialize() {
+        if (verbose) {
+            logln("Initializing ...");
+        }
+        lambdaTilde = new double[K][V];
+        lambdaTildeSums = new double[K];
+        for (int k = 0; k < K; k++) {
+            for (int v = 0; v < V; v++) {
+                lambdaTilde[k][v] = 0.9 + 0.2 * rand.nextDouble();
+                lambdaTildeSums[k] += lambdaTilde[k][v];
+            }
+        }
+        lambdaScale = 1.0;
+        lambdaOffset = 0.0;
+        numUpdates = 0;
+        numDocsSeen = 0;
+    }
+
+    /**
+     * Make passes over the training documents, in mini-batches of consecutive
+     * documents.
+     */
+    @Override
+    public void iterate() {
+        if (verbose) {
+            logln("Iterating ...");
+        }
+        logLikelihoods = new ArrayList<Double>();
+
+        File reportFolderPath = new File(getSamplerFolderPath(), ReportFolder);
+        try {
+            if (report) {
+                IOUtils.createFolder(reportFolderPath);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while creating report folder."
+                    + " " + reportFolderPath);
+        }
+
+        if (log && !isLogging()) {
+            openLogger();
+        }
+
+        logln(getClass().toString());
+        startTime = System.currentTimeMillis();
+
+        for (iter = 0; iter < MAX_ITER; iter++) {
+            update(new Iterator<int[]>() {
+                private int dd = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return dd < docIndices.size();
+                }
+
+                @Override
+                public int[] next() {
+                    return words[docIndices.get(dd++)];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+            logLikelihoods.add(batchLogLikelihood);
+            if (verbose) {
+                logln("--- Pass " + iter + "/" + MAX_ITER + ". # updates: " + numUpdates
+                        + ". llh/token of last batch = "
+                        + MiscUtils.formatDouble(batchLogLikelihood / batchNumTokens));
+            }
+
+            if (debug) {
+                validate("iter " + iter);
+            }
+        }
+
+        if (report) { // output the final model
+            outputReport(getStateFile(reportFolderPath, iter),
+                    new File(reportFolderPath, "topwords-" + iter + ".txt"), 20);
+            waitForReports();
+        }
+
+        float ellapsedSeconds = (System.currentTimeMillis() - startTime) / (1000);
+        logln("Total runtime iterating: " + ellapsedSeconds + " seconds");
+
+        if (log && isLogging()) {
+            closeLogger();
+        }
+    }
+
+    /**
+     * Return the file storing the state after a given pass in a folder.
+     */
+    protected File getStateFile(File folder, int iteration) {
+        return new File(folder, "iter-" + iteration
+                + (binaryState ? BinaryCheckpoint.FileExt : ".zip"));
+    }
+
+    /**
+     * Update the topics with all documents of a stream, read in mini-batches.
+     * The stream can be consumed in several calls, e.g., as new documents
+     * arrive.
+     *
+     * @param docs The documents
+     * @return The number of documents read
+     */
+    public int update(Iterator<int[]> docs) {
+        int numDocs = 0;
+        int[][] batch = new int[batchSize][];
+        int size = 0;
+        while (docs.hasNext()) {
+            batch[size++] = docs.next();
+            if (size == batchSize) {
+                updateBatch(batch);
+                numDocs += size;
+                size = 0;
+            }
+        }
+        if (size > 0) {
+            updateBatch(Arrays.copyOf(batch, size));
+            numDocs += size;
+        }
+        return numDocs;
+    }
+
+    /**
+     * Update the topics with a mini-batch of documents.
+     *
+     * @param batch The documents
+     */
+    public void updateBatch(int[][] batch) {
+        // columns of the words in the mini-batch
+        if (wordColumns == null || wordColumns.length != V) {
+            wordColumns = new int[V];
+            Arrays.fill(wordColumns, -1);
+        }
+        ArrayList<Integer> batchWords = new ArrayList<Integer>();
+        final int[][] docColumns = new int[batch.length][];
+        final int[][] docCounts = new int[batch.length][];
+        for (int d = 0; d < batch.length; d++) {
+            int[] doc = batch[d].clone();
+            Arrays.sort(doc);
+            int numUnique = 0;
+            for (int n = 0; n < doc.length; n++) {
+                if (n == 0 || doc[n] != doc[n - 1]) {
+                    numUnique++;
+                }
+            }
+            docColumns[d] = new int[numUnique];
+            docCounts[d] = new int[numUnique];
+            int jj = -1;
+            for (int n = 0; n < doc.length; n++) {
+                if (n == 0 || doc[n] != doc[n - 1]) {
+                    jj++;
+                    if (wordColumns[doc[n]] < 0) {
+                        wordColumns[doc[n]] = batchWords.size();
+                        batchWords.add(doc[n]);
+                    }
+                    docColumns[d][jj] = wordColumns[doc[n]];
+                }
+                docCounts[d][jj]++;
+            }
+        }
+        for (int v : batchWords) {
+            wordColumns[v] = -1;
+        }
+
+        // expectations of the log topics of the words in the mini-batch
+        final int numWords = batchWords.size();
+        final double[][] expElogbeta = new double[K][numWords];
+        final double[][] phis = new double[K][numWords];
+        for (int k = 0; k < K; k++) {
+            double lambdaSum = getLambdaSum(k);
+            double digammaSum = StatUtils.digamma(lambdaSum);
+            for (int jj = 0; jj < numWords; jj++) {
+                double lambda = getLambda(k, batchWords.get(jj));
+                expElogbeta[k][jj] = Math.exp(StatUtils.digamma(lambda) - digammaSum);
+                phis[k][jj] = lambda / lambdaSum;
+            }
+        }
+
+        // fit the topic proportions of each document
+        final double[][] docStats = new double[batch.length][];
+        final double[] docLlhs = new double[batch.length];
+        if (numThreads == 1) {
+            for (int d = 0; d < batch.length; d++) {
+                docLlhs[d] = inferDocument(docColumns[d], docCounts[d], expElogbeta,
+                        phis, null, docStats[d] = new double[K * docColumns[d].length]);
+            }
+        } else {
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+            int shardSize = (batch.length + numThreads - 1) / numThreads;
+            for (int start = 0; start < batch.length; start += shardSize) {
+                final int shardStart = start;
+                final int shardEnd = Math.min(batch.length, start + shardSize);
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int d = shardStart; d < shardEnd; d++) {
+                            docStats[d] = new double[K * docColumns[d].length];
+                            docLlhs[d] = inferDocument(docColumns[d], docCounts[d],
+                                    expElogbeta, phis, null, docStats[d]);
+                        }
+                    }
+                });
+            }
+            TaskExecutor.run(tasks, false);
+        }
+
+        // sufficient statistics, summed in document order
+        double[][] sstats = new double[K][numWords];
+        batchLogLikelihood = 0;
+        batchNumTokens = 0;
+        for (int d = 0; d < batch.length; d++) {
+            int numUnique = docColumns[d].length;
+            for (int k = 0; k < K; k++) {
+                for (int jj = 0; jj < numUnique; jj++) {
+                    sstats[k][docColumns[d][jj]] += docStats[d][k * numUnique + jj];
+                }
+            }
+            batchLogLikelihood += docLlhs[d];
+            for (int count : docCounts[d]) {
+                batchNumTokens += count;
+            }
+        }
+
+        // lambda = (1 - rho) * lambda + rho * (beta + D / S * sstats)
+        double rho = Math.min(1.0, Math.pow(tau0 + numUpdates, -kappa));
+        if (rho == 1.0) { // lambda = beta + D / S * sstats
+            for (int k = 0; k < K; k++) {
+                Arrays.fill(lambdaTilde[k], 0.0);
+                lambdaTildeSums[k] = 0.0;
+            }
+            lambdaScale = 1.0;
+            lambdaOffset = hyperparams.get(BETA);
+        } else {
+            lambdaScale *= 1 - rho;
+            lambdaOffset = (1 - rho) * lambdaOffset + rho * hyperparams.get(BETA);
+        }
+        double weight = rho * corpusSize / batch.length / lambdaScale;
+        for (int k = 0; k < K; k++) {
+            for (int jj = 0; jj < numWords; jj++) {
+                double delta = weight * sstats[k][jj];
+                lambdaTilde[k][batchWords.get(jj)] += delta;
+                lambdaTildeSums[k] += delta;
+            }
+        }
+        if (lambdaScale < MIN_SCALE) {
+            rescaleLambda();
+        }
+        numUpdates++;
+        numDocsSeen += batch.length;
+    }
+
+    /**
+     * Fit the variational topic proportions of a document to fixed topics.
+     *
+     * @param columns The columns of the unique words of the document
+     * @param counts The counts of the unique words of the document
+     * @param expElogbeta Exponential of the expected log topics, by column
+     * @param phis Expected topics, by column
+     * @param gamma Output variational topic proportions (null if not needed)
+     * @param stats Output sufficient statistics of the topics (k * number of
+     * unique words + jj)
+     * @return The log likelihood of the document under the expected topic
+     * proportions and topics
+     */
+    private double inferDocument(int[] columns, int[] counts, double[][] expElogbeta,
+            double[][] phis, double[] gamma, double[] stats) {
+        double alpha = hyperparams.get(ALPHA);
+        int numUnique = columns.length;
+        int length = 0;
+        for (int count : counts) {
+            length += count;
+        }
+        if (gamma == null) {
+            gamma = new double[K];
+        }
+        Arrays.fill(gamma, alpha + (double) length / K);
+        double[] expElogtheta = new double[K];
+        double[] phinorms = new double[numUnique];
+        double[] lastGamma = new double[K];
+        computeExpElogtheta(gamma, expElogtheta);
+        for (int ii = 0; ii < numLocalIters; ii++) {
+            computePhinorms(columns, expElogbeta, expElogtheta, phinorms);
+            System.arraycopy(gamma, 0, lastGamma, 0, K);
+            double change = 0;
+            for (int k = 0; k < K; k++) {
+                double sum = 0;
+                for (int jj = 0; jj < numUnique; jj++) {
+                    sum += counts[jj] / phinorms[jj] * expElogbeta[k][columns[jj]];
+                }
+                gamma[k] = alpha + expElogtheta[k] * sum;
+                change += Math.abs(gamma[k] - lastGamma[k]);
+            }
+            computeExpElogtheta(gamma, expElogtheta);
+            if (change / K < localTolerance) {
+                break;
+            }
+        }
+
+        computePhinorms(columns, expElogbeta, expElogtheta, phinorms);
+        if (stats != null) {
+            for (int k = 0; k < K; k++) {
+                for (int jj = 0; jj < numUnique; jj++) {
+                    stats[k * numUnique + jj] = expElogtheta[k] * counts[jj]
+                            / phinorms[jj] * expElogbeta[k][columns[jj]];
+                }
+            }
+        }
+
+        double gammaSum = 0;
+        for (int k = 0; k < K; k++) {
+            gammaSum += gamma[k];
+        }
+        double llh = 0;
+        for (int jj = 0; jj < numUnique; jj++) {
+            double prob = 0;
+            for (int k = 0; k < K; k++) {
+                prob += gamma[k] / gammaSum * phis[k][columns[jj]];
+            }
+            llh += counts[jj] * Math.log(prob);
+        }
+        return llh;
+    }
+
+    private void computeExpElogtheta(double[] gamma, double[] expElogtheta) {
+        double sum = 0;
+        for (int k = 0; k < K; k++) {
+            sum += gamma[k];
+        }
+        double digammaSum = StatUtils.digamma(sum);
+        for (int k = 0; k < K; k++) {
+            expElogtheta[k] = Math.exp(StatUtils.digamma(gamma[k]) - digammaSum);
+        }
+    }
+
+    private void computePhinorms(int[] columns, double[][] expElogbeta,
+            double[] expElogtheta, double[] phinorms) {
+        for (int jj = 0; jj < columns.length; jj++) {
+            double sum = 1E-100;
+            for (int k = 0; k < K; k++) {
+                sum += expElogtheta[k] * expElogbeta[k][columns[jj]];
+            }
+            phinorms[jj] = sum;
+        }
+    }
+
+    /**
+     * Return the topic proportions of a new document under the current
+     * topics. The topics are not changed.
+     *
+     * @param doc The tokens of the document
+     */
+    public double[] inferTopics(int[] doc) {
+        int[] docWords = doc.clone();
+        Arrays.sort(docWords);
+        int numUnique = 0;
+        for (int n = 0; n < docWords.length; n++) {
+            if (n == 0 || docWords[n] != docWords[n - 1]) {
+                docWords[numUnique++] = docWords[n];
+            }
+        }
+        int[] columns = new int[numUnique];
+        int[] counts = new int[numUnique];
+        double[][] expElogbeta = new double[K][numUnique];
+        double[][] phis = new double[K][numUnique];
+        for (int jj = 0; jj < numUnique; jj++) {
+            columns[jj] = jj;
+        }
+        for (int w : doc) {
+            counts[Arrays.binarySearch(docWords, 0, numUnique, w)]++;
+        }
+        for (int k = 0; k < K; k++) {
+            double lambdaSum = getLambdaSum(k);
+            double digammaSum = StatUtils.digamma(lambdaSum);
+            for (int jj = 0; jj < numUnique; jj++) {
+                double lambda = getLambda(k, docWords[jj]);
+                expElogbeta[k][jj] = Math.exp(StatUtils.digamma(lambda) - digammaSum);
+                phis[k][jj] = lambda / lambdaSum;
+            }
+        }
+        double[] gamma = new double[K];
+        inferDocument(columns, counts, expElogbeta, phis, gamma, null);
+        double sum = 0;
+        for (int k = 0; k < K; k++) {
+            sum += gamma[k];
+        }
+        for (int k = 0; k < K; k++) {
+            gamma[k] /= sum;
+        }
+        return gamma;
+    }
+
+    protected double getLambda(int k, int v) {
+        return lambdaScale * lambdaTilde[k][v] + lambdaOffset;
+    }
+
+    protected double getLambdaSum(int k) {
+        return lambdaScale * lambdaTildeSums[k] + lambdaOffset * V;
+    }
+
+    /**
+     * Fold the shared scale into the entries of lambda.
+     */
+    private void rescaleLambda() {
+        for (int k = 0; k < K; k++) {
+            lambdaTildeSums[k] = 0;
+            for (int v = 0; v < V; v++) {
+                lambdaTilde[k][v] *= lambdaScale;
+                lambdaTildeSums[k] += lambdaTilde[k][v];
+            }
+        }
+        lambdaScale = 1.0;
+    }
+
+    /**
+     * Return the variational topic-word parameters.
+     */
+    public double[][] getLambdas() {
+        double[][] lambdas = new double[K][V];
+        for (int k = 0; k < K; k++) {
+            for (int v = 0; v < V; v++) {
+                lambdas[k][v] = getLambda(k, v);
+            }
+        }
+        return lambdas;
+    }
+
+    /**
+     * Return the expected topics.
+     */
+    public double[][] getPhis() {
+        double[][] phis = new double[K][V];
+        for (int k = 0; k < K; k++) {
+            double lambdaSum = getLambdaSum(k);
+            for (int v = 0; v < V; v++) {
+                phis[k][v] = getLambda(k, v) / lambdaSum;
+            }
+        }
+        return phis;
+    }
+
+    @Override
+    public String getCurrentState() {
+        return this.getSamplerFolderPath();
+    }
+
+    /**
+     * Return the log likelihood of the last mini-batch, computed with the
+     * topics before they were updated with the mini-batch.
+     */
+    @Override
+    public double getLogLikelihood() {
+        return batchLogLikelihood;
+    }
+
+    @Override
+    public double getLogLikelihood(ArrayList<Double> newParams) {
+        throw new RuntimeException("Hyperparameter optimization is not supported");
+    }
+
+    @Override
+    public void updateHyperparameters(ArrayList<Double> newParams) {
+        throw new RuntimeException("Hyperparameter optimization is not supported");
+    }
+
+    @Override
+    public void validate(String msg) {
+        logln("Validating ... " + msg);
+        for (int k = 0; k < K; k++) {
+            double sum = 0;
+            for (int v = 0; v < V; v++) {
+                if (lambdaTilde[k][v] < 0) {
+                    throw new RuntimeException(msg + ". Negative lambda " + k + ", " + v);
+                }
+                sum += lambdaTilde[k][v];
+            }
+            if (Math.abs(sum - lambdaTildeSums[k]) > 1E-6 * sum) {
+                throw new RuntimeException(msg + ". Lambda sum mismatched. "
+                        + sum + " vs. " + lambdaTildeSums[k]);
+            }
+        }
+    }
+
+    /**
+     * Output topics with top words.
+     *
+     * @param file
+     * @param numTopWords
+     */
+    @Override
+    public void outputTopicTopWords(File file, int numTopWords) {
+        if (this.wordVocab == null) {
+            throw new RuntimeException("The word vocab has not been assigned yet");
+        }
+
+        if (verbose) {
+            System.out.println("Outputing topics to file " + file);
+        }
+
+        try {
+            double[][] phis = getPhis();
+            BufferedWriter writer = IOUtils.getBufferedWriter(file);
+            for (int k = 0; k < K; k++) {
+                String[] topWords = getTopWords(phis[k], numTopWords);
+                double expectedCount = getLambdaSum(k) - hyperparams.get(BETA) * V;
+                writer.write("[Topic " + k + ": "
+                        + MiscUtils.formatDouble(expectedCount) + "]");
+                for (String tw : topWords) {
+                    writer.write(" " + tw);
+                }
+                writer.write("\n\n");
+            }
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while outputing top words to "
+                    + file);
+        }
+    }
+
+    /**
+     * Output the current state. The state is stored as a binary checkpoint if
+     * the file has extension {@link BinaryCheckpoint#FileExt}, and as a zipped
+     * text file otherwise.
+     *
+     * @param filepath The output file
+     */
+    @Override
+    public void outputState(String filepath) {
+        if (verbose) {
+            logln("--- Outputing current state to " + filepath);
+        }
+        try {
+            if (filepath.endsWith(BinaryCheckpoint.FileExt)) {
+                BinaryCheckpoint.Writer writer = new BinaryCheckpoint.Writer(filepath);
+                writer.startSection(BinaryCheckpoint.INT);
+                writer.writeInt(K);
+                writer.writeInt(V);
+                writer.writeInt(numUpdates);
+                writer.startSection(BinaryCheckpoint.LONG);
+                writer.writeLong(numDocsSeen);
+                writer.startSection(BinaryCheckpoint.DOUBLE);
+                for (int k = 0; k < K; k++) {
+                    for (int v = 0; v < V; v++) {
+                        writer.writeDouble(getLambda(k, v));
+                    }
+                }
+                writer.close();
+                return;
+            }
+
+            StringBuilder modelStr = new StringBuilder();
+            modelStr.append(numUpdates).append("\t").append(numDocsSeen).append("\n");
+            for (int k = 0; k < K; k++) {
+                modelStr.append(k).append("\n");
+                for (int v = 0; v < V; v++) {
+                    modelStr.append(getLambda(k, v)).append("\t");
+                }
+                modelStr.append("\n");
+            }
+            this.outputZipFile(filepath, modelStr.toString(), null);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while outputing to " + filepath);
+        }
+    }
+
+    @Override
+    public void inputState(String filepath) {
+        if (verbose) {
+            logln("--- Reading state from " + filepath);
+        }
+        lambdaTilde = new double[K][V];
+        lambdaTildeSums = new double[K];
+        lambdaScale = 1.0;
+        lambdaOffset = 0.0;
+        try {
+            if (filepath.endsWith(BinaryCheckpoint.FileExt)) {
+                BinaryCheckpoint.Reader reader = new BinaryCheckpoint.Reader(filepath);
+                if (reader.readInt(0) != K || reader.readInt(0) != V) {
+                    throw new RuntimeException("Dimensions mismatch when loading model");
+                }
+                numUpdates = reader.readInt(0);
+                numDocsSeen = reader.readLong(1);
+                for (int k = 0; k < K; k++) {
+                    reader.readDoubles(2, lambdaTilde[k]);
+                }
+                reader.close();
+            } else {
+                String filename = IOUtils.removeExtension(IOUtils.getFilename(filepath));
+                BufferedReader reader = IOUtils.getBufferedReader(filepath,
+                        filename + ModelFileExt);
+                String[] sline = reader.readLine().split("\t");
+                numUpdates = Integer.parseInt(sline[0]);
+                numDocsSeen = Long.parseLong(sline[1]);
+                for (int k = 0; k < K; k++) {
+                    int topicIdx = Integer.parseInt(reader.readLine());
+                    if (topicIdx != k) {
+                        throw new RuntimeException("Indices mismatch when loading model");
+                    }
+                    sline = reader.readLine().split("\t");
+                    if (sline.length != V) {
+                        throw new RuntimeException("Dimensions mismatch when loading model");
+                    }
+                    for (int v = 0; v < V; v++) {
+                        lambdaTilde[k][v] = Double.parseDouble(sline[v]);
+                    }
+                }
+                reader.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while loading from " + filepath);
+        }
+        for (int k = 0; k < K; k++) {
+            for (int v = 0; v < V; v++) {
+                lambdaTildeSums[k] += lambdaTilde[k][v];
+            }
+        }
+
+        validate("Done reading state from " + filepath);
+    }
+
+    public static String getHelpString() {
+        return "java -cp 'dist/segan.jar' " + OnlineLDA.class.getName() + " -help";
+    }
+
+    public static String getExampleCmd() {
+        return "java -cp \"dist/segan.jar:lib/*\" sampler.unsupervised.OnlineLDA "
+                + "--dataset amazon-data "
+                + "--word-voc-file demo/amazon-data/format-unsupervised/amazon-data.wvoc "
+                + "--word-file demo/amazon-data/format-unsupervised/amazon-data.dat "
+                + "--info-file demo/amazon-data/format-unsupervised/amazon-data.docinfo "
+                + "--output-folder demo/amazon-data/model-unsupervised "
+                + "--maxIter 5 "
+                + "--K 25 "
+                + "--alpha 0.1 "
+                + "--beta 0.01 "
+                + "--batch-size 256 "
+                + "-v -d";
+    }
+
+    private static void addOpitions() throws Exception {
+        parser = new BasicParser();
+        options = new Options();
+
+        // data input
+        addOption("dataset", "Dataset");
+        addOption("word-voc-file", "Word vocabulary file");
+        addOption("word-file", "Document word file");
+        addOption("info-file", "Document info file");
+
+        // data output
+        addOption("output-folder", "Output folder");
+
+        // parameters
+        addOption("alpha", "Alpha");
+        addOption("beta", "Beta");
+        addOption("K", "Number of topics");
+        addOption("num-top-words", "Number of top words per topic");
+
+        // configurations
+        addOption("maxIter", "Number of passes over the documents");
+        addOption("batch-size", "Number of documents per mini-batch");
+        addOption("tau0", "Delay of the learning rate, non-negative");
+        addOption("kappa", "Forgetting rate of the learning rate, in (0.5, 1]");
+        addOption("corpus-size", "Number of documents in the corpus. "
+                + "Default: number of input documents");
+        addOption("num-threads", "Number of threads fitting documents");
+        options.addOption("binary-state", false, "Store states as binary checkpoints");
+
+        options.addOption("v", false, "verbose");
+        options.addOption("d", false, "debug");
+        options.addOption("help", false, "Help");
+        options.addOption("example", false, "Example command");
+    }
+
+    private static void runModel() throws Exception {
+        int numTopWords = CLIUtils.getIntegerArgument(cmd, "num-top-words", 20);
+        int maxIters = CLIUtils.getIntegerArgument(cmd, "maxIter", 1);
+        int batchSize = CLIUtils.getIntegerArgument(cmd, "batch-size", 256);
+        double tau0 = CLIUtils.getDoubleArgument(cmd, "tau0", 1024);
+        double kappa = CLIUtils.getDoubleArgument(cmd, "kappa", 0.7);
+        int corpusSize = CLIUtils.getIntegerArgument(cmd, "corpus-size", 0);
+
+        // model parameters
+        double alpha = CLIUtils.getDoubleArgument(cmd, "alpha", 0.1);
+        double beta = CLIUtils.getDoubleArgument(cmd, "beta", 0.01);
+        int K = CLIUtils.getIntegerArgument(cmd, "K", 50);
+
+        // data input
+        String datasetName = cmd.getOptionValue("dataset");
+        String wordVocFile = cmd.getOptionValue("word-voc-file");
+        String docWordFile = cmd.getOptionValue("word-file");
+        String docInfoFile = cmd.getOptionValue("info-file");
+
+        // data output
+        String outputFolder = cmd.getOptionValue("output-folder");
+
+        TextDataset data = new TextDataset(datasetName);
+        data.loadFormattedData(new File(wordVocFile),
+                new File(docWordFile),
+                new File(docInfoFile),
+                null);
+        int V = data.getWordVocab().size();
+
+        OnlineLDA model = new OnlineLDA();
+        model.setVerbose(cmd.hasOption("v"));
+        model.setDebug(cmd.hasOption("d"));
+        model.setLog(true);
+        model.setReport(true);
+        model.setWordVocab(data.getWordVocab());
+        model.setNumThreads(CLIUtils.getIntegerArgument(cmd, "num-threads", 1));
+        model.setBinaryState(cmd.hasOption("binary-state"));
+
+        model.configure(outputFolder, V, K, alpha, beta, corpusSize,
+                batchSize, tau0, kappa, maxIters);
+        File samplerFolder = new File(model.getSamplerFolderPath());
+        IOUtils.createFolder(samplerFolder);
+
+        model.train(data.getWords(), null);
+        model.initialize();
+        model.iterate();
+        model.outputTopicTopWords(new File(samplerFolder, TopWordFile), numTopWords);
+        IOUtils.output2DArray(new File(samplerFolder, "phis.txt"), model.getPhis());
+    }
+
+    public static void main(String[] args) {
+        try {
+            long sTime = System.currentTimeMillis();
+
+            addOpitions();
+
+            cmd = parser.parse(options, args);
+            if (cmd.hasOption("help")) {
+                CLIUtils.printHelp(getHelpString(), options);
+                return;
+            } else if (cmd.hasOption("example")) {
+                System.out.println(getExampleCmd());
+                return;
+            }
+
+            runModel();
+
+            // date and time
+            DateFormat df = new SimpleDateFormat("dd/MM/yy HH:mm:ss");
+            Date dateobj = new Date();
+            long eTime = (System.currentTimeMillis() - sTime) / 1000;
+            System.out.println("Elapsed time: " + eTime + "s");
+            System.out.println("End time: " + df.format(dateobj));
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException();
+        }
+    }
+}
@@ -310,10 +310,11 @@ public class RecursiveLDA extends AbstractSampler {
             }
         } else {
             rlda.iterate();
+            int[][] ldaZs = rlda.getZs();
             for (int d = 0; d < D; d++) {
                 for (int n = 0; n < words[d].length; n++) {
                     if (rlda.getValid()[d][n]) {
-                        zs[level][d][n] = rlda.z[d][n];
+                        zs[level][d][n] = ldaZs[d][n];
                     }
                 }
             }
@@ -323,6 +324,7 @@ public class RecursiveLDA extends AbstractSampler {
             return;
         }
 
+        int[][] ldaZs = rlda.getZs();
         for (int k = 0; k < Ks[level - 1]; k++) {
             boolean[][] subValid = new boolean[D][];
             for (int d = 0; d < D; d++) {
@@ -332,7 +334,7 @@ public class RecursiveLDA extends AbstractSampler {
                     if (!rlda.getValid()[d][n]) {
                         continue;
                     }
-                    if (rlda.z[d][n] == k) {
+                    if (ldaZs[d][n] == k) {
                         subValid[d][n] = true;
                     }
                 }
@@ -584,7 +586,7 @@ public class RecursiveLDA extends AbstractSampler {
         public void updateStatistics() {
             numTokens = 0;
             for (int d = 0; d < D; d++) {
-                for (int n = 0; n < words[d].length; n++) {
+                for (int n = 0; n < corpus.getDocLength(d); n++) {
                     if (this.valid[d][n]) {
                         numTokens++;
                     }
@@ -639,12 +641,13 @@ public class RecursiveLDA extends AbstractSampler {
             }
 
             for (int d = 0; d < D; d++) {
-                Arrays.fill(z[d], INVALID);
-                for (int n = 0; n < words[d].length; n++) {
+                corpus.fillDocZs(d, INVALID);
+                for (int n = 0; n < corpus.getDocLength(d); n++) {
                     if (valid[d][n]) {
-                        z[d][n] = seededZs[d][n];
-                        docTopics[d].increment(z[d][n]);
-                        topicWords[z[d][n]].increment(words[d][n]);
+                        int ii = corpus.getDocStart(d) + n;
+                        corpus.setZ(ii, seededZs[d][n]);
+                        docTopics[d].increment(seededZs[d][n]);
+                        topicWords[seededZs[d][n]].increment(corpus.getWord(ii));
                     }
                 }
             }
@@ -657,12 +660,14 @@ public class RecursiveLDA extends AbstractSampler {
             }
 
             for (int d = 0; d < D; d++) {
-                Arrays.fill(z[d], INVALID);
-                for (int n = 0; n < words[d].length; n++) {
+                corpus.fillDocZs(d, INVALID);
+                for (int n = 0; n < corpus.getDocLength(d); n++) {
                     if (valid[d][n]) {
-                        z[d][n] = rand.nextInt(K);
-                        docTopics[d].increment(z[d][n]);
-                        topicWords[z[d][n]].increment(words[d][n]);
+                        int ii = corpus.getDocStart(d) + n;
+                        int k = rand.nextInt(K);
+                        corpus.setZ(ii, k);
+                        docTopics[d].increment(k);
+                        topicWords[k].increment(corpus.getWord(ii));
                     }
                 }
             }
@@ -680,9 +685,9 @@ public class RecursiveLDA extends AbstractSampler {
                 numTokensChanged = 0;
 
                 for (int d = 0; d < D; d++) {
-                    for (int n = 0; n < words[d].length; n++) {
+                    for (int n = 0; n < corpus.getDocLength(d); n++) {
                         if (valid[d][n]) {
-                            sampleZ(d, n, REMOVE, ADD, REMOVE, ADD);
+                            sampleZ(d, corpus.getDocStart(d) + n, REMOVE, ADD, REMOVE, ADD);
                         }
                     }
                 }
@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.Set;
+import sampling.util.RandomStreams;
 import sampling.util.SparseCount;
 
 /**
@@ -22,7 +23,7 @@ public abstract class AbstractDiscreteFiniteLikelihoodModel
     public static final int RANDOM_SEED = 1123581321;
     // this is currently used for likelihood models that does not have/use
     // conjugate prior and we need to sample from the prior
-    protected static Random rand = new Random(RANDOM_SEED);
+    protected static Random rand = RandomStreams.newSharedRandom(RANDOM_SEED);
     // observations
     protected int dimension;
     protected SparseCount observations;
@@ -50,7 +51,9 @@ public abstract class AbstractDiscreteFiniteLikelihoodModel
     @Override
     public AbstractDiscreteFiniteLikelihoodModel clone() throws CloneNotSupportedException {
         AbstractDiscreteFiniteLikelihoodModel m = (AbstractDiscreteFiniteLikelihoodModel) super.clone();
-        m.observations = this.observations.clone();
+        if (this.observations != null) {
+            m.observations = this.observations.clone();
+        }
         return m;
     }
 
@@ -76,8 +79,8 @@ public abstract class AbstractDiscreteFiniteLikelihoodModel
 
     public int[] getCounts() {
         int[] counts = new int[this.dimension];
-        for (int obs : this.observations.getIndices()) {
-            counts[obs] = this.observations.getCount(obs);
+        for (int s = observations.nextSlot(-1); s >= 0; s = observations.nextSlot(s)) {
+            counts[observations.getSlotIndex(s)] = observations.getSlotCount(s);
         }
         return counts;
     }
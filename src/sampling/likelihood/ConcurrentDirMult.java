@@ -0,0 +1,212 @@
+package sampling.likelihood;
+
+import java.util.HashMap;
+import java.util.Set;
+import sampling.util.ConcurrentCountTable;
+import sampling.util.SparseCount;
+
+/**
+ * A Dirichlet-multinomial whose counts are one row of a ConcurrentCountTable,
+ * so that multiple threads can sample against and update the same set of
+ * topics at the same time without copying or merging counts.
+ *
+ * Reads are not synchronized with concurrent updates. In particular, the count
+ * sum may be slightly out of sync with the counts while other threads are
+ * sampling, so probabilities computed during a parallel sweep are approximate.
+ * Methods that scan all counts (getCounts, getSparseCounts, validate, etc.)
+ * should only be called between sweeps.
+ *
+ * @author vietan
+ */
+public class ConcurrentDirMult extends DirMult {
+
+    private static final long serialVersionUID = 1123581321L;
+    private final ConcurrentCountTable table;
+    private final int row;
+
+    public ConcurrentDirMult(ConcurrentCountTable table, int row,
+            double concentration, double centerElement) {
+        super(table.getDimension(), concentration, centerElement, Storage.SPARSE);
+        this.table = table;
+        this.row = row;
+    }
+
+    public ConcurrentDirMult(ConcurrentCountTable table, int row,
+            double concentration, double[] centerVector) {
+        super(table.getDimension(), concentration, centerVector, Storage.SPARSE);
+        this.table = table;
+        this.row = row;
+    }
+
+    public ConcurrentCountTable getTable() {
+        return this.table;
+    }
+
+    public int getRow() {
+        return this.row;
+    }
+
+    /**
+     * Create concurrent versions of a set of DirMult's, backed by a new table
+     * with one row per model. Counts and priors are copied.
+     *
+     * @param models The models, which must have the same dimension
+     */
+    public static ConcurrentDirMult[] share(DirMult[] models) {
+        ConcurrentCountTable table = new ConcurrentCountTable(models.length,
+                models[0].getDimension());
+        ConcurrentDirMult[] shared = new ConcurrentDirMult[models.length];
+        for (int k = 0; k < models.length; k++) {
+            DirMult model = models[k];
+            if (model.isShortRepresented()) {
+                shared[k] = new ConcurrentDirMult(table, k,
+                        model.getConcentration(), model.getCenterElement(0));
+            } else {
+                shared[k] = new ConcurrentDirMult(table, k,
+                        model.getConcentration(), model.getCenterVector().clone());
+            }
+            shared[k].setCounts(model.getCounts());
+        }
+        return shared;
+    }
+
+    /**
+     * Return true if all models are rows of the same concurrent table.
+     *
+     * @param models The models
+     */
+    public static boolean isShared(DirMult[] models) {
+        if (models.length == 0 || !(models[0] instanceof ConcurrentDirMult)) {
+            return false;
+        }
+        ConcurrentCountTable table = ((ConcurrentDirMult) models[0]).table;
+        for (DirMult model : models) {
+            if (!(model instanceof ConcurrentDirMult)
+                    || ((ConcurrentDirMult) model).table != table) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getNonZeroObservations(int[] buffer) {
+        int num = 0;
+        for (int i = 0; i < dimension; i++) {
+            if (table.getCount(row, i) > 0) {
+                buffer[num++] = i;
+            }
+        }
+        return num;
+    }
+
+    @Override
+    public void clear() {
+        table.clear(row);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getCountSum() == 0;
+    }
+
+    @Override
+    public int getCount(int observation) {
+        return table.getCount(row, observation);
+    }
+
+    @Override
+    public int getCountSum() {
+        return table.getCountSum(row);
+    }
+
+    @Override
+    public HashMap<Integer, Integer> getObservations() {
+        return getSparseCounts().getObservations();
+    }
+
+    @Override
+    public Set<Integer> getUniqueObservations() {
+        return getSparseCounts().getIndices();
+    }
+
+    @Override
+    public int[] getCounts() {
+        int[] counts = new int[dimension];
+        for (int i = 0; i < dimension; i++) {
+            counts[i] = table.getCount(row, i);
+        }
+        return counts;
+    }
+
+    /**
+     * Return a copy of the counts.
+     */
+    @Override
+    public SparseCount getSparseCounts() {
+        SparseCount sc = new SparseCount();
+        for (int i = 0; i < dimension; i++) {
+            int count = table.getCount(row, i);
+            if (count > 0) {
+                sc.setCount(i, count);
+            }
+        }
+        return sc;
+    }
+
+    @Override
+    public void setCounts(int[] c) {
+        for (int i = 0; i < dimension; i++) {
+            if (c[i] < 0) {
+                throw new RuntimeException("Setting a negative count. " + c[i]);
+            }
+        }
+        table.clear(row);
+        for (int i = 0; i < dimension; i++) {
+            if (c[i] > 0) {
+                table.changeCount(row, i, c[i]);
+            }
+        }
+    }
+
+    @Override
+    public void changeCount(int observation, int delta) {
+        table.changeCount(row, observation, delta);
+    }
+
+    @Override
+    public void decrement(int observation) {
+        table.decrement(row, observation);
+    }
+
+    @Override
+    public void increment(int observation) {
+        table.increment(row, observation);
+    }
+
+    @Override
+    public void validate(String msg) {
+        table.validate(row, msg);
+    }
+
+    @Override
+    public double getProbability(int w) {
+        return (table.getCount(row, w) + getPseudoCount(w))
+                / (table.getCountSum(row) + getConcentration());
+    }
+
+    /**
+     * Return an unshared DirMult with a snapshot of the counts.
+     */
+    @Override
+    public DirMult clone() {
+        DirMult newMult;
+        if (isShortRepresented()) {
+            newMult = new DirMult(dimension, getConcentration(), getCenterElement(0));
+        } else {
+            newMult = new DirMult(dimension, getConcentration(), getCenterVector().clone());
+        }
+        newMult.setCounts(getCounts());
+        return newMult;
+    }
+}
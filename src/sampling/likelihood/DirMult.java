@@ -3,6 +3,7 @@ package sampling.likelihood;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Set;
 import sampling.AbstractDiscreteFiniteLikelihoodModel;
 import sampling.util.SparseCount;
 import util.SamplerUtils;
@@ -17,23 +18,63 @@ import weka.core.SerializedObject;
 public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Serializable {
 
     private static final long serialVersionUID = 1123581321L;
+    /**
+     * Dimensions up to this value use dense storage from the start when the
+     * storage is chosen automatically.
+     */
+    public static final int DENSE_DIMENSION = 64;
+    /**
+     * Automatically chosen sparse storage is switched to dense storage once
+     * the fraction of non-zero entries exceeds this ratio. At this point the
+     * open-addressing table already uses at least as much memory as an int
+     * array of the full dimension.
+     */
+    public static final double DENSE_FILL_RATIO = 0.25;
+
+    public static enum Storage {
+
+        AUTO, SPARSE, DENSE
+    }
     private double concentration; // concentration parameter
     private double[] center; // the mean vector for asymmetric distribution
     private double centerElement; // an element in the mean vector for symmetric distribution
     private double[] distribution;
+    // cached concentration * center
+    private double pseudoCountElement;
+    private double[] pseudoCounts;
+    // dense storage, used instead of the sparse observations when not null
+    private final Storage storage;
+    private int[] denseCounts;
+    private int denseCountSum;
 
     public DirMult(int dim, double concentration, double centerElement) {
+        this(dim, concentration, centerElement, Storage.AUTO);
+    }
+
+    public DirMult(int dim, double concentration, double centerElement,
+            Storage storage) {
         super(dim);
         this.centerElement = centerElement;
         this.concentration = concentration;
+        this.storage = storage;
+        this.initializeStorage();
+        this.updatePseudoCounts();
     }
 
     /*TODO: dim can be inferred from the dimension of centerVector. remove the
      * argument "dim"! */
     public DirMult(int dim, double concentration, double[] centerVector) {
+        this(dim, concentration, centerVector, Storage.AUTO);
+    }
+
+    public DirMult(int dim, double concentration, double[] centerVector,
+            Storage storage) {
         super(dim);
         this.center = centerVector;
         this.concentration = concentration;
+        this.storage = storage;
+        this.initializeStorage();
+        this.updatePseudoCounts();
     }
 
     public DirMult(double[] p) {
@@ -46,6 +87,247 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
         for (int i = 0; i < dimension; i++) {
             this.center[i] = p[i] / this.concentration;
         }
+        this.storage = Storage.AUTO;
+        this.initializeStorage();
+        this.updatePseudoCounts();
+    }
+
+    private void initializeStorage() {
+        if (storage == Storage.DENSE
+                || (storage == Storage.AUTO && dimension <= DENSE_DIMENSION)) {
+            this.denseCounts = new int[dimension];
+            this.denseCountSum = 0;
+            this.observations = null;
+        } else {
+            this.denseCounts = null;
+            this.observations = new SparseCount();
+        }
+    }
+
+    /**
+     * Switch automatically chosen sparse storage to dense storage if the
+     * counts have become dense enough.
+     */
+    private void checkDensity() {
+        if (storage == Storage.AUTO
+                && observations.size() > DENSE_FILL_RATIO * dimension) {
+            int[] dense = new int[dimension];
+            for (int s = observations.nextSlot(-1); s >= 0; s = observations.nextSlot(s)) {
+                dense[observations.getSlotIndex(s)] = observations.getSlotCount(s);
+            }
+            this.denseCountSum = observations.getCountSum();
+            this.denseCounts = dense;
+            this.observations = null;
+        }
+    }
+
+    /**
+     * Recompute the cached pseudo-counts after the concentration or the mean
+     * vector changes.
+     */
+    private void updatePseudoCounts() {
+        this.pseudoCountElement = concentration * centerElement;
+        if (center == null) {
+            this.pseudoCounts = null;
+        } else {
+            if (pseudoCounts == null || pseudoCounts.length != center.length) {
+                this.pseudoCounts = new double[center.length];
+            }
+            for (int i = 0; i < center.length; i++) {
+                this.pseudoCounts[i] = concentration * center[i];
+            }
+        }
+    }
+
+    /**
+     * Return true if the counts are stored in a dense array.
+     */
+    public boolean isDense() {
+        return this.denseCounts != null;
+    }
+
+    /**
+     * Return the prior pseudo-count (concentration times mean) of an
+     * observation.
+     *
+     * @param observation The observation
+     */
+    public double getPseudoCount(int observation) {
+        if (pseudoCounts == null) {
+            return pseudoCountElement;
+        }
+        return pseudoCounts[observation];
+    }
+
+    /**
+     * Return the count of an observation plus its prior pseudo-count, which is
+     * the unnormalized posterior predictive probability.
+     *
+     * @param observation The observation
+     */
+    public double getSmoothedCount(int observation) {
+        return getCount(observation) + getPseudoCount(observation);
+    }
+
+    /**
+     * Write the observations that have non-zero counts into a buffer.
+     *
+     * @param buffer Buffer of size at least the number of such observations
+     * @return The number of observations written
+     */
+    public int getNonZeroObservations(int[] buffer) {
+        int num = 0;
+        if (denseCounts != null) {
+            for (int i = 0; i < dimension; i++) {
+                if (denseCounts[i] > 0) {
+                    buffer[num++] = i;
+                }
+            }
+        } else {
+            for (int s = observations.nextSlot(-1); s >= 0; s = observations.nextSlot(s)) {
+                buffer[num++] = observations.getSlotIndex(s);
+            }
+        }
+        return num;
+    }
+
+    @Override
+    public void clear() {
+        this.initializeStorage();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getCountSum() == 0;
+    }
+
+    @Override
+    public int getCount(int observation) {
+        if (denseCounts != null) {
+            return denseCounts[observation];
+        }
+        return this.observations.getCount(observation);
+    }
+
+    @Override
+    public int getCountSum() {
+        if (denseCounts != null) {
+            return denseCountSum;
+        }
+        return this.observations.getCountSum();
+    }
+
+    @Override
+    public HashMap<Integer, Integer> getObservations() {
+        return getSparseCounts().getObservations();
+    }
+
+    @Override
+    public Set<Integer> getUniqueObservations() {
+        return getSparseCounts().getIndices();
+    }
+
+    @Override
+    public int[] getCounts() {
+        if (denseCounts != null) {
+            return denseCounts.clone();
+        }
+        return super.getCounts();
+    }
+
+    /**
+     * Return the sparse counts. With dense storage, this is a copy of the
+     * counts.
+     */
+    @Override
+    public SparseCount getSparseCounts() {
+        if (denseCounts != null) {
+            SparseCount sc = new SparseCount();
+            for (int i = 0; i < dimension; i++) {
+                if (denseCounts[i] > 0) {
+                    sc.setCount(i, denseCounts[i]);
+                }
+            }
+            return sc;
+        }
+        return this.observations;
+    }
+
+    @Override
+    public void setCounts(int[] c) {
+        if (denseCounts != null) {
+            this.denseCountSum = 0;
+            for (int i = 0; i < dimension; i++) {
+                if (c[i] < 0) {
+                    throw new RuntimeException("Setting a negative count. " + c[i]);
+                }
+                this.denseCounts[i] = c[i];
+                this.denseCountSum += c[i];
+            }
+            return;
+        }
+        super.setCounts(c);
+        this.checkDensity();
+    }
+
+    @Override
+    public void changeCount(int observation, int delta) {
+        if (denseCounts != null) {
+            int count = denseCounts[observation] + delta;
+            if (count < 0) {
+                throw new RuntimeException("Setting a negative count. " + count);
+            }
+            denseCounts[observation] = count;
+            denseCountSum += delta;
+            return;
+        }
+        super.changeCount(observation, delta);
+        this.checkDensity();
+    }
+
+    @Override
+    public void decrement(int observation) {
+        if (denseCounts != null) {
+            if (denseCounts[observation] == 0) {
+                throw new RuntimeException("Removing observation that does not exist "
+                        + observation);
+            }
+            denseCounts[observation]--;
+            denseCountSum--;
+            return;
+        }
+        this.observations.decrement(observation);
+    }
+
+    @Override
+    public void increment(int observation) {
+        if (denseCounts != null) {
+            denseCounts[observation]++;
+            denseCountSum++;
+            return;
+        }
+        this.observations.increment(observation);
+        this.checkDensity();
+    }
+
+    @Override
+    public void validate(String msg) {
+        if (denseCounts == null) {
+            this.observations.validate(msg);
+            return;
+        }
+        int totalCount = 0;
+        for (int i = 0; i < dimension; i++) {
+            if (denseCounts[i] < 0) {
+                throw new RuntimeException(msg + ". Negative count for observation "
+                        + i + ". count = " + denseCounts[i]);
+            }
+            totalCount += denseCounts[i];
+        }
+        if (totalCount != denseCountSum) {
+            throw new RuntimeException(msg + ". Total counts mismatched. "
+                    + totalCount + " vs. " + denseCountSum);
+        }
     }
 
     public void setSamplingDistribution(double[] dist) {
@@ -65,14 +347,17 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
         for (int i = 0; i < dimension; i++) {
             this.center[i] = p[i] / this.concentration;
         }
+        this.updatePseudoCounts();
     }
 
     public void setConcentration(double conc) {
         this.concentration = conc;
+        this.updatePseudoCounts();
     }
 
     public void getCenterVector(double[] ce) {
         this.center = ce;
+        this.updatePseudoCounts();
     }
 
     public double getConcentration() {
@@ -85,6 +370,7 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
             for (int i = 0; i < dimension; i++) {
                 center[i] = 1.0 / dimension;
             }
+            this.updatePseudoCounts();
         }
         return center;
     }
@@ -118,6 +404,10 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
             newMult = (DirMult) super.clone();
             if (!isShortRepresented()) {
                 newMult.center = (double[]) this.center.clone();
+                newMult.pseudoCounts = this.pseudoCounts.clone();
+            }
+            if (isDense()) {
+                newMult.denseCounts = this.denseCounts.clone();
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -154,31 +444,34 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
     }
 
     public double getLogLikelihood(SparseCount observations) {
-        return getLogLikelihood(observations.getObservations());
+        double llh = 0.0;
+        int j = 0;
+        for (int s = observations.nextSlot(-1); s >= 0; s = observations.nextSlot(s)) {
+            int observation = observations.getSlotIndex(s);
+            int obsCount = observations.getSlotCount(s);
+            for (int i = 0; i < obsCount; i++) {
+                llh += Math.log(concentration * getCenterElement(observation)
+                        + getCount(observation) + i)
+                        - Math.log(concentration + getCountSum() + j);
+                j++;
+            }
+        }
+        return llh;
     }
 
     @Override
     public double getLogLikelihood(int observation) {
-        double prior;
-        if (isShortRepresented()) {
-            prior = this.centerElement * this.concentration;
-        } else {
-            prior = this.center[observation] * this.concentration;
-        }
-        return Math.log(this.getCount(observation) + prior)
+        return Math.log(this.getCount(observation) + getPseudoCount(observation))
                 - Math.log(this.getCountSum() + this.concentration);
     }
 
     @Override
     public double getLogLikelihood() {
+        int[] counts = isDense() ? denseCounts : getCounts();
         if (isShortRepresented()) {
-            return SamplerUtils.computeLogLhood(getCounts(), getCountSum(), centerElement * concentration);
+            return SamplerUtils.computeLogLhood(counts, getCountSum(), pseudoCountElement);
         } else {
-            double[] params = new double[this.getDimension()];
-            for (int i = 0; i < this.getDimension(); i++) {
-                params[i] = center[i] * concentration;
-            }
-            return SamplerUtils.computeLogLhood(getCounts(), getCountSum(), params);
+            return SamplerUtils.computeLogLhood(counts, getCountSum(), pseudoCounts);
         }
     }
 
@@ -201,18 +494,19 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
     @Override
     public double[] getDistribution() {
         double[] distr = new double[getDimension()];
+        double norm = getCountSum() + concentration;
         for (int k = 0; k < distr.length; k++) {
-            if (isShortRepresented()) {
-                distr[k] = (getCount(k) + concentration * centerElement) / (getCountSum() + concentration);
-            } else {
-                distr[k] = (getCount(k) + concentration * center[k]) / (getCountSum() + concentration);
-            }
+            distr[k] = (getCount(k) + getPseudoCount(k)) / norm;
         }
         return distr;
     }
 
     public double getProbability(int w) {
-        return (getCount(w) + this.concentration * getCenterElement(w))
+        if (denseCounts != null) {
+            return (denseCounts[w] + getPseudoCount(w))
+                    / (denseCountSum + this.concentration);
+        }
+        return (getCount(w) + getPseudoCount(w))
                 / (getCountSum() + this.concentration);
     }
 
@@ -240,6 +534,7 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
         str.append("Count sum = ").append(this.getCountSum()).append("\n");
         str.append("Counts = ").append(java.util.Arrays.toString(this.getCounts())).append("\n");
         str.append("Concentration = ").append(this.concentration).append("\n");
+        str.append("Dense = ").append(isDense()).append("\n");
         str.append("Short-represented = ").append(isShortRepresented()).append("\n");
         if (isShortRepresented()) {
             str.append("Mean element = ").append(this.centerElement).append("\n");
@@ -365,7 +660,7 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
         System.out.println(newMM.getDebugString());
 
         mm.increment(0);
-        newMM.concentration = 10;
+        newMM.setConcentration(10);
 
         System.out.println(mm.getDebugString());
         System.out.println(newMM.getDebugString());
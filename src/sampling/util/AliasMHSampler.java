@@ -0,0 +1,309 @@
+package sampling.util;
+
+import core.FlatCorpus;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+import sampling.likelihood.DirMult;
+
+/**
+ * Metropolis-Hastings sampler for the topic assignment of a token in LDA-like
+ * models, alternating between a word proposal and a document proposal (Yuan et
+ * al., LightLDA, WWW 2015; Li et al., AliasLDA, KDD 2014).
+ *
+ * The word proposal q_w(k) is proportional to (n_kw + beta) / (n_k + beta V)
+ * computed from stale counts. It is the mixture of a sparse per-word alias
+ * table over the topics that have the word and a dense alias table of the
+ * smoothing term shared by all words. The per-word tables are built from a
+ * sparse word-topic count index, which the caller keeps up to date with
+ * {@link #addToken(int, int)} and {@link #removeToken(int, int)} as the
+ * topic-word counts change, so building the table of a word costs
+ * O(number of topics of the word). Each table is rebuilt lazily once it has
+ * been drawn from, or its word has been reassigned, as many times as there are
+ * topics, so the rebuilding cost is amortized O(1) per token. A word table is
+ * also rebuilt once it was built before the previous sweep (see
+ * {@link #nextSweep()}), so that the tables of rare words, which are rarely
+ * drawn from, do not keep arbitrarily old counts. This costs at most the
+ * number of tokens per sweep, regardless of the number of topics.
+ *
+ * The document proposal q_d(k) is proportional to n_dk + alpha and is drawn in
+ * O(1) by picking the assignment of another token in the same document.
+ *
+ * The target is the collapsed Gibbs conditional computed from the current
+ * DirMult counts, which must exclude the token being sampled.
+ *
+ * @author vietan
+ */
+public class AliasMHSampler implements Serializable {
+
+    private static final long serialVersionUID = 1123581321L;
+    public static final int DEFAULT_NUM_MH_STEPS = 2;
+    private final int K;
+    private final int V;
+    private final int numMHSteps;
+    private double alpha;
+    private double beta;
+    public static final int MAX_TABLE_AGE = 1; // in sweeps
+    private AliasTable[] wordTables;
+    private int[] wordTableSweeps; // [V]: sweep in which each table was built
+    private int[] wordUpdates; // [V]: number of reassignments since the build
+    private int sweep;
+    private AliasTable smoothingTable;
+    private SparseCount[] wordTopics; // [V]: word-topic counts, null until built
+    private int[] topicBuffer;
+    private double[] weightBuffer;
+    private int numProposals;
+    private int numAccepts;
+
+    /**
+     * @param K Number of topics
+     * @param V Vocabulary size
+     * @param alpha Document-topic smoothing used by the document proposal
+     * @param beta Topic-word smoothing used by the word proposal
+     * @param numMHSteps Number of MH steps per token
+     */
+    public AliasMHSampler(int K, int V, double alpha, double beta, int numMHSteps) {
+        this.K = K;
+        this.V = V;
+        this.alpha = alpha;
+        this.beta = beta;
+        this.numMHSteps = numMHSteps;
+        this.wordTables = new AliasTable[V];
+        this.wordTableSweeps = new int[V];
+        this.wordUpdates = new int[V];
+        this.topicBuffer = new int[K];
+        this.weightBuffer = new double[K];
+    }
+
+    /**
+     * Set the smoothing parameters of the proposals. All alias tables are
+     * discarded if they change.
+     */
+    public void setPriors(double alpha, double beta) {
+        if (alpha != this.alpha || beta != this.beta) {
+            this.alpha = alpha;
+            this.beta = beta;
+            this.invalidate();
+        }
+    }
+
+    /**
+     * Discard all alias tables and the word-topic count index, e.g., after
+     * the topic-word counts are replaced.
+     */
+    public void invalidate() {
+        this.wordTables = new AliasTable[V];
+        this.smoothingTable = null;
+        this.wordTopics = null;
+    }
+
+    /**
+     * Record that a token of a word has been added to the counts of a topic.
+     * This must be called whenever the topic-word counts are incremented
+     * between calls of sample.
+     *
+     * @param ww The word type
+     * @param k The topic
+     */
+    public void addToken(int ww, int k) {
+        if (wordTopics != null) {
+            wordTopics[ww].increment(k);
+        }
+    }
+
+    /**
+     * Record that a token of a word has been removed from the counts of a
+     * topic.
+     *
+     * @param ww The word type
+     * @param k The topic
+     */
+    public void removeToken(int ww, int k) {
+        if (wordTopics != null) {
+            wordTopics[ww].decrement(k);
+        }
+    }
+
+    /**
+     * Mark the start of a new sweep over the corpus, which ages all word
+     * tables.
+     */
+    public void nextSweep() {
+        this.sweep++;
+    }
+
+    public double getAcceptanceRate() {
+        return numProposals == 0 ? 0.0 : (double) numAccepts / numProposals;
+    }
+
+    public void resetAcceptanceRate() {
+        this.numProposals = 0;
+        this.numAccepts = 0;
+    }
+
+    /**
+     * Sample a new topic for a token whose current assignment has been
+     * removed from the document and topic counts.
+     *
+     * @param curZ The current topic of the token
+     * @param ii The position of the token in the corpus
+     * @param ww The word type of the token
+     * @param corpus The corpus holding the topic assignments of all tokens
+     * @param dd The document of the token
+     * @param candidates The topics allowed for this document, or null if all
+     * topics are allowed
+     * @param docTopics The document-topic counts
+     * @param topicWords The topic-word counts
+     * @param rand Random number generator
+     * @return The sampled topic
+     */
+    public int sample(int curZ, int ii, int ww, FlatCorpus corpus, int dd,
+            int[] candidates, DirMult docTopics, DirMult[] topicWords, Random rand) {
+        int s = curZ;
+        double ps = getTarget(s, ww, docTopics, topicWords);
+        for (int step = 0; step < numMHSteps; step++) {
+            int t;
+            double ratio;
+            if (step % 2 == 0) { // word proposal
+                t = proposeWord(ww, topicWords, rand);
+                if (t == s) {
+                    continue;
+                }
+                if (candidates != null && !contains(candidates, t)) {
+                    numProposals++;
+                    continue;
+                }
+                double pt = getTarget(t, ww, docTopics, topicWords);
+                ratio = pt * getWordProposal(s, ww) / (ps * getWordProposal(t, ww));
+                numProposals++;
+                if (ratio >= 1 || rand.nextDouble() < ratio) {
+                    s = t;
+                    ps = pt;
+                    numAccepts++;
+                }
+            } else { // document proposal
+                t = proposeDoc(ii, corpus, dd, candidates, rand);
+                if (t == s) {
+                    continue;
+                }
+                double pt = getTarget(t, ww, docTopics, topicWords);
+                ratio = pt * (docTopics.getCount(s) + alpha)
+                        / (ps * (docTopics.getCount(t) + alpha));
+                numProposals++;
+                if (ratio >= 1 || rand.nextDouble() < ratio) {
+                    s = t;
+                    ps = pt;
+                    numAccepts++;
+                }
+            }
+        }
+        if (s != curZ) {
+            wordUpdates[ww]++;
+        }
+        return s;
+    }
+
+    private static double getTarget(int k, int ww, DirMult docTopics,
+            DirMult[] topicWords) {
+        return docTopics.getSmoothedCount(k) * topicWords[k].getProbability(ww);
+    }
+
+    private static boolean contains(int[] candidates, int k) {
+        for (int c : candidates) {
+            if (c == k) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int proposeDoc(int ii, FlatCorpus corpus, int dd, int[] candidates,
+            Random rand) {
+        int numOthers = corpus.getDocLength(dd) - 1;
+        int numTopics = candidates == null ? K : candidates.length;
+        double u = rand.nextDouble() * (numOthers + numTopics * alpha);
+        if (u < numOthers) {
+            int idx = corpus.getDocStart(dd) + (int) u;
+            if (idx >= ii) {
+                idx++;
+            }
+            return corpus.getZ(idx);
+        }
+        int jj = rand.nextInt(numTopics);
+        return candidates == null ? jj : candidates[jj];
+    }
+
+    private int proposeWord(int ww, DirMult[] topicWords, Random rand) {
+        if (smoothingTable == null || smoothingTable.getNumDraws() >= K) {
+            buildSmoothingTable(topicWords);
+        }
+        AliasTable wordTable = wordTables[ww];
+        if (wordTable == null
+                || wordTable.getNumDraws() + wordUpdates[ww] >= K
+                || sweep - wordTableSweeps[ww] > MAX_TABLE_AGE) {
+            wordTable = buildWordTable(ww, topicWords);
+        }
+        double u = rand.nextDouble() * (wordTable.getMass() + smoothingTable.getMass());
+        if (u < wordTable.getMass()) {
+            return wordTable.sample(rand);
+        }
+        return smoothingTable.sample(rand);
+    }
+
+    private double getWordProposal(int k, int ww) {
+        return wordTables[ww].getWeight(k) + smoothingTable.getWeight(k);
+    }
+
+    private void buildSmoothingTable(DirMult[] topicWords) {
+        double betaSum = beta * V;
+        double[] weights = new double[K];
+        for (int k = 0; k < K; k++) {
+            weights[k] = beta / (topicWords[k].getCountSum() + betaSum);
+        }
+        smoothingTable = new AliasTable(weights);
+    }
+
+    /**
+     * Invert the topic-word counts into the word-topic count index. This is
+     * only done when the sampler is first used or after it is invalidated.
+     */
+    private void buildWordTopics(DirMult[] topicWords) {
+        wordTopics = new SparseCount[V];
+        for (int v = 0; v < V; v++) {
+            wordTopics[v] = new SparseCount();
+        }
+        int[] buffer = new int[V];
+        for (int k = 0; k < K; k++) {
+            int num = topicWords[k].getNonZeroObservations(buffer);
+            for (int ii = 0; ii < num; ii++) {
+                wordTopics[buffer[ii]].setCount(k, topicWords[k].getCount(buffer[ii]));
+            }
+        }
+    }
+
+    private AliasTable buildWordTable(int ww, DirMult[] topicWords) {
+        if (wordTopics == null) {
+            buildWordTopics(topicWords);
+        }
+        double betaSum = beta * V;
+        SparseCount wordCounts = wordTopics[ww];
+        int size = 0;
+        for (int sl = wordCounts.nextSlot(-1); sl >= 0; sl = wordCounts.nextSlot(sl)) {
+            topicBuffer[size++] = wordCounts.getSlotIndex(sl);
+        }
+        Arrays.sort(topicBuffer, 0, size); // the table requires increasing topics
+        for (int ii = 0; ii < size; ii++) {
+            int k = topicBuffer[ii];
+            weightBuffer[ii] = wordCounts.getCount(k) / (topicWords[k].getCountSum() + betaSum);
+        }
+        int[] topics = new int[size];
+        double[] weights = new double[size];
+        System.arraycopy(topicBuffer, 0, topics, 0, size);
+        System.arraycopy(weightBuffer, 0, weights, 0, size);
+        AliasTable table = new AliasTable(topics, weights, size);
+        wordTables[ww] = table;
+        wordTableSweeps[ww] = sweep;
+        wordUpdates[ww] = 0;
+        return table;
+    }
+}
@@ -0,0 +1,179 @@
+package sampling.util;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * Walker's alias table (built with Vose's method) for drawing from a fixed
+ * discrete distribution in O(1) time after O(n) construction.
+ *
+ * The outcomes are either the bins themselves (dense) or a list of integer
+ * outcomes in increasing order (sparse). The table also keeps track of how many
+ * draws have been made since it was built, so that callers can rebuild it once
+ * it has become too stale.
+ *
+ * @author vietan
+ */
+public class AliasTable implements Serializable {
+
+    private static final long serialVersionUID = 1123581321L;
+    private final int[] outcomes; // null if the outcomes are the bins
+    private final double[] weights;
+    private final double[] probs;
+    private final int[] aliases;
+    private final int size;
+    private double mass;
+    private int numDraws;
+
+    /**
+     * Build a table over outcomes 0, ..., weights.length - 1.
+     *
+     * @param weights Unnormalized non-negative weights
+     */
+    public AliasTable(double[] weights) {
+        this(null, weights, weights.length);
+    }
+
+    /**
+     * Build a table over a sparse set of outcomes.
+     *
+     * @param outcomes Outcomes in increasing order, or null for 0, ..., size -
+     * 1
+     * @param weights Unnormalized non-negative weights of the outcomes
+     * @param size Number of outcomes
+     */
+    public AliasTable(int[] outcomes, double[] weights, int size) {
+        this.size = size;
+        this.outcomes = outcomes;
+        this.weights = weights;
+        this.probs = new double[size];
+        this.aliases = new int[size];
+        this.build();
+    }
+
+    private void build() {
+        this.mass = 0.0;
+        for (int ii = 0; ii < size; ii++) {
+            mass += weights[ii];
+        }
+        if (size == 0 || mass <= 0) {
+            return;
+        }
+
+        int[] small = new int[size];
+        int[] large = new int[size];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int ii = 0; ii < size; ii++) {
+            probs[ii] = weights[ii] * size / mass;
+            if (probs[ii] < 1.0) {
+                small[numSmall++] = ii;
+            } else {
+                large[numLarge++] = ii;
+            }
+        }
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall];
+            int l = large[--numLarge];
+            aliases[s] = l;
+            probs[l] = (probs[l] + probs[s]) - 1.0;
+            if (probs[l] < 1.0) {
+                small[numSmall++] = l;
+            } else {
+                large[numLarge++] = l;
+            }
+        }
+        // remaining bins are full up to rounding errors
+        while (numLarge > 0) {
+            probs[large[--numLarge]] = 1.0;
+        }
+        while (numSmall > 0) {
+            probs[small[--numSmall]] = 1.0;
+        }
+    }
+
+    /**
+     * Draw an outcome.
+     *
+     * @param rand Random number generator
+     * @return The sampled outcome
+     */
+    public int sample(Random rand) {
+        numDraws++;
+        int bin = rand.nextInt(size);
+        if (rand.nextDouble() >= probs[bin]) {
+            bin = aliases[bin];
+        }
+        return outcomes == null ? bin : outcomes[bin];
+    }
+
+    /**
+     * Return the unnormalized weight that this table was built with for an
+     * outcome, or 0 if the outcome is not in the table.
+     *
+     * @param outcome The outcome
+     */
+    public double getWeight(int outcome) {
+        if (outcomes == null) {
+            return weights[outcome];
+        }
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (outcomes[mid] < outcome) {
+                lo = mid + 1;
+            } else if (outcomes[mid] > outcome) {
+                hi = mid - 1;
+            } else {
+                return weights[mid];
+            }
+        }
+        return 0.0;
+    }
+
+    /**
+     * Return the total unnormalized weight.
+     */
+    public double getMass() {
+        return this.mass;
+    }
+
+    /**
+     * Return the number of draws since the table was built.
+     */
+    public int getNumDraws() {
+        return this.numDraws;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public static void main(String[] args) {
+        try {
+            testSample();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void testSample() throws Exception {
+        double[] weights = {0.5, 3.0, 0.0, 1.5, 5.0};
+        AliasTable table = new AliasTable(new int[]{1, 4, 7, 8, 20}, weights, weights.length);
+        Random r = new Random(1);
+        int numDraws = 1000000;
+        java.util.HashMap<Integer, Integer> counts = new java.util.HashMap<Integer, Integer>();
+        for (int ii = 0; ii < numDraws; ii++) {
+            int o = table.sample(r);
+            Integer c = counts.get(o);
+            counts.put(o, c == null ? 1 : c + 1);
+        }
+        for (int o : new int[]{1, 4, 7, 8, 20}) {
+            Integer c = counts.get(o);
+            System.out.println(o + "\texpected: " + table.getWeight(o) / table.getMass()
+                    + "\tobserved: " + (c == null ? 0.0 : (double) c / numDraws));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package sampling.util;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A table of non-negative integer counts (e.g., topic-word counts) that many
+ * threads can update at once without locking.
+ *
+ * Counts are kept in one dense AtomicIntegerArray in row-major order and the
+ * row totals in a second AtomicIntegerArray in which every total sits on its
+ * own cache line, so that threads updating different rows do not contend. A
+ * reader running concurrently with writers may see a total that is slightly
+ * out of sync with the counts of the row, which is what samplers running
+ * approximate parallel sweeps tolerate anyway.
+ *
+ * @author vietan
+ */
+public class ConcurrentCountTable implements Serializable {
+
+    private static final long serialVersionUID = 1123581321L;
+    private static final int PAD = 16; // ints per 64-byte cache line
+    private final int numRows;
+    private final int dimension;
+    private final AtomicIntegerArray counts;
+    private final AtomicIntegerArray totals;
+
+    public ConcurrentCountTable(int numRows, int dimension) {
+        if ((long) numRows * dimension > Integer.MAX_VALUE) {
+            throw new RuntimeException("Table too large. " + numRows + " x " + dimension);
+        }
+        this.numRows = numRows;
+        this.dimension = dimension;
+        this.counts = new AtomicIntegerArray(numRows * dimension);
+        this.totals = new AtomicIntegerArray(numRows * PAD);
+    }
+
+    public int getNumRows() {
+        return this.numRows;
+    }
+
+    public int getDimension() {
+        return this.dimension;
+    }
+
+    public int getCount(int row, int idx) {
+        return counts.get(row * dimension + idx);
+    }
+
+    public int getCountSum(int row) {
+        return totals.get(row * PAD);
+    }
+
+    public void increment(int row, int idx) {
+        counts.incrementAndGet(row * dimension + idx);
+        totals.incrementAndGet(row * PAD);
+    }
+
+    public void decrement(int row, int idx) {
+        if (counts.decrementAndGet(row * dimension + idx) < 0) {
+            counts.incrementAndGet(row * dimension + idx);
+            throw new RuntimeException("Removing observation that does not exist "
+                    + idx + " in row " + row);
+        }
+        totals.decrementAndGet(row * PAD);
+    }
+
+    public void changeCount(int row, int idx, int delta) {
+        if (counts.addAndGet(row * dimension + idx, delta) < 0) {
+            counts.addAndGet(row * dimension + idx, -delta);
+            throw new RuntimeException("Setting a negative count for observation "
+                    + idx + " in row " + row);
+        }
+        totals.addAndGet(row * PAD, delta);
+    }
+
+    /**
+     * Reset all counts of a row to zero. This should only be called when no
+     * thread is updating the row.
+     *
+     * @param row The row
+     */
+    public void clear(int row) {
+        for (int ii = 0; ii < dimension; ii++) {
+            counts.set(row * dimension + ii, 0);
+        }
+        totals.set(row * PAD, 0);
+    }
+
+    /**
+     * Validate a row. This should only be called when no thread is updating
+     * the row.
+     *
+     * @param row The row
+     * @param msg Message to include in the exception
+     */
+    public void validate(int row, String msg) {
+        int total = 0;
+        for (int ii = 0; ii < dimension; ii++) {
+            int count = getCount(row, ii);
+            if (count < 0) {
+                throw new RuntimeException(msg + ". Negative count for observation "
+                        + ii + ". count = " + count);
+            }
+            total += count;
+        }
+        if (total != getCountSum(row)) {
+            throw new RuntimeException(msg + ". Total counts mismatched. "
+                    + total + " vs. " + getCountSum(row));
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package sampling.util;
+
+import core.TaskExecutor;
+import java.util.Arrays;
+import java.util.Random;
+import sampling.likelihood.DirMult;
+import util.SamplerUtils;
+import util.StatUtils;
+
+/**
+ * Inference of the topic proportions of new documents given fixed topics.
+ *
+ * The topics are copied once into a read-only word-major array, and since they
+ * do not change, the documents are independent and are processed in parallel
+ * on the shared {@link TaskExecutor} pool. Each document stops as soon as it
+ * converges. Three modes are supported:
+ * <ul>
+ * <li>GIBBS: collapsed Gibbs sampling of the topic of each token. The topic
+ * counts are averaged over samples after burn-in, and sampling stops when the
+ * average proportions change less than the tolerance between two samples.</li>
+ * <li>ICM: iterated conditional modes, which assigns each token to its most
+ * likely topic until no assignment changes.</li>
+ * <li>VARIATIONAL: mean-field updates of the variational topic proportions
+ * until their mean change is less than the tolerance.</li>
+ * </ul>
+ * The ICM and variational modes are deterministic. In the Gibbs mode, each
+ * document has its own random number stream derived from the seed and the
+ * document index, so the results do not depend on the number of threads.
+ *
+ * @author vietan
+ */
+public class FoldIn {
+
+    public enum Mode {
+
+        GIBBS, ICM, VARIATIONAL
+    }
+    private final int K;
+    private final int V;
+    private final double[] wordTopics; // [V * K]: p(w | k) at w * K + k
+    private final double[] alphas; // [K]
+    private Mode mode = Mode.GIBBS;
+    private int burnIn = 50;
+    private int maxIter = 100;
+    private int sampleLag = 5;
+    private double tolerance = 0.001;
+    private long seed = SamplerUtils.RAND_SEED;
+
+    /**
+     * @param topics The topics, each of which is a distribution over the
+     * vocabulary
+     * @param alphas The Dirichlet prior of the topic proportions
+     */
+    public FoldIn(double[][] topics, double[] alphas) {
+        this.K = topics.length;
+        this.V = topics[0].length;
+        if (alphas.length != K) {
+            throw new RuntimeException("Dimensions mismatched. " + K + " topics vs. "
+                    + alphas.length + " priors");
+        }
+        if ((long) V * K > Integer.MAX_VALUE - 8) {
+            throw new RuntimeException("Too many topic-word entries to fold in. "
+                    + K + " topics x " + V + " words = " + ((long) V * K)
+                    + " exceeds the maximum array size");
+        }
+        this.alphas = alphas.clone();
+        this.wordTopics = new double[V * K];
+        for (int k = 0; k < K; k++) {
+            for (int v = 0; v < V; v++) {
+                wordTopics[v * K + k] = topics[k][v];
+            }
+        }
+    }
+
+    /**
+     * Return the posterior predictive distributions of a set of topics.
+     *
+     * @param topicWords The topic-word counts
+     */
+    public static double[][] getDistributions(DirMult[] topicWords) {
+        double[][] topics = new double[topicWords.length][];
+        for (int k = 0; k < topics.length; k++) {
+            topics[k] = topicWords[k].getDistribution();
+        }
+        return topics;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Set the iterations of the Gibbs mode, and the maximum number of
+     * iterations of the other modes.
+     *
+     * @param burnIn Number of burn-in iterations
+     * @param maxIter Maximum number of iterations
+     * @param sampleLag Number of iterations between samples
+     */
+    public void setIterations(int burnIn, int maxIter, int sampleLag) {
+        this.burnIn = burnIn;
+        this.maxIter = maxIter;
+        this.sampleLag = Math.max(1, sampleLag);
+    }
+
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getNumTopics() {
+        return this.K;
+    }
+
+    /**
+     * Infer the topics of a set of documents.
+     *
+     * @param docs The documents
+     * @return The expected number of tokens of each document assigned to each
+     * topic
+     */
+    public double[][] infer(int[][] docs) {
+        return infer(docs, null);
+    }
+
+    /**
+     * Infer the topics of a set of documents, each of which is restricted to
+     * a set of candidate topics.
+     *
+     * @param docs The documents
+     * @param candidates The candidate topics of each document (null, or null
+     * for a document, to consider all topics)
+     * @return The expected number of tokens of each document assigned to each
+     * topic
+     */
+    public double[][] infer(final int[][] docs, final int[][] candidates) {
+        final double[][] docTopicCounts = new double[docs.length][];
+        TaskExecutor.runIndexed(docs.length, new TaskExecutor.IndexedTask() {
+            @Override
+            public void run(int d) {
+                docTopicCounts[d] = infer(docs[d], getCandidates(candidates, d), d);
+            }
+        });
+        return docTopicCounts;
+    }
+
+    private static int[] getCandidates(int[][] candidates, int d) {
+        return candidates == null ? null : candidates[d];
+    }
+
+    /**
+     * Infer the topics of a single document.
+     *
+     * @param doc The tokens of the document
+     * @param candidates The candidate topics (null to consider all topics)
+     * @param docIndex The index of the document, which identifies its random
+     * number stream
+     * @return The expected number of tokens assigned to each topic
+     */
+    public double[] infer(int[] doc, int[] candidates, long docIndex) {
+        if (candidates == null) {
+            candidates = new int[K];
+            for (int k = 0; k < K; k++) {
+                candidates[k] = k;
+            }
+        }
+        double[] counts;
+        switch (mode) {
+            case GIBBS:
+                counts = sample(doc, candidates, RandomStreams.newStream(seed, docIndex), false);
+                break;
+            case ICM:
+                counts = sample(doc, candidates, null, true);
+                break;
+            case VARIATIONAL:
+                counts = fit(doc, candidates);
+                break;
+            default:
+                throw new RuntimeException("Mode " + mode + " is not supported");
+        }
+        double[] docTopicCounts = new double[K];
+        for (int ii = 0; ii < candidates.length; ii++) {
+            docTopicCounts[candidates[ii]] = counts[ii];
+        }
+        return docTopicCounts;
+    }
+
+    /**
+     * Sample (or, in ICM, maximize) the topic of each token.
+     *
+     * @return The topic counts, averaged over samples in the Gibbs mode,
+     * indexed by candidate
+     */
+    private double[] sample(int[] doc, int[] candidates, Random rand, boolean icm) {
+        int C = candidates.length;
+        int[] z = new int[doc.length];
+        int[] counts = new int[C];
+        double[] probs = new double[C];
+        double[] sumCounts = new double[C];
+        double[] lastProps = new double[C];
+        int numSamples = 0;
+        int lastIter = icm ? maxIter : Math.max(maxIter, burnIn + 1);
+        for (int iter = 0; iter < lastIter; iter++) {
+            int numChanged = 0;
+            for (int n = 0; n < doc.length; n++) {
+                if (iter > 0) {
+                    counts[z[n]]--;
+                }
+                int offset = doc[n] * K;
+                double sum = 0;
+                for (int ii = 0; ii < C; ii++) {
+                    probs[ii] = (counts[ii] + alphas[candidates[ii]])
+                            * wordTopics[offset + candidates[ii]];
+                    sum += probs[ii];
+                }
+                int sampled;
+                if (icm) {
+                    sampled = 0;
+                    for (int ii = 1; ii < C; ii++) {
+                        if (probs[ii] > probs[sampled]) {
+                            sampled = ii;
+                        }
+                    }
+                } else {
+                    double u = rand.nextDouble() * sum;
+                    sampled = 0;
+                    double cumsum = probs[0];
+                    while (cumsum <= u && sampled < C - 1) {
+                        cumsum += probs[++sampled];
+                    }
+                }
+                if (iter == 0 || sampled != z[n]) {
+                    numChanged++;
+                }
+                z[n] = sampled;
+                counts[sampled]++;
+            }
+
+            if (icm) {
+                if (numChanged == 0) {
+                    break;
+                }
+                continue;
+            }
+            if (iter >= burnIn && (iter - burnIn) % sampleLag == 0) {
+                numSamples++;
+                double change = 0;
+                for (int ii = 0; ii < C; ii++) {
+                    sumCounts[ii] += counts[ii];
+                    double prop = sumCounts[ii] / numSamples / Math.max(1, doc.length);
+                    change = Math.max(change, Math.abs(prop - lastProps[ii]));
+                    lastProps[ii] = prop;
+                }
+                if (numSamples > 1 && change < tolerance) {
+                    break;
+                }
+            }
+        }
+
+        double[] avgCounts = new double[C];
+        for (int ii = 0; ii < C; ii++) {
+            avgCounts[ii] = icm ? counts[ii] : sumCounts[ii] / numSamples;
+        }
+        return avgCounts;
+    }
+
+    /**
+     * Fit the variational topic proportions, gamma, with fixed topics.
+     *
+     * @return The expected topic counts (gamma - alpha), indexed by candidate
+     */
+    private double[] fit(int[] doc, int[] candidates) {
+        int C = candidates.length;
+        double[] gamma = new double[C];
+        double[] expElogtheta = new double[C];
+        double[] phi = new double[C];
+        double[] expected = new double[C];
+        for (int ii = 0; ii < C; ii++) {
+            gamma[ii] = alphas[candidates[ii]] + (double) doc.length / C;
+        }
+        for (int iter = 0; iter < maxIter; iter++) {
+            double gammaSum = 0;
+            for (int ii = 0; ii < C; ii++) {
+                gammaSum += gamma[ii];
+            }
+            double digammaSum = StatUtils.digamma(gammaSum);
+            for (int ii = 0; ii < C; ii++) {
+                expElogtheta[ii] = Math.exp(StatUtils.digamma(gamma[ii]) - digammaSum);
+            }
+
+            Arrays.fill(expected, 0);
+            for (int n = 0; n < doc.length; n++) {
+                int offset = doc[n] * K;
+                double sum = 1E-100;
+                for (int ii = 0; ii < C; ii++) {
+                    phi[ii] = expElogtheta[ii] * wordTopics[offset + candidates[ii]];
+                    sum += phi[ii];
+                }
+                for (int ii = 0; ii < C; ii++) {
+                    expected[ii] += phi[ii] / sum;
+                }
+            }
+
+            double change = 0;
+            for (int ii = 0; ii < C; ii++) {
+                double newGamma = alphas[candidates[ii]] + expected[ii];
+                change += Math.abs(newGamma - gamma[ii]);
+                gamma[ii] = newGamma;
+            }
+            if (change / C < tolerance) {
+                break;
+            }
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,218 @@
+package sampling.util;
+
+import core.TaskExecutor;
+import java.util.ArrayList;
+import java.util.Random;
+import sampling.likelihood.ConcurrentDirMult;
+import sampling.likelihood.DirMult;
+
+/**
+ * Approximate distributed Gibbs sweep (AD-LDA; Newman et al., JMLR 2009).
+ *
+ * Documents are split into contiguous shards with roughly the same number of
+ * tokens, one per worker thread. Each worker samples its documents against its
+ * own copy of the topic-word counts and records every token whose topic
+ * changes. At the end of the sweep, the recorded changes of all workers are
+ * merged into the global topic-word counts. The first worker samples directly
+ * on the global counts, so only numThreads - 1 copies are made.
+ *
+ * Document-specific state (assignments, document-topic counts, etc.) is owned
+ * by the worker of the shard and can be updated without synchronization.
+ *
+ * If the topic-word counts are ConcurrentDirMult's backed by the same table,
+ * all workers sample and update the shared counts directly, so there is no
+ * copying or merging.
+ *
+ * The workers run on the shared pool of {@link TaskExecutor}, so no thread is
+ * created per sweep. Each worker has its own random number stream, derived
+ * from the seed of the sweep and the index of its shard and bound to its
+ * thread while it runs. Unless the counts are shared, a sweep is therefore
+ * reproducible regardless of thread scheduling.
+ *
+ * @author vietan
+ */
+public class ParallelSweep {
+
+    /**
+     * Sampling of all tokens in a single document.
+     */
+    public static interface DocumentSampler {
+
+        /**
+         * Sample all tokens of a document.
+         *
+         * @param dd The document index
+         * @param topicWords The topic-word counts of the worker, which the
+         * sampler updates as usual
+         * @param worker The worker, to which every change of a token's topic
+         * is reported
+         * @return The number of tokens whose topic changed
+         */
+        public int sampleDocument(int dd, DirMult[] topicWords, Worker worker);
+    }
+
+    /**
+     * A worker thread sampling one shard of documents.
+     */
+    public static class Worker implements Runnable {
+
+        private final int start;
+        private final int end;
+        private final DirMult[] topicWords;
+        private final DocumentSampler sampler;
+        private final boolean recording;
+        private final RandomStreams.Stream random;
+        private int[] moves; // (word, old topic, new topic) triples
+        private int numMoves;
+        private int numTokensChanged;
+        private Throwable error;
+
+        Worker(int start, int end, DirMult[] topicWords, DocumentSampler sampler,
+                boolean recording, RandomStreams.Stream random) {
+            this.start = start;
+            this.end = end;
+            this.topicWords = topicWords;
+            this.sampler = sampler;
+            this.recording = recording;
+            this.random = random;
+            this.moves = new int[recording ? 3 * 1024 : 0];
+            this.numMoves = 0;
+        }
+
+        /**
+         * Return the random number stream of this worker.
+         */
+        public Random getRandom() {
+            return this.random;
+        }
+
+        /**
+         * Record that a token of a given word has moved between topics.
+         *
+         * @param word The word type
+         * @param oldTopic The previous topic
+         * @param newTopic The new topic
+         */
+        public void recordMove(int word, int oldTopic, int newTopic) {
+            if (!recording) {
+                return;
+            }
+            if (3 * (numMoves + 1) > moves.length) {
+                int[] newMoves = new int[moves.length * 2];
+                System.arraycopy(moves, 0, newMoves, 0, moves.length);
+                moves = newMoves;
+            }
+            moves[3 * numMoves] = word;
+            moves[3 * numMoves + 1] = oldTopic;
+            moves[3 * numMoves + 2] = newTopic;
+            numMoves++;
+        }
+
+        @Override
+        public void run() {
+            RandomStreams.Stream previous = RandomStreams.getBound();
+            RandomStreams.bind(random);
+            try {
+                for (int dd = start; dd < end; dd++) {
+                    numTokensChanged += sampler.sampleDocument(dd, topicWords, this);
+                }
+            } catch (Throwable t) {
+                this.error = t;
+            } finally {
+                RandomStreams.bind(previous);
+            }
+        }
+
+        void mergeInto(DirMult[] globalTopicWords) {
+            for (int ii = 0; ii < numMoves; ii++) {
+                int word = moves[3 * ii];
+                globalTopicWords[moves[3 * ii + 1]].decrement(word);
+                globalTopicWords[moves[3 * ii + 2]].increment(word);
+            }
+        }
+    }
+
+    /**
+     * Sample all documents in parallel.
+     *
+     * @param topicWords The global topic-word counts
+     * @param docLengths The number of tokens of each document, used to balance
+     * the shards
+     * @param numThreads Number of workers, each sampling one shard as a task
+     * on the shared pool
+     * @param seed Seed from which the random number streams of the workers
+     * are derived
+     * @param updateModel Whether the sampler updates the topic-word counts. If
+     * not, or if the counts are shared ConcurrentDirMult's, all workers use
+     * the global counts and nothing is merged.
+     * @param sampler The per-document sampler
+     * @return The number of tokens whose topic changed
+     */
+    public static int sweep(DirMult[] topicWords, int[] docLengths,
+            int numThreads, long seed, boolean updateModel, DocumentSampler sampler) {
+        int[] boundaries = partition(docLengths, numThreads);
+        boolean merging = updateModel && !ConcurrentDirMult.isShared(topicWords);
+        final ArrayList<Worker> workers = new ArrayList<Worker>();
+        for (int tt = 0; tt < numThreads; tt++) {
+            DirMult[] workerTopicWords = topicWords;
+            if (merging && tt > 0) {
+                workerTopicWords = new DirMult[topicWords.length];
+                for (int k = 0; k < topicWords.length; k++) {
+                    workerTopicWords[k] = topicWords[k].clone();
+                }
+            }
+            workers.add(new Worker(boundaries[tt], boundaries[tt + 1],
+                    workerTopicWords, sampler, merging && tt > 0,
+                    RandomStreams.newStream(seed, tt)));
+        }
+
+        TaskExecutor.runIndexed(workers.size(), new TaskExecutor.IndexedTask() {
+            @Override
+            public void run(int tt) {
+                workers.get(tt).run();
+            }
+        });
+
+        int numTokensChanged = 0;
+        for (Worker worker : workers) {
+            if (worker.error != null) {
+                throw new RuntimeException("Exception in sampling worker", worker.error);
+            }
+            numTokensChanged += worker.numTokensChanged;
+        }
+        if (merging) { // the first worker sampled on the global counts
+            for (int tt = 1; tt < workers.size(); tt++) {
+                workers.get(tt).mergeInto(topicWords);
+            }
+        }
+        return numTokensChanged;
+    }
+
+    /**
+     * Split documents into contiguous shards with roughly the same number of
+     * tokens.
+     *
+     * @param docLengths Number of tokens of each document
+     * @param numShards Number of shards
+     * @return The numShards + 1 shard boundaries
+     */
+    public static int[] partition(int[] docLengths, int numShards) {
+        long totalLength = 0;
+        for (int length : docLengths) {
+            totalLength += length;
+        }
+        int[] boundaries = new int[numShards + 1];
+        long cumLength = 0;
+        int shard = 1;
+        for (int dd = 0; dd < docLengths.length && shard < numShards; dd++) {
+            cumLength += docLengths[dd];
+            while (shard < numShards && cumLength * numShards >= totalLength * shard) {
+                boundaries[shard++] = dd + 1;
+            }
+        }
+        while (shard <= numShards) {
+            boundaries[shard++] = docLengths.length;
+        }
+        return boundaries;
+    }
+}
@@ -0,0 +1,188 @@
+package sampling.util;
+
+import java.util.Random;
+
+/**
+ * Independent random number streams for parallel sampling.
+ *
+ * Each stream is a SplitMix64 generator whose seed is derived
+ * deterministically from a run seed and a stream id (e.g., the index of a
+ * shard or a task), so parallel runs are reproducible regardless of how the
+ * work is scheduled on threads. A stream is not thread-safe and should be used
+ * by a single thread.
+ *
+ * The shared static Random's of the samplers are created with
+ * {@link #newSharedRandom(long)}. They behave exactly like java.util.Random
+ * unless a stream is bound to the current thread using {@link #bind}, in which
+ * case they draw from that stream instead. This way code that uses the shared
+ * generators does not contend on them when it runs in worker threads.
+ *
+ * @author vietan
+ */
+public class RandomStreams {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final ThreadLocal<Stream> bound = new ThreadLocal<Stream>();
+
+    /**
+     * A SplitMix64 random number generator.
+     */
+    public static class Stream extends Random {
+
+        private static final long serialVersionUID = 1123581321L;
+        private long state;
+
+        public Stream(long seed) {
+            super(seed);
+            this.state = seed;
+        }
+
+        @Override
+        public synchronized void setSeed(long seed) {
+            super.setSeed(seed);
+            this.state = seed;
+        }
+
+        @Override
+        protected int next(int bits) {
+            return (int) (nextLong() >>> (64 - bits));
+        }
+
+        @Override
+        public long nextLong() {
+            return mix(state += GOLDEN_GAMMA);
+        }
+
+        @Override
+        public double nextDouble() {
+            return (nextLong() >>> 11) * 0x1.0p-53;
+        }
+    }
+
+    /**
+     * A Random that draws from the stream bound to the current thread if there
+     * is one, and from its own java.util.Random sequence otherwise.
+     */
+    private static class SharedRandom extends Random {
+
+        private static final long serialVersionUID = 1123581321L;
+
+        SharedRandom(long seed) {
+            super(seed);
+        }
+
+        @Override
+        protected int next(int bits) {
+            Stream stream = bound.get();
+            if (stream != null) {
+                return stream.next(bits);
+            }
+            return super.next(bits);
+        }
+
+        @Override
+        public long nextLong() {
+            Stream stream = bound.get();
+            if (stream != null) {
+                return stream.nextLong();
+            }
+            return super.nextLong();
+        }
+
+        @Override
+        public double nextDouble() {
+            Stream stream = bound.get();
+            if (stream != null) {
+                return stream.nextDouble();
+            }
+            return super.nextDouble();
+        }
+
+        @Override
+        public double nextGaussian() {
+            Stream stream = bound.get();
+            if (stream != null) {
+                return stream.nextGaussian();
+            }
+            return super.nextGaussian();
+        }
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Derive the seed of a stream.
+     *
+     * @param runSeed The seed of the run
+     * @param streamId The id of the stream
+     */
+    public static long getStreamSeed(long runSeed, long streamId) {
+        return mix(mix(runSeed) + (streamId + 1) * GOLDEN_GAMMA);
+    }
+
+    /**
+     * Create a new stream.
+     *
+     * @param runSeed The seed of the run
+     * @param streamId The id of the stream
+     */
+    public static Stream newStream(long runSeed, long streamId) {
+        return new Stream(getStreamSeed(runSeed, streamId));
+    }
+
+    /**
+     * Create a Random to be shared by all threads, which draws from the stream
+     * bound to the calling thread if any.
+     *
+     * @param seed The seed used when no stream is bound
+     */
+    public static Random newSharedRandom(long seed) {
+        return new SharedRandom(seed);
+    }
+
+    /**
+     * Bind a stream to the current thread, or unbind the current stream if
+     * the given stream is null.
+     *
+     * @param stream The stream
+     */
+    public static void bind(Stream stream) {
+        if (stream == null) {
+            bound.remove();
+        } else {
+            bound.set(stream);
+        }
+    }
+
+    /**
+     * Return the stream bound to the current thread, or null if there is none.
+     */
+    public static Stream getBound() {
+        return bound.get();
+    }
+
+    /**
+     * Wrap a task so that it runs with a stream bound to its thread.
+     *
+     * @param task The task
+     * @param stream The stream
+     */
+    public static Runnable withStream(final Runnable task, final Stream stream) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                Stream previous = bound.get();
+                bind(stream);
+                try {
+                    task.run();
+                } finally {
+                    bind(previous);
+                }
+            }
+        };
+    }
+}
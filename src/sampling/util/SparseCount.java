@@ -1,51 +1,201 @@
 package sampling.util;
 
 import java.io.Serializable;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
+ * Sparse non-negative integer counts indexed by integers.
+ *
+ * Counts are stored in an open-addressing hash table of primitive int keys and
+ * int values (linear probing, backward-shift deletion) so that increments and
+ * decrements in the sampling loops neither box nor allocate. A slot is
+ * occupied iff its count is positive, which is an invariant of this class
+ * since zero counts are always removed.
+ *
+ * Allocation-free iteration over the non-zero entries is done with a slot
+ * cursor:
+ * <pre>
+ * for (int s = sc.nextSlot(-1); s >= 0; s = sc.nextSlot(s)) {
+ *     int idx = sc.getSlotIndex(s);
+ *     int count = sc.getSlotCount(s);
+ * }
+ * </pre>
+ * The table must not be structurally modified (adding a new index or removing
+ * an index) while a cursor is in use.
  *
  * @author vietan
  */
 public class SparseCount implements Cloneable, Serializable {
 
     private static final long serialVersionUID = 1123581321L;
-    private HashMap<Integer, Integer> counts;
+    private static final int DEFAULT_CAPACITY = 8;
+    private int[] keys;
+    private int[] values; // 0 marks an empty slot
+    private int size;
+    private int mask;
     private int countSum;
+    private transient int modCount; // number of structural modifications
 
     public SparseCount() {
-        this.counts = new HashMap<Integer, Integer>();
+        this.allocate(DEFAULT_CAPACITY);
         this.countSum = 0;
     }
 
     public SparseCount(SparseCount other) {
-        this.counts = new HashMap<>();
-        for (int key : other.getIndices()) {
-            this.counts.put(key, other.getCount(key));
-        }
-        this.countSum = other.getCountSum();
+        this.keys = other.keys.clone();
+        this.values = other.values.clone();
+        this.size = other.size;
+        this.mask = other.mask;
+        this.countSum = other.countSum;
     }
 
     @Override
     public SparseCount clone() throws CloneNotSupportedException {
         SparseCount sc = (SparseCount) super.clone();
-        sc.counts = (HashMap<Integer, Integer>) this.counts.clone();
+        sc.keys = this.keys.clone();
+        sc.values = this.values.clone();
+        sc.modCount = 0;
         return sc;
     }
 
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        this.size = 0;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Return the slot of a given index, or -1 if the index is not stored.
+     */
+    private int find(int key) {
+        int slot = hash(key) & mask;
+        while (values[slot] != 0) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Insert a new index with a positive count. The index must not already be
+     * stored.
+     */
+    private void insert(int key, int count) {
+        if ((size + 1) * 2 > values.length) {
+            rehash(values.length * 2);
+        }
+        int slot = hash(key) & mask;
+        while (values[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = count;
+        size++;
+        modCount++;
+    }
+
+    /**
+     * Remove the entry at a given slot, shifting back subsequent entries of
+     * the same probe sequence so that no tombstones are needed.
+     */
+    private void removeSlot(int slot) {
+        int gap = slot;
+        int cur = (slot + 1) & mask;
+        while (values[cur] != 0) {
+            int home = hash(keys[cur]) & mask;
+            // move the entry at cur to the gap if its home is not in (gap, cur]
+            if (((cur - home) & mask) >= ((cur - gap) & mask)) {
+                keys[gap] = keys[cur];
+                values[gap] = values[cur];
+                gap = cur;
+            }
+            cur = (cur + 1) & mask;
+        }
+        values[gap] = 0;
+        size--;
+        modCount++;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        this.allocate(capacity);
+        for (int s = 0; s < oldValues.length; s++) {
+            if (oldValues[s] != 0) {
+                int slot = hash(oldKeys[s]) & mask;
+                while (values[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[s];
+                values[slot] = oldValues[s];
+                size++;
+            }
+        }
+        modCount++;
+    }
+
+    /**
+     * Return the next occupied slot after a given slot, or -1 if there is
+     * none. Start the iteration with -1.
+     *
+     * @param slot The current slot
+     * @return The next occupied slot
+     */
+    public int nextSlot(int slot) {
+        for (int s = slot + 1; s < values.length; s++) {
+            if (values[s] != 0) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the index stored at an occupied slot.
+     *
+     * @param slot The slot returned by {@link #nextSlot(int)}
+     */
+    public int getSlotIndex(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Return the count stored at an occupied slot.
+     *
+     * @param slot The slot returned by {@link #nextSlot(int)}
+     */
+    public int getSlotCount(int slot) {
+        return values[slot];
+    }
+
     public double dotprod(double[] w) {
         double dp = 0.0;
-        for (int idx : this.getIndices()) {
-            dp += this.getCount(idx) * w[idx];
+        for (int s = 0; s < values.length; s++) {
+            if (values[s] != 0) {
+                dp += values[s] * w[keys[s]];
+            }
         }
         return dp;
     }
 
     public int size() {
-        return this.counts.size();
+        return this.size;
     }
 
     public void remove(int idx) {
@@ -55,45 +205,71 @@ public class SparseCount implements Cloneable, Serializable {
         this.setCount(idx, 0);
     }
 
+    /**
+     * Return a copy of the counts as a map. Changes to the returned map are
+     * not reflected in this object.
+     */
     public HashMap<Integer, Integer> getObservations() {
-        return this.counts;
+        HashMap<Integer, Integer> obs = new HashMap<Integer, Integer>();
+        for (int s = 0; s < values.length; s++) {
+            if (values[s] != 0) {
+                obs.put(keys[s], values[s]);
+            }
+        }
+        return obs;
     }
 
     public void setCount(int observation, int count) {
         if (count < 0) {
             throw new RuntimeException("Setting a negative count. " + count);
         }
-        int curCount = this.getCount(observation);
-        this.counts.put(observation, count);
-        this.countSum += count - curCount;
-        if (count == 0) {
-            this.counts.remove(observation);
+        int slot = find(observation);
+        if (slot < 0) {
+            if (count > 0) {
+                insert(observation, count);
+            }
+            this.countSum += count;
+        } else {
+            this.countSum += count - values[slot];
+            if (count == 0) {
+                removeSlot(slot);
+            } else {
+                values[slot] = count;
+            }
         }
 
-        if (counts.get(observation) != null && this.counts.get(observation) < 0) {
-            throw new RuntimeException("Negative count for observation " + observation
-                    + ". count = " + this.counts.get(observation));
-        }
         if (countSum < 0) {
             throw new RuntimeException("Negative count sumze " + countSum);
         }
     }
 
     public ArrayList<Integer> getSortedIndices() {
-        ArrayList<Integer> sortedIndices = new ArrayList<Integer>();
-        for (int ii : getIndices()) {
-            sortedIndices.add(ii);
+        int[] sorted = new int[size];
+        int ii = 0;
+        for (int s = 0; s < values.length; s++) {
+            if (values[s] != 0) {
+                sorted[ii++] = keys[s];
+            }
+        }
+        Arrays.sort(sorted);
+        ArrayList<Integer> sortedIndices = new ArrayList<Integer>(size);
+        for (int idx : sorted) {
+            sortedIndices.add(idx);
         }
-        Collections.sort(sortedIndices);
         return sortedIndices;
     }
 
+    /**
+     * Return a view of the indices with non-zero counts. The view is backed by
+     * this object and its iterator fails fast if indices are added or removed
+     * during the iteration.
+     */
     public Set<Integer> getIndices() {
-        return this.counts.keySet();
+        return new IndexSet();
     }
 
     public boolean containsIndex(int idx) {
-        return this.counts.containsKey(idx);
+        return find(idx) >= 0;
     }
 
     public int getCountSum() {
@@ -101,12 +277,11 @@ public class SparseCount implements Cloneable, Serializable {
     }
 
     public int getCount(int observation) {
-        Integer count = this.counts.get(observation);
-        if (count == null) {
+        int slot = find(observation);
+        if (slot < 0) {
             return 0;
-        } else {
-            return count;
         }
+        return values[slot];
     }
 
     public void changeCount(int observation, int delta) {
@@ -115,34 +290,32 @@ public class SparseCount implements Cloneable, Serializable {
     }
 
     public void increment(int observation) {
-        Integer count = this.counts.get(observation);
-        if (count == null) {
-            this.counts.put(observation, 1);
+        int slot = find(observation);
+        if (slot < 0) {
+            insert(observation, 1);
         } else {
-            this.counts.put(observation, count + 1);
+            values[slot]++;
         }
         this.countSum++;
     }
 
     public void decrement(int observation) {
-        Integer count = this.counts.get(observation);
-        if (count == null) {
-            for (Integer obs : this.counts.keySet()) {
-                System.out.println(obs + ": " + this.counts.get(obs));
+        int slot = find(observation);
+        if (slot < 0) {
+            for (int s = 0; s < values.length; s++) {
+                if (values[s] != 0) {
+                    System.out.println(keys[s] + ": " + values[s]);
+                }
             }
             throw new RuntimeException("Removing observation that does not exist " + observation);
         }
-        if (count == 1) {
-            this.counts.remove(observation);
+        if (values[slot] == 1) {
+            removeSlot(slot);
         } else {
-            this.counts.put(observation, count - 1);
+            values[slot]--;
         }
         this.countSum--;
 
-        if (counts.get(observation) != null && this.counts.get(observation) < 0) {
-            throw new RuntimeException("Negative count for observation " + observation
-                    + ". count = " + this.counts.get(observation));
-        }
         if (countSum < 0) {
             throw new RuntimeException("Negative count sumze " + countSum);
         }
@@ -155,8 +328,10 @@ public class SparseCount implements Cloneable, Serializable {
     @Override
     public String toString() {
         StringBuilder str = new StringBuilder();
-        for (int obs : this.getIndices()) {
-            str.append(obs).append(":").append(getCount(obs)).append(" ");
+        for (int s = 0; s < values.length; s++) {
+            if (values[s] != 0) {
+                str.append(keys[s]).append(":").append(values[s]).append(" ");
+            }
         }
         return str.toString();
     }
@@ -167,38 +342,47 @@ public class SparseCount implements Cloneable, Serializable {
         }
 
         int totalCount = 0;
-        for (int obs : this.counts.keySet()) {
-            totalCount += this.counts.get(obs);
+        int numEntries = 0;
+        for (int s = 0; s < values.length; s++) {
+            if (values[s] < 0) {
+                throw new RuntimeException(msg + ". Negative count for observation "
+                        + keys[s] + ". count = " + values[s]);
+            }
+            if (values[s] != 0) {
+                if (find(keys[s]) != s) {
+                    throw new RuntimeException(msg + ". Observation " + keys[s]
+                            + " is not reachable");
+                }
+                totalCount += values[s];
+                numEntries++;
+            }
         }
         if (totalCount != this.countSum) {
             throw new RuntimeException(msg + ". Total counts mismatched. " + totalCount + " vs. " + countSum);
         }
+        if (numEntries != this.size) {
+            throw new RuntimeException(msg + ". Sizes mismatched. " + numEntries + " vs. " + size);
+        }
     }
 
     public void add(SparseCount other) {
-        for (int key : other.getIndices()) {
-            this.changeCount(key, other.getCount(key));
+        for (int s = other.nextSlot(-1); s >= 0; s = other.nextSlot(s)) {
+            this.changeCount(other.keys[s], other.values[s]);
         }
     }
 
     public static SparseCount add(SparseCount sc1, SparseCount sc2) {
-        SparseCount sc = new SparseCount();
-        for (int key1 : sc1.getIndices()) {
-            sc.changeCount(key1, sc1.getCount(key1) + sc2.getCount(key1));
-        }
-        for (int key2 : sc2.getIndices()) {
-            if (sc1.containsIndex(key2)) {
-                continue;
-            }
-            sc.changeCount(key2, sc1.getCount(key2) + sc2.getCount(key2));
-        }
+        SparseCount sc = new SparseCount(sc1);
+        sc.add(sc2);
         return sc;
     }
 
     public static String output(SparseCount sc) {
         StringBuilder str = new StringBuilder();
-        for (int obs : sc.counts.keySet()) {
-            str.append(obs).append(":").append(sc.counts.get(obs)).append("\t");
+        for (int s = 0; s < sc.values.length; s++) {
+            if (sc.values[s] != 0) {
+                str.append(sc.keys[s]).append(":").append(sc.values[s]).append("\t");
+            }
         }
         return str.toString();
     }
@@ -216,4 +400,86 @@ public class SparseCount implements Cloneable, Serializable {
         }
         return sp;
     }
+
+    /**
+     * Set view of the indices with non-zero counts.
+     */
+    private class IndexSet extends AbstractSet<Integer> {
+
+        @Override
+        public Iterator<Integer> iterator() {
+            return new Iterator<Integer>() {
+                private final int expectedModCount = modCount;
+                private int slot = nextSlot(-1);
+
+                @Override
+                public boolean hasNext() {
+                    return slot >= 0;
+                }
+
+                @Override
+                public Integer next() {
+                    if (modCount != expectedModCount) {
+                        throw new ConcurrentModificationException();
+                    }
+                    if (slot < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    int key = keys[slot];
+                    slot = nextSlot(slot);
+                    return key;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return (o instanceof Integer) && containsIndex((Integer) o);
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            testRandomOperations();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void testRandomOperations() throws Exception {
+        java.util.Random r = new java.util.Random(1);
+        SparseCount sc = new SparseCount();
+        HashMap<Integer, Integer> ref = new HashMap<Integer, Integer>();
+        for (int ii = 0; ii < 1000000; ii++) {
+            int key = r.nextInt(200) - 50;
+            Integer refCount = ref.get(key);
+            if (refCount != null && r.nextBoolean()) {
+                sc.decrement(key);
+                if (refCount == 1) {
+                    ref.remove(key);
+                } else {
+                    ref.put(key, refCount - 1);
+                }
+            } else {
+                sc.increment(key);
+                ref.put(key, refCount == null ? 1 : refCount + 1);
+            }
+        }
+        sc.validate("Random operations");
+        if (!sc.getObservations().equals(ref)) {
+            throw new RuntimeException("Mismatch with reference map");
+        }
+        System.out.println("# indices: " + sc.size() + ". count sum: " + sc.getCountSum());
+    }
 }
@@ -0,0 +1,462 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Binary checkpoint file consisting of a sequence of sections, each of which
+ * is a contiguous array of ints, longs or doubles.
+ *
+ * Layout: a header (magic number, version, position of the section table),
+ * the sections, and the section table (number of sections, then the type,
+ * byte offset and number of elements of each section). Sections are written
+ * through a FileChannel without building the content in memory, and read
+ * sequentially from memory-mapped windows of the file, one window per section
+ * so that reading several sections in turn does not remap them. Large int
+ * and long sections can also be mapped whole as a sequence of chunks of at
+ * most CHUNK_BYTES bytes, looked up with getInt and getLong.
+ *
+ * Sections can be appended to an existing file. The new sections and a new
+ * section table are written after the end of the file, and the header is
+ * updated last, so the file remains valid if appending fails.
+ *
+ * @author vietan
+ */
+public class BinaryCheckpoint {
+
+    public static final String FileExt = ".ckpt";
+    public static final int MAGIC = 0x53474b50;
+    public static final int VERSION = 1;
+    public static final int INT = 0;
+    public static final int DOUBLE = 1;
+    public static final int LONG = 2;
+    private static final int HEADER_BYTES = 16;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final long WINDOW_BYTES = 1L << 28;
+    private static final int CHUNK_SHIFT = 30;
+    public static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;
+
+    private static int getElementBytes(int type) {
+        return type == INT ? 4 : 8;
+    }
+
+    /**
+     * Return an element of an int section mapped by Reader.mapIntChunks.
+     *
+     * @param chunks The chunks of the section
+     * @param index The index of the element in the section
+     */
+    public static int getInt(IntBuffer[] chunks, long index) {
+        return chunks[(int) (index >>> (CHUNK_SHIFT - 2))]
+                .get((int) (index & ((CHUNK_BYTES >>> 2) - 1)));
+    }
+
+    /**
+     * Return an element of a long section mapped by Reader.mapLongChunks.
+     *
+     * @param chunks The chunks of the section
+     * @param index The index of the element in the section
+     */
+    public static long getLong(LongBuffer[] chunks, long index) {
+        return chunks[(int) (index >>> (CHUNK_SHIFT - 3))]
+                .get((int) (index & ((CHUNK_BYTES >>> 3) - 1)));
+    }
+
+    /**
+     * Copy consecutive elements of an int section mapped by
+     * Reader.mapIntChunks, which may span several chunks.
+     *
+     * @param chunks The chunks of the section
+     * @param start The index of the first element in the section
+     * @param dest The destination array
+     */
+    public static void getInts(IntBuffer[] chunks, long start, int[] dest) {
+        long chunkInts = CHUNK_BYTES >>> 2;
+        int done = 0;
+        while (done < dest.length) {
+            long index = start + done;
+            IntBuffer view = chunks[(int) (index / chunkInts)].duplicate();
+            view.position((int) (index % chunkInts));
+            int num = Math.min(dest.length - done, view.remaining());
+            view.get(dest, done, num);
+            done += num;
+        }
+    }
+
+    /**
+     * Sequential writer of a checkpoint file.
+     */
+    public static class Writer implements Closeable {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final ArrayList<long[]> sections; // type, offset, length
+        private final long initialSize; // size of the file before appending
+        private long position;
+        private int sectionType;
+        private long sectionLength;
+
+        public Writer(String filepath) throws IOException {
+            this(filepath, false);
+        }
+
+        /**
+         * @param filepath The checkpoint file
+         * @param append Whether to add sections to the existing file instead
+         * of overwriting it
+         */
+        public Writer(String filepath, boolean append) throws IOException {
+            this.sections = new ArrayList<long[]>();
+            if (append) {
+                Reader reader = new Reader(filepath);
+                for (int ii = 0; ii < reader.getNumSections(); ii++) {
+                    sections.add(new long[]{reader.types[ii], reader.offsets[ii],
+                        reader.lengths[ii]});
+                }
+                reader.close();
+            }
+            this.file = new RandomAccessFile(filepath, "rw");
+            if (!append) {
+                this.file.setLength(0);
+            }
+            this.channel = file.getChannel();
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+            this.sectionType = -1;
+            this.initialSize = channel.size();
+            if (append) {
+                this.position = initialSize;
+            } else {
+                this.position = 0;
+                this.buffer.position(HEADER_BYTES); // header is filled in on close
+            }
+        }
+
+        public int getNumSections() {
+            return this.sections.size();
+        }
+
+        /**
+         * Remove the last section, which must have been written before, from
+         * the section table. Its content remains in the file but is no longer
+         * referenced.
+         */
+        public void removeLastSection() {
+            if (sectionType >= 0 || sections.isEmpty()) {
+                throw new RuntimeException("No completed section to remove");
+            }
+            sections.remove(sections.size() - 1);
+        }
+
+        /**
+         * End the current section, if any, and start a new one.
+         *
+         * @param type The element type (INT or DOUBLE)
+         */
+        public void startSection(int type) throws IOException {
+            endSection();
+            this.sectionType = type;
+            this.sectionLength = 0;
+            this.sections.add(new long[]{type, position + buffer.position(), 0});
+        }
+
+        public void writeInt(int value) throws IOException {
+            checkType(INT);
+            ensureCapacity(4);
+            buffer.putInt(value);
+            sectionLength++;
+        }
+
+        public void writeInts(int[] values) throws IOException {
+            for (int value : values) {
+                writeInt(value);
+            }
+        }
+
+        public void writeLong(long value) throws IOException {
+            checkType(LONG);
+            ensureCapacity(8);
+            buffer.putLong(value);
+            sectionLength++;
+        }
+
+        public void writeDouble(double value) throws IOException {
+            checkType(DOUBLE);
+            ensureCapacity(8);
+            buffer.putDouble(value);
+            sectionLength++;
+        }
+
+        public void writeDoubles(double[] values) throws IOException {
+            for (double value : values) {
+                writeDouble(value);
+            }
+        }
+
+        private void checkType(int type) {
+            if (sectionType != type) {
+                throw new RuntimeException("Writing element of type " + type
+                        + " to section of type " + sectionType);
+            }
+        }
+
+        private void ensureCapacity(int numBytes) throws IOException {
+            if (buffer.remaining() < numBytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+
+        private void endSection() {
+            if (sectionType >= 0) {
+                sections.get(sections.size() - 1)[2] = sectionLength;
+                sectionType = -1;
+            }
+        }
+
+        /**
+         * Close the file without writing the section table. When appending,
+         * the file is restored to its content before appending.
+         */
+        public void abort() throws IOException {
+            channel.truncate(initialSize);
+            channel.close();
+            file.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            endSection();
+            long tablePosition = position + buffer.position();
+            ensureCapacity(4);
+            buffer.putInt(sections.size());
+            for (long[] section : sections) {
+                ensureCapacity(20);
+                buffer.putInt((int) section[0]);
+                buffer.putLong(section[1]);
+                buffer.putLong(section[2]);
+            }
+            flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(tablePosition);
+            header.flip();
+            channel.write(header, 0);
+            channel.close();
+            file.close();
+        }
+    }
+
+    /**
+     * Reader of a checkpoint file. Each section is read sequentially from the
+     * start.
+     */
+    public static class Reader implements Closeable {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final int[] types;
+        private final long[] offsets;
+        private final long[] lengths;
+        private final long[] cursors;
+        private final MappedByteBuffer[] windows; // current window of each section
+        private final long[] windowStarts;
+        private final long[] windowEnds;
+
+        public Reader(String filepath) throws IOException {
+            this.file = new RandomAccessFile(filepath, "r");
+            this.channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                throw new RuntimeException("Not a checkpoint file " + filepath);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new RuntimeException("Unsupported checkpoint version " + version);
+            }
+            long tablePosition = header.getLong();
+
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY,
+                    tablePosition, channel.size() - tablePosition);
+            int numSections = table.getInt();
+            this.types = new int[numSections];
+            this.offsets = new long[numSections];
+            this.lengths = new long[numSections];
+            this.cursors = new long[numSections];
+            this.windows = new MappedByteBuffer[numSections];
+            this.windowStarts = new long[numSections];
+            this.windowEnds = new long[numSections];
+            for (int ii = 0; ii < numSections; ii++) {
+                types[ii] = table.getInt();
+                offsets[ii] = table.getLong();
+                lengths[ii] = table.getLong();
+            }
+        }
+
+        public int getNumSections() {
+            return this.types.length;
+        }
+
+        public long getSectionLength(int section) {
+            return this.lengths[section];
+        }
+
+        public int getSectionType(int section) {
+            return this.types[section];
+        }
+
+        public int readInt(int section) throws IOException {
+            return getWindow(section, INT, 1).getInt();
+        }
+
+        public void readInts(int section, int[] dest) throws IOException {
+            int done = 0;
+            while (done < dest.length) {
+                int num = Math.min(dest.length - done, (int) (WINDOW_BYTES / 4));
+                getWindow(section, INT, num).asIntBuffer().get(dest, done, num);
+                done += num;
+            }
+        }
+
+        public long readLong(int section) throws IOException {
+            return getWindow(section, LONG, 1).getLong();
+        }
+
+        /**
+         * Map a whole int section into memory without copying it. The
+         * returned buffer remains valid after the reader is closed. Sections
+         * larger than CHUNK_BYTES must be mapped with mapIntChunks.
+         *
+         * @param section The section
+         */
+        public IntBuffer mapInts(int section) throws IOException {
+            if (types[section] != INT) {
+                throw new RuntimeException("Mapping section of type " + types[section]
+                        + " as ints");
+            }
+            if (lengths[section] * 4 > CHUNK_BYTES) {
+                throw new RuntimeException("Section " + section + " is too large to map. "
+                        + lengths[section]);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, offsets[section],
+                    lengths[section] * 4).asIntBuffer();
+        }
+
+        /**
+         * Map a whole int section of any size into memory without copying
+         * it, as consecutive chunks of CHUNK_BYTES bytes (the last one may be
+         * shorter). The returned buffers remain valid after the reader is
+         * closed.
+         *
+         * @param section The section
+         */
+        public IntBuffer[] mapIntChunks(int section) throws IOException {
+            MappedByteBuffer[] chunks = mapChunks(section, INT);
+            IntBuffer[] buffers = new IntBuffer[chunks.length];
+            for (int ii = 0; ii < chunks.length; ii++) {
+                buffers[ii] = chunks[ii].asIntBuffer();
+            }
+            return buffers;
+        }
+
+        /**
+         * Map a whole long section of any size into memory without copying
+         * it, as consecutive chunks of CHUNK_BYTES bytes.
+         *
+         * @param section The section
+         */
+        public LongBuffer[] mapLongChunks(int section) throws IOException {
+            MappedByteBuffer[] chunks = mapChunks(section, LONG);
+            LongBuffer[] buffers = new LongBuffer[chunks.length];
+            for (int ii = 0; ii < chunks.length; ii++) {
+                buffers[ii] = chunks[ii].asLongBuffer();
+            }
+            return buffers;
+        }
+
+        private MappedByteBuffer[] mapChunks(int section, int type) throws IOException {
+            if (types[section] != type) {
+                throw new RuntimeException("Mapping section of type " + types[section]
+                        + " as type " + type);
+            }
+            long numBytes = lengths[section] * getElementBytes(type);
+            int numChunks = (int) Math.max(1, (numBytes + CHUNK_BYTES - 1) / CHUNK_BYTES);
+            MappedByteBuffer[] chunks = new MappedByteBuffer[numChunks];
+            for (int ii = 0; ii < numChunks; ii++) {
+                long start = ii * CHUNK_BYTES;
+                chunks[ii] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        offsets[section] + start, Math.min(CHUNK_BYTES, numBytes - start));
+            }
+            return chunks;
+        }
+
+        public double readDouble(int section) throws IOException {
+            return getWindow(section, DOUBLE, 1).getDouble();
+        }
+
+        public void readDoubles(int section, double[] dest) throws IOException {
+            int done = 0;
+            while (done < dest.length) {
+                int num = Math.min(dest.length - done, (int) (WINDOW_BYTES / 8));
+                getWindow(section, DOUBLE, num).asDoubleBuffer().get(dest, done, num);
+                done += num;
+            }
+        }
+
+        /**
+         * Return a mapped buffer positioned at the next num elements of a
+         * section, and advance the cursor of the section.
+         */
+        private MappedByteBuffer getWindow(int section, int type, int num)
+                throws IOException {
+            if (types[section] != type) {
+                throw new RuntimeException("Reading element of type " + type
+                        + " from section of type " + types[section]);
+            }
+            if (cursors[section] + num > lengths[section]) {
+                throw new RuntimeException("Reading past the end of section " + section);
+            }
+            int elementBytes = getElementBytes(type);
+            long start = offsets[section] + cursors[section] * elementBytes;
+            long end = start + (long) num * elementBytes;
+            MappedByteBuffer window = windows[section];
+            if (window == null || start < windowStarts[section] || end > windowEnds[section]) {
+                long sectionEnd = offsets[section] + lengths[section] * elementBytes;
+                windowStarts[section] = start;
+                windowEnds[section] = Math.min(sectionEnd,
+                        start + Math.max(WINDOW_BYTES, end - start));
+                window = channel.map(FileChannel.MapMode.READ_ONLY,
+                        start, windowEnds[section] - start);
+                windows[section] = window;
+            }
+            window.position((int) (start - windowStarts[section]));
+            cursors[section] += num;
+            return window;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (int ii = 0; ii < windows.length; ii++) {
+                windows[ii] = null;
+            }
+            channel.close();
+            file.close();
+        }
+    }
+}
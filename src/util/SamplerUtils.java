@@ -4,6 +4,7 @@ import cc.mallet.util.Randoms;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Random;
+import sampling.util.RandomStreams;
 import sampling.util.SparseCount;
 
 /**
@@ -16,11 +17,11 @@ public class SamplerUtils {
     public static final double MAX_LOG = Math.log(Double.MAX_VALUE);
     public static final double HALF_LOG_TWO_PI = Math.log(2 * Math.PI) / 2;
     public static final double EULER_MASCHERONI = -0.5772156649015328606065121;
-    public static Random rand = new Random(RAND_SEED);
+    public static Random rand = RandomStreams.newSharedRandom(RAND_SEED);
     public static Randoms randoms = new Randoms((int)RAND_SEED);
 
     public static void resetRand() {
-        rand = new Random(RAND_SEED);
+        rand = RandomStreams.newSharedRandom(RAND_SEED);
     }
     
     public static double[] sampleMultinomial(double[] dirVector) {
@@ -386,13 +387,21 @@ public class SamplerUtils {
      * Scale sample from a pdf
      */
     public static int scaleSample(double[] distribution) {
+        return scaleSample(distribution, rand);
+    }
+
+    /**
+     * Scale sample from a pdf using a given random number generator, e.g., the
+     * stream of a worker thread
+     */
+    public static int scaleSample(double[] distribution, Random r) {
         double[] cumm_probs = new double[distribution.length];
         System.arraycopy(distribution, 0, cumm_probs, 0, cumm_probs.length);
         for (int i = 1; i < cumm_probs.length; i++) {
             cumm_probs[i] += cumm_probs[i - 1];
         }
 
-        double randValue = rand.nextDouble() * cumm_probs[cumm_probs.length - 1];
+        double randValue = r.nextDouble() * cumm_probs[cumm_probs.length - 1];
 
         int index;
         for (index = 0; index < cumm_probs.length; index++) {
@@ -427,7 +436,11 @@ public class SamplerUtils {
     }
 
     public static int scaleSample(double[] weights, double sum) {
-        double b = 0, r = rand.nextDouble() * sum;
+        return scaleSample(weights, sum, rand);
+    }
+
+    public static int scaleSample(double[] weights, double sum, Random rng) {
+        double b = 0, r = rng.nextDouble() * sum;
         int i;
         for (i = 0; i < weights.length; i++) {
             b += weights[i];
@@ -452,6 +465,10 @@ public class SamplerUtils {
     }
 
     public static int logMaxRescaleSample(double[] logDist) {
+        return logMaxRescaleSample(logDist, rand);
+    }
+
+    public static int logMaxRescaleSample(double[] logDist, Random r) {
         double sum = 0.0;
         double max = Double.NEGATIVE_INFINITY;
         for (int i = 0; i < logDist.length; i++) {
@@ -464,7 +481,7 @@ public class SamplerUtils {
             weights[i] = Math.exp(logDist[i] - max);
             sum += weights[i];
         }
-        return scaleSample(weights, sum);
+        return scaleSample(weights, sum, r);
     }
 
 //    public static int logScaleSampleNew(double[] logPdf){